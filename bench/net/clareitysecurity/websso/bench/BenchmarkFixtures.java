@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * BenchmarkFixtures.java
+ *
+ * Shared fixtures for the JMH benchmarks. Everything is built from the
+ * key pair and metadata bundled in the source tree.
+ */
+
+package net.clareitysecurity.websso.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import net.clareitysecurity.websso.idp.PrivateKeyCache;
+import net.clareitysecurity.websso.idp.PublicKeyCache;
+import net.clareitysecurity.websso.idp.SAMLResponse;
+import net.clareitysecurity.websso.metadata.MetaDataCache;
+import net.clareitysecurity.websso.sp.PostHandler;
+
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Builds the key material, metadata and servlet requests used by the
+ * benchmarks. The resource directory defaults to <b>src</b> and can be
+ * changed with the <b>bench.resources</b> system property.
+ *
+ * @author Paul Hethmon
+ */
+public final class BenchmarkFixtures {
+
+  public static final String
+    IDP_ISSUER = "http://dev.acmeidp.com",
+    SP_ISSUER = "http://dev.acmemls.com",
+    IDP_SSO_URL = "http://dev.acmeidp.com/recv-authnrequest.jsp",
+    SP_ACS_URL = "http://dev.acmemls.com/recv-saml.jsp",
+    LOGIN_ID = "jdoe@acmemls.com";
+
+  private BenchmarkFixtures() {
+  }
+
+  /*
+   * Get the directory holding private-key.pem, public-key.pem and idp-meta.xml.
+   * @return The resource directory.
+   */
+  public static File getResourceDir() {
+    return new File(System.getProperty("bench.resources", "src"));
+  }
+
+  /*
+   * Load the bundled private key.
+   * @return A PrivateKeyCache holding private-key.pem.
+   */
+  public static PrivateKeyCache privateKeyCache() throws IOException {
+    PrivateKeyCache pkc = new PrivateKeyCache();
+    pkc.readPrivateKey(new File(getResourceDir(), "private-key.pem").getPath());
+    return pkc;
+  }
+
+  /*
+   * Load the bundled certificate.
+   * @return A PublicKeyCache holding public-key.pem.
+   */
+  public static PublicKeyCache publicKeyCache() throws IOException, java.security.cert.CertificateException {
+    PublicKeyCache pkc = new PublicKeyCache();
+    pkc.readPublicKey(new FileInputStream(new File(getResourceDir(), "public-key.pem")));
+    return pkc;
+  }
+
+  /*
+   * Build the IdP SignatureValidator from idp-meta.xml. The metadata URL points
+   * at a closed port so the provider always falls back to a copy of the bundled
+   * file.
+   * @return The SignatureValidator for the bundled IdP key.
+   */
+  public static SignatureValidator signatureValidator() throws Exception {
+    File backing = File.createTempFile("idp-meta", ".xml");
+    backing.deleteOnExit();
+    copy(new File(getResourceDir(), "idp-meta.xml"), backing);
+
+    MetaDataCache mdc = new MetaDataCache();
+    mdc.setMetaUrl("http://127.0.0.1:1/metadata.xml");
+    mdc.setMetaFile(backing.getPath());
+    mdc.setMetaTimeout(1000);
+    mdc.fetchMetaData();
+    return mdc.getSignatureValidator();
+  }
+
+  /*
+   * Build the AuthnRequest an SP would send for the benchmark configuration.
+   * @return A fresh AuthnRequest.
+   */
+  public static AuthnRequest authnRequest() throws org.opensaml.xml.ConfigurationException {
+    return configure(new PostHandler()).buildAuthnRequest();
+  }
+
+  /*
+   * Apply the benchmark SP settings to a handler.
+   * @param handler The handler to configure.
+   * @return The same handler.
+   */
+  public static <T extends net.clareitysecurity.websso.sp.AbstractHttpHandler> T configure(T handler) {
+    handler.setIssuerName(SP_ISSUER);
+    handler.setProviderName("Acme MLS");
+    handler.setActionURL(IDP_SSO_URL);
+    handler.setAssertionConsumerServiceURL(SP_ACS_URL);
+    return handler;
+  }
+
+  /*
+   * Build an IdP SAMLResponse for the given request.
+   * @param request The AuthnRequest being answered.
+   * @param signed true to sign the assertion with the bundled key pair.
+   * @return A configured SAMLResponse.
+   */
+  public static SAMLResponse samlResponse(AuthnRequest request, boolean signed) throws Exception {
+    SAMLResponse rsp = new SAMLResponse();
+    rsp.setIssuerName(IDP_ISSUER);
+    rsp.setLoginId(LOGIN_ID);
+    rsp.setAuthnRequest(request);
+    rsp.setSignAssertion(signed);
+    if (signed) {
+      rsp.setPrivateKeyCache(privateKeyCache());
+      rsp.setPublicKeyCache(publicKeyCache());
+    }
+    return rsp;
+  }
+
+  /*
+   * Build a minimal HttpServletRequest carrying the given parameters. Only the
+   * calls made by the OpenSAML transport adapter and decoders are answered;
+   * everything else returns null.
+   * @param method GET or POST.
+   * @param requestURL The URL the request was received on.
+   * @param params The request parameters.
+   * @return The request.
+   */
+  public static HttpServletRequest request(final String method, final String requestURL,
+      Map<String, String> params) {
+    final Map<String, String> p = Collections.unmodifiableMap(new HashMap<String, String>(params));
+    InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(Object proxy, Method m, Object[] args) {
+        String name = m.getName();
+        if (name.equals("getMethod")) return method;
+        if (name.equals("getParameter")) return p.get(args[0]);
+        if (name.equals("getParameterValues")) {
+          String v = p.get(args[0]);
+          return (v == null) ? null : new String[] { v };
+        }
+        if (name.equals("getParameterMap")) {
+          Map<String, String []> values = new HashMap<String, String []>();
+          for (Map.Entry<String, String> e : p.entrySet()) values.put(e.getKey(), new String[] { e.getValue() });
+          return values;
+        }
+        if (name.equals("getParameterNames")) return Collections.enumeration(p.keySet());
+        if (name.equals("getRequestURL")) return new StringBuffer(requestURL);
+        if (name.equals("getRequestURI")) return requestURL;
+        if (name.equals("getScheme")) return requestURL.substring(0, requestURL.indexOf(':'));
+        if (name.equals("getCharacterEncoding")) return "UTF-8";
+        if (name.equals("isSecure")) return Boolean.FALSE;
+        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+        if (name.equals("equals")) return proxy == args[0];
+        if (name.equals("toString")) return method + " " + requestURL;
+        return null;
+      }
+    };
+    return (HttpServletRequest) Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(),
+        new Class[] { HttpServletRequest.class }, handler);
+  }
+
+  /*
+   * Build the GET request a browser makes when following a redirect URL. The
+   * raw query string is kept for signature checks and the parameters are
+   * URL decoded, as a container would.
+   * @param url The redirect URL.
+   * @return The request.
+   */
+  public static HttpServletRequest redirectRequest(String url) throws IOException {
+    int q = url.indexOf('?');
+    int end = url.indexOf('#');
+    if (end < 0) end = url.length();
+    final String query = url.substring(q + 1, end);
+    Map<String, String> params = new HashMap<String, String>();
+    String [] pairs = query.split("&");
+    for (int i = 0; i < pairs.length; i++) {
+      int eq = pairs[i].indexOf('=');
+      if (eq < 0) params.put(URLDecoder.decode(pairs[i], "UTF-8"), "");
+      else params.put(URLDecoder.decode(pairs[i].substring(0, eq), "UTF-8"),
+        URLDecoder.decode(pairs[i].substring(eq + 1), "UTF-8"));
+    }
+    return new HttpServletRequestWrapper(request("GET", url.substring(0, q), params)) {
+      public String getQueryString() {
+        return query;
+      }
+    };
+  }
+
+  /*
+   * DEFLATE and BASE64 encode a message the way the redirect binding expects,
+   * independently of the RedirectHandler code being measured.
+   * @param xml The message XML.
+   * @return The SAMLRequest parameter value.
+   */
+  public static String deflateAndBase64Encode(String xml) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFLATED, true));
+    out.write(xml.getBytes("UTF-8"));
+    out.close();
+    return Base64.encodeBytes(bytes.toByteArray(), Base64.DONT_BREAK_LINES);
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    InputStream in = new FileInputStream(from);
+    OutputStream out = new FileOutputStream(to);
+    try {
+      byte [] buf = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * IdGeneratorBenchmark.java
+ *
+ * Measures SAML ID generation from one and from all cores.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import org.opensaml.common.impl.SecureRandomIdentifierGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for SecureIdGenerator against OpenSAML's
+ * SecureRandomIdentifierGenerator, which shares one SecureRandom. Each is
+ * run from one thread and from one thread per core; a generator that
+ * scales with cores has a per-thread score in the second run close to the
+ * score of the first.
+ *
+ * @author Paul Hethmon
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IdGeneratorBenchmark {
+
+  private SecureIdGenerator secureIdGenerator;
+  private SecureRandomIdentifierGenerator openSAMLGenerator;
+
+  @Setup
+  public void setup() throws Exception {
+    secureIdGenerator = SecureIdGenerator.getInstance();
+    openSAMLGenerator = new SecureRandomIdentifierGenerator();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String secureIdGenerator() {
+    return secureIdGenerator.generateIdentifier();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String secureIdGeneratorAllThreads() {
+    return secureIdGenerator.generateIdentifier();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String openSAMLGenerator() {
+    return openSAMLGenerator.generateIdentifier();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String openSAMLGeneratorAllThreads() {
+    return openSAMLGenerator.generateIdentifier();
+  }
+}
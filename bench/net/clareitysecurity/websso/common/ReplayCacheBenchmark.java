@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * ReplayCacheBenchmark.java
+ *
+ * Measures ReplayCache inserts and replay checks from one and from all cores.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for ReplayCache.add(). The <b>addNew</b> cases add a fresh
+ * assertion ID each call, one thread alone and then one thread per core
+ * sharing the cache; comparing the two shows how well the stripes scale.
+ * Entries live for a short time so the cache reaches a steady state where
+ * expired entries are dropped as new ones arrive. <b>addReplay</b> checks
+ * an ID that is already held.
+ *
+ * @author Paul Hethmon
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReplayCacheBenchmark {
+
+  private static final String ISSUER = "http://idp.example.com/idp";
+
+  /** How long each entry is kept, in milliseconds. */
+  @Param({"100"})
+  public long ttl;
+
+  private ReplayCache cache;
+  private String heldId;
+
+  @Setup
+  public void setup() {
+    cache = new ReplayCache();
+    heldId = "_replayedassertion";
+    cache.add(ISSUER, heldId, Long.MAX_VALUE);
+  }
+
+  /**
+   * Makes IDs like the ones an IdP sends: a per-thread prefix and a counter.
+   */
+  @State(Scope.Thread)
+  public static class Ids {
+    private static final AtomicInteger threads = new AtomicInteger();
+    private char [] chars;
+    private long counter;
+
+    @Setup
+    public void setup() {
+      String prefix = "_" + Integer.toHexString(0x1000 + threads.incrementAndGet());
+      chars = new char[prefix.length() + 16];
+      prefix.getChars(0, prefix.length(), chars, 0);
+    }
+
+    String next() {
+      long v = counter++;
+      for (int i = chars.length - 1; i >= chars.length - 16; i--) {
+        chars[i] = Character.forDigit((int) (v & 0xf), 16);
+        v >>>= 4;
+      }
+      return new String(chars);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean addNew(Ids ids) {
+    return cache.add(ISSUER, ids.next(), System.currentTimeMillis() + ttl);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean addNewAllThreads(Ids ids) {
+    return cache.add(ISSUER, ids.next(), System.currentTimeMillis() + ttl);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean addReplay() {
+    return cache.add(ISSUER, heldId, Long.MAX_VALUE);
+  }
+}
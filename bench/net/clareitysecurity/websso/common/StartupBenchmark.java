@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * StartupBenchmark.java
+ *
+ * Measures a cold OpenSAML bootstrap for each profile.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cold-start cost of SAMLBootstrap.init() for the full and SAML2-only
+ * profiles. The bootstrap only runs once per JVM, so every measurement is a
+ * single shot in a fresh fork. Besides the time, the heap still reachable
+ * after a full GC is reported as the <b>retainedBytes</b> counter.
+ *
+ * @author Paul Hethmon
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@Fork(10)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class StartupBenchmark {
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Heap {
+    public long retainedBytes;
+
+    private long baseline;
+
+    @Setup(Level.Iteration)
+    public void before() {
+      baseline = usedAfterGC();
+    }
+
+    @TearDown(Level.Iteration)
+    public void after() {
+      retainedBytes = usedAfterGC() - baseline;
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Profile {
+    @Param({SAMLBootstrap.PROFILE_FULL, SAMLBootstrap.PROFILE_SAML2})
+    public String profile;
+  }
+
+  @Benchmark
+  public long bootstrap(Profile p, Heap heap) throws Exception {
+    SAMLBootstrap.setProfile(p.profile);
+    SAMLBootstrap.init();
+    return SAMLBootstrap.getBootstrapTime();
+  }
+
+  static long usedAfterGC() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * HttpHandlerBenchmark.java
+ *
+ * Measures decoding an AuthnRequest on the IdP for both bindings.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.clareitysecurity.websso.bench.BenchmarkFixtures;
+import net.clareitysecurity.websso.sp.PostHandler;
+import net.clareitysecurity.websso.sp.RedirectHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml2.core.AuthnRequest;
+
+/**
+ * Benchmarks for HttpHandler.decodeSAMLRequest() over GET (redirect) and POST.
+ *
+ * @author Paul Hethmon
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HttpHandlerBenchmark {
+
+  @Param({"GET", "POST"})
+  public String method;
+
+  private HttpHandler handler;
+  private HttpServletRequest request;
+
+  @Setup
+  public void setup() throws Exception {
+    Map<String, String> params = new HashMap<String, String>();
+    if (method.equals("GET")) {
+      RedirectHandler rh = BenchmarkFixtures.configure(new RedirectHandler());
+      params.put(HttpHandler.REQUEST_PARAM, BenchmarkFixtures.deflateAndBase64Encode(rh.createSAMLRedirect()));
+    } else {
+      PostHandler ph = BenchmarkFixtures.configure(new PostHandler());
+      params.put(HttpHandler.REQUEST_PARAM, ph.createSAMLRequest());
+    }
+    params.put(HttpHandler.RELAY_STATE_PARAM, "cmVsYXk=");
+    request = BenchmarkFixtures.request(method, BenchmarkFixtures.IDP_SSO_URL, params);
+    handler = new HttpHandler();
+  }
+
+  @Benchmark
+  public AuthnRequest decodeSAMLRequest() throws Exception {
+    return handler.decodeSAMLRequest(request);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SAMLResponseBenchmark.java
+ *
+ * Measures building and serializing the IdP Response, signed and unsigned.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.io.StringWriter;
+
+import net.clareitysecurity.websso.bench.BenchmarkFixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml2.core.Response;
+
+/**
+ * Benchmarks for SAMLResponse.getSuccessResponse() and createSuccessResponse(),
+ * and for encoding a built Response as Strings or to a Writer.
+ *
+ * @author Paul Hethmon
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SAMLResponseBenchmark {
+
+  @Param({"true", "false"})
+  public boolean signed;
+
+  private SAMLResponse samlResponse;
+  private Response response;
+  private final StringWriter sink = new StringWriter(8192);
+
+  @Setup
+  public void setup() throws Exception {
+    samlResponse = BenchmarkFixtures.samlResponse(BenchmarkFixtures.authnRequest(), signed);
+    response = samlResponse.getSuccessResponse();
+  }
+
+  @Benchmark
+  public Response getSuccessResponse() throws Exception {
+    return samlResponse.getSuccessResponse();
+  }
+
+  @Benchmark
+  public String createSuccessResponse() throws Exception {
+    return samlResponse.createSuccessResponse();
+  }
+
+  /*
+   * Encode a Response that has already been built and signed.
+   */
+  @Benchmark
+  public String encodeResponse() throws Exception {
+    return samlResponse.createSuccessResponse(response);
+  }
+
+  /*
+   * Write a Response that has already been built and signed to a Writer.
+   */
+  @Benchmark
+  public int writeSuccessResponse() throws Exception {
+    sink.getBuffer().setLength(0);
+    samlResponse.writeSuccessResponse(response, sink);
+    return sink.getBuffer().length();
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * StreamingResponseBenchmark.java
+ *
+ * Measures creating a signed Response through OpenSAML and the DOM against
+ * the streaming writer.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import net.clareitysecurity.websso.bench.BenchmarkFixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml2.core.AuthnRequest;
+
+/**
+ * Benchmarks for IdPEngine.createSuccessResponse() with and without the
+ * streaming writer, signed with the fixture key. Run with -prof gc to see
+ * the allocation per Response.
+ *
+ * @author Paul Hethmon
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StreamingResponseBenchmark {
+
+  @Param({"dom", "streaming"})
+  public String writer;
+
+  private IdPEngine engine;
+  private AuthnRequest authnRequest;
+
+  @Setup
+  public void setup() throws Exception {
+    engine = new IdPEngine(new IdPConfig.Builder()
+      .setIssuerName(BenchmarkFixtures.IDP_ISSUER)
+      .setPrivateKeyCache(BenchmarkFixtures.privateKeyCache())
+      .setPublicKeyCache(BenchmarkFixtures.publicKeyCache())
+      .setStreamingWriter(writer.equals("streaming"))
+      .build());
+    authnRequest = BenchmarkFixtures.authnRequest();
+  }
+
+  @Benchmark
+  public IdPResult createSuccessResponse() throws Exception {
+    return engine.createSuccessResponse(authnRequest, BenchmarkFixtures.LOGIN_ID);
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * MetaDataIndexBenchmark.java
+ *
+ * Measures reading a large federation metadata aggregate with the StAX
+ * index against unmarshalling all of it.
+ */
+
+package net.clareitysecurity.websso.metadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import net.clareitysecurity.websso.bench.BenchmarkFixtures;
+import net.clareitysecurity.websso.common.SAMLBootstrap;
+import net.clareitysecurity.websso.common.SharedParserPool;
+
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.util.Base64;
+import org.w3c.dom.Element;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads a synthetic aggregate of <b>entities</b> EntityDescriptors, each
+ * an IdP and SP with one signing certificate and four endpoints.
+ * <b>index</b> builds a MetaDataIndex; <b>unmarshall</b> parses the whole
+ * aggregate to a DOM and unmarshalls it, as a metadata provider would;
+ * <b>indexThenMaterialize</b> indexes and then builds the EntityDescriptor
+ * of the last entity; <b>loadSnapshot</b> rebuilds the index from the
+ * binary snapshot written beside the aggregate. The heap freed by dropping the result, measured
+ * after full GCs, is reported as the <b>retainedBytes</b> counter.
+ *
+ * @author Paul Hethmon
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MetaDataIndexBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Aggregate {
+    @Param({"5000"})
+    public int entities;
+
+    File file;
+    String lastEntityId;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+      SAMLBootstrap.init();
+      String cert = Base64.encodeBytes(BenchmarkFixtures.publicKeyCache().getX509Certificate().getEncoded());
+      file = File.createTempFile("aggregate", ".xml");
+      file.deleteOnExit();
+      Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      w.write("<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+        + " xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\" Name=\"urn:example:federation\">\n");
+      for (int i = 0; i < entities; i++) {
+        String host = "https://member" + i + ".example.org";
+        lastEntityId = host + "/saml";
+        w.write("<md:EntityDescriptor entityID=\"" + lastEntityId + "\">\n");
+        w.write("<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n");
+        writeKey(w, cert);
+        w.write("<md:NameIDFormat>urn:oasis:names:tc:SAML:2.0:nameid-format:transient</md:NameIDFormat>\n");
+        w.write("<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\""
+          + host + "/sso/redirect\"/>\n");
+        w.write("<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\""
+          + host + "/sso/post\"/>\n");
+        w.write("</md:IDPSSODescriptor>\n");
+        w.write("<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n");
+        writeKey(w, cert);
+        w.write("<md:AssertionConsumerService index=\"0\" Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+          + " Location=\"" + host + "/acs/post\"/>\n");
+        w.write("<md:AssertionConsumerService index=\"1\" Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Artifact\""
+          + " Location=\"" + host + "/acs/artifact\"/>\n");
+        w.write("</md:SPSSODescriptor>\n");
+        w.write("<md:Organization><md:OrganizationName xml:lang=\"en\">Member " + i + "</md:OrganizationName>"
+          + "<md:OrganizationDisplayName xml:lang=\"en\">Member " + i + "</md:OrganizationDisplayName>"
+          + "<md:OrganizationURL xml:lang=\"en\">" + host + "/</md:OrganizationURL></md:Organization>\n");
+        w.write("</md:EntityDescriptor>\n");
+      }
+      w.write("</md:EntitiesDescriptor>\n");
+      w.close();
+      MetaDataIndex.read(file).writeSnapshot(MetaDataIndex.getSnapshotFile(file));
+      MetaDataIndex.getSnapshotFile(file).deleteOnExit();
+    }
+
+    private static void writeKey(Writer w, String cert) throws java.io.IOException {
+      w.write("<md:KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>\n");
+      w.write(cert);
+      w.write("\n</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>\n");
+    }
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Heap {
+    public long retainedBytes;
+
+    Object result;
+
+    @Setup(Level.Iteration)
+    public void before() {
+      result = null;
+    }
+
+    @TearDown(Level.Iteration)
+    public void after() throws InterruptedException {
+      long held = usedAfterGC();
+      result = null;
+      retainedBytes = held - usedAfterGC();
+    }
+  }
+
+  @Benchmark
+  public int index(Aggregate a, Heap heap) throws Exception {
+    MetaDataIndex index = MetaDataIndex.read(a.file);
+    heap.result = index;
+    return index.size();
+  }
+
+  @Benchmark
+  public int unmarshall(Aggregate a, Heap heap) throws Exception {
+    FileInputStream in = new FileInputStream(a.file);
+    try {
+      Element root = SharedParserPool.getInstance().parse(in).getDocumentElement();
+      XMLObject xml = Configuration.getUnmarshallerFactory().getUnmarshaller(root).unmarshall(root);
+      heap.result = xml;
+      return xml.getOrderedChildren().size();
+    } finally {
+      in.close();
+    }
+  }
+
+  @Benchmark
+  public int indexThenMaterialize(Aggregate a, Heap heap) throws Exception {
+    MetaDataIndex index = MetaDataIndex.read(a.file);
+    heap.result = index;
+    return index.getEntityDescriptor(a.lastEntityId).getRoleDescriptors().size();
+  }
+
+  /*
+   * Collect until the used heap stops falling; one System.gc() does not
+   * always free a large tree that has just become unreachable.
+   */
+  @Benchmark
+  public int loadSnapshot(Aggregate a, Heap heap) throws Exception {
+    MetaDataIndex index = MetaDataIndex.load(a.file);
+    heap.result = index;
+    return index.size();
+  }
+
+  static long usedAfterGC() throws InterruptedException {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      System.gc();
+      Thread.sleep(20);
+      long now = memory.getHeapMemoryUsage().getUsed();
+      if (now >= used - 64 * 1024) return Math.min(now, used);
+      used = now;
+    }
+    return used;
+  }
+}
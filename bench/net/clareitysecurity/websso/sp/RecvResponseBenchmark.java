@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * RecvResponseBenchmark.java
+ *
+ * Measures decoding and validating a signed Response on the SP.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.clareitysecurity.websso.bench.BenchmarkFixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for RecvResponse.processRequest() with a signed assertion.
+ *
+ * @author Paul Hethmon
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RecvResponseBenchmark {
+
+  private RecvResponse recvResponse;
+  private HttpServletRequest request;
+
+  @Setup
+  public void setup() throws Exception {
+    String samlResponse = BenchmarkFixtures.samlResponse(BenchmarkFixtures.authnRequest(), true)
+      .createSuccessResponse();
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RecvResponse.RESPONSE_PARAM, samlResponse);
+    params.put(RecvResponse.RELAY_STATE_PARAM, "cmVsYXk=");
+    request = BenchmarkFixtures.request("POST", BenchmarkFixtures.SP_ACS_URL, params);
+    recvResponse = new RecvResponse();
+    recvResponse.setSignatureValidator(BenchmarkFixtures.signatureValidator());
+    // The same Response is posted every time, so replays must not be checked
+    recvResponse.setReplayCache(null);
+  }
+
+  @Benchmark
+  public String processRequest() throws Exception {
+    recvResponse.processRequest(request);
+    return recvResponse.getLoginId();
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SPHandlerBenchmark.java
+ *
+ * Measures creating the AuthnRequest on the SP for both bindings, with the
+ * request template and with the DOM path.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import net.clareitysecurity.websso.bench.BenchmarkFixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for PostHandler.createSAMLRequest(),
+ * RedirectHandler.createSAMLRedirect() and
+ * RedirectHandler.deflateAndBase64Encode().
+ *
+ * @author Paul Hethmon
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SPHandlerBenchmark {
+
+  /** true for the precompiled request template, false for the DOM path. */
+  @Param({"true", "false"})
+  public boolean template;
+
+  private PostHandler postHandler;
+  private RedirectHandler redirectHandler;
+  private String redirectXML;
+
+  @Setup
+  public void setup() throws Exception {
+    postHandler = BenchmarkFixtures.configure(new PostHandler());
+    redirectHandler = BenchmarkFixtures.configure(new RedirectHandler());
+    postHandler.setUseRequestTemplate(template);
+    redirectHandler.setUseRequestTemplate(template);
+    redirectXML = redirectHandler.createSAMLRedirect();
+  }
+
+  @Benchmark
+  public String postCreateSAMLRequest() throws Exception {
+    return postHandler.createSAMLRequest();
+  }
+
+  @Benchmark
+  public String redirectCreateSAMLRedirect() throws Exception {
+    return redirectHandler.createSAMLRedirect();
+  }
+
+  @Benchmark
+  public String redirectDeflateAndBase64Encode() {
+    return redirectHandler.deflateAndBase64Encode(redirectXML);
+  }
+}
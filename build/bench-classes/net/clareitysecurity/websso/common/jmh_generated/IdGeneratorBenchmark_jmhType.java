@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.common.jmh_generated;
+public class IdGeneratorBenchmark_jmhType extends IdGeneratorBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.common.jmh_generated;
+public class ReplayCacheBenchmark_Ids_jmhType extends ReplayCacheBenchmark_Ids_jmhType_B3 {
+}
+
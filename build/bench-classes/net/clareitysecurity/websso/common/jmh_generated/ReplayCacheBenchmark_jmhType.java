@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.common.jmh_generated;
+public class ReplayCacheBenchmark_jmhType extends ReplayCacheBenchmark_jmhType_B3 {
+}
+
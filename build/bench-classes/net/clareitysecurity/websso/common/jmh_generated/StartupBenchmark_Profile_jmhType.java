@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.common.jmh_generated;
+public class StartupBenchmark_Profile_jmhType extends StartupBenchmark_Profile_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.idp.jmh_generated;
+public class HttpHandlerBenchmark_jmhType extends HttpHandlerBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.idp.jmh_generated;
+public class RedirectVerifyBenchmark_jmhType extends RedirectVerifyBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.idp.jmh_generated;
+public class SAMLResponseBenchmark_jmhType extends SAMLResponseBenchmark_jmhType_B3 {
+}
+
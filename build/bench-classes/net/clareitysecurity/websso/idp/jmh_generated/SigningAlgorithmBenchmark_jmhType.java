@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.idp.jmh_generated;
+public class SigningAlgorithmBenchmark_jmhType extends SigningAlgorithmBenchmark_jmhType_B3 {
+}
+
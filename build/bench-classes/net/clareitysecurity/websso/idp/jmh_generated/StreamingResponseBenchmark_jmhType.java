@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.idp.jmh_generated;
+public class StreamingResponseBenchmark_jmhType extends StreamingResponseBenchmark_jmhType_B3 {
+}
+
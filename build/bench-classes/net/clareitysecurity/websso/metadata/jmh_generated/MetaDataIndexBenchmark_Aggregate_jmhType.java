@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.metadata.jmh_generated;
+public class MetaDataIndexBenchmark_Aggregate_jmhType extends MetaDataIndexBenchmark_Aggregate_jmhType_B3 {
+}
+
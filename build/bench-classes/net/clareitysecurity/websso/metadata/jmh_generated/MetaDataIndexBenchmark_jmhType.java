@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.metadata.jmh_generated;
+public class MetaDataIndexBenchmark_jmhType extends MetaDataIndexBenchmark_jmhType_B3 {
+}
+
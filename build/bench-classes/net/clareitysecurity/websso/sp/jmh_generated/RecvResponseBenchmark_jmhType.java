@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.sp.jmh_generated;
+public class RecvResponseBenchmark_jmhType extends RecvResponseBenchmark_jmhType_B3 {
+}
+
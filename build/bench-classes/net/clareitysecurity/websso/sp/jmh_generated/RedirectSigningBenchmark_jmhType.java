@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.sp.jmh_generated;
+public class RedirectSigningBenchmark_jmhType extends RedirectSigningBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package net.clareitysecurity.websso.sp.jmh_generated;
+public class SPHandlerBenchmark_jmhType extends SPHandlerBenchmark_jmhType_B3 {
+}
+
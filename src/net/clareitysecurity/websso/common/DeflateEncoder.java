@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * DeflateEncoder.java
+ *
+ * DEFLATE and BASE64 encoding for the HTTP redirect binding, using a
+ * bounded pool of Deflaters and reusable buffers.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes a message the way the SAML redirect binding expects: raw DEFLATE
+ * (RFC 1951) followed by BASE64 without line breaks.
+ * <p>
+ * Each call borrows a Deflater together with its output buffers from a
+ * bounded pool and returns them afterwards. The message is deflated into a
+ * byte buffer that grows as needed, so incompressible input is never cut
+ * short, and BASE64 is written from that buffer into a char buffer that
+ * becomes the result String. Deflaters that do not fit back in the pool are
+ * released with end() instead of waiting for finalization.
+ *
+ * @author Paul Hethmon
+ */
+public class DeflateEncoder {
+
+  private static final DeflateEncoder instance = new DeflateEncoder();
+
+  /** Default for the most idle Deflaters kept for reuse. */
+  public static final int DEFAULT_MAX_IDLE = 16;
+
+  /** Buffers larger than this are not kept when a Deflater is returned. */
+  public static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+  private static final char [] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private final ConcurrentLinkedQueue<Entry> idle;
+  private final AtomicInteger idleCount;
+  private volatile int maxIdle;
+
+  private final AtomicLong
+    encodeCount = new AtomicLong(),
+    createdCount = new AtomicLong();
+
+  /*
+   * Get the process-wide encoder.
+   * @return The shared DeflateEncoder.
+   */
+  public static DeflateEncoder getInstance() {
+    return instance;
+  }
+
+  /** Creates a new instance of DeflateEncoder */
+  public DeflateEncoder() {
+    idle = new ConcurrentLinkedQueue<Entry>();
+    idleCount = new AtomicInteger();
+    maxIdle = DEFAULT_MAX_IDLE;
+  }
+
+  /*
+   * Set the most idle Deflaters kept for reuse. Extra Deflaters are ended
+   * when they are returned.
+   * @param newMaxIdle The maximum, zero or more.
+   */
+  public void setMaxIdle(int newMaxIdle) {
+    if (newMaxIdle < 0) {
+      throw new IllegalArgumentException("Maximum idle count may not be negative");
+    }
+    maxIdle = newMaxIdle;
+  }
+  /*
+   * Get the most idle Deflaters kept for reuse.
+   * @return The maximum idle count.
+   */
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+  /*
+   * Get the number of idle Deflaters ready for reuse.
+   * @return The idle count.
+   */
+  public int getIdleCount() {
+    return idleCount.get();
+  }
+  /*
+   * Get the total number of messages encoded.
+   * @return The encode count.
+   */
+  public long getEncodeCount() {
+    return encodeCount.get();
+  }
+  /*
+   * Get the number of Deflaters created because none was idle.
+   * @return The created count.
+   */
+  public long getCreatedCount() {
+    return createdCount.get();
+  }
+
+  /*
+   * DEFLATE and BASE64 encode a message.
+   * @param message The message bytes.
+   * @return The encoded message without line breaks.
+   */
+  public String encode(byte [] message) {
+    return encode(message, 0, message.length);
+  }
+
+  /*
+   * DEFLATE and BASE64 encode part of a message.
+   * @param message The message bytes.
+   * @param offset The first byte to encode.
+   * @param length The number of bytes to encode.
+   * @return The encoded message without line breaks.
+   */
+  public String encode(byte [] message, int offset, int length) {
+    Entry e = borrow();
+    try {
+      int n = e.deflate(message, offset, length);
+      int chars = ((n + 2) / 3) * 4;
+      if (e.chars.length < chars) e.chars = new char[chars];
+      base64(e.bytes, n, e.chars);
+      encodeCount.incrementAndGet();
+      return new String(e.chars, 0, chars);
+    } finally {
+      giveBack(e);
+    }
+  }
+
+  /*
+   * Append a BASE64 value to a URL query string, escaping the characters
+   * that are not allowed there. The result is the same as URLEncoder gives.
+   * @param url The URL being built.
+   * @param base64 The BASE64 value.
+   */
+  public static void appendURLEncoded(StringBuilder url, String base64) {
+    int len = base64.length();
+    url.ensureCapacity(url.length() + len + 16);
+    for (int i = 0; i < len; i++) {
+      char c = base64.charAt(i);
+      if (c == '+') {
+        url.append("%2B");
+      } else if (c == '/') {
+        url.append("%2F");
+      } else if (c == '=') {
+        url.append("%3D");
+      } else if (c == '\r') {
+        url.append("%0D");
+      } else if (c == '\n') {
+        url.append("%0A");
+      } else {
+        url.append(c);
+      }
+    }
+  }
+
+  private Entry borrow() {
+    Entry e = idle.poll();
+    if (e != null) {
+      idleCount.decrementAndGet();
+      return e;
+    }
+    createdCount.incrementAndGet();
+    return new Entry();
+  }
+
+  private void giveBack(Entry e) {
+    e.deflater.reset();
+    if (e.bytes.length > MAX_RETAINED_BUFFER) e.bytes = new byte[Entry.INITIAL_BUFFER];
+    if (e.chars.length > MAX_RETAINED_BUFFER) e.chars = new char[Entry.INITIAL_BUFFER * 4 / 3 + 4];
+    if (idleCount.get() < maxIdle) {
+      idle.offer(e);
+      idleCount.incrementAndGet();
+    } else {
+      e.deflater.end();
+    }
+  }
+
+  private static void base64(byte [] in, int len, char [] out) {
+    int o = 0, i = 0;
+    int full = len - len % 3;
+    while (i < full) {
+      int v = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8) | (in[i + 2] & 0xff);
+      out[o++] = ALPHABET[v >>> 18];
+      out[o++] = ALPHABET[(v >>> 12) & 0x3f];
+      out[o++] = ALPHABET[(v >>> 6) & 0x3f];
+      out[o++] = ALPHABET[v & 0x3f];
+      i += 3;
+    }
+    int rest = len - full;
+    if (rest == 1) {
+      int v = (in[i] & 0xff) << 16;
+      out[o++] = ALPHABET[v >>> 18];
+      out[o++] = ALPHABET[(v >>> 12) & 0x3f];
+      out[o++] = '=';
+      out[o++] = '=';
+    } else if (rest == 2) {
+      int v = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8);
+      out[o++] = ALPHABET[v >>> 18];
+      out[o++] = ALPHABET[(v >>> 12) & 0x3f];
+      out[o++] = ALPHABET[(v >>> 6) & 0x3f];
+      out[o++] = '=';
+    }
+  }
+
+  /*
+   * A Deflater with the buffers it writes into.
+   */
+  private static class Entry {
+    static final int INITIAL_BUFFER = 2048;
+
+    final Deflater deflater = new Deflater(Deflater.DEFLATED, true);
+    byte [] bytes = new byte[INITIAL_BUFFER];
+    char [] chars = new char[INITIAL_BUFFER * 4 / 3 + 4];
+
+    /*
+     * Deflate the input into bytes, growing it until the stream is finished.
+     * @return The number of compressed bytes.
+     */
+    int deflate(byte [] message, int offset, int length) {
+      deflater.setInput(message, offset, length);
+      deflater.finish();
+      int n = 0;
+      while (!deflater.finished()) {
+        if (n == bytes.length) {
+          byte [] bigger = new byte[bytes.length * 2];
+          System.arraycopy(bytes, 0, bigger, 0, n);
+          bytes = bigger;
+        }
+        n += deflater.deflate(bytes, n, bytes.length - n);
+      }
+      return n;
+    }
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * EcdsaSignatureAlgorithm.java
+ *
+ * The XML-DSig ECDSA signature methods with SHA-2 digests.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECKey;
+import java.security.spec.AlgorithmParameterSpec;
+
+import org.apache.xml.security.algorithms.SignatureAlgorithmSpi;
+import org.apache.xml.security.signature.XMLSignatureException;
+
+/**
+ * ECDSA for the XML Security library, which only ships ECDSA with SHA-1.
+ * The JCE gives and takes the signature as a DER SEQUENCE of two INTEGERs;
+ * XML-DSig (RFC 4050) carries r and s as two unsigned big-endian numbers of
+ * the field size, one after the other, so the value is converted on the way
+ * in and out.
+ * <p>
+ * The subclasses are registered by {@link SignatureAlgorithms#register()}.
+ * The XML Security library keeps one instance per thread.
+ *
+ * @author Paul Hethmon
+ */
+public abstract class EcdsaSignatureAlgorithm extends SignatureAlgorithmSpi {
+
+  private final String uri, jceName;
+  private final java.security.Signature signature;
+  /** Bytes in each of r and s for the current key. */
+  private int fieldBytes;
+
+  protected EcdsaSignatureAlgorithm(String newUri, String newJceName) throws XMLSignatureException {
+    uri = newUri;
+    jceName = newJceName;
+    try {
+      signature = java.security.Signature.getInstance(newJceName);
+    } catch (GeneralSecurityException e) {
+      throw new XMLSignatureException("algorithms.NoSuchAlgorithm", new Object[] { newJceName, e.getMessage() });
+    }
+  }
+
+  /**
+   * ECDSA with SHA-256.
+   */
+  public static final class SHA256 extends EcdsaSignatureAlgorithm {
+    public SHA256() throws XMLSignatureException {
+      super(SignatureAlgorithms.ECDSA_SHA256, "SHA256withECDSA");
+    }
+  }
+
+  /**
+   * ECDSA with SHA-384.
+   */
+  public static final class SHA384 extends EcdsaSignatureAlgorithm {
+    public SHA384() throws XMLSignatureException {
+      super(SignatureAlgorithms.ECDSA_SHA384, "SHA384withECDSA");
+    }
+  }
+
+  /**
+   * ECDSA with SHA-512.
+   */
+  public static final class SHA512 extends EcdsaSignatureAlgorithm {
+    public SHA512() throws XMLSignatureException {
+      super(SignatureAlgorithms.ECDSA_SHA512, "SHA512withECDSA");
+    }
+  }
+
+  protected String engineGetURI() {
+    return uri;
+  }
+
+  protected String engineGetJCEAlgorithmString() {
+    return jceName;
+  }
+
+  protected String engineGetJCEProviderName() {
+    return signature.getProvider().getName();
+  }
+
+  protected void engineUpdate(byte [] input) throws XMLSignatureException {
+    engineUpdate(input, 0, input.length);
+  }
+
+  protected void engineUpdate(byte input) throws XMLSignatureException {
+    try {
+      signature.update(input);
+    } catch (GeneralSecurityException e) {
+      throw failed(e);
+    }
+  }
+
+  protected void engineUpdate(byte [] buf, int offset, int len) throws XMLSignatureException {
+    try {
+      signature.update(buf, offset, len);
+    } catch (GeneralSecurityException e) {
+      throw failed(e);
+    }
+  }
+
+  protected void engineInitSign(Key signingKey) throws XMLSignatureException {
+    engineInitSign(signingKey, (SecureRandom) null);
+  }
+
+  protected void engineInitSign(Key signingKey, SecureRandom secureRandom) throws XMLSignatureException {
+    if (!(signingKey instanceof PrivateKey) || !(signingKey instanceof ECKey)) {
+      throw wrongKey(signingKey, "java.security.interfaces.ECPrivateKey");
+    }
+    fieldBytes = getFieldBytes((ECKey) signingKey);
+    try {
+      if (secureRandom == null) {
+        signature.initSign((PrivateKey) signingKey);
+      } else {
+        signature.initSign((PrivateKey) signingKey, secureRandom);
+      }
+    } catch (GeneralSecurityException e) {
+      throw failed(e);
+    }
+  }
+
+  protected void engineInitSign(Key signingKey, AlgorithmParameterSpec algorithmParameterSpec) throws XMLSignatureException {
+    throw new XMLSignatureException("empty", new Object[] { "Cannot use an AlgorithmParameterSpec for ECDSA signatures" });
+  }
+
+  protected byte [] engineSign() throws XMLSignatureException {
+    try {
+      return toConcatenated(signature.sign(), fieldBytes);
+    } catch (GeneralSecurityException e) {
+      throw failed(e);
+    }
+  }
+
+  protected void engineInitVerify(Key verificationKey) throws XMLSignatureException {
+    if (!(verificationKey instanceof PublicKey) || !(verificationKey instanceof ECKey)) {
+      throw wrongKey(verificationKey, "java.security.interfaces.ECPublicKey");
+    }
+    fieldBytes = getFieldBytes((ECKey) verificationKey);
+    try {
+      signature.initVerify((PublicKey) verificationKey);
+    } catch (GeneralSecurityException e) {
+      throw failed(e);
+    }
+  }
+
+  protected boolean engineVerify(byte [] signatureValue) throws XMLSignatureException {
+    byte [] der = toDER(signatureValue, fieldBytes);
+    if (der == null) return false;
+    try {
+      return signature.verify(der);
+    } catch (GeneralSecurityException e) {
+      return false;
+    }
+  }
+
+  protected void engineSetParameter(AlgorithmParameterSpec params) throws XMLSignatureException {
+    try {
+      signature.setParameter(params);
+    } catch (GeneralSecurityException e) {
+      throw failed(e);
+    }
+  }
+
+  protected void engineSetHMACOutputLength(int hmacOutputLength) throws XMLSignatureException {
+    throw new XMLSignatureException("algorithms.HMACOutputLengthOnlyForHMAC");
+  }
+
+  private static XMLSignatureException wrongKey(Key key, String needed) {
+    String supplied = (key == null) ? "null" : key.getClass().getName();
+    return new XMLSignatureException("algorithms.WrongKeyForThisOperation", new Object[] { supplied, needed });
+  }
+
+  private static XMLSignatureException failed(GeneralSecurityException e) {
+    return new XMLSignatureException("empty", new Object[] { e.getMessage() }, e);
+  }
+
+  static int getFieldBytes(ECKey key) {
+    return (key.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+  }
+
+  /*
+   * Turn a DER SEQUENCE { INTEGER r, INTEGER s } into r and s padded to the
+   * field size.
+   * @param der The signature from the JCE.
+   * @param size The field size in bytes.
+   * @return r followed by s, 2 * size bytes.
+   */
+  static byte [] toConcatenated(byte [] der, int size) throws XMLSignatureException {
+    byte [] out = new byte[2 * size];
+    int pos = 0;
+    try {
+      if (der[pos++] != 0x30) throw badDER();
+      int length = der[pos++] & 0xff;
+      if (length == 0x81) {
+        length = der[pos++] & 0xff;
+      } else if (length > 0x80) {
+        throw badDER();
+      }
+      if (pos + length != der.length) throw badDER();
+      for (int i = 1; i <= 2; i++) {
+        if (der[pos++] != 0x02) throw badDER();
+        int end = der[pos++] & 0xff;
+        end += pos;
+        // INTEGERs are signed; drop the sign byte and any other leading zeros
+        while (pos < end - 1 && der[pos] == 0) pos++;
+        if (end - pos > size) throw badDER();
+        System.arraycopy(der, pos, out, i * size - (end - pos), end - pos);
+        pos = end;
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw badDER();
+    }
+    return out;
+  }
+
+  /*
+   * Turn r followed by s back into the DER SEQUENCE the JCE verifies.
+   * @param value The SignatureValue.
+   * @param size The field size in bytes.
+   * @return The DER encoding, or null if the value is not 2 * size bytes.
+   */
+  static byte [] toDER(byte [] value, int size) {
+    if (value == null || value.length != 2 * size) return null;
+    int rStart = firstSignificant(value, 0, size);
+    int sStart = firstSignificant(value, size, 2 * size);
+    int rLength = size - rStart + ((value[rStart] < 0) ? 1 : 0);
+    int sLength = 2 * size - sStart + ((value[sStart] < 0) ? 1 : 0);
+    int length = 2 + rLength + 2 + sLength;
+    byte [] der = new byte[length + ((length > 0x7f) ? 3 : 2)];
+    int pos = 0;
+    der[pos++] = 0x30;
+    if (length > 0x7f) der[pos++] = (byte) 0x81;
+    der[pos++] = (byte) length;
+    der[pos++] = 0x02;
+    der[pos++] = (byte) rLength;
+    if (value[rStart] < 0) der[pos++] = 0;
+    System.arraycopy(value, rStart, der, pos, size - rStart);
+    pos += size - rStart;
+    der[pos++] = 0x02;
+    der[pos++] = (byte) sLength;
+    if (value[sStart] < 0) der[pos++] = 0;
+    System.arraycopy(value, sStart, der, pos, 2 * size - sStart);
+    return der;
+  }
+
+  private static int firstSignificant(byte [] value, int start, int end) {
+    while (start < end - 1 && value[start] == 0) start++;
+    return start;
+  }
+
+  private static XMLSignatureException badDER() {
+    return new XMLSignatureException("empty", new Object[] { "ECDSA signature is not a DER SEQUENCE of two INTEGERs" });
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * InflateDecoder.java
+ *
+ * Bounded INFLATE for messages received with the HTTP redirect binding,
+ * using a pool of Inflaters.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates a raw DEFLATE (RFC 1951) message, the reverse of
+ * {@link DeflateEncoder} without the BASE64 step.
+ * <p>
+ * The output buffer starts at a guess based on the input size and doubles
+ * until the stream is finished, so large messages are never cut short. A
+ * message that would inflate past the given maximum is rejected instead, so
+ * a small request cannot make the server allocate without limit. Inflaters
+ * are borrowed from a bounded pool and those that do not fit back are
+ * released with end().
+ *
+ * @author Paul Hethmon
+ */
+public class InflateDecoder {
+
+  private static final InflateDecoder instance = new InflateDecoder();
+
+  /** Default for the most idle Inflaters kept for reuse. */
+  public static final int DEFAULT_MAX_IDLE = 16;
+
+  private static final int MIN_BUFFER = 1024;
+
+  private final ConcurrentLinkedQueue<Inflater> idle;
+  private final AtomicInteger idleCount;
+  private volatile int maxIdle;
+
+  /*
+   * Get the process-wide decoder.
+   * @return The shared InflateDecoder.
+   */
+  public static InflateDecoder getInstance() {
+    return instance;
+  }
+
+  /** Creates a new instance of InflateDecoder */
+  public InflateDecoder() {
+    idle = new ConcurrentLinkedQueue<Inflater>();
+    idleCount = new AtomicInteger();
+    maxIdle = DEFAULT_MAX_IDLE;
+  }
+
+  /*
+   * Set the most idle Inflaters kept for reuse. Extra Inflaters are ended
+   * when they are returned.
+   * @param newMaxIdle The maximum, zero or more.
+   */
+  public void setMaxIdle(int newMaxIdle) {
+    if (newMaxIdle < 0) {
+      throw new IllegalArgumentException("Maximum idle count may not be negative");
+    }
+    maxIdle = newMaxIdle;
+  }
+  /*
+   * Get the most idle Inflaters kept for reuse.
+   * @return The maximum idle count.
+   */
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+  /*
+   * Get the number of idle Inflaters ready for reuse.
+   * @return The idle count.
+   */
+  public int getIdleCount() {
+    return idleCount.get();
+  }
+
+  /*
+   * Inflate a message.
+   * @param message The compressed bytes.
+   * @param maxSize The most bytes the message may inflate to.
+   * @return The inflated bytes, exactly as long as the message.
+   * @throws DataFormatException if the data is not valid DEFLATE, ends early,
+   * or inflates to more than maxSize bytes.
+   */
+  public byte [] decode(byte [] message, int maxSize) throws DataFormatException {
+    Inflater inflater = borrow();
+    try {
+      inflater.setInput(message);
+      byte [] out = new byte[Math.min(maxSize, Math.max(MIN_BUFFER, message.length * 4))];
+      int n = 0;
+      while (!inflater.finished()) {
+        if (n == out.length) {
+          if (out.length >= maxSize) {
+            throw new DataFormatException("Message inflates to more than " + maxSize + " bytes");
+          }
+          byte [] bigger = new byte[(int) Math.min((long) maxSize, out.length * 2L)];
+          System.arraycopy(out, 0, bigger, 0, n);
+          out = bigger;
+        }
+        int got = inflater.inflate(out, n, out.length - n);
+        if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new DataFormatException("Message ends before the DEFLATE stream is complete");
+        }
+        n += got;
+      }
+      if (n == out.length) return out;
+      byte [] exact = new byte[n];
+      System.arraycopy(out, 0, exact, 0, n);
+      return exact;
+    } finally {
+      giveBack(inflater);
+    }
+  }
+
+  private Inflater borrow() {
+    Inflater inflater = idle.poll();
+    if (inflater != null) {
+      idleCount.decrementAndGet();
+      return inflater;
+    }
+    return new Inflater(true);
+  }
+
+  private void giveBack(Inflater inflater) {
+    inflater.reset();
+    if (idleCount.get() < maxIdle) {
+      idle.offer(inflater);
+      idleCount.incrementAndGet();
+    } else {
+      inflater.end();
+    }
+  }
+}
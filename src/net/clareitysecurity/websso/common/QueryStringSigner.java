@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * QueryStringSigner.java
+ *
+ * Signs and verifies the query string of an HTTP-Redirect binding message.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECKey;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.xml.security.signature.XMLSignatureException;
+
+/**
+ * Signs or verifies a message sent with the HTTP-Redirect binding (saml-bindings-2.0
+ * section 3.4.4.1). The signature covers the URL encoded
+ * <code>SAMLRequest=...&amp;RelayState=...&amp;SigAlg=...</code> string as
+ * it appears in the URL, so there is no canonicalization and no XML
+ * signature to build. An ECDSA signature is given as r and s one after the
+ * other, as XML-DSig has it, which is what other SAML implementations expect;
+ * a DER encoded ECDSA signature is accepted when verifying as well. The
+ * same signing is used for the SignedInfo the IdP writes without a DOM.
+ * <p>
+ * java.security.Signature objects are not thread safe and are costly to
+ * create and to initialize with a key, so each thread keeps one per
+ * algorithm and only initializes it again when the key changes.
+ *
+ * @author Paul Hethmon
+ */
+public final class QueryStringSigner {
+
+  /** Each thread's Signature objects, by JCE algorithm name. */
+  private static final ThreadLocal<Map<String, Signer>> signers = new ThreadLocal<Map<String, Signer>>() {
+    protected Map<String, Signer> initialValue() {
+      return new HashMap<String, Signer>();
+    }
+  };
+
+  /** Each thread's Signature objects for verifying, by JCE algorithm name. */
+  private static final ThreadLocal<Map<String, Verifier>> verifiers = new ThreadLocal<Map<String, Verifier>>() {
+    protected Map<String, Verifier> initialValue() {
+      return new HashMap<String, Verifier>();
+    }
+  };
+
+  private QueryStringSigner() {
+  }
+
+  /*
+   * Sign a query string.
+   * @param algorithm The signature method URI sent as SigAlg.
+   * @param key The signing key.
+   * @param query The query string up to and including the SigAlg parameter,
+   * without the leading '?'.
+   * @return The signature value, to be BASE64 and then URL encoded.
+   * @throws GeneralSecurityException If the method is not supported or does
+   * not suit the key, or signing fails.
+   */
+  public static byte [] sign(String algorithm, PrivateKey key, CharSequence query) throws GeneralSecurityException {
+    // The query string has been URL encoded, so it is all ASCII
+    int length = query.length();
+    byte [] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) query.charAt(i);
+    }
+    return sign(algorithm, key, data, 0, length);
+  }
+
+  /*
+   * Sign bytes with a signature method, such as a canonical SignedInfo.
+   * @param algorithm The signature method URI.
+   * @param key The signing key.
+   * @param data The buffer holding the bytes to sign.
+   * @param offset The first byte to sign.
+   * @param length The number of bytes to sign.
+   * @return The signature value, with an ECDSA signature as r and s.
+   * @throws GeneralSecurityException If the method is not supported or does
+   * not suit the key, or signing fails.
+   */
+  public static byte [] sign(String algorithm, PrivateKey key, byte [] data, int offset, int length)
+    throws GeneralSecurityException {
+    String jceName = SignatureAlgorithms.getJCEAlgorithm(algorithm);
+    if (jceName == null) {
+      throw new NoSuchAlgorithmException("Unsupported signature method [" + algorithm + "]");
+    }
+    try {
+      SignatureAlgorithms.checkKey(algorithm, key);
+    } catch (IllegalArgumentException e) {
+      throw new java.security.InvalidKeyException(e.getMessage());
+    }
+    byte [] value = getSigner(jceName).sign(key, data, offset, length);
+    if (SignatureAlgorithms.isEC(key)) {
+      try {
+        value = EcdsaSignatureAlgorithm.toConcatenated(value, EcdsaSignatureAlgorithm.getFieldBytes((ECKey) key));
+      } catch (XMLSignatureException e) {
+        throw new SignatureException(e.getMessage());
+      }
+    }
+    return value;
+  }
+
+  /*
+   * Verify the signature on a query string.
+   * @param algorithm The signature method URI sent as SigAlg.
+   * @param key The key of the sender.
+   * @param query The signed part of the query string, rebuilt from the
+   * parameters as they were received.
+   * @param value The decoded Signature parameter.
+   * @return true if the signature is valid for the key.
+   * @throws GeneralSecurityException If the method is not supported or does
+   * not suit the key.
+   */
+  public static boolean verify(String algorithm, PublicKey key, CharSequence query, byte [] value)
+    throws GeneralSecurityException {
+    String jceName = SignatureAlgorithms.getJCEAlgorithm(algorithm);
+    if (jceName == null) {
+      throw new NoSuchAlgorithmException("Unsupported signature method [" + algorithm + "]");
+    }
+    try {
+      SignatureAlgorithms.checkKey(algorithm, key);
+    } catch (IllegalArgumentException e) {
+      throw new java.security.InvalidKeyException(e.getMessage());
+    }
+    if (SignatureAlgorithms.isEC(key)) {
+      int size = EcdsaSignatureAlgorithm.getFieldBytes((ECKey) key);
+      if (value.length == 2 * size) {
+        value = EcdsaSignatureAlgorithm.toDER(value, size);
+      }
+    }
+    int length = query.length();
+    byte [] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) query.charAt(i);
+    }
+    Verifier verifier = getVerifier(jceName);
+    try {
+      return verifier.verify(key, data, value);
+    } catch (SignatureException e) {
+      // A value that is not a signature at all
+      return false;
+    }
+  }
+
+  private static Signer getSigner(String jceName) throws NoSuchAlgorithmException {
+    Map<String, Signer> map = signers.get();
+    Signer signer = map.get(jceName);
+    if (signer == null) {
+      signer = new Signer(Signature.getInstance(jceName));
+      map.put(jceName, signer);
+    }
+    return signer;
+  }
+
+  private static Verifier getVerifier(String jceName) throws NoSuchAlgorithmException {
+    Map<String, Verifier> map = verifiers.get();
+    Verifier verifier = map.get(jceName);
+    if (verifier == null) {
+      verifier = new Verifier(Signature.getInstance(jceName));
+      map.put(jceName, verifier);
+    }
+    return verifier;
+  }
+
+  /**
+   * One thread's Signature for an algorithm and the key it was last
+   * initialized with. sign() leaves a Signature ready to sign again with the
+   * same key.
+   */
+  private static final class Signer {
+    private final Signature signature;
+    private PrivateKey key;
+
+    Signer(Signature newSignature) {
+      signature = newSignature;
+    }
+
+    byte [] sign(PrivateKey newKey, byte [] data, int offset, int length) throws GeneralSecurityException {
+      if (newKey != key) {
+        key = null;
+        signature.initSign(newKey);
+        key = newKey;
+      }
+      try {
+        signature.update(data, offset, length);
+        return signature.sign();
+      } catch (GeneralSecurityException e) {
+        // Start again from initSign next time
+        key = null;
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * One thread's Signature for verifying with an algorithm and the key it
+   * was last initialized with. verify() leaves it ready for the same key.
+   */
+  private static final class Verifier {
+    private final Signature signature;
+    private PublicKey key;
+
+    Verifier(Signature newSignature) {
+      signature = newSignature;
+    }
+
+    boolean verify(PublicKey newKey, byte [] data, byte [] value) throws GeneralSecurityException {
+      if (newKey != key) {
+        key = null;
+        signature.initVerify(newKey);
+        key = newKey;
+      }
+      try {
+        signature.update(data);
+        return signature.verify(value);
+      } catch (GeneralSecurityException e) {
+        key = null;
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * ReplayCache.java
+ *
+ * Remembers the assertion IDs already accepted so the same assertion
+ * cannot be used to log in twice.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.security.SecureRandom;
+
+/**
+ * A bounded, striped cache of message IDs that have been seen, each kept
+ * until its expiry time.
+ * <p>
+ * An ID is not stored as a String. It is reduced to a 128 bit fingerprint
+ * made of two 64 bit hashes with seeds chosen at random when the cache is
+ * created, so each entry takes three longs in flat arrays: the fingerprint
+ * and the expiry time. The arrays are split into stripes, each an open
+ * addressing table with its own lock, so threads adding different IDs
+ * rarely wait for each other.
+ * <p>
+ * Expired entries are dropped when a stripe fills up. If a stripe is still
+ * full after that, the entries closest to expiring are evicted to make
+ * room; the eviction count shows when the cache is too small for the traffic.
+ *
+ * @author Paul Hethmon
+ */
+public class ReplayCache {
+
+  private static volatile ReplayCache instance;
+
+  /** Default for the most entries held. */
+  public static final int DEFAULT_MAX_ENTRIES = 200000;
+
+  /** Default number of stripes. */
+  public static final int DEFAULT_STRIPES = 64;
+
+  private static final int MIN_STRIPE_CAPACITY = 16;
+
+  private final Stripe [] stripes;
+  private final int stripeMask;
+  private final long seed1, seed2;
+  private final int maxEntries;
+
+  /*
+   * Get the process-wide cache, creating it with the default sizes on first use.
+   * @return The shared ReplayCache.
+   */
+  public static ReplayCache getInstance() {
+    ReplayCache c = instance;
+    if (c == null) {
+      synchronized (ReplayCache.class) {
+        c = instance;
+        if (c == null) {
+          c = new ReplayCache(DEFAULT_MAX_ENTRIES, DEFAULT_STRIPES);
+          instance = c;
+        }
+      }
+    }
+    return c;
+  }
+
+  /** Creates a new instance of ReplayCache with the default sizes */
+  public ReplayCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_STRIPES);
+  }
+
+  /*
+   * Create a cache.
+   * @param newMaxEntries The most entries held across all stripes.
+   * @param stripeCount The number of stripes, rounded up to a power of two.
+   */
+  public ReplayCache(int newMaxEntries, int stripeCount) {
+    if (newMaxEntries <= 0 || stripeCount <= 0) {
+      throw new IllegalArgumentException("Cache size and stripe count must be positive");
+    }
+    int n = 1;
+    while (n < stripeCount) n <<= 1;
+    stripes = new Stripe[n];
+    stripeMask = n - 1;
+    int perStripe = Math.max(1, (newMaxEntries + n - 1) / n);
+    for (int i = 0; i < n; i++) stripes[i] = new Stripe(perStripe);
+    maxEntries = perStripe * n;
+    SecureRandom random = new SecureRandom();
+    seed1 = random.nextLong();
+    seed2 = random.nextLong();
+  }
+
+  /*
+   * Record an ID unless it has already been seen and has not expired.
+   * @param issuer The issuer the ID belongs to, or null.
+   * @param id The message ID.
+   * @param expiresAt When the entry may be forgotten, in milliseconds since the epoch.
+   * @return true if the ID is new, false if it is a replay.
+   */
+  public boolean add(String issuer, String id, long expiresAt) {
+    return add(issuer, id, expiresAt, System.currentTimeMillis());
+  }
+
+  /*
+   * Record an ID unless it has already been seen and has not expired.
+   * @param issuer The issuer the ID belongs to, or null.
+   * @param id The message ID.
+   * @param expiresAt When the entry may be forgotten, in milliseconds since the epoch.
+   * @param now The current time in milliseconds since the epoch.
+   * @return true if the ID is new, false if it is a replay.
+   */
+  public boolean add(String issuer, String id, long expiresAt, long now) {
+    long h1 = hash(issuer, id, seed1, 0x100000001b3L);
+    long h2 = hash(issuer, id, seed2, 0x9e3779b97f4a7c15L);
+    // The expiry doubles as the in-use marker, so it can never be zero
+    if (expiresAt <= 0) expiresAt = 1;
+    Stripe s = stripes[(int) (h1 >>> 32) & stripeMask];
+    synchronized (s) {
+      return s.add(h1, h2, expiresAt, now);
+    }
+  }
+
+  /*
+   * Forget an ID that add() recorded, so a message rejected for another
+   * reason after the ID was recorded can still be accepted later.
+   * @param issuer The issuer the ID belongs to, or null.
+   * @param id The message ID.
+   * @return true if the ID was held, false if it was not.
+   */
+  public boolean remove(String issuer, String id) {
+    long h1 = hash(issuer, id, seed1, 0x100000001b3L);
+    long h2 = hash(issuer, id, seed2, 0x9e3779b97f4a7c15L);
+    Stripe s = stripes[(int) (h1 >>> 32) & stripeMask];
+    synchronized (s) {
+      return s.remove(h1, h2);
+    }
+  }
+
+  /*
+   * Get the most entries the cache holds.
+   * @return The capacity.
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+  /*
+   * Get the number of entries held, including expired ones not yet dropped.
+   * @return The size.
+   */
+  public int getSize() {
+    int n = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        n += stripes[i].size;
+      }
+    }
+    return n;
+  }
+  /*
+   * Get the number of IDs added.
+   * @return The insert count.
+   */
+  public long getInsertCount() {
+    long n = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        n += stripes[i].inserts;
+      }
+    }
+    return n;
+  }
+  /*
+   * Get the number of replays found.
+   * @return The hit count.
+   */
+  public long getHitCount() {
+    long n = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        n += stripes[i].hits;
+      }
+    }
+    return n;
+  }
+  /*
+   * Get the number of expired entries dropped.
+   * @return The expiration count.
+   */
+  public long getExpirationCount() {
+    long n = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        n += stripes[i].expirations;
+      }
+    }
+    return n;
+  }
+  /*
+   * Get the number of entries dropped before they expired to make room.
+   * Anything above zero means the cache is too small.
+   * @return The eviction count.
+   */
+  public long getEvictionCount() {
+    long n = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        n += stripes[i].evictions;
+      }
+    }
+    return n;
+  }
+
+  /*
+   * Hash the issuer and ID to 64 bits.
+   */
+  private static long hash(String issuer, String id, long seed, long multiplier) {
+    long h = seed;
+    if (issuer != null) {
+      for (int i = 0; i < issuer.length(); i++) {
+        h = (h ^ issuer.charAt(i)) * multiplier;
+      }
+    }
+    // separate the issuer from the ID so "ab"+"c" and "a"+"bc" differ
+    h = (h ^ 0xffff) * multiplier;
+    for (int i = 0; i < id.length(); i++) {
+      h = (h ^ id.charAt(i)) * multiplier;
+    }
+    h ^= id.length();
+    // final mix so every input bit reaches every output bit
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /*
+   * One lock's share of the cache: a linear probing table that grows up to
+   * twice its entry limit.
+   */
+  private static final class Stripe {
+    final int maxSize;
+    long [] keys1, keys2, expires;
+    int size;
+    long inserts, hits, expirations, evictions;
+
+    Stripe(int newMaxSize) {
+      maxSize = newMaxSize;
+      allocate(MIN_STRIPE_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+      keys1 = new long[capacity];
+      keys2 = new long[capacity];
+      expires = new long[capacity];
+      size = 0;
+    }
+
+    boolean add(long h1, long h2, long expiresAt, long now) {
+      int mask = expires.length - 1;
+      int i = (int) h2 & mask;
+      while (expires[i] != 0) {
+        if (keys1[i] == h1 && keys2[i] == h2) {
+          if (expires[i] > now) {
+            hits++;
+            return false;
+          }
+          // seen before but expired, so it counts as new
+          expires[i] = expiresAt;
+          inserts++;
+          return true;
+        }
+        i = (i + 1) & mask;
+      }
+      if (size >= maxSize || (size + 1) * 2 > expires.length) {
+        makeRoom(now);
+        mask = expires.length - 1;
+        i = (int) h2 & mask;
+        while (expires[i] != 0) i = (i + 1) & mask;
+      }
+      keys1[i] = h1;
+      keys2[i] = h2;
+      expires[i] = expiresAt;
+      size++;
+      inserts++;
+      return true;
+    }
+
+    boolean remove(long h1, long h2) {
+      int mask = expires.length - 1;
+      int i = (int) h2 & mask;
+      while (expires[i] != 0) {
+        if (keys1[i] == h1 && keys2[i] == h2) {
+          if (expires[i] == 1) return false;
+          // Marked expired rather than emptied so later probes still pass it
+          expires[i] = 1;
+          inserts--;
+          return true;
+        }
+        i = (i + 1) & mask;
+      }
+      return false;
+    }
+
+    /*
+     * Drop expired entries, then grow the table or evict so one more fits.
+     */
+    private void makeRoom(long now) {
+      int live = 0;
+      long soonest = Long.MAX_VALUE, latest = now;
+      for (int i = 0; i < expires.length; i++) {
+        if (expires[i] > now) {
+          live++;
+          if (expires[i] < soonest) soonest = expires[i];
+          if (expires[i] > latest) latest = expires[i];
+        }
+      }
+      long evictBefore = now;
+      if (live >= maxSize) {
+        // Full of live entries. Give up the ones closest to expiring, an
+        // eighth of the time range at once so the next insert has room too.
+        evictBefore = soonest + (latest - soonest) / 8;
+      }
+      int capacity = expires.length;
+      while ((Math.min(live, maxSize - 1) + 1) * 2 > capacity) capacity <<= 1;
+      while (capacity > MIN_STRIPE_CAPACITY && (live + 1) * 8 < capacity) capacity >>>= 1;
+      long [] old1 = keys1, old2 = keys2, oldExpires = expires;
+      allocate(capacity);
+      int mask = capacity - 1;
+      for (int j = 0; j < oldExpires.length; j++) {
+        long e = oldExpires[j];
+        if (e == 0) continue;
+        if (e <= now) {
+          expirations++;
+          continue;
+        }
+        if (e <= evictBefore) {
+          evictions++;
+          continue;
+        }
+        int i = (int) old2[j] & mask;
+        while (expires[i] != 0) i = (i + 1) & mask;
+        keys1[i] = old1[j];
+        keys2[i] = old2[j];
+        expires[i] = e;
+        size++;
+      }
+    }
+  }
+}
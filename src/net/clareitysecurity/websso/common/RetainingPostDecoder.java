@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * RetainingPostDecoder.java
+ *
+ * The OpenSAML HTTP POST decoder, keeping the message bytes it parses.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.opensaml.saml2.binding.decoding.HTTPPostDecoder;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.transport.http.HTTPInTransport;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.DatatypeHelper;
+
+/**
+ * An HTTPPostDecoder that keeps the BASE64 decoded message, so the caller
+ * can have the document exactly as it was received without decoding the
+ * form field a second time or marshalling the parsed object back to XML.
+ * <p>
+ * Like HTTPPostDecoder it reads <b>SAMLRequest</b>, or <b>SAMLResponse</b>
+ * if there is no request. One instance decodes one message and is not
+ * thread safe.
+ *
+ * @author Paul Hethmon
+ */
+public class RetainingPostDecoder extends HTTPPostDecoder {
+
+  private byte [] decoded;
+
+  /** Creates a new instance of RetainingPostDecoder using the shared parser pool */
+  public RetainingPostDecoder() {
+    super(SharedParserPool.getInstance());
+  }
+
+  /*
+   * Get the message bytes the last decode parsed. The array is not copied.
+   * @return The decoded message, or null if nothing was decoded.
+   */
+  public byte [] getDecodedBytes() {
+    return decoded;
+  }
+
+  protected InputStream getBase64DecodedMessage(HTTPInTransport transport) throws MessageDecodingException {
+    String encoded = transport.getParameterValue("SAMLRequest");
+    if (DatatypeHelper.isEmpty(encoded)) {
+      encoded = transport.getParameterValue("SAMLResponse");
+    }
+    if (DatatypeHelper.isEmpty(encoded)) {
+      throw new MessageDecodingException("No SAML message present in request");
+    }
+    decoded = Base64.decode(encoded);
+    if (decoded == null) {
+      throw new MessageDecodingException("Unable to Base64 decode SAML message");
+    }
+    return new ByteArrayInputStream(decoded);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SAML2ObjectProviders.java
+ *
+ * The builders, marshallers and unmarshallers registered by the lean
+ * SAML2-only bootstrap profile.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.Configuration;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.common.Extensions;
+import org.opensaml.saml2.common.impl.ExtensionsBuilder;
+import org.opensaml.saml2.common.impl.ExtensionsMarshaller;
+import org.opensaml.saml2.common.impl.ExtensionsUnmarshaller;
+import org.opensaml.saml2.core.*;
+import org.opensaml.saml2.core.impl.*;
+import org.opensaml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml2.metadata.NameIDFormat;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.saml2.metadata.impl.*;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.schema.XSAny;
+import org.opensaml.xml.schema.XSBase64Binary;
+import org.opensaml.xml.schema.XSInteger;
+import org.opensaml.xml.schema.XSString;
+import org.opensaml.xml.schema.XSURI;
+import org.opensaml.xml.schema.impl.*;
+import org.opensaml.xml.signature.*;
+import org.opensaml.xml.signature.impl.*;
+
+/**
+ * Registers object providers for only the SAML 2.0 core, metadata and
+ * XML-DSig element types this library builds or reads, instead of loading
+ * every XMLTooling configuration file. Registration is done directly with
+ * the factories so no configuration XML has to be parsed or validated.
+ * <p>
+ * Any other element met while unmarshalling is handled by the default
+ * (xs:any) provider, exactly as it would be for an unknown extension under
+ * the full bootstrap. Its DOM is kept, so signatures over it still verify.
+ *
+ * @author Paul Hethmon
+ */
+class SAML2ObjectProviders {
+
+  private SAML2ObjectProviders() {
+  }
+
+  /*
+   * Register all providers with the OpenSAML Configuration.
+   */
+  static void register() {
+    // Default provider and the schema types used through xsi:type
+    register(Configuration.getDefaultProviderQName(), new XSAnyBuilder(), new XSAnyMarshaller(), new XSAnyUnmarshaller());
+    register(XSAny.TYPE_NAME, new XSAnyBuilder(), new XSAnyMarshaller(), new XSAnyUnmarshaller());
+    register(XSString.TYPE_NAME, new XSStringBuilder(), new XSStringMarshaller(), new XSStringUnmarshaller());
+    register(XSBase64Binary.TYPE_NAME, new XSBase64BinaryBuilder(), new XSBase64BinaryMarshaller(), new XSBase64BinaryUnmarshaller());
+    register(XSInteger.TYPE_NAME, new XSIntegerBuilder(), new XSIntegerMarshaller(), new XSIntegerUnmarshaller());
+    register(XSURI.TYPE_NAME, new XSURIBuilder(), new XSURIMarshaller(), new XSURIUnmarshaller());
+
+    // XML-DSig: the signature itself and the KeyInfo content we send or read
+    register(Signature.DEFAULT_ELEMENT_NAME, new SignatureBuilder(), new SignatureMarshaller(), new SignatureUnmarshaller());
+    register(KeyInfo.DEFAULT_ELEMENT_NAME, new KeyInfoBuilder(), new KeyInfoMarshaller(), new KeyInfoUnmarshaller());
+    register(KeyName.DEFAULT_ELEMENT_NAME, new KeyNameBuilder(), new XSStringMarshaller(), new XSStringUnmarshaller());
+    register(KeyValue.DEFAULT_ELEMENT_NAME, new KeyValueBuilder(), new KeyValueMarshaller(), new KeyValueUnmarshaller());
+    register(RSAKeyValue.DEFAULT_ELEMENT_NAME, new RSAKeyValueBuilder(), new RSAKeyValueMarshaller(), new RSAKeyValueUnmarshaller());
+    register(Modulus.DEFAULT_ELEMENT_NAME, new ModulusBuilder(), new CryptoBinaryMarshaller(), new CryptoBinaryUnmarshaller());
+    register(Exponent.DEFAULT_ELEMENT_NAME, new ExponentBuilder(), new CryptoBinaryMarshaller(), new CryptoBinaryUnmarshaller());
+    register(X509Data.DEFAULT_ELEMENT_NAME, new X509DataBuilder(), new X509DataMarshaller(), new X509DataUnmarshaller());
+    register(X509Certificate.DEFAULT_ELEMENT_NAME, new X509CertificateBuilder(), new XSBase64BinaryMarshaller(), new XSBase64BinaryUnmarshaller());
+    register(X509CRL.DEFAULT_ELEMENT_NAME, new X509CRLBuilder(), new XSBase64BinaryMarshaller(), new XSBase64BinaryUnmarshaller());
+    register(X509SKI.DEFAULT_ELEMENT_NAME, new X509SKIBuilder(), new XSBase64BinaryMarshaller(), new XSBase64BinaryUnmarshaller());
+    register(X509SubjectName.DEFAULT_ELEMENT_NAME, new X509SubjectNameBuilder(), new XSStringMarshaller(), new XSStringUnmarshaller());
+    register(X509IssuerSerial.DEFAULT_ELEMENT_NAME, new X509IssuerSerialBuilder(), new X509IssuerSerialMarshaller(), new X509IssuerSerialUnmarshaller());
+    register(X509IssuerName.DEFAULT_ELEMENT_NAME, new X509IssuerNameBuilder(), new XSStringMarshaller(), new XSStringUnmarshaller());
+    register(X509SerialNumber.DEFAULT_ELEMENT_NAME, new X509SerialNumberBuilder(), new X509SerialNumberMarshaller(), new X509SerialNumberUnmarshaller());
+
+    // SAML 2.0 protocol
+    register(AuthnRequest.DEFAULT_ELEMENT_NAME, new AuthnRequestBuilder(), new AuthnRequestMarshaller(), new AuthnRequestUnmarshaller());
+    register(Response.DEFAULT_ELEMENT_NAME, new ResponseBuilder(), new ResponseMarshaller(), new ResponseUnmarshaller());
+    register(Status.DEFAULT_ELEMENT_NAME, new StatusBuilder(), new StatusMarshaller(), new StatusUnmarshaller());
+    register(StatusCode.DEFAULT_ELEMENT_NAME, new StatusCodeBuilder(), new StatusCodeMarshaller(), new StatusCodeUnmarshaller());
+    register(StatusMessage.DEFAULT_ELEMENT_NAME, new StatusMessageBuilder(), new StatusMessageMarshaller(), new StatusMessageUnmarshaller());
+    register(NameIDPolicy.DEFAULT_ELEMENT_NAME, new NameIDPolicyBuilder(), new NameIDPolicyMarshaller(), new NameIDPolicyUnmarshaller());
+    register(RequestedAuthnContext.DEFAULT_ELEMENT_NAME, new RequestedAuthnContextBuilder(), new RequestedAuthnContextMarshaller(), new RequestedAuthnContextUnmarshaller());
+    register(new QName(SAMLConstants.SAML20P_NS, Extensions.LOCAL_NAME, SAMLConstants.SAML20P_PREFIX),
+        new ExtensionsBuilder(), new ExtensionsMarshaller(), new ExtensionsUnmarshaller());
+
+    // SAML 2.0 assertions
+    register(Assertion.DEFAULT_ELEMENT_NAME, new AssertionBuilder(), new AssertionMarshaller(), new AssertionUnmarshaller());
+    register(Issuer.DEFAULT_ELEMENT_NAME, new IssuerBuilder(), new IssuerMarshaller(), new IssuerUnmarshaller());
+    register(Subject.DEFAULT_ELEMENT_NAME, new SubjectBuilder(), new SubjectMarshaller(), new SubjectUnmarshaller());
+    register(NameID.DEFAULT_ELEMENT_NAME, new NameIDBuilder(), new NameIDMarshaller(), new NameIDUnmarshaller());
+    register(SubjectConfirmation.DEFAULT_ELEMENT_NAME, new SubjectConfirmationBuilder(), new SubjectConfirmationMarshaller(), new SubjectConfirmationUnmarshaller());
+    register(SubjectConfirmationData.DEFAULT_ELEMENT_NAME, new SubjectConfirmationDataBuilder(), new SubjectConfirmationDataMarshaller(), new SubjectConfirmationDataUnmarshaller());
+    register(Conditions.DEFAULT_ELEMENT_NAME, new ConditionsBuilder(), new ConditionsMarshaller(), new ConditionsUnmarshaller());
+    register(AudienceRestriction.DEFAULT_ELEMENT_NAME, new AudienceRestrictionBuilder(), new AudienceRestrictionMarshaller(), new AudienceRestrictionUnmarshaller());
+    register(Audience.DEFAULT_ELEMENT_NAME, new AudienceBuilder(), new AudienceMarshaller(), new AudienceUnmarshaller());
+    register(OneTimeUse.DEFAULT_ELEMENT_NAME, new OneTimeUseBuilder(), new OneTimeUseMarshaller(), new OneTimeUseUnmarshaller());
+    register(AuthnStatement.DEFAULT_ELEMENT_NAME, new AuthnStatementBuilder(), new AuthnStatementMarshaller(), new AuthnStatementUnmarshaller());
+    register(SubjectLocality.DEFAULT_ELEMENT_NAME, new SubjectLocalityBuilder(), new SubjectLocalityMarshaller(), new SubjectLocalityUnmarshaller());
+    register(AuthnContext.DEFAULT_ELEMENT_NAME, new AuthnContextBuilder(), new AuthnContextMarshaller(), new AuthnContextUnmarshaller());
+    register(AuthnContextClassRef.DEFAULT_ELEMENT_NAME, new AuthnContextClassRefBuilder(), new AuthnContextClassRefMarshaller(), new AuthnContextClassRefUnmarshaller());
+    register(AuthnContextDeclRef.DEFAULT_ELEMENT_NAME, new AuthnContextDeclRefBuilder(), new AuthnContextDeclRefMarshaller(), new AuthnContextDeclRefUnmarshaller());
+    register(AuthenticatingAuthority.DEFAULT_ELEMENT_NAME, new AuthenticatingAuthorityBuilder(), new AuthenticatingAuthorityMarshaller(), new AuthenticatingAuthorityUnmarshaller());
+    register(AttributeStatement.DEFAULT_ELEMENT_NAME, new AttributeStatementBuilder(), new AttributeStatementMarshaller(), new AttributeStatementUnmarshaller());
+    register(Attribute.DEFAULT_ELEMENT_NAME, new AttributeBuilder(), new AttributeMarshaller(), new AttributeUnmarshaller());
+
+    // SAML 2.0 metadata
+    register(EntitiesDescriptor.DEFAULT_ELEMENT_NAME, new EntitiesDescriptorBuilder(), new EntitiesDescriptorMarshaller(), new EntitiesDescriptorUnmarshaller());
+    register(EntityDescriptor.DEFAULT_ELEMENT_NAME, new EntityDescriptorBuilder(), new EntityDescriptorMarshaller(), new EntityDescriptorUnmarshaller());
+    register(IDPSSODescriptor.DEFAULT_ELEMENT_NAME, new IDPSSODescriptorBuilder(), new IDPSSODescriptorMarshaller(), new IDPSSODescriptorUnmarshaller());
+    register(SPSSODescriptor.DEFAULT_ELEMENT_NAME, new SPSSODescriptorBuilder(), new SPSSODescriptorMarshaller(), new SPSSODescriptorUnmarshaller());
+    register(KeyDescriptor.DEFAULT_ELEMENT_NAME, new KeyDescriptorBuilder(), new KeyDescriptorMarshaller(), new KeyDescriptorUnmarshaller());
+    register(NameIDFormat.DEFAULT_ELEMENT_NAME, new NameIDFormatBuilder(), new NameIDFormatMarshaller(), new NameIDFormatUnmarshaller());
+    register(SingleSignOnService.DEFAULT_ELEMENT_NAME, new SingleSignOnServiceBuilder(), new SingleSignOnServiceMarshaller(), new SingleSignOnServiceUnmarshaller());
+    register(SingleLogoutService.DEFAULT_ELEMENT_NAME, new SingleLogoutServiceBuilder(), new SingleLogoutServiceMarshaller(), new SingleLogoutServiceUnmarshaller());
+    register(AssertionConsumerService.DEFAULT_ELEMENT_NAME, new AssertionConsumerServiceBuilder(), new AssertionConsumerServiceMarshaller(), new AssertionConsumerServiceUnmarshaller());
+    register(new QName(SAMLConstants.SAML20MD_NS, Extensions.LOCAL_NAME, SAMLConstants.SAML20MD_PREFIX),
+        new ExtensionsBuilder(), new ExtensionsMarshaller(), new ExtensionsUnmarshaller());
+  }
+
+  private static void register(QName name, XMLObjectBuilder builder, Marshaller marshaller, Unmarshaller unmarshaller) {
+    Configuration.getBuilderFactory().registerBuilder(name, builder);
+    Configuration.getMarshallerFactory().registerMarshaller(name, marshaller);
+    Configuration.getUnmarshallerFactory().registerUnmarshaller(name, unmarshaller);
+  }
+}
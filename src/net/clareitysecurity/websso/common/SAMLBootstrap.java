@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SAMLBootstrap.java
+ *
+ * One-time, thread-safe initialization of the OpenSAML library shared by
+ * the SP, IdP and metadata classes.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.ConfigurationException;
+
+/**
+ * Coordinates the OpenSAML bootstrap so that it runs exactly once per class
+ * loader no matter how many threads construct handlers at the same time.
+ * Every constructor in this library calls {@link #init()}; applications may
+ * call it themselves at startup to pay the cost before the first request.
+ * <p>
+ * Two profiles are available. {@link #PROFILE_FULL} (the default) does what
+ * DefaultBootstrap.bootstrap() does. {@link #PROFILE_SAML2} only registers
+ * the SAML 2.0 core, metadata and XML-DSig types this library uses and skips
+ * Velocity and the artifact builders, which cuts most of the startup cost.
+ * Choose it with {@link #setProfile(String)} or the
+ * <b>net.clareitysecurity.websso.bootstrap.profile</b> system property
+ * before the first handler is created.
+ * <p>
+ * The time spent in each bootstrap phase is recorded and available from
+ * {@link #getPhaseTimes()} once initialization has finished.
+ *
+ * @author Paul Hethmon
+ */
+public class SAMLBootstrap extends DefaultBootstrap {
+
+  /** Class logger. */
+  private static final Logger log = Logger.getLogger(SAMLBootstrap.class);
+
+  public static final String
+    PHASE_XML_SECURITY = "xmlsecurity",
+    PHASE_VELOCITY = "velocity",
+    PHASE_XML_TOOLING = "xmltooling",
+    PHASE_ARTIFACT_BUILDERS = "artifactbuilders",
+    PHASE_SECURITY_CONFIGURATION = "securityconfiguration",
+    PHASE_OBJECT_PROVIDERS = "objectproviders";
+
+  public static final String
+    PROFILE_FULL = "full",
+    PROFILE_SAML2 = "saml2",
+    PROFILE_PROPERTY = "net.clareitysecurity.websso.bootstrap.profile";
+
+  /** The XMLTooling configurations loaded by DefaultBootstrap.bootstrap(). */
+  private static final String[] xmlToolingConfigs = {
+    "/default-config.xml",
+    "/schema-config.xml",
+    "/signature-config.xml",
+    "/signature-validation-config.xml",
+    "/encryption-config.xml",
+    "/encryption-validation-config.xml",
+    "/soap11-config.xml",
+    "/wsfed11-protocol-config.xml",
+    "/saml1-assertion-config.xml",
+    "/saml1-protocol-config.xml",
+    "/saml1-core-validation-config.xml",
+    "/saml2-assertion-config.xml",
+    "/saml2-protocol-config.xml",
+    "/saml2-core-validation-config.xml",
+    "/saml1-metadata-config.xml",
+    "/saml2-metadata-config.xml",
+    "/saml2-metadata-validation-config.xml",
+    "/saml2-protocol-thirdparty-config.xml",
+    "/saml2-metadata-query-config.xml",
+    "/xacml10-saml2-profile-config.xml",
+    "/xacml11-saml2-profile-config.xml",
+    "/xacml20-context-config.xml",
+    "/xacml20-policy-config.xml",
+    "/xacml2-saml2-profile-config.xml",
+    "/xacml3-saml2-profile-config.xml",
+  };
+
+  /*
+   * Milliseconds spent in each phase, in execution order. Null until the
+   * bootstrap has completed, so it doubles as the initialized flag.
+   */
+  private static volatile Map<String, Long> phaseTimes = null;
+
+  private static volatile String profile = System.getProperty(PROFILE_PROPERTY, PROFILE_FULL);
+
+  protected SAMLBootstrap() {
+  }
+
+  /*
+   * Select the bootstrap profile. Must be called before the bootstrap runs.
+   * @param newProfile PROFILE_FULL or PROFILE_SAML2.
+   */
+  public static void setProfile(String newProfile) {
+    if (!PROFILE_FULL.equals(newProfile) && !PROFILE_SAML2.equals(newProfile)) {
+      throw new IllegalArgumentException("Unknown bootstrap profile [" + newProfile + "]");
+    }
+    synchronized (DefaultBootstrap.class) {
+      if (phaseTimes != null && !newProfile.equals(profile)) {
+        throw new IllegalStateException("OpenSAML has already been bootstrapped with profile [" + profile + "]");
+      }
+      profile = newProfile;
+    }
+  }
+
+  /*
+   * Get the bootstrap profile in use.
+   * @return PROFILE_FULL or PROFILE_SAML2.
+   */
+  public static String getProfile() {
+    return profile;
+  }
+
+  /*
+   * Bootstrap the OpenSAML library if it has not been done already. Safe to
+   * call from any number of threads; only the first caller does the work and
+   * the others wait for it to finish.
+   */
+  public static void init() throws ConfigurationException {
+    if (phaseTimes != null) return;
+    // Lock on DefaultBootstrap so we also serialize with anyone calling
+    // DefaultBootstrap.bootstrap() directly.
+    synchronized (DefaultBootstrap.class) {
+      if (phaseTimes != null) return;
+
+      Map<String, Long> times = new LinkedHashMap<String, Long>();
+      long start = System.nanoTime();
+      initializeXMLSecurity();
+      SignatureAlgorithms.register();
+      start = record(times, PHASE_XML_SECURITY, start);
+      if (PROFILE_SAML2.equals(profile)) {
+        // Nothing here uses the Velocity encoders or SAML artifacts
+        SAML2ObjectProviders.register();
+        start = record(times, PHASE_OBJECT_PROVIDERS, start);
+      } else {
+        initializeVelocity();
+        start = record(times, PHASE_VELOCITY, start);
+        initializeXMLTooling(xmlToolingConfigs);
+        start = record(times, PHASE_XML_TOOLING, start);
+        initializeArtifactBuilderFactories();
+        start = record(times, PHASE_ARTIFACT_BUILDERS, start);
+      }
+      initializeGlobalSecurityConfiguration();
+      record(times, PHASE_SECURITY_CONFIGURATION, start);
+
+      phaseTimes = Collections.unmodifiableMap(times);
+      if (log.isInfoEnabled()) {
+        log.info("SAMLBootstrap.java - " + profile + " bootstrap completed in " + getBootstrapTime() + " ms " + phaseTimes);
+      }
+    }
+  }
+
+  /*
+   * Check whether the bootstrap has completed.
+   * @return true if OpenSAML has been initialized.
+   */
+  public static boolean isInitialized() {
+    return phaseTimes != null;
+  }
+
+  /*
+   * Get the time spent in each bootstrap phase.
+   * @return Phase name to milliseconds, in execution order. Empty if the
+   * bootstrap has not completed yet.
+   */
+  public static Map<String, Long> getPhaseTimes() {
+    Map<String, Long> times = phaseTimes;
+    if (times == null) return Collections.emptyMap();
+    return times;
+  }
+
+  /*
+   * Get the total time spent bootstrapping.
+   * @return The total in milliseconds, or 0 if the bootstrap has not completed yet.
+   */
+  public static long getBootstrapTime() {
+    long total = 0;
+    for (Long t : getPhaseTimes().values()) {
+      total += t.longValue();
+    }
+    return total;
+  }
+
+  private static long record(Map<String, Long> times, String phase, long start) {
+    long now = System.nanoTime();
+    times.put(phase, Long.valueOf((now - start) / 1000000L));
+    return now;
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SAMLObjectRegistry.java
+ *
+ * The builders and marshallers used by this library, resolved once from
+ * the OpenSAML factories after bootstrap.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnContext;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml2.core.impl.AssertionBuilder;
+import org.opensaml.saml2.core.impl.AuthnContextBuilder;
+import org.opensaml.saml2.core.impl.AuthnContextClassRefBuilder;
+import org.opensaml.saml2.core.impl.AuthnRequestBuilder;
+import org.opensaml.saml2.core.impl.AuthnStatementBuilder;
+import org.opensaml.saml2.core.impl.ConditionsBuilder;
+import org.opensaml.saml2.core.impl.IssuerBuilder;
+import org.opensaml.saml2.core.impl.NameIDBuilder;
+import org.opensaml.saml2.core.impl.ResponseBuilder;
+import org.opensaml.saml2.core.impl.StatusBuilder;
+import org.opensaml.saml2.core.impl.StatusCodeBuilder;
+import org.opensaml.saml2.core.impl.SubjectBuilder;
+import org.opensaml.saml2.core.impl.SubjectConfirmationBuilder;
+import org.opensaml.saml2.core.impl.SubjectConfirmationDataBuilder;
+import org.opensaml.xml.ConfigurationException;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.X509Certificate;
+import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.signature.impl.KeyInfoBuilder;
+import org.opensaml.xml.signature.impl.SignatureBuilder;
+import org.opensaml.xml.signature.impl.X509CertificateBuilder;
+import org.opensaml.xml.signature.impl.X509DataBuilder;
+
+/**
+ * An immutable set of the builders and marshallers the SP, IdP and decode
+ * paths need, looked up once from the OpenSAML Configuration instead of by
+ * QName on every message. OpenSAML builders and marshallers are stateless,
+ * so the one registry is shared by all threads.
+ * <p>
+ * The registry is created on first use, after {@link SAMLBootstrap#init()},
+ * so it reflects whichever bootstrap profile is active.
+ *
+ * @author Paul Hethmon
+ */
+public final class SAMLObjectRegistry {
+
+  private static volatile SAMLObjectRegistry instance = null;
+
+  private final AuthnRequestBuilder authnRequestBuilder;
+  private final ResponseBuilder responseBuilder;
+  private final StatusBuilder statusBuilder;
+  private final StatusCodeBuilder statusCodeBuilder;
+  private final AssertionBuilder assertionBuilder;
+  private final IssuerBuilder issuerBuilder;
+  private final SubjectBuilder subjectBuilder;
+  private final NameIDBuilder nameIDBuilder;
+  private final SubjectConfirmationBuilder subjectConfirmationBuilder;
+  private final SubjectConfirmationDataBuilder subjectConfirmationDataBuilder;
+  private final ConditionsBuilder conditionsBuilder;
+  private final AuthnStatementBuilder authnStatementBuilder;
+  private final AuthnContextBuilder authnContextBuilder;
+  private final AuthnContextClassRefBuilder authnContextClassRefBuilder;
+  private final SignatureBuilder signatureBuilder;
+  private final KeyInfoBuilder keyInfoBuilder;
+  private final X509DataBuilder x509DataBuilder;
+  private final X509CertificateBuilder x509CertificateBuilder;
+
+  private final Marshaller
+    authnRequestMarshaller,
+    responseMarshaller,
+    assertionMarshaller;
+
+  /*
+   * Get the shared registry, bootstrapping OpenSAML first if needed.
+   * @return The SAMLObjectRegistry.
+   */
+  public static SAMLObjectRegistry getInstance() throws ConfigurationException {
+    SAMLObjectRegistry registry = instance;
+    if (registry == null) {
+      synchronized (SAMLObjectRegistry.class) {
+        registry = instance;
+        if (registry == null) {
+          SAMLBootstrap.init();
+          registry = new SAMLObjectRegistry();
+          instance = registry;
+        }
+      }
+    }
+    return registry;
+  }
+
+  private SAMLObjectRegistry() throws ConfigurationException {
+    authnRequestBuilder = (AuthnRequestBuilder) builder(AuthnRequest.DEFAULT_ELEMENT_NAME);
+    responseBuilder = (ResponseBuilder) builder(Response.DEFAULT_ELEMENT_NAME);
+    statusBuilder = (StatusBuilder) builder(Status.DEFAULT_ELEMENT_NAME);
+    statusCodeBuilder = (StatusCodeBuilder) builder(StatusCode.DEFAULT_ELEMENT_NAME);
+    assertionBuilder = (AssertionBuilder) builder(Assertion.DEFAULT_ELEMENT_NAME);
+    issuerBuilder = (IssuerBuilder) builder(Issuer.DEFAULT_ELEMENT_NAME);
+    subjectBuilder = (SubjectBuilder) builder(Subject.DEFAULT_ELEMENT_NAME);
+    nameIDBuilder = (NameIDBuilder) builder(NameID.DEFAULT_ELEMENT_NAME);
+    subjectConfirmationBuilder = (SubjectConfirmationBuilder) builder(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+    subjectConfirmationDataBuilder = (SubjectConfirmationDataBuilder) builder(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
+    conditionsBuilder = (ConditionsBuilder) builder(Conditions.DEFAULT_ELEMENT_NAME);
+    authnStatementBuilder = (AuthnStatementBuilder) builder(AuthnStatement.DEFAULT_ELEMENT_NAME);
+    authnContextBuilder = (AuthnContextBuilder) builder(AuthnContext.DEFAULT_ELEMENT_NAME);
+    authnContextClassRefBuilder = (AuthnContextClassRefBuilder) builder(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+    signatureBuilder = (SignatureBuilder) builder(Signature.DEFAULT_ELEMENT_NAME);
+    keyInfoBuilder = (KeyInfoBuilder) builder(KeyInfo.DEFAULT_ELEMENT_NAME);
+    x509DataBuilder = (X509DataBuilder) builder(X509Data.DEFAULT_ELEMENT_NAME);
+    x509CertificateBuilder = (X509CertificateBuilder) builder(X509Certificate.DEFAULT_ELEMENT_NAME);
+
+    authnRequestMarshaller = marshaller(AuthnRequest.DEFAULT_ELEMENT_NAME);
+    responseMarshaller = marshaller(Response.DEFAULT_ELEMENT_NAME);
+    assertionMarshaller = marshaller(Assertion.DEFAULT_ELEMENT_NAME);
+  }
+
+  public AuthnRequestBuilder getAuthnRequestBuilder() {
+    return authnRequestBuilder;
+  }
+  public ResponseBuilder getResponseBuilder() {
+    return responseBuilder;
+  }
+  public StatusBuilder getStatusBuilder() {
+    return statusBuilder;
+  }
+  public StatusCodeBuilder getStatusCodeBuilder() {
+    return statusCodeBuilder;
+  }
+  public AssertionBuilder getAssertionBuilder() {
+    return assertionBuilder;
+  }
+  public IssuerBuilder getIssuerBuilder() {
+    return issuerBuilder;
+  }
+  public SubjectBuilder getSubjectBuilder() {
+    return subjectBuilder;
+  }
+  public NameIDBuilder getNameIDBuilder() {
+    return nameIDBuilder;
+  }
+  public SubjectConfirmationBuilder getSubjectConfirmationBuilder() {
+    return subjectConfirmationBuilder;
+  }
+  public SubjectConfirmationDataBuilder getSubjectConfirmationDataBuilder() {
+    return subjectConfirmationDataBuilder;
+  }
+  public ConditionsBuilder getConditionsBuilder() {
+    return conditionsBuilder;
+  }
+  public AuthnStatementBuilder getAuthnStatementBuilder() {
+    return authnStatementBuilder;
+  }
+  public AuthnContextBuilder getAuthnContextBuilder() {
+    return authnContextBuilder;
+  }
+  public AuthnContextClassRefBuilder getAuthnContextClassRefBuilder() {
+    return authnContextClassRefBuilder;
+  }
+  public SignatureBuilder getSignatureBuilder() {
+    return signatureBuilder;
+  }
+  public KeyInfoBuilder getKeyInfoBuilder() {
+    return keyInfoBuilder;
+  }
+  public X509DataBuilder getX509DataBuilder() {
+    return x509DataBuilder;
+  }
+  public X509CertificateBuilder getX509CertificateBuilder() {
+    return x509CertificateBuilder;
+  }
+  public Marshaller getAuthnRequestMarshaller() {
+    return authnRequestMarshaller;
+  }
+  public Marshaller getResponseMarshaller() {
+    return responseMarshaller;
+  }
+  public Marshaller getAssertionMarshaller() {
+    return assertionMarshaller;
+  }
+
+  private static XMLObjectBuilder builder(QName name) throws ConfigurationException {
+    XMLObjectBuilder builder = Configuration.getBuilderFactory().getBuilder(name);
+    if (builder == null) {
+      throw new ConfigurationException("No builder registered for " + name);
+    }
+    return builder;
+  }
+
+  private static Marshaller marshaller(QName name) throws ConfigurationException {
+    Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(name);
+    if (marshaller == null) {
+      throw new ConfigurationException("No marshaller registered for " + name);
+    }
+    return marshaller;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SecureIdGenerator.java
+ *
+ * Random SAML message IDs from per-thread buffered randomness.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import org.opensaml.common.IdentifierGenerator;
+
+/**
+ * Generates IDs for SAML messages: an underscore followed by random bytes
+ * in hex, so every ID is a valid XML NCName. The default is 16 bytes, 128
+ * bits of randomness.
+ * <p>
+ * OpenSAML's SecureRandomIdentifierGenerator shares one SecureRandom, so
+ * threads creating IDs at the same time wait for each other. Here each
+ * thread has its own SecureRandom, seeded once from a shared one, and draws
+ * random bytes from it a buffer at a time.
+ *
+ * @author Paul Hethmon
+ */
+public class SecureIdGenerator implements IdentifierGenerator {
+
+  private static final SecureIdGenerator instance = new SecureIdGenerator();
+
+  /** Random bytes in an ID when no size is given. */
+  public static final int DEFAULT_SIZE = 16;
+
+  private static final int BUFFER_SIZE = 512;
+
+  private static final char [] HEX = "0123456789abcdef".toCharArray();
+
+  /** Seeds the per-thread generators. */
+  private static final SecureRandom seeder = new SecureRandom();
+
+  private final ThreadLocal<State> state = new ThreadLocal<State>() {
+    protected State initialValue() {
+      return new State();
+    }
+  };
+
+  /*
+   * Get the process-wide generator.
+   * @return The shared SecureIdGenerator.
+   */
+  public static SecureIdGenerator getInstance() {
+    return instance;
+  }
+
+  /*
+   * Generate an ID with 128 bits of randomness.
+   * @return The ID.
+   */
+  public String generateIdentifier() {
+    return generateIdentifier(DEFAULT_SIZE);
+  }
+
+  /*
+   * Generate an ID.
+   * @param size The number of random bytes in the ID.
+   * @return The ID, an underscore followed by twice size hex digits.
+   */
+  public String generateIdentifier(int size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("ID size must be positive");
+    }
+    char [] id = new char[1 + size * 2];
+    id[0] = '_';
+    state.get().fill(id, 1, size);
+    return new String(id);
+  }
+
+  /*
+   * One thread's SecureRandom and the bytes drawn from it but not yet used.
+   */
+  private static final class State {
+    final SecureRandom random;
+    final byte [] buffer = new byte[BUFFER_SIZE];
+    int position = BUFFER_SIZE;
+
+    State() {
+      SecureRandom r;
+      try {
+        r = SecureRandom.getInstance("SHA1PRNG");
+      } catch (NoSuchAlgorithmException e) {
+        r = new SecureRandom();
+      }
+      byte [] seed = new byte[32];
+      synchronized (seeder) {
+        seeder.nextBytes(seed);
+      }
+      r.setSeed(seed);
+      random = r;
+    }
+
+    void fill(char [] out, int offset, int count) {
+      for (int i = 0; i < count; i++) {
+        if (position == buffer.length) {
+          random.nextBytes(buffer);
+          position = 0;
+        }
+        int b = buffer[position++];
+        out[offset++] = HEX[(b >> 4) & 0xf];
+        out[offset++] = HEX[b & 0xf];
+      }
+    }
+  }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SharedParserPool.java
+ *
+ * A process-wide, bounded pool of DocumentBuilders shared by all of the
+ * SAML decoders and the metadata cache.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.validation.Schema;
+
+import org.apache.log4j.Logger;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * A bounded ParserPool shared by every decoder in this library. At most
+ * {@link #getMaxPoolSize()} DocumentBuilders are handed out at any one time.
+ * When they are all in use a caller either waits up to
+ * {@link #getBorrowTimeout()} milliseconds for one to come back or, if
+ * blocking is turned off, fails straight away with an XMLParserException.
+ * <p>
+ * Builders are namespace aware, non-validating, ignore comments, do not
+ * expand entity references and refuse DOCTYPE declarations.
+ * <p>
+ * The pool keeps counters for borrow wait time, cache misses (a borrow that
+ * had to create a new builder) and exhaustion so it can be monitored.
+ *
+ * @author Paul Hethmon
+ */
+public class SharedParserPool implements ParserPool {
+
+  /** Class logger. */
+  private static final Logger log = Logger.getLogger(SharedParserPool.class);
+
+  private static final SharedParserPool instance = new SharedParserPool();
+
+  /** Default for the most builders handed out at once. */
+  public static final int DEFAULT_MAX_POOL_SIZE = 64;
+
+  /** Default number of milliseconds to wait for a free builder. */
+  public static final long DEFAULT_BORROW_TIMEOUT = 5000;
+
+  private final DocumentBuilderFactory factory;
+  private final ConcurrentLinkedQueue<DocumentBuilder> idle;
+  private final AtomicInteger idleCount;
+  private final ResizableSemaphore permits;
+  private final ErrorHandler errorHandler;
+
+  private volatile int maxPoolSize;
+  private volatile boolean blockOnExhaustion;
+  private volatile long borrowTimeout;
+  private Schema schema;
+
+  private final AtomicLong
+    borrowCount = new AtomicLong(),
+    borrowWaitNanos = new AtomicLong(),
+    maxBorrowWaitNanos = new AtomicLong(),
+    missCount = new AtomicLong(),
+    exhaustedCount = new AtomicLong();
+
+  /*
+   * Get the process-wide pool.
+   * @return The shared SharedParserPool.
+   */
+  public static SharedParserPool getInstance() {
+    return instance;
+  }
+
+  /** Creates a new instance of SharedParserPool */
+  public SharedParserPool() {
+    factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    factory.setCoalescing(true);
+    factory.setIgnoringComments(true);
+    factory.setExpandEntityReferences(false);
+    factory.setValidating(false);
+    setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+    idle = new ConcurrentLinkedQueue<DocumentBuilder>();
+    idleCount = new AtomicInteger();
+    maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+    permits = new ResizableSemaphore(maxPoolSize);
+    errorHandler = new LoggingErrorHandler();
+    blockOnExhaustion = true;
+    borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+  }
+
+  /*
+   * Set the most DocumentBuilders that may be in use at the same time.
+   * @param newMaxPoolSize The maximum, at least 1.
+   */
+  public synchronized void setMaxPoolSize(int newMaxPoolSize) {
+    if (newMaxPoolSize < 1) {
+      throw new IllegalArgumentException("Maximum pool size must be at least 1");
+    }
+    int delta = newMaxPoolSize - maxPoolSize;
+    if (delta > 0) {
+      permits.release(delta);
+    } else if (delta < 0) {
+      permits.reducePermits(-delta);
+    }
+    maxPoolSize = newMaxPoolSize;
+  }
+  /*
+   * Get the most DocumentBuilders that may be in use at the same time.
+   * @return The maximum pool size.
+   */
+  public int getMaxPoolSize() {
+    return maxPoolSize;
+  }
+  /*
+   * Set whether a borrow waits for a free builder when the pool is exhausted.
+   * Default value is true.
+   * @param newBlockOnExhaustion true to wait up to the borrow timeout, false to fail at once.
+   */
+  public void setBlockOnExhaustion(boolean newBlockOnExhaustion) {
+    blockOnExhaustion = newBlockOnExhaustion;
+  }
+  /*
+   * Get whether a borrow waits for a free builder when the pool is exhausted.
+   * @return true if borrowing blocks.
+   */
+  public boolean getBlockOnExhaustion() {
+    return blockOnExhaustion;
+  }
+  /*
+   * Set the time in milliseconds a blocking borrow waits for a free builder.
+   * @param newBorrowTimeout The timeout in milliseconds.
+   */
+  public void setBorrowTimeout(long newBorrowTimeout) {
+    borrowTimeout = newBorrowTimeout;
+  }
+  /*
+   * Get the time in milliseconds a blocking borrow waits for a free builder.
+   * @return The timeout in milliseconds.
+   */
+  public long getBorrowTimeout() {
+    return borrowTimeout;
+  }
+
+  /*
+   * Get the number of idle builders ready for reuse.
+   * @return The idle pool size.
+   */
+  public int getPoolSize() {
+    return idleCount.get();
+  }
+  /*
+   * Get the number of builders currently borrowed.
+   * @return The number in use.
+   */
+  public int getActiveCount() {
+    return getMaxPoolSize() - permits.availablePermits();
+  }
+  /*
+   * Get the total number of successful borrows.
+   * @return The borrow count.
+   */
+  public long getBorrowCount() {
+    return borrowCount.get();
+  }
+  /*
+   * Get the number of borrows that found no idle builder and created one.
+   * @return The cache miss count.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+  /*
+   * Get the number of borrows that failed because the pool was exhausted.
+   * @return The exhaustion count.
+   */
+  public long getExhaustedCount() {
+    return exhaustedCount.get();
+  }
+  /*
+   * Get the total time spent waiting for a builder.
+   * @return The total wait in nanoseconds.
+   */
+  public long getTotalBorrowWaitNanos() {
+    return borrowWaitNanos.get();
+  }
+  /*
+   * Get the longest time a single borrow waited for a builder.
+   * @return The longest wait in nanoseconds.
+   */
+  public long getMaxBorrowWaitNanos() {
+    return maxBorrowWaitNanos.get();
+  }
+
+  public DocumentBuilder getBuilder() throws XMLParserException {
+    long start = System.nanoTime();
+    boolean acquired;
+    try {
+      if (blockOnExhaustion) {
+        acquired = permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS);
+      } else {
+        acquired = permits.tryAcquire();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new XMLParserException("Interrupted while waiting for a parser", e);
+    }
+    if (!acquired) {
+      exhaustedCount.incrementAndGet();
+      throw new XMLParserException("Parser pool exhausted, " + getMaxPoolSize() + " parsers in use");
+    }
+    long waited = System.nanoTime() - start;
+    borrowCount.incrementAndGet();
+    borrowWaitNanos.addAndGet(waited);
+    long max = maxBorrowWaitNanos.get();
+    while (waited > max && !maxBorrowWaitNanos.compareAndSet(max, waited)) {
+      max = maxBorrowWaitNanos.get();
+    }
+
+    DocumentBuilder builder = idle.poll();
+    if (builder != null) {
+      idleCount.decrementAndGet();
+      return builder;
+    }
+    missCount.incrementAndGet();
+    try {
+      return createBuilder();
+    } catch (XMLParserException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /*
+   * Return a builder obtained from getBuilder(). Every borrowed builder must
+   * be returned exactly once.
+   */
+  public void returnBuilder(DocumentBuilder builder) {
+    if (builder == null) return;
+    try {
+      builder.reset();
+      builder.setErrorHandler(errorHandler);
+      if (idleCount.get() < getMaxPoolSize()) {
+        idle.offer(builder);
+        idleCount.incrementAndGet();
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  public Document newDocument() throws XMLParserException {
+    DocumentBuilder builder = getBuilder();
+    try {
+      return builder.newDocument();
+    } finally {
+      returnBuilder(builder);
+    }
+  }
+
+  public Document parse(InputStream input) throws XMLParserException {
+    return parse(new InputSource(input));
+  }
+
+  public Document parse(Reader input) throws XMLParserException {
+    return parse(new InputSource(input));
+  }
+
+  public synchronized Schema getSchema() {
+    return schema;
+  }
+
+  /*
+   * Set the schema builders validate against. Idle builders are discarded so
+   * every builder handed out afterwards uses the new schema.
+   */
+  public synchronized void setSchema(Schema newSchema) {
+    schema = newSchema;
+    synchronized (factory) {
+      factory.setSchema(newSchema);
+    }
+    while (idle.poll() != null) {
+      idleCount.decrementAndGet();
+    }
+  }
+
+  private Document parse(InputSource input) throws XMLParserException {
+    DocumentBuilder builder = getBuilder();
+    try {
+      return builder.parse(input);
+    } catch (SAXException e) {
+      throw new XMLParserException("Invalid XML", e);
+    } catch (IOException e) {
+      throw new XMLParserException("Unable to read XML from input", e);
+    } finally {
+      returnBuilder(builder);
+    }
+  }
+
+  private DocumentBuilder createBuilder() throws XMLParserException {
+    DocumentBuilder builder;
+    // DocumentBuilderFactory is not guaranteed to be thread safe
+    synchronized (factory) {
+      try {
+        builder = factory.newDocumentBuilder();
+      } catch (ParserConfigurationException e) {
+        throw new XMLParserException("Unable to create a DocumentBuilder", e);
+      }
+    }
+    builder.setErrorHandler(errorHandler);
+    return builder;
+  }
+
+  private void setFeature(String feature, boolean value) {
+    try {
+      factory.setFeature(feature, value);
+    } catch (ParserConfigurationException e) {
+      log.warn("XML parser does not support feature [" + feature + "]");
+    }
+  }
+
+  /*
+   * A Semaphore whose permit count can shrink when the pool is resized.
+   */
+  private static class ResizableSemaphore extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    ResizableSemaphore(int permits) {
+      super(permits);
+    }
+    protected void reducePermits(int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
+
+  /*
+   * Sends parser warnings to the log instead of stderr and fails on errors.
+   */
+  private static class LoggingErrorHandler implements ErrorHandler {
+    public void warning(SAXParseException e) {
+      log.warn("XML parser warning: " + e.getMessage());
+    }
+    public void error(SAXParseException e) throws SAXException {
+      throw e;
+    }
+    public void fatalError(SAXParseException e) throws SAXException {
+      throw e;
+    }
+  }
+}
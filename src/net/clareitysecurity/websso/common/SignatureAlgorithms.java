@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SignatureAlgorithms.java
+ *
+ * The XML-DSig signature methods the IdP can sign with.
+ */
+
+package net.clareitysecurity.websso.common;
+
+import java.security.Key;
+
+import org.apache.log4j.Logger;
+import org.apache.xml.security.algorithms.SignatureAlgorithm;
+import org.apache.xml.security.exceptions.AlgorithmAlreadyRegisteredException;
+import org.opensaml.xml.encryption.EncryptionConstants;
+import org.opensaml.xml.signature.SignatureConstants;
+
+/**
+ * The signature method URIs supported for signing and checking SAML
+ * objects, and the key type each needs. RSA with SHA-1 stays the default
+ * for RSA keys so existing SPs keep working; EC keys default to ECDSA
+ * with SHA-256.
+ *
+ * @author Paul Hethmon
+ */
+public final class SignatureAlgorithms {
+
+  /** Class logger. */
+  private static final Logger log = Logger.getLogger(SignatureAlgorithms.class);
+
+  public static final String
+    RSA_SHA1 = SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1,
+    RSA_SHA256 = SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256,
+    RSA_SHA384 = SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA384,
+    RSA_SHA512 = SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512,
+    ECDSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256",
+    ECDSA_SHA384 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha384",
+    ECDSA_SHA512 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha512";
+
+  private static boolean registered = false;
+
+  private SignatureAlgorithms() {
+  }
+
+  /*
+   * Add the ECDSA SHA-2 methods to the XML Security library. Called by
+   * SAMLBootstrap once the library has been initialized; a method the
+   * library already knows is left alone.
+   */
+  static synchronized void register() {
+    if (registered) return;
+    register(ECDSA_SHA256, EcdsaSignatureAlgorithm.SHA256.class);
+    register(ECDSA_SHA384, EcdsaSignatureAlgorithm.SHA384.class);
+    register(ECDSA_SHA512, EcdsaSignatureAlgorithm.SHA512.class);
+    registered = true;
+  }
+
+  private static void register(String uri, Class<?> implementation) {
+    try {
+      SignatureAlgorithm.register(uri, implementation.getName());
+    } catch (AlgorithmAlreadyRegisteredException e) {
+      log.debug("Signature method " + uri + " is already registered");
+    } catch (Exception e) {
+      log.error("Unable to register signature method " + uri, e);
+    }
+  }
+
+  /*
+   * Get the signature method used for a key when none is configured.
+   * @param key The signing key.
+   * @return ECDSA_SHA256 for an EC key, otherwise RSA_SHA1.
+   */
+  public static String getDefault(Key key) {
+    return isEC(key) ? ECDSA_SHA256 : RSA_SHA1;
+  }
+
+  /*
+   * Get the type of key a signature method needs.
+   * @param uri The signature method URI.
+   * @return "RSA" or "EC", or null if the method is not one of these.
+   */
+  public static String getKeyAlgorithm(String uri) {
+    if (RSA_SHA1.equals(uri) || RSA_SHA256.equals(uri) || RSA_SHA384.equals(uri) || RSA_SHA512.equals(uri)) {
+      return "RSA";
+    }
+    if (ECDSA_SHA256.equals(uri) || ECDSA_SHA384.equals(uri) || ECDSA_SHA512.equals(uri)
+      || SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1.equals(uri)) {
+      return "EC";
+    }
+    return null;
+  }
+
+  /*
+   * Get the JCE name of a signature method, as used to sign an HTTP-Redirect
+   * query string.
+   * @param uri The signature method URI.
+   * @return The java.security.Signature algorithm, or null if the method is
+   * not one of these.
+   */
+  public static String getJCEAlgorithm(String uri) {
+    if (RSA_SHA1.equals(uri)) return "SHA1withRSA";
+    if (RSA_SHA256.equals(uri)) return "SHA256withRSA";
+    if (RSA_SHA384.equals(uri)) return "SHA384withRSA";
+    if (RSA_SHA512.equals(uri)) return "SHA512withRSA";
+    if (SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1.equals(uri)) return "SHA1withECDSA";
+    if (ECDSA_SHA256.equals(uri)) return "SHA256withECDSA";
+    if (ECDSA_SHA384.equals(uri)) return "SHA384withECDSA";
+    if (ECDSA_SHA512.equals(uri)) return "SHA512withECDSA";
+    return null;
+  }
+
+  /*
+   * Get the reference digest that goes with a signature method, so the
+   * whole signature uses one hash function.
+   * @param uri The signature method URI.
+   * @return The digest method URI; SHA-1 for the SHA-1 methods and any
+   * method not known here.
+   */
+  public static String getDigestAlgorithm(String uri) {
+    if (RSA_SHA256.equals(uri) || ECDSA_SHA256.equals(uri)) return EncryptionConstants.ALGO_ID_DIGEST_SHA256;
+    if (RSA_SHA384.equals(uri) || ECDSA_SHA384.equals(uri)) return SignatureConstants.ALGO_ID_DIGEST_SHA384;
+    if (RSA_SHA512.equals(uri) || ECDSA_SHA512.equals(uri)) return EncryptionConstants.ALGO_ID_DIGEST_SHA512;
+    return SignatureConstants.ALGO_ID_DIGEST_SHA1;
+  }
+
+  /*
+   * Make sure a key can sign with a signature method.
+   * @param uri The signature method URI.
+   * @param key The signing key.
+   * @throws IllegalArgumentException If the method is unknown or needs
+   * another type of key.
+   */
+  public static void checkKey(String uri, Key key) {
+    String needed = getKeyAlgorithm(uri);
+    if (needed == null) {
+      throw new IllegalArgumentException("Unsupported signature method [" + uri + "]");
+    }
+    String actual = isEC(key) ? "EC" : key.getAlgorithm();
+    if (!needed.equals(actual)) {
+      throw new IllegalArgumentException("Signature method [" + uri + "] needs an " + needed
+        + " key, not " + actual);
+    }
+  }
+
+  /*
+   * Check for an elliptic curve key. The JDK names these EC and Bouncy
+   * Castle ECDSA.
+   * @param key The key.
+   * @return true for an EC key.
+   */
+  public static boolean isEC(Key key) {
+    return "EC".equals(key.getAlgorithm()) || "ECDSA".equals(key.getAlgorithm());
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * CanonicalWriter.java
+ *
+ * Writes XML as UTF-8 bytes already in canonical form.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+/**
+ * A streaming XML writer, in the manner of a StAX XMLStreamWriter, whose
+ * output is already in Canonical XML form (exclusive C14N without
+ * comments) as long as the caller writes namespace declarations where they
+ * are first used and attributes in sorted order. Empty elements get an end
+ * tag, and text and attribute values are escaped exactly as C14N escapes
+ * them, so the bytes can be digested as they are without building a DOM.
+ * A javax.xml.stream writer cannot be used for this since how it escapes
+ * and closes elements is up to the implementation.
+ * <p>
+ * The bytes go into a buffer that grows as needed and is kept by reset(),
+ * so one writer can be reused by a thread. A writer is not thread safe.
+ *
+ * @author Paul Hethmon
+ */
+final class CanonicalWriter {
+
+  private byte [] buf;
+  private int count;
+  /** true while a start tag is waiting for its '>'. */
+  private boolean open;
+
+  CanonicalWriter(int initialSize) {
+    buf = new byte[initialSize];
+  }
+
+  /*
+   * Empty the writer, keeping its buffer.
+   */
+  void reset() {
+    count = 0;
+    open = false;
+  }
+
+  /*
+   * Get the buffer holding the output. Only the first size() bytes are used.
+   * @return The buffer.
+   */
+  byte [] getBuffer() {
+    return buf;
+  }
+
+  /*
+   * Get the number of bytes written.
+   * @return The size.
+   */
+  int size() {
+    return count;
+  }
+
+  /*
+   * Write the start of an element.
+   * @param qname The prefixed element name.
+   */
+  void writeStartElement(String qname) {
+    closeStart();
+    append('<');
+    appendASCII(qname);
+    open = true;
+  }
+
+  /*
+   * Declare a namespace on the element just started.
+   * @param prefix The prefix.
+   * @param uri The namespace URI.
+   */
+  void writeNamespace(String prefix, String uri) {
+    appendASCII(" xmlns:");
+    appendASCII(prefix);
+    append('=');
+    append('"');
+    appendEscaped(uri, true);
+    append('"');
+  }
+
+  /*
+   * Add an attribute to the element just started. Attributes must be added
+   * in the order C14N sorts them.
+   * @param name The attribute name.
+   * @param value The value, or null to leave the attribute out.
+   */
+  void writeAttribute(String name, String value) {
+    if (value == null) return;
+    append(' ');
+    appendASCII(name);
+    append('=');
+    append('"');
+    appendEscaped(value, true);
+    append('"');
+  }
+
+  /*
+   * Write text content.
+   * @param text The text, or null for none.
+   */
+  void writeCharacters(String text) {
+    closeStart();
+    if (text != null) appendEscaped(text, false);
+  }
+
+  /*
+   * Write an end tag, closing the start tag first if the element is empty.
+   * @param qname The prefixed element name.
+   */
+  void writeEndElement(String qname) {
+    closeStart();
+    append('<');
+    append('/');
+    appendASCII(qname);
+    append('>');
+  }
+
+  /*
+   * Write a simple element holding only text.
+   * @param qname The prefixed element name.
+   * @param text The text.
+   */
+  void writeTextElement(String qname, String text) {
+    writeStartElement(qname);
+    writeCharacters(text);
+    writeEndElement(qname);
+  }
+
+  /*
+   * Copy markup that is already canonical, such as the output of another
+   * writer.
+   * @param b The bytes.
+   * @param off The first byte.
+   * @param len The number of bytes.
+   */
+  void writeRaw(byte [] b, int off, int len) {
+    closeStart();
+    ensure(len);
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  /*
+   * Copy ASCII markup, such as an XML declaration.
+   * @param s The markup.
+   */
+  void writeRaw(String s) {
+    closeStart();
+    appendASCII(s);
+  }
+
+  private void closeStart() {
+    if (open) {
+      append('>');
+      open = false;
+    }
+  }
+
+  private void ensure(int n) {
+    if (count + n > buf.length) {
+      byte [] b = new byte[Math.max(buf.length * 2, count + n)];
+      System.arraycopy(buf, 0, b, 0, count);
+      buf = b;
+    }
+  }
+
+  private void append(char c) {
+    ensure(1);
+    buf[count++] = (byte) c;
+  }
+
+  /*
+   * Append markup, which is known to be ASCII.
+   */
+  private void appendASCII(String s) {
+    int len = s.length();
+    ensure(len);
+    for (int i = 0; i < len; i++) {
+      buf[count++] = (byte) s.charAt(i);
+    }
+  }
+
+  /*
+   * Append a value as UTF-8, escaped as C14N escapes text (&amp; &lt; &gt;
+   * &#xD;) or attribute values (&amp; &lt; &quot; &#x9; &#xA; &#xD;).
+   */
+  private void appendEscaped(String s, boolean attribute) {
+    int len = s.length();
+    ensure(len);
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '&':
+          appendASCII("&amp;");
+          continue;
+        case '<':
+          appendASCII("&lt;");
+          continue;
+        case '>':
+          if (attribute) break;
+          appendASCII("&gt;");
+          continue;
+        case '"':
+          if (!attribute) break;
+          appendASCII("&quot;");
+          continue;
+        case '\t':
+          if (!attribute) break;
+          appendASCII("&#x9;");
+          continue;
+        case '\n':
+          if (!attribute) break;
+          appendASCII("&#xA;");
+          continue;
+        case '\r':
+          appendASCII("&#xD;");
+          continue;
+        default:
+          break;
+      }
+      if (c < 0x80) {
+        append(c);
+      } else if (c < 0x800) {
+        ensure(2);
+        buf[count++] = (byte) (0xc0 | (c >> 6));
+        buf[count++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        ensure(4);
+        buf[count++] = (byte) (0xf0 | (cp >> 18));
+        buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        buf[count++] = (byte) (0x80 | (cp & 0x3f));
+      } else {
+        // A lone surrogate becomes U+FFFD, as String.getBytes("UTF-8") does
+        if (c >= '\uD800' && c <= '\uDFFF') c = '\uFFFD';
+        ensure(3);
+        buf[count++] = (byte) (0xe0 | (c >> 12));
+        buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[count++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+  }
+}
@@ -23,17 +23,11 @@
 
 package net.clareitysecurity.websso.idp;
 
+import net.clareitysecurity.websso.common.SAMLObjectRegistry;
+
 import org.apache.log4j.Logger;
-import org.opensaml.Configuration;
 import org.opensaml.common.binding.BindingException;
-import org.opensaml.common.binding.BasicSAMLMessageContext;
-import org.opensaml.saml2.binding.decoding.HTTPPostDecoder;
-import org.opensaml.saml2.binding.decoding.HTTPRedirectDeflateDecoder;
 import org.opensaml.saml2.core.*;
-import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
-import org.opensaml.xml.io.*;
-import org.opensaml.xml.parse.BasicParserPool;
-import org.opensaml.xml.util.Base64;
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -44,8 +38,6 @@ import javax.servlet.http.HttpServletRequest;
  */
 public class HttpHandler {
 
-  private static boolean bootstrap = false;
-  private static int bootcount = 0;
   /** Class logger. */
   private final Logger log = Logger.getLogger(HttpHandler.class);
   
@@ -57,15 +49,37 @@ public class HttpHandler {
 
   /** HTTP request param name for relay state. */
   public static final String RELAY_STATE_PARAM = "RelayState";
+
+  /** HTTP request param name for the redirect binding signature method. */
+  public static final String SIG_ALG_PARAM = "SigAlg";
+
+  /** HTTP request param name for the redirect binding signature. */
+  public static final String SIGNATURE_PARAM = "Signature";
   
   protected String
     xmlSAMLRequest,
     relayState;
+  private final SAMLObjectRegistry registry;
+  private IdPEngine engine;
+  private int maxInflatedSize = IdPConfig.DEFAULT_MAX_INFLATED_SIZE;
+  private SPKeyIndex spKeyIndex;
+  private boolean requireSignedRequests;
+  /** The last decoded request, turned into xmlSAMLRequest on first use. */
+  private IdPRequest decodedRequest;
   
   public void setXMLSAMLRequest(String newXMLSAMLRequest) {
     xmlSAMLRequest = newXMLSAMLRequest;
+    decodedRequest = null;
   }
+  /*
+   * Get the decoded SAML Request as XML. The String is only built when this
+   * is first called after decoding.
+   */
   public String getXMLSAMLRequest() {
+    if (decodedRequest != null) {
+      xmlSAMLRequest = decodedRequest.getRequestXML();
+      decodedRequest = null;
+    }
     return xmlSAMLRequest;
   }
   public void setRelayState(String newRelayState) {
@@ -74,81 +88,77 @@ public class HttpHandler {
   public String getRelayState() {
     return relayState;
   }
+  /*
+   * Set the most bytes a SAMLRequest sent with the redirect binding may
+   * inflate to. Default value is 256 KB.
+   */
+  public void setMaxInflatedSize(int newMaxInflatedSize) {
+    maxInflatedSize = newMaxInflatedSize;
+    engine = newEngine();
+  }
+  public int getMaxInflatedSize() {
+    return engine.getConfig().getMaxInflatedSize();
+  }
+  /*
+   * Set the index of SP keys. A redirect binding request from an SP in the
+   * index is rejected unless its query string signature is valid. Default
+   * value is null, which checks no signatures.
+   */
+  public void setSPKeyIndex(SPKeyIndex newSPKeyIndex) {
+    spKeyIndex = newSPKeyIndex;
+    engine = newEngine();
+  }
+  public SPKeyIndex getSPKeyIndex() {
+    return spKeyIndex;
+  }
+  /*
+   * Set whether every redirect binding request must be signed by an SP in
+   * the key index. Default value is false.
+   */
+  public void setRequireSignedRequests(boolean newRequireSignedRequests) {
+    requireSignedRequests = newRequireSignedRequests;
+    engine = newEngine();
+  }
+  public boolean getRequireSignedRequests() {
+    return requireSignedRequests;
+  }
+  
+  private IdPEngine newEngine() {
+    return new IdPEngine(new IdPConfig.Builder()
+      .setMaxInflatedSize(maxInflatedSize)
+      .setSPKeyIndex(spKeyIndex)
+      .setRequireSignedRequests(requireSignedRequests)
+      .build(), registry);
+  }
   
   /*
    * Create the HttpHandler object for Idp usage.
    */
   public HttpHandler() throws org.opensaml.xml.ConfigurationException {
     // do the bootstrap thing and make sure the library is happy
-    if (bootstrap == false) {
-      org.opensaml.DefaultBootstrap.bootstrap();
-      bootstrap = true;
-      if (log.isInfoEnabled()) {
-        bootcount++;
-        log.info("HttpHandler.java (line 86) bootstrap has been called. [" + bootcount + "]");
-      }
-        
-    }
+    registry = SAMLObjectRegistry.getInstance();
+    engine = newEngine();
   }
   
   public AuthnRequest decodeSAMLRequest(HttpServletRequest request) 
     throws BindingException, org.opensaml.ws.security.SecurityPolicyException, java.util.zip.DataFormatException, 
       org.opensaml.ws.message.MessageException, org.opensaml.xml.security.SecurityException
   {
-    AuthnRequest samlRequest = null;
-    
-    //System.out.println("HttpHandler:decodeSAMLRequest");
     if (log.isDebugEnabled()) {
       log.debug("HttpHandler:decodeSAMLRequest");
       }
-    // First see whether we have a GET or POST so we know where to look for the data
-    if (request.getMethod().equalsIgnoreCase("GET") == true) {
-      //System.out.println("HttpHandler:decodeSAMLRequest - Found GET");
-      if (log.isDebugEnabled()) {
-        log.debug("HttpHandler:decodeSAMLRequest - Found GET");
-        }
-      HTTPRedirectDeflateDecoder decode = new HTTPRedirectDeflateDecoder(new BasicParserPool());
-      HttpServletRequestAdapter adapter = new HttpServletRequestAdapter(request);
-      BasicSAMLMessageContext context = new BasicSAMLMessageContext();
-      context.setInboundMessageTransport(adapter);
-      decode.decode(context);
-      // Save the SAML Request as a SAML Object
-      samlRequest = (AuthnRequest) context.getInboundMessage();
-      //samlRequest = (AuthnRequest) decode.getSAMLMessage();
-      // Now save it as a String in case we need it later
-      byte [] b = Base64.decode(request.getParameter(REQUEST_PARAM));
-      byte [] i = new byte[ b.length * 3];
-      xmlSAMLRequest = new String(b);
-      java.util.zip.Inflater inflater = new java.util.zip.Inflater(true);
-      inflater.setInput(b);
-      inflater.inflate(i);
-      xmlSAMLRequest = new String(i);
-      // Now save the Relay State as an encoded value. We only return this
-      // to the SP, so no need to Base64 decode it.
-      relayState = adapter.getParameterValue(this.RELAY_STATE_PARAM);
-    } else if (request.getMethod().equalsIgnoreCase("POST") == true) {
-      //System.out.println("HttpHandler:decodeSAMLRequest - Found POST");
-      if (log.isDebugEnabled()) {
-        log.debug("HttpHandler:decodeSAMLRequest - Found POST");
-        }
-      HTTPPostDecoder decode = new HTTPPostDecoder( new BasicParserPool() );
-      HttpServletRequestAdapter adapter = new HttpServletRequestAdapter(request);
-      BasicSAMLMessageContext context = new BasicSAMLMessageContext();
-      context.setInboundMessageTransport(adapter);
-      decode.decode(context);
-      // Save the SAML Request as a SAML Object
-      samlRequest = (AuthnRequest) context.getInboundMessage();
-      // Now save it as a String in case we need it later
-      byte [] b = Base64.decode(request.getParameter(REQUEST_PARAM));
-      xmlSAMLRequest = new String(b);
-
-      // Now save the Relay State as an encoded value. We only return this
-      // to the SP, so no need to Base64 decode it.
-      relayState = adapter.getParameterValue(this.RELAY_STATE_PARAM);
-    } else {
+    IdPRequest result = engine.decodeRequest(request);
+    if (result == null) {
       // bad things happened here
+      return null;
     }
+    // Keep the decoded SAML Request; the String is built if someone asks for it
+    decodedRequest = result;
+    xmlSAMLRequest = null;
+    // Now save the Relay State as an encoded value. We only return this
+    // to the SP, so no need to Base64 decode it.
+    relayState = result.getRelayState();
 
-    return samlRequest;
+    return result.getAuthnRequest();
   }
 }
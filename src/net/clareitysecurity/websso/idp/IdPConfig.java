@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * IdPConfig.java
+ *
+ * The settings an Identity Provider uses to answer SAML Requests.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.clareitysecurity.websso.common.SecureIdGenerator;
+import net.clareitysecurity.websso.common.SignatureAlgorithms;
+
+import org.opensaml.common.IdentifierGenerator;
+
+/**
+ * Immutable Identity Provider settings used by {@link IdPEngine}. Build one
+ * with {@link IdPConfig.Builder} and share it between threads. The key
+ * caches are held by reference and must not be changed once the config is
+ * in use.
+ *
+ * @author Paul Hethmon
+ */
+public final class IdPConfig {
+
+  /** Default for the most bytes a redirect SAMLRequest may inflate to. */
+  public static final int DEFAULT_MAX_INFLATED_SIZE = 256 * 1024;
+
+  private final String
+      issuerName,
+      nameIdFormat,
+      signatureAlgorithm;
+  private final PrivateKeyCache
+      privateKeyCache;
+  private final PublicKeyCache
+      publicKeyCache;
+  private final SigningKeyring
+      signingKeyring;
+  private final SPKeyIndex
+      spKeyIndex;
+  private final boolean
+      signAssertion,
+      simpleSAMLphp,
+      requireSignedRequests,
+      streamingWriter;
+  private final int
+      minutes,
+      maxInflatedSize;
+  private final Map<Integer, String>
+      assertionConsumerService;
+  private final IdentifierGenerator
+      idGenerator;
+
+  private IdPConfig(Builder b) {
+    issuerName = b.issuerName;
+    nameIdFormat = b.nameIdFormat;
+    signatureAlgorithm = b.signatureAlgorithm;
+    privateKeyCache = b.privateKeyCache;
+    publicKeyCache = b.publicKeyCache;
+    signingKeyring = b.signingKeyring;
+    spKeyIndex = b.spKeyIndex;
+    signAssertion = b.signAssertion;
+    simpleSAMLphp = b.simpleSAMLphp;
+    requireSignedRequests = b.requireSignedRequests;
+    streamingWriter = b.streamingWriter;
+    minutes = b.minutes;
+    maxInflatedSize = b.maxInflatedSize;
+    idGenerator = b.idGenerator;
+    assertionConsumerService = Collections.unmodifiableMap(new HashMap<Integer, String>(b.assertionConsumerService));
+  }
+
+  /*
+   * Get the unique identifier value of your server.
+   */
+  public String getIssuerName() {
+    return issuerName;
+  }
+  /*
+   * Get the format of the NameID in the Assertion.
+   */
+  public String getNameIdFormat() {
+    return nameIdFormat;
+  }
+  /*
+   * Get the private key used to sign assertions.
+   */
+  public PrivateKeyCache getPrivateKeyCache() {
+    return privateKeyCache;
+  }
+  /*
+   * Get the certificate sent in the signature KeyInfo.
+   */
+  public PublicKeyCache getPublicKeyCache() {
+    return publicKeyCache;
+  }
+  /*
+   * Get the keyring holding the signing keys. When set it is used instead
+   * of the private and public key caches.
+   */
+  public SigningKeyring getSigningKeyring() {
+    return signingKeyring;
+  }
+  /*
+   * Get the index of SP keys redirect binding requests are verified with,
+   * or null if their signatures are not checked.
+   */
+  public SPKeyIndex getSPKeyIndex() {
+    return spKeyIndex;
+  }
+  /*
+   * Get whether a redirect binding request must be signed by an SP in the
+   * key index.
+   */
+  public boolean getRequireSignedRequests() {
+    return requireSignedRequests;
+  }
+  /*
+   * Get the signature method URI assertions are signed with, or null to
+   * choose one from the type of the signing key.
+   */
+  public String getSignatureAlgorithm() {
+    return signatureAlgorithm;
+  }
+  /*
+   * Get whether assertions are signed.
+   */
+  public boolean getSignAssertion() {
+    return signAssertion;
+  }
+  /*
+   * Get whether the Response ID is adjusted to work with simpleSAMLphp.
+   */
+  public boolean getSimpleSAMLphp() {
+    return simpleSAMLphp;
+  }
+  /*
+   * Get whether success Responses are written directly as canonical bytes
+   * instead of being built, marshalled and signed as OpenSAML objects.
+   */
+  public boolean getStreamingWriter() {
+    return streamingWriter;
+  }
+  /*
+   * Get the number of minutes a Response is valid for.
+   */
+  public int getMinutes() {
+    return minutes;
+  }
+  /*
+   * Get the most bytes a SAMLRequest sent with the redirect binding may
+   * inflate to.
+   */
+  public int getMaxInflatedSize() {
+    return maxInflatedSize;
+  }
+  /*
+   * Get the generator of Response IDs.
+   */
+  public IdentifierGenerator getIdGenerator() {
+    return idGenerator;
+  }
+  /*
+   * Get the URL configured at the given AssertionConsumerServiceIndex.
+   * @param idx The index value to retrieve.
+   * @return The URL if present, otherwise null.
+   */
+  public String getAssertionConsumerService(int idx) {
+    return assertionConsumerService.get(idx);
+  }
+
+  /**
+   * Collects the settings for an IdPConfig. A Builder is not thread safe;
+   * the IdPConfig it builds is.
+   */
+  public static final class Builder {
+    private String
+        issuerName,
+        nameIdFormat = SAMLResponse.UNSPECIFIED,
+        signatureAlgorithm;
+    private PrivateKeyCache
+        privateKeyCache;
+    private PublicKeyCache
+        publicKeyCache;
+    private SigningKeyring
+        signingKeyring;
+    private SPKeyIndex
+        spKeyIndex;
+    private boolean
+        signAssertion = true,
+        simpleSAMLphp = false,
+        requireSignedRequests = false,
+        streamingWriter = false;
+    private int
+        minutes = 5,
+        maxInflatedSize = DEFAULT_MAX_INFLATED_SIZE;
+    private final Map<Integer, String>
+        assertionConsumerService = new HashMap<Integer, String>();
+    private IdentifierGenerator
+        idGenerator = SecureIdGenerator.getInstance();
+
+    public Builder setIssuerName(String newIssuerName) {
+      issuerName = newIssuerName;
+      return this;
+    }
+    /*
+     * Set the NameID format. Default value is unspecified.
+     */
+    public Builder setNameIdFormat(String newNameIdFormat) {
+      nameIdFormat = newNameIdFormat;
+      return this;
+    }
+    public Builder setPrivateKeyCache(PrivateKeyCache newPrivateKeyCache) {
+      privateKeyCache = newPrivateKeyCache;
+      return this;
+    }
+    public Builder setPublicKeyCache(PublicKeyCache newPublicKeyCache) {
+      publicKeyCache = newPublicKeyCache;
+      return this;
+    }
+    /*
+     * Set the keyring holding the signing keys, which then takes the place
+     * of the private and public key caches. Default value is null.
+     */
+    public Builder setSigningKeyring(SigningKeyring newSigningKeyring) {
+      signingKeyring = newSigningKeyring;
+      return this;
+    }
+    /*
+     * Set the index of SP keys. A redirect binding request from an SP in the
+     * index must carry a valid query string signature by one of its keys.
+     * Default value is null, which checks no signatures.
+     */
+    public Builder setSPKeyIndex(SPKeyIndex newSPKeyIndex) {
+      spKeyIndex = newSPKeyIndex;
+      return this;
+    }
+    /*
+     * Set whether redirect binding requests from SPs not in the key index,
+     * or without an Issuer, are rejected too. Default value is false.
+     */
+    public Builder setRequireSignedRequests(boolean newRequireSignedRequests) {
+      requireSignedRequests = newRequireSignedRequests;
+      return this;
+    }
+    /*
+     * Set the signature method, one of the SignatureAlgorithms URIs. It must
+     * suit the signing key; build() checks it against the key in the
+     * PrivateKeyCache and each keyring key is checked when it signs. Default
+     * value is null, which signs with RSA-SHA1 for an RSA key and
+     * ECDSA-SHA256 for an EC key.
+     */
+    public Builder setSignatureAlgorithm(String newSignatureAlgorithm) {
+      if (newSignatureAlgorithm != null && SignatureAlgorithms.getKeyAlgorithm(newSignatureAlgorithm) == null) {
+        throw new IllegalArgumentException("Unsupported signature method [" + newSignatureAlgorithm + "]");
+      }
+      signatureAlgorithm = newSignatureAlgorithm;
+      return this;
+    }
+    /*
+     * Set whether assertions are signed. Default value is true.
+     */
+    public Builder setSignAssertion(boolean newSignAssertion) {
+      signAssertion = newSignAssertion;
+      return this;
+    }
+    /*
+     * Set whether the Response ID is prefixed with # for simpleSAMLphp. Default value is false.
+     */
+    public Builder setSimpleSAMLphp(boolean newSimpleSAMLphp) {
+      simpleSAMLphp = newSimpleSAMLphp;
+      return this;
+    }
+    /*
+     * Set whether IdPEngine.createSuccessResponse writes the Response with
+     * its streaming writer, which digests and signs the canonical bytes as
+     * it writes them and builds no DOM. Default value is false.
+     */
+    public Builder setStreamingWriter(boolean newStreamingWriter) {
+      streamingWriter = newStreamingWriter;
+      return this;
+    }
+    /*
+     * Set the number of minutes a Response will be valid for. Default value
+     * is 5 minutes. Values less than zero will be set to 1 minute.
+     */
+    public Builder setMinutes(int newMinutes) {
+      minutes = (newMinutes < 0) ? 1 : newMinutes;
+      return this;
+    }
+    /*
+     * Set the most bytes a SAMLRequest sent with the redirect binding may
+     * inflate to. Larger requests are rejected. Default value is 256 KB.
+     */
+    public Builder setMaxInflatedSize(int newMaxInflatedSize) {
+      if (newMaxInflatedSize <= 0) {
+        throw new IllegalArgumentException("Maximum inflated size must be positive");
+      }
+      maxInflatedSize = newMaxInflatedSize;
+      return this;
+    }
+    /*
+     * Set the generator of Response IDs. Default value is the shared
+     * SecureIdGenerator.
+     */
+    public Builder setIdGenerator(IdentifierGenerator newIdGenerator) {
+      if (newIdGenerator == null) {
+        throw new IllegalArgumentException("ID generator may not be null");
+      }
+      idGenerator = newIdGenerator;
+      return this;
+    }
+    /*
+     * Add a URL and its index to the list of URLs to redirect the browser to.
+     * @param idx The AssertionConsumerServiceIndex in the SAMLRequest.
+     * @param url The fully qualified URL to redirect the browser to.
+     */
+    public Builder setAssertionConsumerService(int idx, String url) {
+      assertionConsumerService.put(idx, url);
+      return this;
+    }
+    /*
+     * Create the IdPConfig.
+     * @return A new immutable IdPConfig holding the current settings.
+     * @throws IllegalArgumentException If the signature method does not suit
+     * the key in the PrivateKeyCache.
+     */
+    public IdPConfig build() {
+      if (signatureAlgorithm != null && signingKeyring == null && privateKeyCache != null
+        && privateKeyCache.getPrivateKey() != null) {
+        SignatureAlgorithms.checkKey(signatureAlgorithm, privateKeyCache.getPrivateKey());
+      }
+      return new IdPConfig(this);
+    }
+  }
+}
@@ -0,0 +1,767 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * IdPEngine.java
+ *
+ * Stateless Identity Provider logic: decode SAML Requests from the SP and
+ * create the signed SAML Response for an authenticated user.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.clareitysecurity.websso.common.InflateDecoder;
+import net.clareitysecurity.websso.common.QueryStringSigner;
+import net.clareitysecurity.websso.common.RetainingPostDecoder;
+import net.clareitysecurity.websso.common.SAMLObjectRegistry;
+import net.clareitysecurity.websso.common.SharedParserPool;
+import net.clareitysecurity.websso.common.SignatureAlgorithms;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.impl.SAMLObjectContentReference;
+import org.opensaml.common.binding.BasicSAMLMessageContext;
+import org.opensaml.common.binding.BindingException;
+import org.opensaml.saml2.binding.decoding.HTTPRedirectDeflateDecoder;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnContext;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.signature.impl.SignatureImpl;
+import org.opensaml.xml.util.Base64;
+import org.w3c.dom.Element;
+
+/**
+ * The Identity Provider side of Web SSO without any per-request state. One
+ * IdPEngine built from an {@link IdPConfig} can be shared by every request
+ * thread; each call returns its result as an immutable {@link IdPRequest}
+ * or {@link IdPResult}.
+ * <p>
+ * With an {@link SPKeyIndex} in the configuration, the query string
+ * signature of a redirect binding request is checked before any XML is
+ * parsed. The Issuer is read from the inflated bytes by a plain scan, the
+ * signature is verified once with the SP's key, and the Issuer the parser
+ * finds afterwards must be the same.
+ *
+ * @author Paul Hethmon
+ */
+public class IdPEngine {
+
+  /** Class logger. */
+  private final Logger log = Logger.getLogger(IdPEngine.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final IdPConfig config;
+  private final SAMLObjectRegistry registry;
+
+  /*
+   * Create an IdPEngine for the given settings.
+   * @param newConfig The Identity Provider settings.
+   */
+  public IdPEngine(IdPConfig newConfig) throws org.opensaml.xml.ConfigurationException {
+    if (newConfig == null) {
+      throw new IllegalArgumentException("IdPConfig may not be null");
+    }
+    config = newConfig;
+    registry = SAMLObjectRegistry.getInstance();
+  }
+
+  IdPEngine(IdPConfig newConfig, SAMLObjectRegistry newRegistry) {
+    config = newConfig;
+    registry = newRegistry;
+  }
+
+  /*
+   * Get the settings this engine was created with.
+   * @return The IdPConfig.
+   */
+  public IdPConfig getConfig() {
+    return config;
+  }
+
+  /*
+   * Create a new Response ID.
+   * @return The ID from the configured generator.
+   */
+  public String newId() {
+    return config.getIdGenerator().generateIdentifier();
+  }
+
+  /*
+   * Decode a SAML Request sent with the redirect (GET) or POST binding. The
+   * parameter is decoded once; the bytes the OpenSAML decoder parses are kept
+   * so the XML can be had later without decoding it again.
+   * @param request The HTTP request carrying the SAMLRequest.
+   * @return The decoded request, or null if the method is neither GET nor POST.
+   */
+  public IdPRequest decodeRequest(HttpServletRequest request)
+    throws BindingException, org.opensaml.ws.security.SecurityPolicyException, java.util.zip.DataFormatException,
+      org.opensaml.ws.message.MessageException, org.opensaml.xml.security.SecurityException
+  {
+    BasicSAMLMessageContext context = new BasicSAMLMessageContext();
+    HttpServletRequestAdapter adapter = new HttpServletRequestAdapter(request);
+    context.setInboundMessageTransport(adapter);
+    byte [] decoded;
+    RedirectQuery query = null;
+
+    // First see whether we have a GET or POST so we know where to look for the data
+    if (request.getMethod().equalsIgnoreCase("GET") == true) {
+      if (log.isDebugEnabled()) log.debug("IdPEngine:decodeRequest - Found GET");
+      query = checkRedirectSignature(request);
+      RedirectDecoder decode = new RedirectDecoder(config.getMaxInflatedSize(), (query == null) ? null : query.inflated);
+      decode.decode(context);
+      decoded = decode.decoded;
+    } else if (request.getMethod().equalsIgnoreCase("POST") == true) {
+      if (log.isDebugEnabled()) log.debug("IdPEngine:decodeRequest - Found POST");
+      RetainingPostDecoder decode = new RetainingPostDecoder();
+      decode.decode(context);
+      decoded = decode.getDecodedBytes();
+    } else {
+      return null;
+    }
+    if (!(context.getInboundMessage() instanceof AuthnRequest)) {
+      throw new MessageDecodingException("SAML message is not an AuthnRequest");
+    }
+    if (query != null) checkIssuer(query, (AuthnRequest) context.getInboundMessage());
+
+    // The Relay State is saved encoded. We only return this
+    // to the SP, so no need to Base64 decode it. A checked query string
+    // gives the RelayState the signature covers, not whichever one the
+    // container found first.
+    String relayState;
+    if (query == null) {
+      relayState = adapter.getParameterValue(HttpHandler.RELAY_STATE_PARAM);
+    } else {
+      relayState = (query.relayState == null) ? null : RedirectQuery.decode(query.relayState);
+    }
+    return new IdPRequest((AuthnRequest) context.getInboundMessage(), decoded, relayState);
+  }
+
+  /**
+   * The OpenSAML redirect decoder, inflating into a bounded buffer and
+   * keeping the result. One instance decodes one request.
+   */
+  private static final class RedirectDecoder extends HTTPRedirectDeflateDecoder {
+    private final int maxSize;
+    byte [] decoded;
+
+    /*
+     * @param newMaxSize The most bytes the message may inflate to.
+     * @param inflated The message already inflated while checking its
+     * signature, or null.
+     */
+    RedirectDecoder(int newMaxSize, byte [] inflated) {
+      super(SharedParserPool.getInstance());
+      maxSize = newMaxSize;
+      decoded = inflated;
+    }
+
+    protected InputStream decodeMessage(String message) throws MessageDecodingException {
+      if (decoded != null) return new ByteArrayInputStream(decoded);
+      byte [] b = Base64.decode(message);
+      if (b == null) {
+        throw new MessageDecodingException("Unable to Base64 decode incoming message");
+      }
+      try {
+        decoded = InflateDecoder.getInstance().decode(b, maxSize);
+      } catch (java.util.zip.DataFormatException e) {
+        throw new MessageDecodingException("Unable to inflate incoming message: " + e.getMessage(), e);
+      }
+      return new ByteArrayInputStream(decoded);
+    }
+  }
+
+  /*
+   * Check the query string signature of a redirect binding request against
+   * the SP key index, before the XML is parsed. Unsigned requests are
+   * refused without inflating them when every request must be signed.
+   * @param request The HTTP GET request.
+   * @return The parsed query string with the inflated message, or null if
+   * signatures are not checked.
+   * @throws SecurityPolicyException If the request must be signed and is
+   * not, or the signature is not valid.
+   */
+  private RedirectQuery checkRedirectSignature(HttpServletRequest request)
+    throws SecurityPolicyException, MessageDecodingException, java.util.zip.DataFormatException
+  {
+    SPKeyIndex index = config.getSPKeyIndex();
+    boolean required = config.getRequireSignedRequests();
+    if (index == null && !required) return null;
+
+    RedirectQuery query = RedirectQuery.parse(request.getQueryString());
+    if (query.signature == null && required) {
+      throw new SecurityPolicyException("Redirect AuthnRequest is not signed");
+    }
+    String algorithm = null;
+    byte [] signature = null;
+    if (query.signature != null) {
+      if (query.sigAlg == null) {
+        throw new SecurityPolicyException("Redirect AuthnRequest has a Signature but no SigAlg");
+      }
+      algorithm = RedirectQuery.decode(query.sigAlg);
+      if (SignatureAlgorithms.getJCEAlgorithm(algorithm) == null) {
+        throw new SecurityPolicyException("Unsupported signature method [" + algorithm + "]");
+      }
+      signature = Base64.decode(RedirectQuery.decode(query.signature));
+      if (signature == null || signature.length == 0) {
+        throw new SecurityPolicyException("Redirect AuthnRequest Signature is not BASE64");
+      }
+    }
+
+    byte [] b = Base64.decode(RedirectQuery.decode(query.samlRequest));
+    if (b == null) {
+      throw new MessageDecodingException("Unable to Base64 decode incoming message");
+    }
+    query.inflated = InflateDecoder.getInstance().decode(b, config.getMaxInflatedSize());
+    query.issuer = RedirectQuery.scanIssuer(query.inflated);
+
+    PublicKey [] keys = (index == null) ? null : index.lookup(query.issuer);
+    if (keys == null) {
+      if (required) {
+        throw new SecurityPolicyException("No key to verify the AuthnRequest from [" + query.issuer + "]");
+      }
+      // Not an SP that has to sign; there is nothing to check a signature with
+      return query;
+    }
+    if (signature == null) {
+      throw new SecurityPolicyException("AuthnRequest from [" + query.issuer + "] is not signed");
+    }
+    CharSequence signed = query.getSignedContent();
+    for (int i = 0; i < keys.length; i++) {
+      String keyAlgorithm = SignatureAlgorithms.isEC(keys[i]) ? "EC" : keys[i].getAlgorithm();
+      if (!keyAlgorithm.equals(SignatureAlgorithms.getKeyAlgorithm(algorithm))) continue;
+      try {
+        if (QueryStringSigner.verify(algorithm, keys[i], signed, signature)) {
+          query.verified = true;
+          return query;
+        }
+      } catch (GeneralSecurityException e) {
+        log.debug("Unable to verify with a key of [" + query.issuer + "]", e);
+      }
+    }
+    throw new SecurityPolicyException("Signature on the AuthnRequest from [" + query.issuer + "] is not valid");
+  }
+
+  /*
+   * Make sure the parser found the same Issuer the signature was checked
+   * for, so a request cannot be verified as coming from one SP and then be
+   * handled as coming from another.
+   * @param query The checked query string.
+   * @param authnRequest The parsed AuthnRequest.
+   */
+  private void checkIssuer(RedirectQuery query, AuthnRequest authnRequest) throws SecurityPolicyException {
+    String issuer = (authnRequest.getIssuer() == null || authnRequest.getIssuer().getValue() == null)
+      ? null : authnRequest.getIssuer().getValue().trim();
+    if (query.issuer != null) {
+      if (!query.issuer.equals(issuer)) {
+        throw new SecurityPolicyException("AuthnRequest Issuer [" + issuer + "] is not the one checked ["
+          + query.issuer + "]");
+      }
+      return;
+    }
+    // The scan found no Issuer; the parser must not find one that has to sign
+    SPKeyIndex index = config.getSPKeyIndex();
+    if (issuer != null && index != null && index.contains(issuer)) {
+      throw new SecurityPolicyException("AuthnRequest from [" + issuer + "] was not verified");
+    }
+  }
+
+  /**
+   * The parameters of a redirect binding query string as they were sent,
+   * still URL encoded, which is the form the signature covers.
+   */
+  private static final class RedirectQuery {
+    String samlRequest, relayState, sigAlg, signature;
+    byte [] inflated;
+    String issuer;
+    boolean verified;
+
+    /*
+     * Split a raw query string into its parameters. Names are URL decoded
+     * before they are matched, as the container decodes them, so a second
+     * copy of a parameter under an encoded name is seen and refused.
+     * @param queryString The query string from the request.
+     * @return The parameters.
+     * @throws MessageDecodingException If there is no SAMLRequest or a
+     * parameter is given twice.
+     */
+    static RedirectQuery parse(String queryString) throws MessageDecodingException {
+      RedirectQuery q = new RedirectQuery();
+      int length = (queryString == null) ? 0 : queryString.length();
+      int start = 0;
+      while (start < length) {
+        int end = queryString.indexOf('&', start);
+        if (end < 0) end = length;
+        int eq = queryString.indexOf('=', start);
+        if (eq < 0 || eq > end) eq = end;
+        if (end > start) {
+          String name = decode(queryString.substring(start, eq));
+          String value = (eq < end) ? queryString.substring(eq + 1, end) : "";
+          if (name.equals(HttpHandler.REQUEST_PARAM)) q.samlRequest = once(q.samlRequest, name, value);
+          else if (name.equals(HttpHandler.RELAY_STATE_PARAM)) q.relayState = once(q.relayState, name, value);
+          else if (name.equals(HttpHandler.SIG_ALG_PARAM)) q.sigAlg = once(q.sigAlg, name, value);
+          else if (name.equals(HttpHandler.SIGNATURE_PARAM)) q.signature = once(q.signature, name, value);
+        }
+        start = end + 1;
+      }
+      if (q.samlRequest == null) {
+        throw new MessageDecodingException("No SAMLRequest in the query string");
+      }
+      return q;
+    }
+
+    private static String once(String old, String name, String value) throws MessageDecodingException {
+      if (old != null) {
+        throw new MessageDecodingException("Query string has more than one " + name);
+      }
+      return value;
+    }
+
+    /*
+     * Build the string the signature covers: SAMLRequest, RelayState if
+     * present and SigAlg, in that order, with their values as received.
+     */
+    CharSequence getSignedContent() {
+      StringBuilder b = new StringBuilder(samlRequest.length() + 256);
+      b.append(HttpHandler.REQUEST_PARAM).append('=').append(samlRequest);
+      if (relayState != null) b.append('&').append(HttpHandler.RELAY_STATE_PARAM).append('=').append(relayState);
+      b.append('&').append(HttpHandler.SIG_ALG_PARAM).append('=').append(sigAlg);
+      return b;
+    }
+
+    static String decode(String value) throws MessageDecodingException {
+      try {
+        return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        // UTF-8 is always supported
+        throw new IllegalStateException(e.toString());
+      } catch (IllegalArgumentException e) {
+        throw new MessageDecodingException("Query string is not URL encoded: " + e.getMessage());
+      }
+    }
+
+    /*
+     * Find the text of the first Issuer element without parsing the XML.
+     * What is found here is compared with what the parser finds later, so a
+     * document that fools the scan is rejected rather than trusted.
+     * @param xml The inflated message.
+     * @return The Issuer, or null if there is none or it is not plain text.
+     */
+    static String scanIssuer(byte [] xml) {
+      int n = xml.length;
+      for (int i = 0; i < n - 1; i++) {
+        if (xml[i] != '<') continue;
+        byte c = xml[i + 1];
+        if (c == '/' || c == '?' || c == '!') continue;
+        int end = i + 1;
+        while (end < n && xml[end] != '>' && xml[end] != '/' && xml[end] > ' ') end++;
+        int local = end;
+        while (local > i + 1 && xml[local - 1] != ':') local--;
+        if (end - local != 6 || !new String(xml, local, 6, UTF8).equals("Issuer")) continue;
+        int gt = end;
+        while (gt < n && xml[gt] != '>') gt++;
+        if (gt >= n || xml[gt - 1] == '/') return null;
+        int lt = gt + 1;
+        while (lt < n && xml[lt] != '<') lt++;
+        if (lt >= n) return null;
+        String value = new String(xml, gt + 1, lt - gt - 1, UTF8);
+        if (value.indexOf('&') >= 0) {
+          // Character references are left to the parser
+          if (value.indexOf("&#") >= 0) return null;
+          value = value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+            .replace("&apos;", "'").replace("&amp;", "&");
+        }
+        value = value.trim();
+        return (value.length() == 0) ? null : value;
+      }
+      return null;
+    }
+  }
+
+  /*
+   * Look up where to send the Response for an AuthnRequest.
+   * @param authnRequest The AuthnRequest being answered.
+   * @return The AssertionConsumerServiceURL sent by the SP, the URL configured at
+   * its AssertionConsumerServiceIndex, or an empty string.
+   */
+  public String resolveDestination(AuthnRequest authnRequest) {
+    // Check for the URL to return the browser to.
+    if (authnRequest.getAssertionConsumerServiceURL() != null) {  // They sent a URL
+      return authnRequest.getAssertionConsumerServiceURL();
+    }
+    if (authnRequest.getAssertionConsumerServiceIndex() != null
+        && authnRequest.getAssertionConsumerServiceIndex() > 0) {  // Specified by index instead
+      String u = config.getAssertionConsumerService(authnRequest.getAssertionConsumerServiceIndex());
+      if (u != null) {
+        log.debug("Setting Destination to [" + u + "]");
+        return u; // use the configured url at this index
+      }
+      log.debug("No Destination found. Using empty string.");
+      return "";
+    }
+    log.debug("No Index or URL found. Using empty string.");
+    return "";
+  }
+
+  /*
+   * Build a successful Response with a new ID.
+   * @param authnRequest The AuthnRequest being answered.
+   * @param loginId The authenticated user.
+   * @return The Response, signed if so configured.
+   */
+  public Response buildSuccessResponse(AuthnRequest authnRequest, String loginId)
+    throws MarshallingException, SignatureException {
+    return buildSuccessResponse(authnRequest, loginId, newId());
+  }
+
+  /*
+   * Build a successful Response.
+   * @param authnRequest The AuthnRequest being answered.
+   * @param loginId The authenticated user.
+   * @param id The ID to give the Response and Assertion.
+   * @return The Response, signed if so configured.
+   */
+  public Response buildSuccessResponse(AuthnRequest authnRequest, String loginId, String id)
+    throws MarshallingException, SignatureException {
+    String destination = resolveDestination(authnRequest);
+    checkCharacters(loginId, id, destination, authnRequest);
+    SignatureImpl signature = null;
+
+    // Set up the signing credentials if we have been given them. If they
+    // cannot be used the Response fails rather than going out unsigned.
+    if (config.getPrivateKeyCache() != null || config.getSigningKeyring() != null) {
+      SigningCredential signing = getSigningCredential();
+      signature = registry.getSignatureBuilder().buildObject();
+      if (signing.hasKeyInfo()) {
+        // Now add a KeyInfo section to the signature so we can send our public certificate in it
+        signature.setKeyInfo(signing.newKeyInfo(registry));
+        if (log.isDebugEnabled()) log.debug("IdPEngine.java - KeyInfo added to signature.");
+      }
+      signature.setSigningCredential(signing.getCredential());
+      signature.setSignatureAlgorithm(getSignatureAlgorithm(signing));
+      signature.setCanonicalizationAlgorithm( SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS );
+    }
+
+    // saml-core-2.0 has example of a response object, section 5.4.6, page 70
+    Response rsp = registry.getResponseBuilder().buildObject();
+    rsp.setDestination(destination);
+
+    // Only a single ID value because they must match within the Response
+    if (config.getSimpleSAMLphp() == false) {
+      rsp.setID(id);
+    } else {
+      rsp.setID("#" + id); // prepend with # to make us work with simpleSAMLphp
+    }
+    rsp.setInResponseTo( authnRequest.getID() );
+    rsp.setVersion(SAMLVersion.VERSION_20);
+    DateTime dt = new DateTime();
+    rsp.setIssueInstant(dt);
+
+    // Build the Issuer object
+    Issuer issuer1 = registry.getIssuerBuilder().buildObject();
+    issuer1.setValue(config.getIssuerName());
+    rsp.setIssuer(issuer1);
+
+    // Set the successful status
+    Status status = registry.getStatusBuilder().buildObject();
+    StatusCode statusCode = registry.getStatusCodeBuilder().buildObject();
+    statusCode.setValue(StatusCode.SUCCESS_URI);
+    status.setStatusCode(statusCode);
+    rsp.setStatus(status);
+
+    // Add an Assertion of this authenticated user
+    Assertion assertion = registry.getAssertionBuilder().buildObject();
+    assertion.setIssueInstant(dt);
+    assertion.setVersion(SAMLVersion.VERSION_20);
+    assertion.setID(id);
+    Issuer issuer2 = registry.getIssuerBuilder().buildObject();
+    issuer2.setValue(config.getIssuerName());
+    assertion.setIssuer(issuer2);
+
+    // Now add a subject with the NameID
+    Subject subject = registry.getSubjectBuilder().buildObject();
+    NameID nid = registry.getNameIDBuilder().buildObject();
+    nid.setFormat( config.getNameIdFormat() );
+    nid.setValue(loginId);
+    subject.setNameID(nid);
+
+    SubjectConfirmation subjectConfirmation = registry.getSubjectConfirmationBuilder().buildObject();
+    subjectConfirmation.setMethod( SAMLResponse.SUBJECT_URI_BEARER );
+
+    // Now the Conditions that are allowed
+    Conditions conditions = registry.getConditionsBuilder().buildObject();
+    DateTime notBefore, notAfter;
+    notBefore = dt.minus( 1000 * 10 );  // 10 seconds in the past is all we allow.
+    conditions.setNotBefore(notBefore);
+    notAfter = dt.plus( 1000 * 60 * config.getMinutes() ); // minutes into the future defaults to 5
+    conditions.setNotOnOrAfter(notAfter);
+    assertion.setConditions(conditions);
+
+    SubjectConfirmationData subjectConfirmationData = registry.getSubjectConfirmationDataBuilder().buildObject();
+    subjectConfirmationData.setRecipient(authnRequest.getAssertionConsumerServiceURL());
+    subjectConfirmationData.setNotOnOrAfter(notAfter);
+    subjectConfirmationData.setInResponseTo(authnRequest.getID());
+    subjectConfirmation.setSubjectConfirmationData(subjectConfirmationData);
+    subject.getSubjectConfirmations().add(subjectConfirmation);
+    assertion.setSubject(subject);
+
+    AuthnContextClassRef authnContextClassRef = registry.getAuthnContextClassRefBuilder().buildObject();
+    authnContextClassRef.setAuthnContextClassRef("urn:oasis:names:tc:SAML:2.0:ac:classes:Password");
+    AuthnContext authnContext = registry.getAuthnContextBuilder().buildObject();
+    authnContext.setAuthnContextClassRef(authnContextClassRef);
+    AuthnStatement authnStatement = registry.getAuthnStatementBuilder().buildObject();
+    authnStatement.setAuthnContext(authnContext);
+    authnStatement.setAuthnInstant(dt);
+    assertion.getAuthnStatements().add(authnStatement);
+
+    rsp.getAssertions().add(assertion);
+
+    // Sign the assertion if asked to do so.
+    if ((config.getSignAssertion() == true) && (signature != null)) {
+      assertion.setSignature(signature);
+      // Digest with the hash of the signature method; RSA-SHA1 keeps SHA-1
+      ((SAMLObjectContentReference) signature.getContentReferences().get(0))
+        .setDigestAlgorithm(SignatureAlgorithms.getDigestAlgorithm(signature.getSignatureAlgorithm()));
+      // By marshalling the assertion, we will create the XML so that the signing will have something to sign
+      registry.getAssertionMarshaller().marshall(assertion);
+      Signer.signObject(signature);
+    }
+
+    return rsp;
+  }
+
+  /*
+   * Refuse a Response that would carry a character outside the Basic
+   * Multilingual Plane. Neither writer can sign one the SP accepts: the DOM
+   * serializer writes each half of the surrogate pair as a character
+   * reference, which is not well formed, and the SP's canonicalizer digests
+   * the pair differently from the streaming writer.
+   * @throws MarshallingException If a value has a surrogate pair.
+   */
+  private void checkCharacters(String loginId, String id, String destination, AuthnRequest authnRequest)
+    throws MarshallingException {
+    checkCharacters("login id", loginId);
+    checkCharacters("ID", id);
+    checkCharacters("destination", destination);
+    checkCharacters("issuer name", config.getIssuerName());
+    checkCharacters("NameID format", config.getNameIdFormat());
+    checkCharacters("AuthnRequest ID", authnRequest.getID());
+    checkCharacters("AssertionConsumerServiceURL", authnRequest.getAssertionConsumerServiceURL());
+  }
+
+  private static void checkCharacters(String name, String value) throws MarshallingException {
+    if (value == null) return;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c >= '\uD800' && c <= '\uDFFF') {
+        throw new MarshallingException("The " + name + " has a character outside the Basic Multilingual Plane");
+      }
+    }
+  }
+
+  /*
+   * Get the credential to sign with.
+   * @return The credential of the active keyring key, or of the key caches
+   * when there is no keyring, or null if there is no private key.
+   * @throws SignatureException If no key in the keyring is active, the key
+   * cache holds no private key or the certificate cannot be encoded.
+   */
+  private SigningCredential getSigningCredential() throws SignatureException {
+    // The credential and encoded certificate are built once per key pair
+    try {
+      SigningKeyring signingKeyring = config.getSigningKeyring();
+      if (signingKeyring != null) {
+        SigningKeyring.KeyEntry key = signingKeyring.getActiveKey();
+        if (key == null) throw new SignatureException("No signing key is active in the keyring");
+        return key.getSigningCredential();
+      }
+      if (config.getPrivateKeyCache() == null) return null;
+      if (config.getPrivateKeyCache().getPrivateKey() == null) {
+        throw new SignatureException("No private key has been read into the PrivateKeyCache");
+      }
+      return SigningCredential.getInstance(config.getPrivateKeyCache(), config.getPublicKeyCache());
+    } catch (CertificateEncodingException e) {
+      throw new SignatureException("Unable to encode the signing certificate", e);
+    }
+  }
+
+  /*
+   * Get the signature method to sign with.
+   * @param signing The signing credential.
+   * @return The configured method, or the default for the type of key.
+   * @throws SignatureException If the configured method does not suit the key.
+   */
+  private String getSignatureAlgorithm(SigningCredential signing) throws SignatureException {
+    String algorithm = config.getSignatureAlgorithm();
+    if (algorithm == null) {
+      return SignatureAlgorithms.getDefault(signing.getCredential().getPrivateKey());
+    }
+    try {
+      SignatureAlgorithms.checkKey(algorithm, signing.getCredential().getPrivateKey());
+    } catch (IllegalArgumentException e) {
+      // A keyring key of another type than the configured method
+      throw new SignatureException(e.getMessage(), e);
+    }
+    return algorithm;
+  }
+
+  /*
+   * Create a successful SAML Response for an authenticated user with a new ID.
+   * @param authnRequest The AuthnRequest being answered.
+   * @param loginId The authenticated user.
+   * @return The Response as XML and as the value for the SAMLResponse form field.
+   */
+  public IdPResult createSuccessResponse(AuthnRequest authnRequest, String loginId)
+    throws MarshallingException, SignatureException {
+    return createSuccessResponse(authnRequest, loginId, newId());
+  }
+
+  /*
+   * Create a successful SAML Response for an authenticated user. With the
+   * streaming writer configured the Response is written and signed as
+   * canonical bytes; otherwise it is built and marshalled as OpenSAML
+   * objects. Both give the same elements, attributes and values, though not
+   * byte for byte, and both refuse values they could not sign correctly.
+   * @param authnRequest The AuthnRequest being answered.
+   * @param loginId The authenticated user.
+   * @param id The ID to give the Response and Assertion.
+   * @return The Response as XML and as the value for the SAMLResponse form field.
+   */
+  public IdPResult createSuccessResponse(AuthnRequest authnRequest, String loginId, String id)
+    throws MarshallingException, SignatureException {
+    if (config.getStreamingWriter() == false) {
+      return encodeResponse(buildSuccessResponse(authnRequest, loginId, id));
+    }
+    StreamingResponseWriter writer = StreamingResponseWriter.getInstance();
+    String destination = resolveDestination(authnRequest);
+    String responseId = streamSuccessResponse(writer, authnRequest, loginId, id, destination);
+    return ResponseEncoder.getInstance().newResult(responseId, destination, writer.getBuffer(), writer.size());
+  }
+
+  /*
+   * Create a successful SAML Response for an authenticated user and write
+   * it out as the value for the SAMLResponse form field, without keeping
+   * the XML or the value as Strings.
+   * @param authnRequest The AuthnRequest being answered.
+   * @param loginId The authenticated user.
+   * @param id The ID to give the Response and Assertion.
+   * @param out Where to write the BASE64 encoded Response.
+   */
+  public void writeSuccessResponse(AuthnRequest authnRequest, String loginId, String id, Writer out)
+    throws MarshallingException, SignatureException, IOException {
+    if (config.getStreamingWriter() == false) {
+      writeSAMLResponse(buildSuccessResponse(authnRequest, loginId, id), out);
+      return;
+    }
+    StreamingResponseWriter writer = StreamingResponseWriter.getInstance();
+    streamSuccessResponse(writer, authnRequest, loginId, id, resolveDestination(authnRequest));
+    ResponseEncoder.getInstance().writeBase64(writer.getBuffer(), writer.size(), out);
+  }
+
+  /*
+   * Write a successful Response with the streaming writer.
+   * @return The Response ID.
+   */
+  private String streamSuccessResponse(StreamingResponseWriter writer, AuthnRequest authnRequest, String loginId,
+    String id, String destination) throws MarshallingException, SignatureException {
+    checkCharacters(loginId, id, destination, authnRequest);
+    SigningCredential signing = null;
+    String algorithm = null;
+    // As with the DOM, a key that cannot be used fails the Response
+    if (config.getSignAssertion() == true) {
+      signing = getSigningCredential();
+      if (signing != null) algorithm = getSignatureAlgorithm(signing);
+    }
+    return writer.write(config, authnRequest, loginId, id, destination, signing, algorithm);
+  }
+
+  /*
+   * Marshall and encode a Response for the POST binding.
+   * @param rsp The Response.
+   * @return The Response as XML and as the value for the SAMLResponse form field.
+   */
+  public IdPResult encodeResponse(Response rsp) throws MarshallingException {
+    ResponseEncoder encoder = ResponseEncoder.getInstance();
+    encoder.serialize(marshall(rsp));
+    return encoder.newResult(rsp.getID(), rsp.getDestination(), encoder.getBuffer(), encoder.size());
+  }
+
+  /*
+   * Write a Response as XML, serialized as UTF-8 straight to the stream.
+   * @param rsp The Response.
+   * @param out Where to write the XML.
+   */
+  public void writeResponse(Response rsp, OutputStream out) throws MarshallingException {
+    ResponseEncoder.getInstance().write(marshall(rsp), out);
+  }
+
+  /*
+   * Write a Response as the value for the SAMLResponse form field.
+   * @param rsp The Response.
+   * @param out Where to write the BASE64 encoded Response.
+   */
+  public void writeSAMLResponse(Response rsp, Writer out) throws MarshallingException, IOException {
+    ResponseEncoder encoder = ResponseEncoder.getInstance();
+    encoder.serialize(marshall(rsp));
+    encoder.writeBase64(encoder.getBuffer(), encoder.size(), out);
+  }
+
+  /*
+   * Get the DOM of a Response, marshalling it only if that has not been
+   * done already. The signed Assertion keeps the DOM it was signed in and
+   * is adopted into the Response's document rather than marshalled again.
+   * @param rsp The Response.
+   * @return The Response element.
+   */
+  private Element marshall(Response rsp) throws MarshallingException {
+    Element dom = rsp.getDOM();
+    return (dom != null) ? dom : registry.getResponseMarshaller().marshall(rsp);
+  }
+}
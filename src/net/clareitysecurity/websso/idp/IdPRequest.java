@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * IdPRequest.java
+ *
+ * A SAML Request received from a Service Provider.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.nio.charset.Charset;
+
+import org.opensaml.saml2.core.AuthnRequest;
+
+/**
+ * The immutable result of {@link IdPEngine#decodeRequest}.
+ *
+ * @author Paul Hethmon
+ */
+public final class IdPRequest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final AuthnRequest
+      authnRequest;
+  private final byte []
+      requestBytes;
+  private final String
+      relayState;
+  /** Decoded from requestBytes on first use. */
+  private String
+      requestXML;
+
+  IdPRequest(AuthnRequest authnRequest, byte [] requestBytes, String relayState) {
+    this.authnRequest = authnRequest;
+    this.requestBytes = requestBytes;
+    this.relayState = relayState;
+  }
+
+  /*
+   * Get the decoded AuthnRequest.
+   * @return The AuthnRequest.
+   */
+  public AuthnRequest getAuthnRequest() {
+    return authnRequest;
+  }
+  /*
+   * Get the SAML Request as XML.
+   * @return The SAML Request as XML.
+   */
+  public String getRequestXML() {
+    String xml = requestXML;
+    if (xml == null) {
+      xml = new String(requestBytes, UTF8);
+      requestXML = xml;
+    }
+    return xml;
+  }
+  /*
+   * Get the SAML Request as it was decoded from the SAMLRequest parameter,
+   * before parsing.
+   * @return A copy of the SAML Request bytes.
+   */
+  public byte [] getRequestBytes() {
+    return (byte []) requestBytes.clone();
+  }
+  /*
+   * Get the relay state exactly as the SP sent it. It is only returned to
+   * the SP, so it is not decoded.
+   * @return The relay state, or null if there was none.
+   */
+  public String getRelayState() {
+    return relayState;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * IdPResult.java
+ *
+ * A SAML Response created by IdPEngine, ready to post to the SP.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+/**
+ * The immutable result of {@link IdPEngine#createSuccessResponse}.
+ *
+ * @author Paul Hethmon
+ */
+public final class IdPResult {
+
+  private final String
+      id,
+      responseXML,
+      samlResponse,
+      actionURL;
+
+  IdPResult(String id, String responseXML, String samlResponse, String actionURL) {
+    this.id = id;
+    this.responseXML = responseXML;
+    this.samlResponse = samlResponse;
+    this.actionURL = actionURL;
+  }
+
+  /*
+   * Get the ID of the Response.
+   * @return The Response ID.
+   */
+  public String getId() {
+    return id;
+  }
+  /*
+   * Get the Response as XML.
+   * @return The Response as XML.
+   */
+  public String getResponseXML() {
+    return responseXML;
+  }
+  /*
+   * Get the BASE64 value for the <b>SAMLResponse</b> form field.
+   * @return The encoded SAMLResponse value.
+   */
+  public String getSAMLResponse() {
+    return samlResponse;
+  }
+  /*
+   * Get the SP URL the form is posted to.
+   * @return The destination URL.
+   */
+  public String getActionURL() {
+    return actionURL;
+  }
+}
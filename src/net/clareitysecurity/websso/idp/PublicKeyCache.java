@@ -47,7 +47,7 @@ import java.security.interfaces.*;
 public class PublicKeyCache {
   
   private String publicKeyEncoded;
-  private RSAPublicKey publicKey;
+  private PublicKey publicKey;
   private X509Certificate x509Cert;
   
   public X509Certificate getX509Certificate() {
@@ -130,7 +130,7 @@ public class PublicKeyCache {
     cf = CertificateFactory.getInstance("X.509");
     x509Cert = (X509Certificate) cf.generateCertificate(publicKeyFile);
     publicKeyFile.close();
-    publicKey = (RSAPublicKey) x509Cert.getPublicKey();
+    publicKey = x509Cert.getPublicKey();
     
 //    readPublicKey(in);
   }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * ResponseEncoder.java
+ *
+ * Serializes a marshalled Response to UTF-8 and BASE64 encodes it, reusing
+ * one thread's buffers.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Element;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSException;
+import org.w3c.dom.ls.LSOutput;
+import org.w3c.dom.ls.LSSerializer;
+
+/**
+ * Turns a marshalled Response into the bytes and the SAMLResponse form
+ * value sent to the SP. The DOM is serialized once, straight to UTF-8, by
+ * an LSSerializer set up the way XMLHelper.writeNode sets one up, and the
+ * BASE64 value is encoded from those bytes into a reused character buffer.
+ * A caller that only sends the result can have it written to an
+ * OutputStream or Writer instead of getting Strings back.
+ * <p>
+ * Each thread keeps one encoder with its serializer and buffers. The
+ * buffers are kept between Responses unless one has grown unusually large.
+ *
+ * @author Paul Hethmon
+ */
+final class ResponseEncoder {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Largest buffer kept for the next Response. */
+  private static final int MAX_RETAINED = 256 * 1024;
+  /** Bytes encoded at a time when writing BASE64 to a Writer. */
+  private static final int CHUNK = 3 * 1024;
+
+  private static final char [] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private static final ThreadLocal<ResponseEncoder> encoders = new ThreadLocal<ResponseEncoder>() {
+    protected ResponseEncoder initialValue() {
+      return new ResponseEncoder();
+    }
+  };
+
+  private Buffer bytes = new Buffer();
+  private char [] chars = new char[8192];
+  private DOMImplementationLS domImpl;
+  private LSSerializer serializer;
+  private LSOutput output;
+
+  private ResponseEncoder() {
+  }
+
+  /*
+   * Get the calling thread's encoder.
+   * @return The encoder.
+   */
+  static ResponseEncoder getInstance() {
+    return encoders.get();
+  }
+
+  /*
+   * Serialize a DOM into this encoder's buffer as UTF-8.
+   * @param element The marshalled Response.
+   */
+  void serialize(Element element) throws MarshallingException {
+    if (bytes.capacity() > MAX_RETAINED) bytes = new Buffer();
+    bytes.reset();
+    write(element, bytes);
+  }
+
+  /*
+   * Serialize a DOM as UTF-8 straight to a stream.
+   * @param element The marshalled Response.
+   * @param out Where to write the XML.
+   */
+  void write(Element element, OutputStream out) throws MarshallingException {
+    LSOutput o = getOutput(element);
+    o.setByteStream(out);
+    try {
+      serializer.write(element, o);
+    } catch (LSException e) {
+      throw new MarshallingException("Unable to serialize the Response", e);
+    } finally {
+      o.setByteStream(null);
+    }
+  }
+
+  /*
+   * Get the buffer holding the last serialized Response. Only the first
+   * size() bytes are used.
+   * @return The buffer.
+   */
+  byte [] getBuffer() {
+    return bytes.getBuffer();
+  }
+
+  /*
+   * Get the size of the last serialized Response.
+   * @return The number of bytes.
+   */
+  int size() {
+    return bytes.size();
+  }
+
+  /*
+   * Build the result for a serialized Response.
+   * @param id The Response ID.
+   * @param actionURL The SP URL the form is posted to.
+   * @param b The Response as UTF-8.
+   * @param length The number of bytes used in b.
+   * @return The result holding the XML and the SAMLResponse value.
+   */
+  IdPResult newResult(String id, String actionURL, byte [] b, int length) {
+    return new IdPResult(id, new String(b, 0, length, UTF8), toBase64(b, length), actionURL);
+  }
+
+  /*
+   * BASE64 encode bytes on one line, as Base64.encodeBytes does with
+   * DONT_BREAK_LINES.
+   * @param b The bytes.
+   * @param length The number of bytes used in b.
+   * @return The encoded value.
+   */
+  String toBase64(byte [] b, int length) {
+    int n = ((length + 2) / 3) * 4;
+    if (chars.length < n) chars = new char[Math.max(n, chars.length * 2)];
+    encode(b, 0, length, chars);
+    String s = new String(chars, 0, n);
+    if (chars.length > MAX_RETAINED) chars = new char[8192];
+    return s;
+  }
+
+  /*
+   * BASE64 encode bytes on one line straight to a Writer.
+   * @param b The bytes.
+   * @param length The number of bytes used in b.
+   * @param out Where to write the encoded value.
+   */
+  void writeBase64(byte [] b, int length, Writer out) throws IOException {
+    for (int off = 0; off < length; off += CHUNK) {
+      int len = Math.min(CHUNK, length - off);
+      out.write(chars, 0, encode(b, off, len, chars));
+    }
+  }
+
+  /*
+   * Encode bytes into a character buffer, padding the last group.
+   * @return The number of characters written.
+   */
+  private static int encode(byte [] b, int off, int len, char [] out) {
+    int end = off + len - len % 3;
+    int j = 0;
+    for (int i = off; i < end; i += 3) {
+      int v = ((b[i] & 0xff) << 16) | ((b[i + 1] & 0xff) << 8) | (b[i + 2] & 0xff);
+      out[j++] = ALPHABET[v >>> 18];
+      out[j++] = ALPHABET[(v >>> 12) & 0x3f];
+      out[j++] = ALPHABET[(v >>> 6) & 0x3f];
+      out[j++] = ALPHABET[v & 0x3f];
+    }
+    int left = off + len - end;
+    if (left > 0) {
+      int v = (b[end] & 0xff) << 16;
+      if (left == 2) v |= (b[end + 1] & 0xff) << 8;
+      out[j++] = ALPHABET[v >>> 18];
+      out[j++] = ALPHABET[(v >>> 12) & 0x3f];
+      out[j++] = (left == 2) ? ALPHABET[(v >>> 6) & 0x3f] : '=';
+      out[j++] = '=';
+    }
+    return j;
+  }
+
+  /*
+   * Get the LSOutput for a DOM, creating the serializer the first time and
+   * again if the DOM comes from another implementation.
+   */
+  private LSOutput getOutput(Element element) {
+    DOMImplementation impl = element.getOwnerDocument().getImplementation();
+    DOMImplementationLS ls = (DOMImplementationLS) impl.getFeature("LS", "3.0");
+    if (ls != domImpl) {
+      serializer = XMLHelper.getLSSerializer(ls, null);
+      output = ls.createLSOutput();
+      output.setEncoding("UTF-8");
+      domImpl = ls;
+    }
+    return output;
+  }
+
+  /**
+   * A ByteArrayOutputStream whose buffer can be read without copying it.
+   */
+  private static final class Buffer extends ByteArrayOutputStream {
+    Buffer() {
+      super(8192);
+    }
+
+    byte [] getBuffer() {
+      return buf;
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+  }
+}
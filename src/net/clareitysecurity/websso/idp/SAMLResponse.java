@@ -22,50 +22,15 @@
 
 package net.clareitysecurity.websso.idp;
 
-import java.io.StringWriter;
 import java.util.Hashtable;
 
+import net.clareitysecurity.websso.common.SAMLObjectRegistry;
+import net.clareitysecurity.websso.common.SecureIdGenerator;
+
 import org.apache.log4j.Logger;
-import org.joda.time.DateTime;
-import org.opensaml.common.SAMLVersion;
-import org.opensaml.saml2.core.Assertion;
-import org.opensaml.saml2.core.AuthnContext;
-import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.common.IdentifierGenerator;
 import org.opensaml.saml2.core.AuthnRequest;
-import org.opensaml.saml2.core.AuthnStatement;
-import org.opensaml.saml2.core.Conditions;
-import org.opensaml.saml2.core.Issuer;
-import org.opensaml.saml2.core.NameID;
 import org.opensaml.saml2.core.NameIDType;
-import org.opensaml.saml2.core.Status;
-import org.opensaml.saml2.core.StatusCode;
-import org.opensaml.saml2.core.Subject;
-import org.opensaml.saml2.core.SubjectConfirmation;
-import org.opensaml.saml2.core.SubjectConfirmationData;
-import org.opensaml.saml2.core.impl.AssertionBuilder;
-import org.opensaml.saml2.core.impl.AuthnContextBuilder;
-import org.opensaml.saml2.core.impl.AuthnContextClassRefBuilder;
-import org.opensaml.saml2.core.impl.AuthnStatementBuilder;
-import org.opensaml.saml2.core.impl.ConditionsBuilder;
-import org.opensaml.saml2.core.impl.IssuerBuilder;
-import org.opensaml.saml2.core.impl.NameIDBuilder;
-import org.opensaml.saml2.core.impl.ResponseBuilder;
-import org.opensaml.saml2.core.impl.StatusBuilder;
-import org.opensaml.saml2.core.impl.StatusCodeBuilder;
-import org.opensaml.saml2.core.impl.SubjectBuilder;
-import org.opensaml.saml2.core.impl.SubjectConfirmationBuilder;
-import org.opensaml.saml2.core.impl.SubjectConfirmationDataBuilder;
-import org.opensaml.xml.XMLObjectBuilderFactory;
-import org.opensaml.xml.io.Marshaller;
-import org.opensaml.xml.io.MarshallerFactory;
-import org.opensaml.xml.io.MarshallingException;
-import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
-import org.opensaml.xml.signature.SignatureConstants;
-import org.opensaml.xml.signature.impl.KeyInfoBuilder;
-import org.opensaml.xml.signature.impl.KeyInfoImpl;
-import org.opensaml.xml.util.Base64;
-import org.opensaml.xml.util.XMLHelper;
-import org.w3c.dom.Element;
 
 /**
  *
@@ -76,8 +41,6 @@ public class SAMLResponse {
   /** Class logger. */
   private final Logger log = Logger.getLogger(SAMLResponse.class);
   
-  private static boolean bootstrap = false;
-  private static int bootcount = 0;
   private static int assertionConsumerServiceCount = 100;
   
   public static final String
@@ -98,19 +61,25 @@ public class SAMLResponse {
     loginId,
     actionURL,
     responseXML,
-    nameIdFormat;
+    nameIdFormat,
+    signatureAlgorithm;
   private PrivateKeyCache
     privateKeyCache;
   private PublicKeyCache
     publicKeyCache;
+  private SigningKeyring
+    signingKeyring;
   private boolean
     signAssertion,
-    simpleSAMLphp;
+    simpleSAMLphp,
+    streamingWriter;
   private int
     minutes;
   private Hashtable
     assertionConsumerService;
-  private String id = "acmeidp" + new DateTime().getMillis();
+  private String id;
+  private IdentifierGenerator idGenerator = SecureIdGenerator.getInstance();
+  private final SAMLObjectRegistry registry;
   
   /**
    * Add a URL and its index to the list of URLs to redirect the browser to.
@@ -149,6 +118,21 @@ public class SAMLResponse {
     return minutes;
   }
   
+  /*
+   * Set the generator the Response ID is taken from. Default value is the
+   * shared SecureIdGenerator.
+   * @param newIdGenerator The ID generator.
+   */
+  public void setIdGenerator(IdentifierGenerator newIdGenerator) {
+    if (newIdGenerator == null) {
+      throw new IllegalArgumentException("ID generator may not be null");
+    }
+    idGenerator = newIdGenerator;
+  }
+  public IdentifierGenerator getIdGenerator() {
+    return idGenerator;
+  }
+  
   /**
    * Sets the unique identifier of the response. 
    * @param newId the unique identifier of the response
@@ -164,6 +148,9 @@ public class SAMLResponse {
    */
   public String getId()
   {
+     if (this.id == null) {
+       this.id = idGenerator.generateIdentifier();
+     }
      return this.id; 
   }
   
@@ -238,12 +225,46 @@ public class SAMLResponse {
   public PublicKeyCache getPublicKeyCache() {
     return publicKeyCache;
   }
+  /*
+   * Set the keyring holding the signing keys. When set it is used instead
+   * of the private and public key caches.
+   * @param newSigningKeyring The keyring, or null to use the key caches.
+   */
+  public void setSigningKeyring(SigningKeyring newSigningKeyring) {
+    signingKeyring = newSigningKeyring;
+  }
+  public SigningKeyring getSigningKeyring() {
+    return signingKeyring;
+  }
+  /*
+   * Set the signature method, one of the SignatureAlgorithms URIs.
+   * @param newSignatureAlgorithm The method URI, or null to choose one from
+   * the type of the signing key.
+   */
+  public void setSignatureAlgorithm(String newSignatureAlgorithm) {
+    signatureAlgorithm = newSignatureAlgorithm;
+  }
+  public String getSignatureAlgorithm() {
+    return signatureAlgorithm;
+  }
   public void setSignAssertion(boolean newSignAssertion) {
     signAssertion = newSignAssertion;
   }
   public boolean getSignAssertion() {
     return signAssertion;
   }
+  /*
+   * Set whether the Response is written directly as canonical bytes, with
+   * the Assertion digested and signed as it is written, instead of through
+   * OpenSAML objects and a DOM.
+   * @param newStreamingWriter true to use the streaming writer.
+   */
+  public void setStreamingWriter(boolean newStreamingWriter) {
+    streamingWriter = newStreamingWriter;
+  }
+  public boolean getStreamingWriter() {
+    return streamingWriter;
+  }
   public void setNameIdFormat(String newNameIdType) {
     nameIdFormat = newNameIdType;
   }
@@ -255,14 +276,7 @@ public class SAMLResponse {
    */
   public SAMLResponse() throws org.opensaml.xml.ConfigurationException {
     // do the bootstrap thing and make sure the library is happy
-    if (bootstrap == false) {
-      org.opensaml.DefaultBootstrap.bootstrap();
-      bootstrap = true;
-      if (log.isInfoEnabled()) {
-        bootcount++;
-        log.info("SAMLResponse.java - bootstrap has been called. [" + bootcount + "]");
-      }
-    }
+    registry = SAMLObjectRegistry.getInstance();
     privateKeyCache = null;
     publicKeyCache = null;
     signAssertion = true;
@@ -272,209 +286,45 @@ public class SAMLResponse {
     assertionConsumerService = null;
   }
   
-  public org.opensaml.saml2.core.Response getSuccessResponse() throws org.opensaml.xml.io.MarshallingException,
-  	org.opensaml.xml.signature.SignatureException {
-    org.opensaml.xml.signature.impl.SignatureImpl signature = null;
-    org.opensaml.xml.security.x509.BasicX509Credential credential = null;
-    org.opensaml.xml.signature.impl.KeyInfoImpl keyInfo = null;
-    
-    //System.out.println("Building Response object ...");
-    // Use the OpenSAML Configuration singleton to get a builder factory object
-    XMLObjectBuilderFactory builderFactory = org.opensaml.Configuration.getBuilderFactory();
-    
-    // Set up the signing credentials if we have been given them.
-    if (privateKeyCache != null) {
-      //System.out.println("Configuring signature ...");
-      try {
-      org.opensaml.xml.signature.impl.SignatureBuilder signatureBuilder = new org.opensaml.xml.signature.impl.SignatureBuilder();
-      
-      signature = signatureBuilder.buildObject();
-      credential = new org.opensaml.xml.security.x509.BasicX509Credential();
-      // Set the private key used to sign the messages
-      credential.setPrivateKey(privateKeyCache.getPrivateKey());
-      // add the public key if we have it
-      if (publicKeyCache != null) {
-        credential.setPublicKey(publicKeyCache.getPublicKey());
-        // Now add a KeyInfo section to the signature so we can send our public certificate in it
-        KeyInfoBuilder keyInfoBuilder = new KeyInfoBuilder();
-        keyInfo = (KeyInfoImpl) keyInfoBuilder.buildObject();
-        //KeyInfoHelper.addPublicKey(keyInfo, publicKeyCache.getPublicKey());
-        KeyInfoHelper.addCertificate(keyInfo, publicKeyCache.getX509Certificate());
-        signature.setKeyInfo(keyInfo);
-        if (log.isDebugEnabled()) log.debug("SAMLResponse.java - KeyInfo added to signature.");
-      }
-      signature.setSigningCredential(credential);
-      signature.setSignatureAlgorithm( SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1 );
-      signature.setCanonicalizationAlgorithm( SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS );
-      } catch (Exception e) {
-        //System.out.println("Caught exception configuring signature");
-        e.printStackTrace();
-      }
-      //System.out.println("Finished Configuring signature ...");
-    }
-
-    // we must now build the SAMLResponse object to redirect the user back to the SP with
-    // saml-core-2.0 has example of a response object, section 5.4.6, page 70
-    ResponseBuilder rspBldr = (ResponseBuilder) builderFactory.getBuilder(org.opensaml.saml2.core.Response.DEFAULT_ELEMENT_NAME);
-    org.opensaml.saml2.core.Response rsp = rspBldr.buildObject();
-    
-    // Check for the URL to return the browser to.
-    if (authnRequest.getAssertionConsumerServiceURL() != null) {  // They sent a URL
-      rsp.setDestination( authnRequest.getAssertionConsumerServiceURL() );
-    } else if (authnRequest.getAssertionConsumerServiceIndex() > 0) {  // Specified by index instead
-      String u = getAssertionConsumerService(authnRequest.getAssertionConsumerServiceIndex());
-      if (u != null) {
-        log.debug("Setting Destination to [" + u + "]");
-        rsp.setDestination(u); // use the configured url at this index
-      } else {
-        log.debug("No Destination found. Using empty string.");
-        rsp.setDestination(""); // nothing to use
-      }
-    } else {
-        log.debug("No Index or URL found. Using empty string.");
-        rsp.setDestination(""); // nothing to use
-    }
-
-    // Only a single ID value because they must match within the Response
-
-    if (simpleSAMLphp == false) {
-      rsp.setID(id);
-    } else {
-      rsp.setID("#" + id); // prepend with # to make us work with simpleSAMLphp
-      if (log.isDebugEnabled()) log.debug("SAMLResponse.java simpleSAMLphp prepend set");
-    }
-    rsp.setInResponseTo( authnRequest.getID() );
-    rsp.setVersion(SAMLVersion.VERSION_20);
-    DateTime dt = new DateTime();
-    rsp.setIssueInstant(dt);
-    
-    IssuerBuilder issuerBuilder = (IssuerBuilder) builderFactory.getBuilder(Issuer.DEFAULT_ELEMENT_NAME);
-    // Build the Issuer object
-    Issuer issuer1 = issuerBuilder.buildObject();
-    issuer1.setValue(issuerName);
-    rsp.setIssuer(issuer1);
-    
-    // Set the successful status
-    StatusBuilder statusBuilder = (StatusBuilder) builderFactory.getBuilder(Status.DEFAULT_ELEMENT_NAME);
-    Status status = (Status) statusBuilder.buildObject();
-    // Now construct the StatusCode itself
-    StatusCodeBuilder statusCodeBuilder = (StatusCodeBuilder) builderFactory.getBuilder(StatusCode.DEFAULT_ELEMENT_NAME);
-    StatusCode statusCode = statusCodeBuilder.buildObject(); //(StatusCode.SUCCESS_URI, StatusCode.DEFAULT_ELEMENT_LOCAL_NAME, null);
-    // Set the value
-    statusCode.setValue(StatusCode.SUCCESS_URI);
-    status.setStatusCode(statusCode);
-    // Add it to the SAMLResponse object
-    rsp.setStatus(status);
-    
-    // Add an Assertion of this authenticated user
-    AssertionBuilder assertionBuilder = (AssertionBuilder) builderFactory.getBuilder(Assertion.DEFAULT_ELEMENT_NAME);
-    Assertion assertion = assertionBuilder.buildObject();
-    // Add the issue instance to the Assertion
-    assertion.setIssueInstant(dt);
-    assertion.setVersion(SAMLVersion.VERSION_20);
-    assertion.setID(id);
-    // Add the Issuer to the Assertion
-    // Build the Issuer object
-    Issuer issuer2 = issuerBuilder.buildObject();
-    issuer2.setValue(issuerName);
-    assertion.setIssuer(issuer2);
-    
-    // Now add a subject to the response
-    SubjectBuilder subjectBuilder = (SubjectBuilder) builderFactory.getBuilder(Subject.DEFAULT_ELEMENT_NAME);
-    Subject subject = subjectBuilder.buildObject();
-    // Create the NameID
-    NameIDBuilder nidb = (NameIDBuilder) builderFactory.getBuilder(NameID.DEFAULT_ELEMENT_NAME);
-    NameID nid = nidb.buildObject();
-    nid.setFormat( getNameIdFormat() );
-    nid.setValue(loginId);
-    // Add the NameID to the subject
-    subject.setNameID(nid);
-    
-    // Create the SubjectConfirmation
-    SubjectConfirmationBuilder subjectConfirmationBuilder =
-      (SubjectConfirmationBuilder) builderFactory.getBuilder(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
-    SubjectConfirmation subjectConfirmation = subjectConfirmationBuilder.buildObject();
-    subjectConfirmation.setMethod( this.SUBJECT_URI_BEARER );
-    
-    // Now the Conditions that are allowed
-    ConditionsBuilder conditionsBuilder = (ConditionsBuilder) builderFactory.getBuilder(Conditions.DEFAULT_ELEMENT_NAME);
-    Conditions conditions = conditionsBuilder.buildObject();
-    // Build the starting time window value, we allow now less 1 minute
-    DateTime notBefore, notAfter;
-    notBefore = dt.minus( 1000 * 10 );  // 10 seconds in the past is all we allow.
-    conditions.setNotBefore(notBefore);
-    // Allow up to 5 minutes in the future
-    notAfter = dt.plus( 1000 * 60 * this.getMinutes() ); // minutes into the future defaults to 5
-    conditions.setNotOnOrAfter(notAfter);
-    assertion.setConditions(conditions);
-    
-    // Create the SubjectConfirmationData element
-    SubjectConfirmationDataBuilder subjectConfirmationDataBuilder =
-      (SubjectConfirmationDataBuilder) builderFactory.getBuilder(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
-    SubjectConfirmationData subjectConfirmationData = subjectConfirmationDataBuilder.buildObject();
-    subjectConfirmationData.setRecipient(authnRequest.getAssertionConsumerServiceURL());
-    subjectConfirmationData.setNotOnOrAfter(notAfter);
-    subjectConfirmationData.setInResponseTo(authnRequest.getID());
-    // Add this to the SubjectConfirmation
-    subjectConfirmation.setSubjectConfirmationData(subjectConfirmationData);
-    // Add the SubjectConfirmation to the Subject
-    subject.getSubjectConfirmations().add(subjectConfirmation);
-    
-    // Add the Subject to the Assertion
-    assertion.setSubject(subject);
-    
-    // Build the AuthnContextClassRef
-    AuthnContextClassRefBuilder authnContextClassRefBuilder =
-      (AuthnContextClassRefBuilder) builderFactory.getBuilder(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
-    AuthnContextClassRef authnContextClassRef = authnContextClassRefBuilder.buildObject();
-    authnContextClassRef.setAuthnContextClassRef("urn:oasis:names:tc:SAML:2.0:ac:classes:Password");
-    
-    // Build the AuthnContext
-    AuthnContextBuilder authnContextBuilder = (AuthnContextBuilder) builderFactory.getBuilder(AuthnContext.DEFAULT_ELEMENT_NAME);
-    AuthnContext authnContext = authnContextBuilder.buildObject();
-    authnContext.setAuthnContextClassRef(authnContextClassRef);
-    
-    // Build the AuthnStatement itself
-    AuthnStatementBuilder authnStatementBuilder = (AuthnStatementBuilder) builderFactory.getBuilder(AuthnStatement.DEFAULT_ELEMENT_NAME);
-    AuthnStatement authnStatement = authnStatementBuilder.buildObject();
-    authnStatement.setAuthnContext(authnContext);
-    authnStatement.setAuthnInstant(dt);
-    // Add the AuthnStatement to the Assertion
-    assertion.getAuthnStatements().add(authnStatement);
-    
-    // Finally add the Assertion to our SAMLResponse
-    rsp.getAssertions().add(assertion);
-    
-    // Sign the assertion if asked to do so.
-    org.opensaml.common.impl.SAMLObjectContentReference socr;
-    if ((signAssertion == true) && (signature != null)) {
-/*      
-      //System.out.println("Signing assertion ...");
-      socr = new org.opensaml.common.impl.SAMLObjectContentReference(assertion);
-      socr.getTransforms().clear();
-      boolean b = socr.getTransforms().add(SignatureConstants.TRANSFORM_ENVELOPED_SIGNATURE);
-      //System.out.println("add transform: [" + SignatureConstants.TRANSFORM_ENVELOPED_SIGNATURE + "] " + b);
-      b = socr.getTransforms().add(SignatureConstants.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
-      //System.out.println("add transform: [" + SignatureConstants.TRANSFORM_C14N_EXCL_OMIT_COMMENTS + "] " + b);
-      //signature.getContentReferences().add(socr);
-      //signature.
-*/
-      assertion.setSignature(signature);
-      // Get the marshaller factory
-      MarshallerFactory marshallerFactory = org.opensaml.Configuration.getMarshallerFactory();
-      Marshaller marshaller = marshallerFactory.getMarshaller(assertion);
-      try {
-        // By marshalling the assertion, we will create the XML so that the signing will have something to sign
-        marshaller.marshall(assertion);
-      } catch (MarshallingException e) {
-        e.printStackTrace();
+  /*
+   * Get an immutable copy of the current settings.
+   * @return The settings as an IdPConfig.
+   */
+  public IdPConfig getConfig() {
+    IdPConfig.Builder b = new IdPConfig.Builder()
+      .setIssuerName(issuerName)
+      .setNameIdFormat(nameIdFormat)
+      .setPrivateKeyCache(privateKeyCache)
+      .setPublicKeyCache(publicKeyCache)
+      .setSigningKeyring(signingKeyring)
+      .setSignatureAlgorithm(signatureAlgorithm)
+      .setSignAssertion(signAssertion)
+      .setSimpleSAMLphp(simpleSAMLphp)
+      .setStreamingWriter(streamingWriter)
+      .setMinutes(minutes)
+      .setIdGenerator(idGenerator);
+    if (assertionConsumerService != null) {
+      java.util.Iterator it = assertionConsumerService.entrySet().iterator();
+      while (it.hasNext()) {
+        java.util.Map.Entry e = (java.util.Map.Entry) it.next();
+        b.setAssertionConsumerService(((Integer) e.getKey()).intValue(), (String) e.getValue());
       }
-      // Now sign it
-      org.opensaml.xml.signature.Signer.signObject(signature);
-      //System.out.print("Assertion is now signed ...");
     }
-    
-    return rsp;
+    return b.build();
+  }
+  
+  /*
+   * Get an IdPEngine for the current settings. Changing a setting afterwards
+   * does not affect an engine already returned.
+   * @return The IdPEngine.
+   */
+  public IdPEngine getEngine() {
+    return new IdPEngine(getConfig(), registry);
+  }
+  
+  public org.opensaml.saml2.core.Response getSuccessResponse() throws org.opensaml.xml.io.MarshallingException,
+  	org.opensaml.xml.signature.SignatureException {
+    return getEngine().buildSuccessResponse(authnRequest, loginId, getId());
   }
   
   /*
@@ -483,6 +333,13 @@ public class SAMLResponse {
    */
   public String createSuccessResponse() throws org.opensaml.xml.io.MarshallingException,
   org.opensaml.xml.signature.SignatureException {
+    if (streamingWriter == true) {
+      // Written in one pass; there is no Response object to encode
+      IdPResult result = getEngine().createSuccessResponse(authnRequest, loginId, getId());
+      responseXML = result.getResponseXML();
+      setActionURL(result.getActionURL());
+      return result.getSAMLResponse();
+    }
     org.opensaml.saml2.core.Response rsp = getSuccessResponse();
     return createSuccessResponse(rsp);
   }
@@ -494,17 +351,50 @@ public class SAMLResponse {
    */
   public String createSuccessResponse(org.opensaml.saml2.core.Response rsp) throws org.opensaml.xml.io.MarshallingException {
     // Now we must build our representation to put into the html form to be submitted to the idp
-    Marshaller marshaller = org.opensaml.Configuration.getMarshallerFactory().getMarshaller(rsp);
-    Element authDOM = marshaller.marshall(rsp);
-    StringWriter rspWrt = new StringWriter();
-    XMLHelper.writeNode(authDOM, rspWrt);
-    responseXML = rspWrt.toString();
-    
-    String samlResponse = new String(Base64.encodeBytes(responseXML.getBytes(), Base64.DONT_BREAK_LINES));
+    IdPResult result = getEngine().encodeResponse(rsp);
+    responseXML = result.getResponseXML();
     
     // Set the URL to where we resolved the destination to go to.
-    setActionURL(rsp.getDestination());
+    setActionURL(result.getActionURL());
     
-    return samlResponse;
+    return result.getSAMLResponse();
+  }
+  
+  /*
+   * Create a successful SAML Response message and write it out as the
+   * value for the SAMLResponse form field, for instance straight into the
+   * page being sent. The XML is not kept, so getResponseXML() returns null
+   * afterwards.
+   * @param out Where to write the BASE64 encoded SAML message.
+   */
+  public void writeSuccessResponse(java.io.Writer out) throws org.opensaml.xml.io.MarshallingException,
+  org.opensaml.xml.signature.SignatureException, java.io.IOException {
+    IdPEngine engine = getEngine();
+    responseXML = null;
+    setActionURL(engine.resolveDestination(authnRequest));
+    engine.writeSuccessResponse(authnRequest, loginId, getId(), out);
+  }
+  
+  /*
+   * Write a Response as the value for the SAMLResponse form field. The XML
+   * is not kept, so getResponseXML() returns null afterwards.
+   * @param rsp The Response object to write.
+   * @param out Where to write the BASE64 encoded SAML message.
+   */
+  public void writeSuccessResponse(org.opensaml.saml2.core.Response rsp, java.io.Writer out)
+    throws org.opensaml.xml.io.MarshallingException, java.io.IOException {
+    responseXML = null;
+    setActionURL(rsp.getDestination());
+    getEngine().writeSAMLResponse(rsp, out);
+  }
+  
+  /*
+   * Write a Response as XML, encoded as UTF-8.
+   * @param rsp The Response object to write.
+   * @param out Where to write the XML.
+   */
+  public void writeResponseXML(org.opensaml.saml2.core.Response rsp, java.io.OutputStream out)
+    throws org.opensaml.xml.io.MarshallingException {
+    getEngine().writeResponse(rsp, out);
   }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SPKeyIndex.java
+ *
+ * The keys Service Providers sign their AuthnRequests with, by issuer.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.clareitysecurity.websso.metadata.MetaDataIndex;
+
+/**
+ * The public keys each Service Provider signs its AuthnRequests with,
+ * looked up by the Issuer of the request. An SP in the index must sign
+ * every redirect binding request; {@link IdPEngine} rejects an unsigned
+ * request from it, or one whose signature none of its keys verify. An SP
+ * may have more than one key while it changes keys.
+ * <p>
+ * Keys are added by hand or taken from the SPSSODescriptors of a
+ * {@link MetaDataIndex}. Lookups do not lock and may run on any thread
+ * while keys are being added or removed.
+ *
+ * @author Paul Hethmon
+ */
+public class SPKeyIndex {
+
+  private final ConcurrentHashMap<String, PublicKey []> keys = new ConcurrentHashMap<String, PublicKey []>();
+
+  /*
+   * Create an empty index.
+   */
+  public SPKeyIndex() {
+  }
+
+  /*
+   * Create an index of the SP signing keys in metadata.
+   * @param metaData The indexed metadata.
+   * @return The index.
+   */
+  public static SPKeyIndex fromMetaData(MetaDataIndex metaData) throws CertificateException {
+    SPKeyIndex index = new SPKeyIndex();
+    index.addMetaData(metaData);
+    return index;
+  }
+
+  /*
+   * Add a key an SP signs with. A key the SP already has is not added again.
+   * @param issuer The entityID the SP sends as Issuer.
+   * @param key The SP's public key.
+   */
+  public synchronized void addKey(String issuer, PublicKey key) {
+    if (issuer == null || key == null) {
+      throw new IllegalArgumentException("Issuer and key may not be null");
+    }
+    PublicKey [] old = keys.get(issuer);
+    if (old == null) {
+      keys.put(issuer, new PublicKey [] { key });
+      return;
+    }
+    for (int i = 0; i < old.length; i++) {
+      if (old[i].equals(key)) return;
+    }
+    PublicKey [] now = new PublicKey[old.length + 1];
+    System.arraycopy(old, 0, now, 0, old.length);
+    now[old.length] = key;
+    keys.put(issuer, now);
+  }
+
+  /*
+   * Add the key of a certificate an SP signs with.
+   * @param issuer The entityID the SP sends as Issuer.
+   * @param certificate The SP's signing certificate.
+   */
+  public void addCertificate(String issuer, X509Certificate certificate) {
+    addKey(issuer, certificate.getPublicKey());
+  }
+
+  /*
+   * Add the SP signing keys of every SP in metadata that has any. The
+   * certificates of an entity's IdP role are not SP keys and are left out.
+   * @param metaData The indexed metadata.
+   * @return The number of SPs keys were added for.
+   */
+  public int addMetaData(MetaDataIndex metaData) throws CertificateException {
+    int count = 0;
+    for (String entityId : metaData.getEntityIds()) {
+      MetaDataIndex.Entity entity = metaData.getEntity(entityId);
+      if (!entity.isSP() || entity.getSPSigningCertificateCount() == 0) continue;
+      for (X509Certificate certificate : entity.getSPSigningCertificates()) {
+        addCertificate(entityId, certificate);
+      }
+      count++;
+    }
+    return count;
+  }
+
+  /*
+   * Remove an SP and all its keys. Its requests are no longer checked.
+   * @param issuer The entityID of the SP.
+   * @return true if the SP was in the index.
+   */
+  public synchronized boolean removeIssuer(String issuer) {
+    return keys.remove(issuer) != null;
+  }
+
+  /*
+   * Get the keys of an SP.
+   * @param issuer The entityID of the SP.
+   * @return The keys, empty if the SP is not in the index.
+   */
+  public List<PublicKey> getKeys(String issuer) {
+    PublicKey [] k = lookup(issuer);
+    return (k == null) ? Collections.<PublicKey>emptyList() : Collections.unmodifiableList(Arrays.asList(k));
+  }
+
+  /*
+   * Get whether an SP is in the index and so must sign.
+   * @param issuer The entityID of the SP.
+   * @return true if the SP has keys.
+   */
+  public boolean contains(String issuer) {
+    return lookup(issuer) != null;
+  }
+
+  /*
+   * Get the SPs in the index.
+   * @return An unmodifiable set of entityIDs.
+   */
+  public Set<String> getIssuers() {
+    return Collections.unmodifiableSet(keys.keySet());
+  }
+
+  /*
+   * Get the number of SPs in the index.
+   * @return The SP count.
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /*
+   * Get the keys of an SP without copying them. The array must not be changed.
+   * @param issuer The entityID of the SP.
+   * @return The keys, or null if the SP is not in the index.
+   */
+  PublicKey [] lookup(String issuer) {
+    return (issuer == null) ? null : keys.get(issuer);
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SigningCredential.java
+ *
+ * The signing credential and KeyInfo contents for one key pair, built once
+ * and reused for every Response signed with it.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.clareitysecurity.websso.common.SAMLObjectRegistry;
+
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.util.Base64;
+
+/**
+ * A BasicX509Credential for a private key and certificate, together with
+ * the certificate already BASE64 encoded for the KeyInfo.
+ * <p>
+ * Credentials are cached by the identity of the key objects. Reading a new
+ * key into a {@link PrivateKeyCache} or {@link PublicKeyCache} creates new
+ * key objects, so the next Response builds a fresh credential and the old
+ * one is no longer used. A {@link SigningKeyring} builds one per key as it
+ * loads the key instead. The credential is only read while signing, so one
+ * instance is shared by all threads.
+ *
+ * @author Paul Hethmon
+ */
+final class SigningCredential {
+
+  /** Most key pairs cached before the cache is cleared. */
+  private static final int MAX_CACHED = 16;
+
+  private static final ConcurrentHashMap<KeyPairKey, SigningCredential> cache =
+    new ConcurrentHashMap<KeyPairKey, SigningCredential>();
+
+  private final BasicX509Credential credential;
+  /** The certificate as KeyInfoHelper.addCertificate encodes it, or null. */
+  private final String certificateValue;
+
+  SigningCredential(PrivateKey privateKey, PublicKey publicKey, X509Certificate certificate)
+    throws CertificateEncodingException {
+    credential = new BasicX509Credential();
+    // Set the private key used to sign the messages
+    credential.setPrivateKey(privateKey);
+    // add the public key if we have it
+    if (publicKey != null) credential.setPublicKey(publicKey);
+    certificateValue = (certificate == null) ? null : Base64.encodeBytes(certificate.getEncoded());
+  }
+
+  /*
+   * Get the credential for the keys currently held by the key caches.
+   * @param privateKeyCache The private key used to sign.
+   * @param publicKeyCache The certificate sent in the KeyInfo, or null for none.
+   * @return The credential.
+   */
+  static SigningCredential getInstance(PrivateKeyCache privateKeyCache, PublicKeyCache publicKeyCache)
+    throws CertificateEncodingException {
+    PrivateKey privateKey = privateKeyCache.getPrivateKey();
+    PublicKey publicKey = (publicKeyCache == null) ? null : publicKeyCache.getPublicKey();
+    X509Certificate certificate = (publicKeyCache == null) ? null : publicKeyCache.getX509Certificate();
+    KeyPairKey key = new KeyPairKey(privateKey, publicKey, certificate);
+    SigningCredential c = cache.get(key);
+    if (c == null) {
+      c = new SigningCredential(privateKey, publicKey, certificate);
+      if (cache.size() >= MAX_CACHED) cache.clear();
+      cache.put(key, c);
+    }
+    return c;
+  }
+
+  /*
+   * Get the credential to sign with.
+   * @return The shared credential. It must not be changed.
+   */
+  BasicX509Credential getCredential() {
+    return credential;
+  }
+
+  /*
+   * Check whether there is a certificate to send in a KeyInfo.
+   * @return true if newKeyInfo will return a KeyInfo.
+   */
+  boolean hasKeyInfo() {
+    return certificateValue != null;
+  }
+
+  /*
+   * Get the certificate as it is sent in the KeyInfo.
+   * @return The BASE64 encoded certificate, or null if there is none.
+   */
+  String getCertificateValue() {
+    return certificateValue;
+  }
+
+  /*
+   * Build a KeyInfo holding the certificate, the same as KeyInfoHelper.addCertificate
+   * gives but without encoding the certificate again.
+   * @param registry Where to get the builders.
+   * @return A new KeyInfo, or null if there is no certificate.
+   */
+  KeyInfo newKeyInfo(SAMLObjectRegistry registry) {
+    if (certificateValue == null) return null;
+    KeyInfo keyInfo = registry.getKeyInfoBuilder().buildObject();
+    X509Data x509Data = registry.getX509DataBuilder().buildObject();
+    org.opensaml.xml.signature.X509Certificate x509Certificate = registry.getX509CertificateBuilder().buildObject();
+    x509Certificate.setValue(certificateValue);
+    x509Data.getX509Certificates().add(x509Certificate);
+    keyInfo.getX509Datas().add(x509Data);
+    return keyInfo;
+  }
+
+  /*
+   * A cache key comparing the key objects by identity.
+   */
+  private static final class KeyPairKey {
+    private final PrivateKey privateKey;
+    private final PublicKey publicKey;
+    private final X509Certificate certificate;
+
+    KeyPairKey(PrivateKey newPrivateKey, PublicKey newPublicKey, X509Certificate newCertificate) {
+      privateKey = newPrivateKey;
+      publicKey = newPublicKey;
+      certificate = newCertificate;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof KeyPairKey)) return false;
+      KeyPairKey k = (KeyPairKey) o;
+      return k.privateKey == privateKey && k.publicKey == publicKey && k.certificate == certificate;
+    }
+
+    public int hashCode() {
+      return (System.identityHashCode(privateKey) * 31 + System.identityHashCode(publicKey)) * 31
+        + System.identityHashCode(certificate);
+    }
+  }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SigningKeyring.java
+ *
+ * The IdP signing keys and certificates, with the times each becomes
+ * active, reloaded from their PEM files when they change.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.clareitysecurity.websso.common.SignatureAlgorithms;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds several signing keys, each with its certificate and the time it
+ * becomes active. The key used to sign is the one most recently activated.
+ * <p>
+ * Readers never lock. Every change builds a new immutable snapshot of the
+ * keys and publishes it through a volatile field, so a Response is signed
+ * with a consistent key and certificate even while the keys are reloaded.
+ * <p>
+ * Keys read from PEM files are checked for changes by {@link #reload()},
+ * which {@link #startWatching(long)} calls on a timer. A changed pair is
+ * only accepted once the private key and certificate load and match each
+ * other, so a rotation half way through being copied in is retried on the
+ * next check instead of being used. A pair whose certificate has not
+ * changed, such as a file that was only touched or copied in again, is not
+ * added a second time. The new key becomes active after the activation
+ * delay, which is the overlap period unless set otherwise; until then the
+ * old key keeps signing and the new certificate is published. A replaced key
+ * stays in the keyring, and its certificate stays published, for the
+ * overlap period after it stops signing, so relying parties can verify
+ * with either certificate during the rollover.
+ *
+ * @author Paul Hethmon
+ */
+public class SigningKeyring {
+
+  /** Class logger. */
+  private static final Logger log = Logger.getLogger(SigningKeyring.class);
+
+  /** Default time a replaced certificate stays published, in milliseconds. */
+  public static final long DEFAULT_OVERLAP = 24 * 60 * 60 * 1000L;
+
+  /** Default time between checks of the PEM files, in milliseconds. */
+  public static final long DEFAULT_WATCH_INTERVAL = 60 * 1000L;
+
+  private volatile Snapshot snapshot = new Snapshot(new KeyEntry[0]);
+
+  private final long overlap;
+  // The fields below are guarded by this
+  private final List<KeyEntry> entries = new ArrayList<KeyEntry>();
+  private final List<FileSource> sources = new ArrayList<FileSource>();
+  private long activationDelay;
+  private long sequence;
+  private Timer timer;
+
+  /** Creates a new instance of SigningKeyring with the default overlap */
+  public SigningKeyring() {
+    this(DEFAULT_OVERLAP);
+  }
+
+  /*
+   * Create a keyring.
+   * @param newOverlap How long a replaced key stays in the keyring after it
+   *   stops signing, in milliseconds.
+   */
+  public SigningKeyring(long newOverlap) {
+    if (newOverlap < 0) {
+      throw new IllegalArgumentException("Overlap may not be negative");
+    }
+    overlap = newOverlap;
+    activationDelay = newOverlap;
+  }
+
+  /*
+   * Set how long after a reload the new key starts signing. Its certificate
+   * is published for that long first, so relying parties can fetch it
+   * before they see it used. Default value is the overlap period; 0
+   * switches to the new key at once.
+   * @param newActivationDelay The delay in milliseconds.
+   */
+  public synchronized void setActivationDelay(long newActivationDelay) {
+    if (newActivationDelay < 0) {
+      throw new IllegalArgumentException("Activation delay may not be negative");
+    }
+    activationDelay = newActivationDelay;
+  }
+  public synchronized long getActivationDelay() {
+    return activationDelay;
+  }
+
+  /*
+   * Add a key that is already loaded.
+   * @param privateKey The key to sign with.
+   * @param certificate The certificate for the key.
+   * @param activeFrom When the key starts signing, in milliseconds since the epoch.
+   * @return The new entry.
+   */
+  public synchronized KeyEntry addKey(PrivateKey privateKey, X509Certificate certificate, long activeFrom)
+    throws GeneralSecurityException {
+    KeyEntry e = newEntry(privateKey, certificate, activeFrom);
+    entries.add(e);
+    publish(System.currentTimeMillis());
+    return e;
+  }
+
+  /*
+   * Add a key read from PEM files, which are then checked for changes.
+   * @param privateKeyFile The file holding the PEM encoded private key.
+   * @param certificateFile The file holding the PEM encoded certificate.
+   * @param activeFrom When the key starts signing, in milliseconds since the epoch.
+   * @return The new entry.
+   */
+  public synchronized KeyEntry addKeyFiles(String privateKeyFile, String certificateFile, long activeFrom)
+    throws IOException, GeneralSecurityException {
+    FileSource source = new FileSource(new File(privateKeyFile), new File(certificateFile));
+    source.stamp();
+    KeyEntry e = source.load(activeFrom);
+    source.current = e;
+    entries.add(e);
+    sources.add(source);
+    publish(System.currentTimeMillis());
+    return e;
+  }
+
+  /*
+   * Remove a key. Signing moves to the next most recently activated key.
+   * @param e The entry to remove.
+   * @return true if the entry was in the keyring.
+   */
+  public synchronized boolean removeKey(KeyEntry e) {
+    boolean removed = entries.remove(e);
+    if (removed) publish(System.currentTimeMillis());
+    return removed;
+  }
+
+  /*
+   * Read again any PEM files that have changed since they were last read,
+   * and drop keys replaced for longer than the overlap period.
+   * @return true if a new key was added.
+   */
+  public synchronized boolean reload() {
+    long now = System.currentTimeMillis();
+    boolean added = false;
+    for (int i = 0; i < sources.size(); i++) {
+      FileSource source = sources.get(i);
+      if (!source.isChanged()) continue;
+      try {
+        // Take the stamps before reading so a write during the read is seen next time
+        long keyModified = source.keyFile.lastModified(), keyLength = source.keyFile.length();
+        long certModified = source.certificateFile.lastModified(), certLength = source.certificateFile.length();
+        KeyEntry e = source.load(now + activationDelay);
+        source.keyModified = keyModified;
+        source.keyLength = keyLength;
+        source.certificateModified = certModified;
+        source.certificateLength = certLength;
+        if (source.current != null && entries.contains(source.current)
+          && Arrays.equals(source.current.getCertificate().getEncoded(), e.getCertificate().getEncoded())) {
+          // Touched or copied in again; the key already in the keyring stays as it is
+          log.debug("Signing key in " + source.keyFile + " has not changed");
+          continue;
+        }
+        source.current = e;
+        entries.add(e);
+        added = true;
+        log.info("Loaded new signing key from " + source.keyFile + ", active from " + new Date(e.getActiveFrom()));
+      } catch (Exception ex) {
+        // Most likely the files are still being replaced; keep the current key and try again later
+        log.warn("Unable to load signing key from " + source.keyFile + " and " + source.certificateFile
+          + ", keeping the current key: " + ex.getMessage());
+      }
+    }
+    int before = entries.size();
+    publish(now);
+    return added || entries.size() != before;
+  }
+
+  /*
+   * Check the PEM files for changes once a minute on a background timer.
+   */
+  public void startWatching() {
+    startWatching(DEFAULT_WATCH_INTERVAL);
+  }
+  /*
+   * Check the PEM files for changes on a background timer.
+   * @param interval The time between checks in milliseconds.
+   */
+  public synchronized void startWatching(long interval) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("Watch interval must be positive");
+    }
+    stopWatching();
+    timer = new Timer("SigningKeyring", true);
+    timer.schedule(new TimerTask() {
+      public void run() {
+        try {
+          reload();
+        } catch (RuntimeException e) {
+          // An exception would end the timer thread and stop the watching
+          log.error("Unable to reload signing keys", e);
+        }
+      }
+    }, interval, interval);
+  }
+  /*
+   * Stop checking the PEM files for changes.
+   */
+  public synchronized void stopWatching() {
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+  }
+
+  /*
+   * Get the key to sign with now. This never locks.
+   * @return The most recently activated key, or null if none is active.
+   */
+  public KeyEntry getActiveKey() {
+    return snapshot.getActiveKey(System.currentTimeMillis());
+  }
+  /*
+   * Get the key to sign with at a given time.
+   * @param now The time in milliseconds since the epoch.
+   * @return The most recently activated key, or null if none is active.
+   */
+  public KeyEntry getActiveKey(long now) {
+    return snapshot.getActiveKey(now);
+  }
+
+  /*
+   * Get every key in the keyring, most recently activated first.
+   * @return An unmodifiable list of the keys.
+   */
+  public List<KeyEntry> getKeys() {
+    return snapshot.list;
+  }
+
+  /*
+   * Get the certificates relying parties should accept now: the active
+   * key's, any not yet active, and any replaced within the overlap period.
+   * @return The certificates, most recently activated first.
+   */
+  public List<X509Certificate> getPublishedCertificates() {
+    return getPublishedCertificates(System.currentTimeMillis());
+  }
+  /*
+   * Get the certificates relying parties should accept at a given time.
+   * @param now The time in milliseconds since the epoch.
+   * @return The certificates, most recently activated first.
+   */
+  public List<X509Certificate> getPublishedCertificates(long now) {
+    Snapshot s = snapshot;
+    List<X509Certificate> certs = new ArrayList<X509Certificate>(s.keys.length);
+    for (int i = 0; i < s.keys.length; i++) {
+      if (s.isPublished(i, now, overlap)) certs.add(s.keys[i].getCertificate());
+    }
+    return certs;
+  }
+
+  /*
+   * Drop keys past their overlap and publish a new snapshot of the rest.
+   */
+  private void publish(long now) {
+    Snapshot s = new Snapshot(entries.toArray(new KeyEntry[entries.size()]));
+    List<KeyEntry> kept = new ArrayList<KeyEntry>(s.keys.length);
+    for (int i = 0; i < s.keys.length; i++) {
+      if (s.isPublished(i, now, overlap)) {
+        kept.add(s.keys[i]);
+      } else {
+        log.info("Removed signing key replaced at " + new Date(s.supersededAt[i]));
+      }
+    }
+    if (kept.size() != s.keys.length) {
+      entries.retainAll(kept);
+      s = new Snapshot(entries.toArray(new KeyEntry[entries.size()]));
+    }
+    snapshot = s;
+  }
+
+  private KeyEntry newEntry(PrivateKey privateKey, X509Certificate certificate, long activeFrom)
+    throws GeneralSecurityException {
+    if (privateKey == null || certificate == null) {
+      throw new KeyException("A signing key needs both a private key and a certificate");
+    }
+    if (!matches(privateKey, certificate.getPublicKey())) {
+      throw new KeyException("The private key does not match the certificate");
+    }
+    return new KeyEntry(privateKey, certificate, activeFrom, sequence++);
+  }
+
+  /*
+   * Check that a private key belongs to a public key. RSA keys share the
+   * modulus; an EC key has to sign something the public key verifies.
+   * @param privateKey The private key.
+   * @param publicKey The public key from the certificate.
+   * @return false if the keys are known not to belong together.
+   */
+  static boolean matches(PrivateKey privateKey, PublicKey publicKey) throws GeneralSecurityException {
+    if (privateKey instanceof RSAPrivateKey && publicKey instanceof RSAPublicKey) {
+      return ((RSAPrivateKey) privateKey).getModulus().equals(((RSAPublicKey) publicKey).getModulus());
+    }
+    if (SignatureAlgorithms.isEC(privateKey) != SignatureAlgorithms.isEC(publicKey)) {
+      return false;
+    }
+    if (SignatureAlgorithms.isEC(privateKey)) {
+      byte [] probe = new byte[32];
+      Signature signer = Signature.getInstance("SHA256withECDSA");
+      signer.initSign(privateKey);
+      signer.update(probe);
+      byte [] value = signer.sign();
+      signer.initVerify(publicKey);
+      signer.update(probe);
+      return signer.verify(value);
+    }
+    return true;
+  }
+
+  /**
+   * One key in the keyring. Entries are immutable.
+   */
+  public static final class KeyEntry {
+    private final PrivateKey privateKey;
+    private final X509Certificate certificate;
+    private final long activeFrom;
+    private final long sequence;
+    private final SigningCredential signingCredential;
+
+    private KeyEntry(PrivateKey newPrivateKey, X509Certificate newCertificate, long newActiveFrom, long newSequence)
+      throws GeneralSecurityException {
+      privateKey = newPrivateKey;
+      certificate = newCertificate;
+      activeFrom = newActiveFrom;
+      sequence = newSequence;
+      signingCredential = new SigningCredential(newPrivateKey, newCertificate.getPublicKey(), newCertificate);
+    }
+
+    public PrivateKey getPrivateKey() {
+      return privateKey;
+    }
+    public X509Certificate getCertificate() {
+      return certificate;
+    }
+    /*
+     * Get when the key starts signing.
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getActiveFrom() {
+      return activeFrom;
+    }
+    SigningCredential getSigningCredential() {
+      return signingCredential;
+    }
+  }
+
+  /*
+   * The keys sorted most recently activated first, with the time each was
+   * replaced by the next.
+   */
+  private static final class Snapshot {
+    final KeyEntry [] keys;
+    final long [] supersededAt;
+    final List<KeyEntry> list;
+
+    Snapshot(KeyEntry [] newKeys) {
+      keys = newKeys;
+      // Latest activation first; of two keys active from the same time the one added last wins
+      Arrays.sort(keys, new Comparator<KeyEntry>() {
+        public int compare(KeyEntry a, KeyEntry b) {
+          if (a.activeFrom != b.activeFrom) return (a.activeFrom > b.activeFrom) ? -1 : 1;
+          return (a.sequence > b.sequence) ? -1 : (a.sequence < b.sequence) ? 1 : 0;
+        }
+      });
+      supersededAt = new long[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+        supersededAt[i] = (i == 0) ? Long.MAX_VALUE : keys[i - 1].activeFrom;
+      }
+      list = Collections.unmodifiableList(Arrays.asList(keys.clone()));
+    }
+
+    KeyEntry getActiveKey(long now) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i].activeFrom <= now) return keys[i];
+      }
+      return null;
+    }
+
+    boolean isPublished(int i, long now, long overlap) {
+      return supersededAt[i] == Long.MAX_VALUE || supersededAt[i] > now - overlap;
+    }
+  }
+
+  /*
+   * A private key file and certificate file pair, and what they looked
+   * like when last read.
+   */
+  private final class FileSource {
+    final File keyFile, certificateFile;
+    long keyModified, keyLength, certificateModified, certificateLength;
+    /** The entry last loaded from these files. */
+    KeyEntry current;
+
+    FileSource(File newKeyFile, File newCertificateFile) {
+      keyFile = newKeyFile;
+      certificateFile = newCertificateFile;
+    }
+
+    void stamp() {
+      keyModified = keyFile.lastModified();
+      keyLength = keyFile.length();
+      certificateModified = certificateFile.lastModified();
+      certificateLength = certificateFile.length();
+    }
+
+    boolean isChanged() {
+      return keyFile.lastModified() != keyModified || keyFile.length() != keyLength
+        || certificateFile.lastModified() != certificateModified || certificateFile.length() != certificateLength;
+    }
+
+    KeyEntry load(long activeFrom) throws IOException, GeneralSecurityException {
+      PrivateKeyCache keyCache = new PrivateKeyCache();
+      keyCache.readPrivateKey(keyFile.getPath());
+      PrivateKey privateKey = keyCache.getPrivateKey();
+      if (privateKey == null) {
+        throw new KeyException("Unable to decode the private key in " + keyFile);
+      }
+      PublicKeyCache certificateCache = new PublicKeyCache();
+      FileInputStream in = new FileInputStream(certificateFile);
+      try {
+        certificateCache.readPublicKey(in);
+      } finally {
+        in.close();
+      }
+      return newEntry(privateKey, certificateCache.getX509Certificate(), activeFrom);
+    }
+  }
+}
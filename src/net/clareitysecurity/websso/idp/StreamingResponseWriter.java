@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * StreamingResponseWriter.java
+ *
+ * Writes a signed success Response straight to bytes, without building
+ * OpenSAML objects or a DOM.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.clareitysecurity.websso.common.QueryStringSigner;
+import net.clareitysecurity.websso.common.SignatureAlgorithms;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.xml.encryption.EncryptionConstants;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLConstants;
+
+/**
+ * Writes a success Response with the same elements, attributes and values
+ * as {@link IdPEngine#buildSuccessResponse} builds, in one pass and without
+ * any XMLObjects, DOM or Santuario canonicalizer. The bytes are not those
+ * {@link IdPEngine#encodeResponse} gives: everything is written in
+ * exclusive canonical form by a {@link CanonicalWriter}, so for instance
+ * empty elements have end tags, and the Assertion's digest is taken over
+ * the bytes as written. The SignedInfo is written canonically the same way
+ * and signed, and the document is put together from the two. The result is
+ * an ordinary enveloped signature that OpenSAML and JSR 105 validators
+ * accept, for values within the Basic Multilingual Plane; IdPEngine refuses
+ * any others before either writer runs. The bytes are left in the writer's
+ * buffer for a {@link ResponseEncoder} to turn into the result or write out.
+ * <p>
+ * The Signature goes inside the Assertion after its Issuer, so the
+ * Assertion is buffered until its digest is known. Each thread keeps one
+ * writer with its buffers and MessageDigests and reuses them for every
+ * Response.
+ *
+ * @author Paul Hethmon
+ */
+final class StreamingResponseWriter {
+
+  private static final String
+      PROTOCOL_NS = "urn:oasis:names:tc:SAML:2.0:protocol",
+      ASSERTION_NS = "urn:oasis:names:tc:SAML:2.0:assertion",
+      DSIG_NS = XMLConstants.XMLSIG_NS,
+      PASSWORD_CLASS = "urn:oasis:names:tc:SAML:2.0:ac:classes:Password";
+
+  private static final ThreadLocal<StreamingResponseWriter> writers = new ThreadLocal<StreamingResponseWriter>() {
+    protected StreamingResponseWriter initialValue() {
+      return new StreamingResponseWriter();
+    }
+  };
+
+  private final CanonicalWriter assertion = new CanonicalWriter(2048);
+  private final CanonicalWriter signedInfo = new CanonicalWriter(1024);
+  private final CanonicalWriter document = new CanonicalWriter(8192);
+  private final Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
+
+  private StreamingResponseWriter() {
+  }
+
+  /*
+   * Get the calling thread's writer.
+   * @return The writer.
+   */
+  static StreamingResponseWriter getInstance() {
+    return writers.get();
+  }
+
+  /*
+   * Write a successful Response into this writer's buffer.
+   * @param config The Identity Provider settings.
+   * @param authnRequest The AuthnRequest being answered.
+   * @param loginId The authenticated user.
+   * @param id The ID to give the Response and Assertion.
+   * @param destination Where the Response is sent.
+   * @param signing The credential to sign with, or null to leave the
+   * Assertion unsigned.
+   * @param algorithm The signature method URI, which suits the key.
+   * @return The Response ID.
+   * @throws SignatureException If signing fails.
+   */
+  String write(IdPConfig config, AuthnRequest authnRequest, String loginId, String id, String destination,
+    SigningCredential signing, String algorithm) throws SignatureException {
+    DateTimeFormatter format = Configuration.getSAMLDateFormatter();
+    DateTime dt = new DateTime();
+    String issueInstant = format.print(dt);
+    String notOnOrAfter = format.print(dt.plus(1000 * 60 * config.getMinutes()));
+    String responseId = config.getSimpleSAMLphp() ? "#" + id : id;
+
+    // The Assertion as exclusive C14N gives it, with the Signature left out
+    int signatureOffset = writeAssertion(config, authnRequest, loginId, id, dt, issueInstant, notOnOrAfter);
+
+    CanonicalWriter w = document;
+    w.reset();
+    w.writeRaw("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    w.writeStartElement("samlp:Response");
+    w.writeNamespace("samlp", PROTOCOL_NS);
+    w.writeAttribute("Destination", destination);
+    w.writeAttribute("ID", responseId);
+    w.writeAttribute("InResponseTo", authnRequest.getID());
+    w.writeAttribute("IssueInstant", issueInstant);
+    w.writeAttribute("Version", "2.0");
+    w.writeStartElement("saml:Issuer");
+    w.writeNamespace("saml", ASSERTION_NS);
+    w.writeCharacters(config.getIssuerName());
+    w.writeEndElement("saml:Issuer");
+    w.writeStartElement("samlp:Status");
+    w.writeStartElement("samlp:StatusCode");
+    w.writeAttribute("Value", StatusCode.SUCCESS_URI);
+    w.writeEndElement("samlp:StatusCode");
+    w.writeEndElement("samlp:Status");
+
+    byte [] a = assertion.getBuffer();
+    if (signing == null) {
+      w.writeRaw(a, 0, assertion.size());
+    } else {
+      w.writeRaw(a, 0, signatureOffset);
+      writeSignature(signing, algorithm, id);
+      w.writeRaw(a, signatureOffset, assertion.size() - signatureOffset);
+    }
+    w.writeEndElement("samlp:Response");
+    return responseId;
+  }
+
+  /*
+   * Get the buffer holding the last Response written, as UTF-8. Only the
+   * first size() bytes are used.
+   * @return The buffer.
+   */
+  byte [] getBuffer() {
+    return document.getBuffer();
+  }
+
+  /*
+   * Get the size of the last Response written.
+   * @return The number of bytes.
+   */
+  int size() {
+    return document.size();
+  }
+
+  /*
+   * Write the Assertion in canonical form.
+   * @return The offset just after the Assertion's Issuer, where the
+   * Signature goes.
+   */
+  private int writeAssertion(IdPConfig config, AuthnRequest authnRequest, String loginId, String id, DateTime dt,
+    String issueInstant, String notOnOrAfter) {
+    DateTimeFormatter format = Configuration.getSAMLDateFormatter();
+    CanonicalWriter w = assertion;
+    w.reset();
+    w.writeStartElement("saml:Assertion");
+    w.writeNamespace("saml", ASSERTION_NS);
+    w.writeAttribute("ID", id);
+    w.writeAttribute("IssueInstant", issueInstant);
+    w.writeAttribute("Version", "2.0");
+    w.writeTextElement("saml:Issuer", config.getIssuerName());
+    int signatureOffset = w.size();
+
+    w.writeStartElement("saml:Subject");
+    w.writeStartElement("saml:NameID");
+    w.writeAttribute("Format", config.getNameIdFormat());
+    w.writeCharacters(loginId);
+    w.writeEndElement("saml:NameID");
+    w.writeStartElement("saml:SubjectConfirmation");
+    w.writeAttribute("Method", SAMLResponse.SUBJECT_URI_BEARER);
+    w.writeStartElement("saml:SubjectConfirmationData");
+    w.writeAttribute("InResponseTo", authnRequest.getID());
+    w.writeAttribute("NotOnOrAfter", notOnOrAfter);
+    w.writeAttribute("Recipient", authnRequest.getAssertionConsumerServiceURL());
+    w.writeEndElement("saml:SubjectConfirmationData");
+    w.writeEndElement("saml:SubjectConfirmation");
+    w.writeEndElement("saml:Subject");
+
+    w.writeStartElement("saml:Conditions");
+    w.writeAttribute("NotBefore", format.print(dt.minus(1000 * 10)));
+    w.writeAttribute("NotOnOrAfter", notOnOrAfter);
+    w.writeEndElement("saml:Conditions");
+
+    w.writeStartElement("saml:AuthnStatement");
+    w.writeAttribute("AuthnInstant", issueInstant);
+    w.writeStartElement("saml:AuthnContext");
+    w.writeTextElement("saml:AuthnContextClassRef", PASSWORD_CLASS);
+    w.writeEndElement("saml:AuthnContext");
+    w.writeEndElement("saml:AuthnStatement");
+    w.writeEndElement("saml:Assertion");
+    return signatureOffset;
+  }
+
+  /*
+   * Digest the canonical Assertion, sign the SignedInfo over it and write
+   * the Signature into the document.
+   */
+  private void writeSignature(SigningCredential signing, String algorithm, String id) throws SignatureException {
+    String digestAlgorithm = SignatureAlgorithms.getDigestAlgorithm(algorithm);
+    byte [] digest;
+    try {
+      MessageDigest md = getDigest(digestAlgorithm);
+      md.update(assertion.getBuffer(), 0, assertion.size());
+      digest = md.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new SignatureException("Unable to digest the Assertion", e);
+    }
+
+    CanonicalWriter w = signedInfo;
+    w.reset();
+    w.writeStartElement("ds:SignedInfo");
+    w.writeNamespace("ds", DSIG_NS);
+    // The start tag up to and including its '>', which closes on the next write
+    int startTag = w.size() + 1;
+    w.writeStartElement("ds:CanonicalizationMethod");
+    w.writeAttribute("Algorithm", SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+    w.writeEndElement("ds:CanonicalizationMethod");
+    w.writeStartElement("ds:SignatureMethod");
+    w.writeAttribute("Algorithm", algorithm);
+    w.writeEndElement("ds:SignatureMethod");
+    w.writeStartElement("ds:Reference");
+    w.writeAttribute("URI", "#" + id);
+    w.writeStartElement("ds:Transforms");
+    w.writeStartElement("ds:Transform");
+    w.writeAttribute("Algorithm", SignatureConstants.TRANSFORM_ENVELOPED_SIGNATURE);
+    w.writeEndElement("ds:Transform");
+    w.writeStartElement("ds:Transform");
+    w.writeAttribute("Algorithm", SignatureConstants.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+    w.writeEndElement("ds:Transform");
+    w.writeEndElement("ds:Transforms");
+    w.writeStartElement("ds:DigestMethod");
+    w.writeAttribute("Algorithm", digestAlgorithm);
+    w.writeEndElement("ds:DigestMethod");
+    w.writeTextElement("ds:DigestValue", Base64.encodeBytes(digest, Base64.DONT_BREAK_LINES));
+    w.writeEndElement("ds:Reference");
+    w.writeEndElement("ds:SignedInfo");
+
+    byte [] value;
+    try {
+      value = QueryStringSigner.sign(algorithm, signing.getCredential().getPrivateKey(), w.getBuffer(), 0, w.size());
+    } catch (GeneralSecurityException e) {
+      throw new SignatureException("Unable to sign the Assertion", e);
+    }
+
+    CanonicalWriter d = document;
+    d.writeStartElement("ds:Signature");
+    d.writeNamespace("ds", DSIG_NS);
+    // ds is already declared on the Signature, so the SignedInfo start tag is written without it
+    d.writeRaw("<ds:SignedInfo>");
+    d.writeRaw(w.getBuffer(), startTag, w.size() - startTag);
+    d.writeTextElement("ds:SignatureValue", Base64.encodeBytes(value, Base64.DONT_BREAK_LINES));
+    if (signing.hasKeyInfo()) {
+      d.writeStartElement("ds:KeyInfo");
+      d.writeStartElement("ds:X509Data");
+      d.writeTextElement("ds:X509Certificate", signing.getCertificateValue());
+      d.writeEndElement("ds:X509Data");
+      d.writeEndElement("ds:KeyInfo");
+    }
+    d.writeEndElement("ds:Signature");
+  }
+
+  private MessageDigest getDigest(String digestAlgorithm) throws NoSuchAlgorithmException {
+    MessageDigest md = digests.get(digestAlgorithm);
+    if (md == null) {
+      String name;
+      if (EncryptionConstants.ALGO_ID_DIGEST_SHA256.equals(digestAlgorithm)) name = "SHA-256";
+      else if (SignatureConstants.ALGO_ID_DIGEST_SHA384.equals(digestAlgorithm)) name = "SHA-384";
+      else if (EncryptionConstants.ALGO_ID_DIGEST_SHA512.equals(digestAlgorithm)) name = "SHA-512";
+      else name = "SHA-1";
+      md = MessageDigest.getInstance(name);
+      digests.put(digestAlgorithm, md);
+    }
+    return md;
+  }
+}
@@ -24,6 +24,9 @@
 
 package net.clareitysecurity.websso.metadata;
 
+import net.clareitysecurity.websso.common.SAMLBootstrap;
+import net.clareitysecurity.websso.common.SharedParserPool;
+
 import org.apache.log4j.Logger;
 
 import org.opensaml.saml2.metadata.provider.FileBackedHTTPMetadataProvider;
@@ -57,13 +60,10 @@ public class MetaDataCache {
   /** Class logger. */
   private final Logger log = Logger.getLogger(MetaDataCache.class);
   
-  private static boolean bootstrap = false;
-  private static int bootcount = 0;
-  
   protected String
       metaUrl,
       metaFile;
-  protected BasicParserPool
+  protected ParserPool
       parser;
   protected int
       metaTimeout;
@@ -149,16 +149,9 @@ public class MetaDataCache {
   /** Creates a new instance of MetaDataCache */
   public MetaDataCache() throws org.opensaml.xml.ConfigurationException {
     // Bootstrap the OpenSAML libraries
-    if (bootstrap == false) {
-      org.opensaml.DefaultBootstrap.bootstrap();
-      bootstrap = true;
-      if (log.isInfoEnabled()) {
-        bootcount++;
-        log.info("MetaDataCache.java (line 150) bootstrap has been called. [" + bootcount + "]");
-      }
-    }
-    // Create a parser pool for later use
-    parser = new BasicParserPool();
+    SAMLBootstrap.init();
+    // Use the parser pool shared with the SAML decoders
+    parser = SharedParserPool.getInstance();
     // Choose to use the Bouncy Castle JCE provider most often
     Security.insertProviderAt(new BouncyCastleProvider(), 2);
     // Provide some default values
@@ -187,15 +180,47 @@ public class MetaDataCache {
     exml = (EntityDescriptorImpl) fbmd.getMetadata();
 //    System.out.println("Have EntityDescriptorImpl XMLObject");
     
-    IDPSSODescriptorImpl idp;
-    idp = (IDPSSODescriptorImpl) exml.getIDPSSODescriptor("urn:oasis:names:tc:SAML:2.0:protocol");
+    // Now let's finally generate that PublicKey that we can actually use to validate signatures
+    setPublicKey(getSigningKey(getSigningCertificate(exml)));
+    
+    // And create a SignatureValidator with it.
+    setSignatureValidator(newSignatureValidator(getPublicKey()));
+    
+    return true;
+  }
+  
+  /*
+   * Create a MetaDataRefresher that keeps the metadata from the URL, backing
+   * file and timeout set on this object up to date in the background.
+   * @return A new MetaDataRefresher, not yet started.
+   */
+  public MetaDataRefresher newRefresher() throws org.opensaml.xml.ConfigurationException {
+    MetaDataRefresher r = new MetaDataRefresher(getMetaUrl(), getMetaFile());
+    r.setMetaTimeout(getMetaTimeout());
+    return r;
+  }
+  
+  /*
+   * Find the IdP signing certificate in an EntityDescriptor: the first
+   * certificate of the first KeyDescriptor of the SAML 2.0 IDPSSODescriptor.
+   * @param exml The EntityDescriptor of the IdP.
+   * @return The certificate.
+   */
+  static java.security.cert.X509Certificate getSigningCertificate(EntityDescriptor exml)
+    throws java.security.cert.CertificateException
+  {
+    IDPSSODescriptor idp;
+    idp = exml.getIDPSSODescriptor("urn:oasis:names:tc:SAML:2.0:protocol");
 //    System.out.println("Got IDPSSODescriptor");
+    if (idp == null || idp.getKeyDescriptors().isEmpty()) {
+      throw new java.security.cert.CertificateException("No IdP signing key in the metadata for " + exml.getEntityID());
+    }
     
     java.util.List<KeyDescriptor> keyList;
     keyList = idp.getKeyDescriptors();
     
-    KeyDescriptorImpl keyDesc;
-    keyDesc = (KeyDescriptorImpl) keyList.get(0);
+    KeyDescriptor keyDesc;
+    keyDesc = keyList.get(0);
     
     // Get the KeyInfo node
     KeyInfo keyInfo;
@@ -222,22 +247,36 @@ public class MetaDataCache {
     java.security.cert.X509Certificate jX509Cert;
     // Now create it based on the OpenSAML X509Certificate object
     jX509Cert = KeyInfoHelper.getCertificate(x509Cert);
+    return jX509Cert;
+  }
+  
+  /*
+   * Get the RSA or EC public key of a certificate.
+   * @param jX509Cert The certificate.
+   * @return The PublicKey.
+   */
+  static PublicKey getSigningKey(java.security.cert.X509Certificate jX509Cert)
+    throws java.security.NoSuchAlgorithmException, java.security.spec.InvalidKeySpecException
+  {
     // Now we can pull out the public key part of the certificate into a KeySpec
     X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec( jX509Cert.getPublicKey().getEncoded() );
     
-    // Get our KeyFactory object that creates key objects for us specifying RSA
-    KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+    // Get our KeyFactory object that creates key objects for us, RSA or EC
+    KeyFactory keyFactory = KeyFactory.getInstance(jX509Cert.getPublicKey().getAlgorithm());
 //    System.out.println("provider = " + keyFactory.getProvider().toString() );
-    // Now let's finally generate that PublicKey that we can actually use to validate signatures
-    setPublicKey(keyFactory.generatePublic(pubKeySpec));
-    
+    return keyFactory.generatePublic(pubKeySpec);
+  }
+  
+  /*
+   * Create a SignatureValidator for signatures made with a key.
+   * @param key The PublicKey of the IdP.
+   * @return The SignatureValidator.
+   */
+  static SignatureValidator newSignatureValidator(PublicKey key) {
     // Now we need to validate the signature. First create the Credentials
     org.opensaml.xml.security.x509.BasicX509Credential publicCredential = new org.opensaml.xml.security.x509.BasicX509Credential();
     // Add the PublicKey value
-    publicCredential.setPublicKey(getPublicKey());
-    // And create a SignatureValidator with it.
-    setSignatureValidator( new org.opensaml.xml.signature.SignatureValidator(publicCredential) );
-    
-    return true;
+    publicCredential.setPublicKey(key);
+    return new org.opensaml.xml.signature.SignatureValidator(publicCredential);
   }
 }
@@ -0,0 +1,909 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * MetaDataIndex.java
+ *
+ * A compact index of the entities in a metadata file, read with StAX so
+ * large federation aggregates never have to be held as one DOM tree.
+ */
+
+package net.clareitysecurity.websso.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.clareitysecurity.websso.common.SAMLBootstrap;
+import net.clareitysecurity.websso.common.SharedParserPool;
+
+import org.apache.log4j.Logger;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.validation.ValidationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Reads SAML 2.0 metadata, a single EntityDescriptor or an aggregate of
+ * any size, with a streaming StAX parser and keeps only what is needed to
+ * talk to each entity: the signing certificates of its IdP and SP roles and
+ * its SingleSignOnService and AssertionConsumerService endpoints, looked up
+ * by entityID.
+ * <p>
+ * No DOM or XMLObject tree is built while indexing, so the heap used is
+ * proportional to the number of entities rather than to the size of the
+ * XML. When the full EntityDescriptor of one entity is needed,
+ * {@link #getEntityDescriptor(String)} reads the source again, builds the
+ * DOM for that entity alone and unmarshalls it. Recently used
+ * EntityDescriptors are cached. The entity is found again by its position,
+ * so once the file has changed no EntityDescriptor is built from it; the
+ * file has to be indexed again.
+ * <p>
+ * An index read from a file can be saved as a binary snapshot next to it
+ * with {@link #writeSnapshot(File)}. {@link #load(File)} maps the snapshot
+ * into memory and rebuilds the index from it without parsing any XML, as
+ * long as the snapshot is intact, of this version and was taken from the
+ * file as it is now, down to the SHA-256 digest of its bytes; otherwise it indexes the XML and writes a new snapshot.
+ * <p>
+ * An index never changes once read and may be shared by all threads.
+ *
+ * @author Paul Hethmon
+ */
+public class MetaDataIndex {
+
+  /** Class logger. */
+  private static final Logger log = Logger.getLogger(MetaDataIndex.class);
+
+  /** The SAML 2.0 metadata namespace. */
+  public static final String MD_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+
+  private static final String DS_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+  /** Most EntityDescriptors kept unmarshalled before the cache is cleared. */
+  private static final int MAX_CACHED_ENTITIES = 256;
+
+  /** Version of the snapshot format; older or newer snapshots are ignored. */
+  public static final int SNAPSHOT_VERSION = 3;
+
+  /** "MDIX", the first four bytes of every snapshot. */
+  private static final int SNAPSHOT_MAGIC = 0x4d444958;
+
+  /** Length of the SHA-256 digest of the source. */
+  private static final int DIGEST_SIZE = 32;
+
+  /** magic, version, source length, source time, source digest, payload length, CRC-32 */
+  private static final int SNAPSHOT_HEADER_SIZE = 4 + 4 + 8 + 8 + DIGEST_SIZE + 4 + 8;
+
+  private final File file;
+  private final byte [] content;
+  private final long sourceLength, sourceModified;
+  private final byte [] sourceDigest;
+  private final Map<String, Entity> entities;
+  private final ConcurrentHashMap<String, EntityDescriptor> descriptors =
+    new ConcurrentHashMap<String, EntityDescriptor>();
+
+  private MetaDataIndex(File newFile, byte [] newContent, long newSourceLength, long newSourceModified,
+    byte [] newSourceDigest, Map<String, Entity> newEntities) {
+    file = newFile;
+    content = newContent;
+    sourceLength = newSourceLength;
+    sourceModified = newSourceModified;
+    sourceDigest = newSourceDigest;
+    entities = newEntities;
+  }
+
+  /*
+   * Index a metadata file. The file is read again when an EntityDescriptor
+   * is asked for, so it must not be removed while the index is in use, and
+   * once it changes getEntityDescriptor() fails.
+   * @param metaFile The metadata file.
+   * @return The index.
+   */
+  public static MetaDataIndex read(File metaFile) throws IOException, MetadataProviderException {
+    // Note the file as it was before reading, so a change during the read is seen later
+    long length = metaFile.length(), modified = metaFile.lastModified();
+    // The digest is of the very bytes indexed, so a snapshot matches them
+    MessageDigest digest = newDigest();
+    Map<String, Entity> entities = index(metaFile, null, digest);
+    return new MetaDataIndex(metaFile, null, length, modified, digest.digest(), entities);
+  }
+  /*
+   * Index metadata held in memory. The bytes are kept for building
+   * EntityDescriptors and must not be changed afterwards.
+   * @param metaData The metadata XML.
+   * @return The index.
+   */
+  public static MetaDataIndex read(byte [] metaData) throws IOException, MetadataProviderException {
+    return new MetaDataIndex(null, metaData, -1, -1, null, index(null, metaData, null));
+  }
+
+  /*
+   * Index a metadata file, from its snapshot when there is a current one.
+   * When the snapshot is missing, damaged, of another version or older
+   * than the file, the XML is indexed and a new snapshot written.
+   * @param metaFile The metadata file.
+   * @return The index.
+   */
+  public static MetaDataIndex load(File metaFile) throws IOException, MetadataProviderException {
+    File snapshot = getSnapshotFile(metaFile);
+    if (snapshot.exists()) {
+      try {
+        MetaDataIndex index = readSnapshot(snapshot, metaFile);
+        if (index != null) return index;
+        log.info("Metadata snapshot " + snapshot + " is out of date, reading " + metaFile);
+      } catch (IOException e) {
+        log.warn("Unable to read metadata snapshot " + snapshot + ", reading " + metaFile + ": " + e.getMessage());
+      }
+    }
+    MetaDataIndex index = read(metaFile);
+    try {
+      index.writeSnapshot(snapshot);
+    } catch (IOException e) {
+      log.warn("Unable to write metadata snapshot " + snapshot + ": " + e.getMessage());
+    }
+    return index;
+  }
+
+  /*
+   * Get where the snapshot of a metadata file is kept.
+   * @param metaFile The metadata file.
+   * @return The file beside it with .snapshot added to the name.
+   */
+  public static File getSnapshotFile(File metaFile) {
+    return new File(metaFile.getPath() + ".snapshot");
+  }
+
+  /*
+   * Save the index as a binary snapshot. Only an index read from a file
+   * can be saved, since the snapshot records which version of the file it
+   * came from. The snapshot is replaced in one step.
+   * @param snapshot The snapshot file to write.
+   */
+  public void writeSnapshot(File snapshot) throws IOException {
+    if (file == null) {
+      throw new IllegalStateException("Only an index read from a file can be saved");
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(entities.size());
+    for (Entity e : entities.values()) {
+      writeString(out, e.entityId);
+      out.writeInt(e.ordinal);
+      out.writeByte((e.idp ? 1 : 0) | (e.sp ? 2 : 0));
+      writeCertificates(out, e.idpCertificates);
+      writeCertificates(out, e.spCertificates);
+      writeEndpoints(out, e.sso);
+      writeEndpoints(out, e.acs);
+    }
+    out.flush();
+    byte [] payload = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    File tmp = new File(snapshot.getPath() + ".tmp");
+    DataOutputStream f = new DataOutputStream(new FileOutputStream(tmp));
+    try {
+      f.writeInt(SNAPSHOT_MAGIC);
+      f.writeInt(SNAPSHOT_VERSION);
+      f.writeLong(sourceLength);
+      f.writeLong(sourceModified);
+      f.write(sourceDigest);
+      f.writeInt(payload.length);
+      f.writeLong(crc.getValue());
+      f.write(payload);
+    } finally {
+      f.close();
+    }
+    if (!tmp.renameTo(snapshot) && !(snapshot.delete() && tmp.renameTo(snapshot))) {
+      tmp.delete();
+      throw new IOException("Unable to rename " + tmp + " to " + snapshot);
+    }
+  }
+
+  /*
+   * Rebuild an index from its snapshot, mapped into memory.
+   * @param snapshot The snapshot file.
+   * @param metaFile The metadata file the snapshot was taken from.
+   * @return The index, or null if the snapshot is of another version or
+   *   the metadata file has changed since it was taken. The file is read
+   *   once to compare its digest when its length and time match.
+   */
+  public static MetaDataIndex readSnapshot(File snapshot, File metaFile) throws IOException {
+    long length = metaFile.length(), modified = metaFile.lastModified();
+    RandomAccessFile raf = new RandomAccessFile(snapshot, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < SNAPSHOT_HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Not a metadata snapshot");
+      }
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buf.getInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a metadata snapshot");
+      }
+      if (buf.getInt() != SNAPSHOT_VERSION) return null;
+      if (buf.getLong() != length || buf.getLong() != modified) return null;
+      byte [] digest = new byte[DIGEST_SIZE];
+      buf.get(digest);
+      // Length and time alone miss a file rewritten within the clock's resolution
+      if (!Arrays.equals(digest, digest(metaFile))) return null;
+      int payloadLength = buf.getInt();
+      long expectedCrc = buf.getLong();
+      if (payloadLength != buf.remaining()) {
+        throw new IOException("Metadata snapshot is truncated");
+      }
+      if (crc(buf.duplicate()) != expectedCrc) {
+        throw new IOException("Metadata snapshot checksum does not match");
+      }
+      Map<String, Entity> result = new LinkedHashMap<String, Entity>();
+      Map<String, String> strings = new HashMap<String, String>();
+      int count = buf.getInt();
+      for (int n = 0; n < count; n++) {
+        EntityBuilder b = new EntityBuilder(readString(buf, null), buf.getInt());
+        int flags = buf.get();
+        b.idp = (flags & 1) != 0;
+        b.sp = (flags & 2) != 0;
+        readCertificates(buf, b.idpCertificates);
+        readCertificates(buf, b.spCertificates);
+        readEndpoints(buf, b.sso, strings);
+        readEndpoints(buf, b.acs, strings);
+        result.put(b.entityId, b.build());
+      }
+      return new MetaDataIndex(metaFile, null, length, modified, digest, Collections.unmodifiableMap(result));
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Metadata snapshot is truncated");
+    } catch (NegativeArraySizeException e) {
+      throw new IOException("Metadata snapshot is damaged");
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static byte [] digest(File f) throws IOException {
+    MessageDigest md = newDigest();
+    InputStream in = new FileInputStream(f);
+    try {
+      byte [] buf = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buf)) > 0) md.update(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    return md.digest();
+  }
+
+  private static long crc(ByteBuffer buf) {
+    CRC32 crc = new CRC32();
+    byte [] chunk = new byte[64 * 1024];
+    while (buf.hasRemaining()) {
+      int n = Math.min(chunk.length, buf.remaining());
+      buf.get(chunk, 0, n);
+      crc.update(chunk, 0, n);
+    }
+    return crc.getValue();
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte [] b = s.getBytes("UTF-8");
+      out.writeInt(b.length);
+      out.write(b);
+    }
+  }
+
+  private static String readString(ByteBuffer buf, Map<String, String> strings) throws IOException {
+    int n = buf.getInt();
+    if (n < 0) return null;
+    byte [] b = new byte[n];
+    buf.get(b);
+    String s = new String(b, "UTF-8");
+    if (strings != null) {
+      String shared = strings.get(s);
+      if (shared == null) strings.put(s, s); else s = shared;
+    }
+    return s;
+  }
+
+  private static void writeCertificates(DataOutputStream out, byte [][] certificates) throws IOException {
+    out.writeInt(certificates.length);
+    for (int i = 0; i < certificates.length; i++) {
+      out.writeInt(certificates[i].length);
+      out.write(certificates[i]);
+    }
+  }
+
+  private static void readCertificates(ByteBuffer buf, List<byte []> certificates) {
+    int n = buf.getInt();
+    for (int i = 0; i < n; i++) {
+      byte [] der = new byte[buf.getInt()];
+      buf.get(der);
+      certificates.add(der);
+    }
+  }
+
+  private static void writeEndpoints(DataOutputStream out, Endpoint [] endpoints) throws IOException {
+    out.writeInt(endpoints.length);
+    for (int i = 0; i < endpoints.length; i++) {
+      writeString(out, endpoints[i].binding);
+      writeString(out, endpoints[i].location);
+      out.writeInt(endpoints[i].index);
+    }
+  }
+
+  private static void readEndpoints(ByteBuffer buf, List<Endpoint> endpoints, Map<String, String> strings)
+    throws IOException {
+    int n = buf.getInt();
+    for (int i = 0; i < n; i++) {
+      String binding = readString(buf, strings);
+      endpoints.add(new Endpoint(binding, readString(buf, null), buf.getInt()));
+    }
+  }
+
+  /*
+   * Get the number of entities in the metadata.
+   * @return The entity count.
+   */
+  public int size() {
+    return entities.size();
+  }
+  /*
+   * Get the entityIDs in the order they appear in the metadata.
+   * @return An unmodifiable set of entityIDs.
+   */
+  public Set<String> getEntityIds() {
+    return entities.keySet();
+  }
+  /*
+   * Get the indexed details of an entity.
+   * @param entityId The entityID.
+   * @return The entity, or null if it is not in the metadata.
+   */
+  public Entity getEntity(String entityId) {
+    return entities.get(entityId);
+  }
+
+  /*
+   * Get the full EntityDescriptor of one entity, built from the source the
+   * first time it is asked for. The EntityDescriptor is shared and must not
+   * be changed.
+   * @param entityId The entityID.
+   * @return The EntityDescriptor, or null if the entity is not in the metadata.
+   * @throws MetadataProviderException If the metadata file has changed since
+   *   it was indexed, or cannot be read.
+   */
+  public EntityDescriptor getEntityDescriptor(String entityId) throws MetadataProviderException {
+    Entity entity = entities.get(entityId);
+    if (entity == null) return null;
+    EntityDescriptor ed = descriptors.get(entityId);
+    if (ed == null) {
+      ed = unmarshall(entity);
+      if (descriptors.size() >= MAX_CACHED_ENTITIES) descriptors.clear();
+      descriptors.put(entityId, ed);
+    }
+    return ed;
+  }
+
+  /*
+   * Get a SignatureValidator for the IdP signing certificates of an entity.
+   * @param entityId The entityID.
+   * @return The SignatureValidator, or null if the entity is not in the
+   *   metadata or its IdP role has no signing certificate.
+   */
+  public SignatureValidator getSignatureValidator(String entityId)
+    throws CertificateException, java.security.NoSuchAlgorithmException, java.security.spec.InvalidKeySpecException {
+    Entity entity = entities.get(entityId);
+    return (entity == null) ? null : entity.getSignatureValidator();
+  }
+
+  private static InputStream open(File metaFile, byte [] metaData) throws IOException {
+    if (metaFile != null) return new BufferedInputStream(new FileInputStream(metaFile), 64 * 1024);
+    return new ByteArrayInputStream(metaData);
+  }
+
+  private static XMLStreamReader newReader(InputStream in) throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    // Metadata has no business with DTDs or external entities
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    return factory.createXMLStreamReader(in);
+  }
+
+  /*
+   * Stream through the metadata collecting each EntityDescriptor's keys
+   * and endpoints.
+   * @param digest Updated with every byte of the source, or null.
+   */
+  private static Map<String, Entity> index(File metaFile, byte [] metaData, MessageDigest digest)
+    throws IOException, MetadataProviderException {
+    Map<String, Entity> result = new LinkedHashMap<String, Entity>();
+    // Binding URIs repeat in every entity; keep one copy of each
+    Map<String, String> strings = new HashMap<String, String>();
+    final InputStream source = open(metaFile, metaData);
+    InputStream in = source;
+    if (digest != null) {
+      // The reader closes its stream at the end of the document; keep it open to read the rest
+      in = new FilterInputStream(new DigestInputStream(source, digest)) {
+        public void close() {
+        }
+      };
+    }
+    try {
+      XMLStreamReader r = newReader(in);
+      EntityBuilder entity = null;
+      int ordinal = 0;
+      String role = null;
+      boolean signingKey = false;
+      while (r.hasNext()) {
+        int event = r.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String ns = r.getNamespaceURI(), name = r.getLocalName();
+          if (MD_NS.equals(ns)) {
+            if ("EntityDescriptor".equals(name)) {
+              entity = new EntityBuilder(r.getAttributeValue(null, "entityID"), ordinal++);
+            } else if (entity == null) {
+              continue;
+            } else if ("IDPSSODescriptor".equals(name) || "SPSSODescriptor".equals(name)) {
+              role = name;
+              if ("IDPSSODescriptor".equals(name)) entity.idp = true; else entity.sp = true;
+            } else if ("KeyDescriptor".equals(name)) {
+              String use = r.getAttributeValue(null, "use");
+              signingKey = role != null && (use == null || "signing".equals(use));
+            } else if ("SingleSignOnService".equals(name) && "IDPSSODescriptor".equals(role)) {
+              entity.sso.add(newEndpoint(r, strings));
+            } else if ("AssertionConsumerService".equals(name) && "SPSSODescriptor".equals(role)) {
+              entity.acs.add(newEndpoint(r, strings));
+            }
+          } else if (signingKey && DS_NS.equals(ns) && "X509Certificate".equals(name)) {
+            byte [] der = Base64.decode(r.getElementText());
+            List<byte []> certificates = "IDPSSODescriptor".equals(role) ? entity.idpCertificates : entity.spCertificates;
+            if (der != null && !contains(certificates, der)) certificates.add(der);
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT && MD_NS.equals(r.getNamespaceURI())) {
+          String name = r.getLocalName();
+          if ("EntityDescriptor".equals(name) && entity != null) {
+            if (entity.entityId != null && !result.containsKey(entity.entityId)) {
+              result.put(entity.entityId, entity.build());
+            }
+            entity = null;
+          } else if ("IDPSSODescriptor".equals(name) || "SPSSODescriptor".equals(name)) {
+            role = null;
+          } else if ("KeyDescriptor".equals(name)) {
+            signingKey = false;
+          }
+        }
+      }
+      r.close();
+      if (digest != null) {
+        // The parser may stop short of trailing whitespace or comments
+        byte [] rest = new byte[8192];
+        while (in.read(rest) >= 0) continue;
+      }
+    } catch (XMLStreamException e) {
+      throw new MetadataProviderException("Unable to read metadata: " + e.getMessage(), e);
+    } finally {
+      source.close();
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  private static Endpoint newEndpoint(XMLStreamReader r, Map<String, String> strings) {
+    String binding = r.getAttributeValue(null, "Binding");
+    if (binding != null) {
+      String shared = strings.get(binding);
+      if (shared == null) strings.put(binding, binding); else binding = shared;
+    }
+    String index = r.getAttributeValue(null, "index");
+    int idx = -1;
+    if (index != null) {
+      try {
+        idx = Integer.parseInt(index.trim());
+      } catch (NumberFormatException e) {
+        idx = -1;
+      }
+    }
+    return new Endpoint(binding, r.getAttributeValue(null, "Location"), idx);
+  }
+
+  /*
+   * Read the source again up to the entity and build the DOM for it alone.
+   * The entity is found by its position, so the file must be the one that
+   * was indexed and the entityID there must be the one asked for.
+   */
+  private EntityDescriptor unmarshall(Entity entity) throws MetadataProviderException {
+    checkUnchanged();
+    try {
+      InputStream in = open(file, content);
+      try {
+        XMLStreamReader r = newReader(in);
+        // prefix, URI pairs of the namespaces declared by the open elements
+        List<String> declared = new ArrayList<String>();
+        List<Integer> marks = new ArrayList<Integer>();
+        int ordinal = 0;
+        while (r.hasNext()) {
+          int event = r.next();
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            if (MD_NS.equals(r.getNamespaceURI()) && "EntityDescriptor".equals(r.getLocalName())
+              && ordinal++ == entity.ordinal) {
+              String entityId = r.getAttributeValue(null, "entityID");
+              if (!entity.entityId.equals(entityId)) {
+                throw new MetadataProviderException("Found entity " + entityId + " in place of " + entity.entityId
+                  + ", the metadata has changed since it was indexed");
+              }
+              Element root = toElement(r, declared);
+              Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(root);
+              EntityDescriptor ed = (EntityDescriptor) unmarshaller.unmarshall(root);
+              // The file may have been replaced while it was being read
+              checkUnchanged();
+              return ed;
+            }
+            marks.add(Integer.valueOf(declared.size()));
+            for (int i = 0; i < r.getNamespaceCount(); i++) {
+              declared.add(r.getNamespacePrefix(i));
+              declared.add(r.getNamespaceURI(i));
+            }
+          } else if (event == XMLStreamConstants.END_ELEMENT) {
+            int mark = marks.remove(marks.size() - 1).intValue();
+            while (declared.size() > mark) declared.remove(declared.size() - 1);
+          }
+        }
+        throw new MetadataProviderException("Entity " + entity.entityId + " is no longer in the metadata");
+      } finally {
+        in.close();
+      }
+    } catch (MetadataProviderException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new MetadataProviderException("Unable to read metadata for " + entity.entityId + ": " + e.getMessage(), e);
+    }
+  }
+
+  /*
+   * Make sure the metadata file is still the one that was indexed.
+   */
+  private void checkUnchanged() throws MetadataProviderException {
+    if (file == null) return;
+    if (file.length() != sourceLength || file.lastModified() != sourceModified) {
+      throw new MetadataProviderException("Metadata file " + file + " has changed since it was indexed");
+    }
+  }
+
+  private static boolean contains(List<byte []> certificates, byte [] der) {
+    for (int i = 0; i < certificates.size(); i++) {
+      if (Arrays.equals(certificates.get(i), der)) return true;
+    }
+    return false;
+  }
+
+  /*
+   * Copy the element the reader is on, and everything in it, into a new DOM.
+   * The namespaces declared above it are declared again on the copy.
+   */
+  private static Element toElement(XMLStreamReader r, List<String> declared) throws Exception {
+    SAMLBootstrap.init();
+    Document doc = SharedParserPool.getInstance().newDocument();
+    Element root = null;
+    Node current = doc;
+    int depth = 0;
+    while (true) {
+      switch (r.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+          Element e = doc.createElementNS(emptyToNull(r.getNamespaceURI()), qualify(r.getPrefix(), r.getLocalName()));
+          if (root == null) {
+            root = e;
+            for (int i = 0; i < declared.size(); i += 2) declare(e, declared.get(i), declared.get(i + 1));
+          }
+          for (int i = 0; i < r.getNamespaceCount(); i++) declare(e, r.getNamespacePrefix(i), r.getNamespaceURI(i));
+          for (int i = 0; i < r.getAttributeCount(); i++) {
+            e.setAttributeNS(emptyToNull(r.getAttributeNamespace(i)),
+              qualify(r.getAttributePrefix(i), r.getAttributeLocalName(i)), r.getAttributeValue(i));
+          }
+          current.appendChild(e);
+          current = e;
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          current = current.getParentNode();
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          current.appendChild(doc.createTextNode(r.getText()));
+          break;
+        default:
+          break;
+      }
+      if (depth == 0) return root;
+      r.next();
+    }
+  }
+
+  private static void declare(Element e, String prefix, String uri) {
+    if (prefix == null || prefix.length() == 0) {
+      e.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE, uri == null ? "" : uri);
+    } else {
+      e.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, uri);
+    }
+  }
+
+  private static String qualify(String prefix, String localName) {
+    return (prefix == null || prefix.length() == 0) ? localName : prefix + ":" + localName;
+  }
+
+  private static String emptyToNull(String s) {
+    return (s == null || s.length() == 0) ? null : s;
+  }
+
+  /**
+   * What the index holds for one entity.
+   */
+  public static final class Entity {
+    private final String entityId;
+    private final int ordinal;
+    private final boolean idp, sp;
+    private final byte [][] idpCertificates, spCertificates;
+    private final Endpoint [] sso, acs;
+    private volatile SignatureValidator signatureValidator;
+
+    private Entity(EntityBuilder b) {
+      entityId = b.entityId;
+      ordinal = b.ordinal;
+      idp = b.idp;
+      sp = b.sp;
+      idpCertificates = b.idpCertificates.toArray(new byte[b.idpCertificates.size()][]);
+      spCertificates = b.spCertificates.toArray(new byte[b.spCertificates.size()][]);
+      sso = b.sso.toArray(new Endpoint[b.sso.size()]);
+      acs = b.acs.toArray(new Endpoint[b.acs.size()]);
+    }
+
+    public String getEntityId() {
+      return entityId;
+    }
+    /*
+     * Get whether the entity has an IDPSSODescriptor.
+     */
+    public boolean isIdP() {
+      return idp;
+    }
+    /*
+     * Get whether the entity has an SPSSODescriptor.
+     */
+    public boolean isSP() {
+      return sp;
+    }
+    /*
+     * Get the signing certificates of the entity's IDPSSODescriptor. The
+     * certificates are decoded on each call.
+     * @return The certificates in the order they appear.
+     */
+    public List<X509Certificate> getIdPSigningCertificates() throws CertificateException {
+      return decode(idpCertificates);
+    }
+    /*
+     * Get the number of IdP signing certificates.
+     * @return The certificate count.
+     */
+    public int getIdPSigningCertificateCount() {
+      return idpCertificates.length;
+    }
+    /*
+     * Get the signing certificates of the entity's SPSSODescriptor. The
+     * certificates are decoded on each call.
+     * @return The certificates in the order they appear.
+     */
+    public List<X509Certificate> getSPSigningCertificates() throws CertificateException {
+      return decode(spCertificates);
+    }
+    /*
+     * Get the number of SP signing certificates.
+     * @return The certificate count.
+     */
+    public int getSPSigningCertificateCount() {
+      return spCertificates.length;
+    }
+    /*
+     * Get the IdP SingleSignOnService endpoints.
+     * @return The endpoints in the order they appear.
+     */
+    public List<Endpoint> getSingleSignOnServices() {
+      return Collections.unmodifiableList(Arrays.asList(sso));
+    }
+    /*
+     * Get the SP AssertionConsumerService endpoints.
+     * @return The endpoints in the order they appear.
+     */
+    public List<Endpoint> getAssertionConsumerServices() {
+      return Collections.unmodifiableList(Arrays.asList(acs));
+    }
+    /*
+     * Get the IdP SingleSignOnService for a binding.
+     * @param binding The binding URI.
+     * @return The first endpoint with that binding, or null.
+     */
+    public Endpoint getSingleSignOnService(String binding) {
+      for (int i = 0; i < sso.length; i++) {
+        if (sso[i].getBinding() != null && sso[i].getBinding().equals(binding)) return sso[i];
+      }
+      return null;
+    }
+    /*
+     * Get the SP AssertionConsumerService at an index.
+     * @param index The AssertionConsumerServiceIndex.
+     * @return The endpoint, or null if there is none at that index.
+     */
+    public Endpoint getAssertionConsumerService(int index) {
+      for (int i = 0; i < acs.length; i++) {
+        if (acs[i].getIndex() == index) return acs[i];
+      }
+      return null;
+    }
+    /*
+     * Get a SignatureValidator that accepts a signature made with any of the
+     * IdP signing certificates, so an IdP can publish its next key before
+     * changing to it. It is built on first use.
+     * @return The SignatureValidator, or null if the IdP role has no
+     *   signing certificate.
+     */
+    public SignatureValidator getSignatureValidator()
+      throws CertificateException, java.security.NoSuchAlgorithmException, java.security.spec.InvalidKeySpecException {
+      SignatureValidator v = signatureValidator;
+      if (v == null && idpCertificates.length > 0) {
+        List<X509Certificate> certs = getIdPSigningCertificates();
+        SignatureValidator [] validators = new SignatureValidator[certs.size()];
+        for (int i = 0; i < validators.length; i++) {
+          validators[i] = MetaDataCache.newSignatureValidator(MetaDataCache.getSigningKey(certs.get(i)));
+        }
+        v = (validators.length == 1) ? validators[0] : new AnySignatureValidator(validators);
+        signatureValidator = v;
+      }
+      return v;
+    }
+
+    private static List<X509Certificate> decode(byte [][] certificates) throws CertificateException {
+      CertificateFactory cf = CertificateFactory.getInstance("X.509");
+      List<X509Certificate> certs = new ArrayList<X509Certificate>(certificates.length);
+      for (int i = 0; i < certificates.length; i++) {
+        certs.add((X509Certificate) cf.generateCertificate(new ByteArrayInputStream(certificates[i])));
+      }
+      return certs;
+    }
+  }
+
+  /*
+   * Accepts a signature that any one of several validators accepts.
+   */
+  private static final class AnySignatureValidator extends SignatureValidator {
+    private final SignatureValidator [] validators;
+
+    AnySignatureValidator(SignatureValidator [] newValidators) {
+      super(null);
+      validators = newValidators;
+    }
+
+    public void validate(Signature signature) throws ValidationException {
+      ValidationException failure = null;
+      for (int i = 0; i < validators.length; i++) {
+        try {
+          validators[i].validate(signature);
+          return;
+        } catch (ValidationException e) {
+          failure = e;
+        }
+      }
+      throw failure;
+    }
+  }
+
+  /**
+   * A SingleSignOnService or AssertionConsumerService.
+   */
+  public static final class Endpoint {
+    private final String binding, location;
+    private final int index;
+
+    Endpoint(String newBinding, String newLocation, int newIndex) {
+      binding = newBinding;
+      location = newLocation;
+      index = newIndex;
+    }
+
+    public String getBinding() {
+      return binding;
+    }
+    public String getLocation() {
+      return location;
+    }
+    /*
+     * Get the index of an AssertionConsumerService.
+     * @return The index, or -1 if it has none.
+     */
+    public int getIndex() {
+      return index;
+    }
+  }
+
+  /*
+   * Collects an entity while its EntityDescriptor is being read.
+   */
+  private static final class EntityBuilder {
+    final String entityId;
+    final int ordinal;
+    boolean idp, sp;
+    final List<byte []> idpCertificates = new ArrayList<byte []>(2), spCertificates = new ArrayList<byte []>(1);
+    final List<Endpoint> sso = new ArrayList<Endpoint>(2), acs = new ArrayList<Endpoint>(2);
+
+    EntityBuilder(String newEntityId, int newOrdinal) {
+      entityId = newEntityId;
+      ordinal = newOrdinal;
+    }
+
+    Entity build() {
+      return new Entity(this);
+    }
+  }
+}
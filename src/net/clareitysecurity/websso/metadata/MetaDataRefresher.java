@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * MetaDataRefresher.java
+ *
+ * Keeps the IdP metadata current from a background thread, asking the
+ * metadata server only for changes.
+ */
+
+package net.clareitysecurity.websso.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.clareitysecurity.websso.common.SAMLBootstrap;
+import net.clareitysecurity.websso.common.SharedParserPool;
+
+import org.apache.log4j.Logger;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.validation.ValidationException;
+import org.w3c.dom.Element;
+
+/**
+ * Refreshes the IdP metadata on a background timer and publishes the
+ * signing key from it as an immutable {@link MetaDataSnapshot}.
+ * <p>
+ * Unlike {@link MetaDataCache#fetchMetaData()}, nothing is parsed unless
+ * the metadata has changed. Each request sends back the ETag and
+ * Last-Modified the server last returned as If-None-Match and
+ * If-Modified-Since; a 304, or a body with the same SHA-256 digest as the
+ * metadata already loaded, ends the refresh there. The validators are saved
+ * beside the backing file, with the digest of the metadata they belong to,
+ * so they are still sent after a restart but never for a backing file that
+ * has been replaced since.
+ * New metadata is parsed, written to the backing file and then published
+ * through a volatile field in one step, so readers see either the old key
+ * or the new one and never wait for the metadata server.
+ * <p>
+ * {@link #start()} loads the backing file straight away when there is one
+ * and fetches from the server in the background. The validator returned
+ * by {@link #getSignatureValidator()} always checks against the current
+ * snapshot, so it can be given to an SPConfig once and still follow key
+ * changes at the IdP.
+ *
+ * @author Paul Hethmon
+ */
+public class MetaDataRefresher {
+
+  /** Class logger. */
+  private static final Logger log = Logger.getLogger(MetaDataRefresher.class);
+
+  /** Default time between refreshes, in milliseconds. */
+  public static final long DEFAULT_REFRESH_INTERVAL = 60 * 60 * 1000L;
+
+  /** Default time to wait for the metadata server, in milliseconds. */
+  public static final int DEFAULT_META_TIMEOUT = 60000;
+
+  /** Added to the backing file name to name the file the validators are saved in. */
+  public static final String VALIDATORS_SUFFIX = ".validators";
+
+  private final String metaUrl, metaFile;
+  private final SignatureValidator currentValidator = new CurrentSignatureValidator();
+
+  private volatile MetaDataSnapshot snapshot;
+  private volatile int metaTimeout = DEFAULT_META_TIMEOUT;
+  private volatile long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+  // The fields below are guarded by this
+  private byte [] digest;
+  private String etag;
+  private String lastModified;
+  private Timer timer;
+
+  private final AtomicLong
+    fetchCount = new AtomicLong(),
+    notModifiedCount = new AtomicLong(),
+    unchangedCount = new AtomicLong(),
+    updateCount = new AtomicLong(),
+    failureCount = new AtomicLong();
+
+  /*
+   * Create a refresher.
+   * @param newMetaUrl The URL of the metadata XML file.
+   * @param newMetaFile The full filename of the local backing file.
+   */
+  public MetaDataRefresher(String newMetaUrl, String newMetaFile) throws org.opensaml.xml.ConfigurationException {
+    SAMLBootstrap.init();
+    metaUrl = newMetaUrl;
+    metaFile = newMetaFile;
+  }
+
+  public String getMetaUrl() {
+    return metaUrl;
+  }
+  public String getMetaFile() {
+    return metaFile;
+  }
+  /*
+   * Set the time in milliseconds to wait for the metadata server to respond.
+   * @param newMetaTimeout The timeout in milliseconds.
+   */
+  public void setMetaTimeout(int newMetaTimeout) {
+    metaTimeout = newMetaTimeout;
+  }
+  public int getMetaTimeout() {
+    return metaTimeout;
+  }
+  /*
+   * Set the time between refreshes. Takes effect on the next start().
+   * @param newRefreshInterval The interval in milliseconds.
+   */
+  public void setRefreshInterval(long newRefreshInterval) {
+    if (newRefreshInterval <= 0) {
+      throw new IllegalArgumentException("Refresh interval must be positive");
+    }
+    refreshInterval = newRefreshInterval;
+  }
+  public long getRefreshInterval() {
+    return refreshInterval;
+  }
+
+  /*
+   * Get the metadata currently in use. This never blocks.
+   * @return The snapshot, or null if no metadata has been loaded yet.
+   */
+  public MetaDataSnapshot getSnapshot() {
+    return snapshot;
+  }
+  /*
+   * Get a SignatureValidator that checks against whichever snapshot is
+   * current when validate is called.
+   * @return The SignatureValidator.
+   */
+  public SignatureValidator getSignatureValidator() {
+    return currentValidator;
+  }
+
+  /*
+   * Load the backing file if there is one, then refresh from the server on
+   * a background timer. With no backing file the first fetch is made before
+   * returning so there is a key to check signatures with.
+   */
+  public synchronized void start() {
+    stop();
+    boolean loaded = false;
+    if (new File(metaFile).exists()) {
+      try {
+        loaded = loadBackingFile();
+      } catch (Exception e) {
+        log.warn("Unable to load metadata backing file " + metaFile + ": " + e.getMessage());
+      }
+    }
+    long delay = 0;
+    if (!loaded) {
+      refresh();
+      delay = refreshInterval;
+    }
+    timer = new Timer("MetaDataRefresher", true);
+    timer.schedule(new TimerTask() {
+      public void run() {
+        try {
+          refresh();
+        } catch (RuntimeException e) {
+          // An exception would end the timer thread and stop the refreshing
+          log.error("Unable to refresh metadata from " + metaUrl, e);
+        }
+      }
+    }, delay, refreshInterval);
+  }
+  /*
+   * Stop the background refreshing.
+   */
+  public synchronized void stop() {
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+  }
+
+  /*
+   * Load the metadata from the backing file, along with the validators the
+   * server sent for it if they were saved.
+   * @return true if the file held usable metadata.
+   */
+  public synchronized boolean loadBackingFile() throws IOException, MetadataProviderException {
+    byte [] content = readAll(new FileInputStream(metaFile));
+    publish(content);
+    // The time the file was written says nothing about the server's copy, so
+    // only validators the server sent for this content are used
+    etag = null;
+    lastModified = null;
+    loadValidators();
+    return true;
+  }
+
+  /*
+   * Ask the metadata server for changes and publish new metadata if there
+   * are any. Failures are logged and the current metadata kept.
+   * @return true if new metadata was published.
+   */
+  public synchronized boolean refresh() {
+    fetchCount.incrementAndGet();
+    HttpURLConnection conn = null;
+    try {
+      conn = (HttpURLConnection) new URL(metaUrl).openConnection();
+      conn.setConnectTimeout(metaTimeout);
+      conn.setReadTimeout(metaTimeout);
+      conn.setUseCaches(false);
+      if (etag != null) conn.setRequestProperty("If-None-Match", etag);
+      if (lastModified != null) conn.setRequestProperty("If-Modified-Since", lastModified);
+      int status = conn.getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        notModifiedCount.incrementAndGet();
+        if (log.isDebugEnabled()) log.debug("Metadata at " + metaUrl + " not modified");
+        return false;
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Metadata server returned HTTP " + status);
+      }
+      byte [] content = readAll(conn.getInputStream());
+      String newEtag = conn.getHeaderField("ETag");
+      String newLastModified = conn.getHeaderField("Last-Modified");
+      boolean updated = false;
+      if (Arrays.equals(sha256(content), digest)) {
+        unchangedCount.incrementAndGet();
+        if (log.isDebugEnabled()) log.debug("Metadata at " + metaUrl + " unchanged");
+      } else {
+        publish(content);
+        writeFile(metaFile, content);
+        updateCount.incrementAndGet();
+        log.info("Loaded new metadata from " + metaUrl);
+        updated = true;
+      }
+      if (updated || !same(etag, newEtag) || !same(lastModified, newLastModified)) {
+        etag = newEtag;
+        lastModified = newLastModified;
+        saveValidators();
+      }
+      return updated;
+    } catch (Exception e) {
+      failureCount.incrementAndGet();
+      log.warn("Unable to refresh metadata from " + metaUrl + ", keeping the current metadata: " + e.getMessage());
+      return false;
+    } finally {
+      if (conn != null) conn.disconnect();
+    }
+  }
+
+  /*
+   * Get the number of requests made to the metadata server.
+   * @return The fetch count.
+   */
+  public long getFetchCount() {
+    return fetchCount.get();
+  }
+  /*
+   * Get the number of fetches answered with 304 Not Modified.
+   * @return The not modified count.
+   */
+  public long getNotModifiedCount() {
+    return notModifiedCount.get();
+  }
+  /*
+   * Get the number of fetches that returned the metadata already loaded.
+   * @return The unchanged count.
+   */
+  public long getUnchangedCount() {
+    return unchangedCount.get();
+  }
+  /*
+   * Get the number of fetches that published new metadata.
+   * @return The update count.
+   */
+  public long getUpdateCount() {
+    return updateCount.get();
+  }
+  /*
+   * Get the number of fetches that failed.
+   * @return The failure count.
+   */
+  public long getFailureCount() {
+    return failureCount.get();
+  }
+
+  /*
+   * Parse metadata and make it the current snapshot.
+   */
+  private void publish(byte [] content) throws MetadataProviderException {
+    MetaDataSnapshot s;
+    try {
+      Element root = SharedParserPool.getInstance().parse(new ByteArrayInputStream(content)).getDocumentElement();
+      Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(root);
+      if (unmarshaller == null) {
+        throw new MetadataProviderException("No unmarshaller for metadata element " + root.getLocalName());
+      }
+      XMLObject xml = unmarshaller.unmarshall(root);
+      if (!(xml instanceof EntityDescriptor)) {
+        throw new MetadataProviderException("Metadata is not an EntityDescriptor");
+      }
+      EntityDescriptor entity = (EntityDescriptor) xml;
+      X509Certificate cert = MetaDataCache.getSigningCertificate(entity);
+      PublicKey key = MetaDataCache.getSigningKey(cert);
+      s = new MetaDataSnapshot(entity.getEntityID(), cert, key, MetaDataCache.newSignatureValidator(key),
+        System.currentTimeMillis());
+    } catch (MetadataProviderException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new MetadataProviderException("Unable to read metadata: " + e.getMessage(), e);
+    }
+    digest = sha256(content);
+    snapshot = s;
+  }
+
+  /*
+   * Read the validators saved with the backing file. They are ignored
+   * unless they were saved for the metadata just loaded.
+   */
+  private void loadValidators() {
+    File f = new File(metaFile + VALIDATORS_SUFFIX);
+    if (!f.exists()) return;
+    Properties p = new Properties();
+    try {
+      p.load(new ByteArrayInputStream(readAll(new FileInputStream(f))));
+    } catch (IOException e) {
+      log.warn("Unable to read metadata validators " + f + ": " + e.getMessage());
+      return;
+    }
+    if (!toHex(digest).equals(p.getProperty("sha256"))) {
+      if (log.isDebugEnabled()) log.debug("Metadata validators in " + f + " are for other metadata");
+      return;
+    }
+    etag = p.getProperty("etag");
+    lastModified = p.getProperty("lastModified");
+  }
+
+  /*
+   * Save the current validators beside the backing file, or remove the
+   * saved ones if the server sent none.
+   */
+  private void saveValidators() {
+    File f = new File(metaFile + VALIDATORS_SUFFIX);
+    if (etag == null && lastModified == null) {
+      if (f.exists() && !f.delete()) log.warn("Unable to delete metadata validators " + f);
+      return;
+    }
+    Properties p = new Properties();
+    p.setProperty("sha256", toHex(digest));
+    if (etag != null) p.setProperty("etag", etag);
+    if (lastModified != null) p.setProperty("lastModified", lastModified);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      p.store(out, "HTTP validators for " + metaUrl);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    writeFile(f.getPath(), out.toByteArray());
+  }
+
+  /*
+   * Replace a file in one step so a crash cannot leave half a file.
+   */
+  private static void writeFile(String name, byte [] content) {
+    File f = new File(name);
+    File tmp = new File(name + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(content);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+        throw new IOException("Unable to rename " + tmp + " to " + f);
+      }
+    } catch (IOException e) {
+      log.warn("Unable to write " + name + ": " + e.getMessage());
+    }
+  }
+
+  private static boolean same(String a, String b) {
+    return (a == null) ? b == null : a.equals(b);
+  }
+
+  private static String toHex(byte [] b) {
+    StringBuilder s = new StringBuilder(b.length * 2);
+    for (int i = 0; i < b.length; i++) {
+      s.append(Character.forDigit((b[i] >> 4) & 0xf, 16));
+      s.append(Character.forDigit(b[i] & 0xf, 16));
+    }
+    return s.toString();
+  }
+
+  private static byte [] readAll(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+      byte [] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte [] sha256(byte [] content) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(content);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /*
+   * Validates against the snapshot current at the time of the call.
+   */
+  private final class CurrentSignatureValidator extends SignatureValidator {
+    CurrentSignatureValidator() {
+      super(null);
+    }
+
+    public void validate(Signature signature) throws ValidationException {
+      MetaDataSnapshot s = snapshot;
+      if (s == null) {
+        throw new ValidationException("No metadata has been loaded from " + metaUrl);
+      }
+      s.getSignatureValidator().validate(signature);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * MetaDataSnapshot.java
+ *
+ * The IdP signing key read from one version of the metadata.
+ */
+
+package net.clareitysecurity.websso.metadata;
+
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+
+import org.opensaml.xml.signature.SignatureValidator;
+
+/**
+ * The signing certificate, PublicKey and SignatureValidator of an IdP as
+ * read from one version of its metadata. A snapshot never changes; a new
+ * version of the metadata gives a new snapshot.
+ *
+ * @author Paul Hethmon
+ */
+public final class MetaDataSnapshot {
+
+  private final String entityId;
+  private final X509Certificate certificate;
+  private final PublicKey publicKey;
+  private final SignatureValidator signatureValidator;
+  private final long loadedAt;
+
+  MetaDataSnapshot(String newEntityId, X509Certificate newCertificate, PublicKey newPublicKey,
+    SignatureValidator newSignatureValidator, long newLoadedAt) {
+    entityId = newEntityId;
+    certificate = newCertificate;
+    publicKey = newPublicKey;
+    signatureValidator = newSignatureValidator;
+    loadedAt = newLoadedAt;
+  }
+
+  /*
+   * Get the entityID of the IdP.
+   * @return The entityID.
+   */
+  public String getEntityId() {
+    return entityId;
+  }
+  /*
+   * Get the IdP signing certificate.
+   * @return The certificate.
+   */
+  public X509Certificate getCertificate() {
+    return certificate;
+  }
+  /*
+   * Get the PublicKey used to verify signatures of the IdP.
+   * @return The PublicKey.
+   */
+  public PublicKey getPublicKey() {
+    return publicKey;
+  }
+  /*
+   * Get the SignatureValidator for signatures of the IdP.
+   * @return The SignatureValidator.
+   */
+  public SignatureValidator getSignatureValidator() {
+    return signatureValidator;
+  }
+  /*
+   * Get when this version of the metadata was loaded.
+   * @return The time in milliseconds since the epoch.
+   */
+  public long getLoadedAt() {
+    return loadedAt;
+  }
+}
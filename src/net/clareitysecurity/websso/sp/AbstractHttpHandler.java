@@ -26,17 +26,13 @@
 package net.clareitysecurity.websso.sp;
 
 //import java.io.StringWriter;
+import net.clareitysecurity.websso.common.SAMLObjectRegistry;
+import net.clareitysecurity.websso.common.SecureIdGenerator;
+
 import org.apache.log4j.Logger;
-import org.joda.time.DateTime;
+import org.opensaml.common.IdentifierGenerator;
 import org.opensaml.common.xml.SAMLConstants;
-import org.opensaml.saml2.core.AuthnRequest;
-import org.opensaml.saml2.core.Issuer;
-import org.opensaml.saml2.core.Subject;
-import org.opensaml.saml2.core.impl.AuthnRequestBuilder;
 import org.opensaml.saml2.core.impl.AuthnRequestImpl;
-import org.opensaml.saml2.core.impl.IssuerBuilder;
-import org.opensaml.saml2.core.impl.SubjectBuilder;
-import org.opensaml.xml.XMLObjectBuilderFactory;
 
 /**
  *
@@ -47,9 +43,6 @@ public abstract class AbstractHttpHandler {
   /** Class logger. */
   private final Logger log = Logger.getLogger(AbstractHttpHandler.class);
   
-  private static boolean bootstrap = false;
-  private static int bootcount = 0;
-  
   public static final String
     REDIRECT_BINDING = SAMLConstants.SAML2_REDIRECT_BINDING_URI,
     POST_BINDING = SAMLConstants.SAML2_POST_BINDING_URI;
@@ -61,8 +54,14 @@ public abstract class AbstractHttpHandler {
       assertionConsumerServiceURL,
       bindingUriFormat;
   protected boolean
-      forceReAuthentication;
-  private String id = "acmemls" + new DateTime().getMillis();
+      forceReAuthentication,
+      useRequestTemplate;
+  private String id;
+  /** true when a subclass overrides buildAuthnRequest(). */
+  private boolean buildsOwnRequest;
+  protected IdentifierGenerator idGenerator = SecureIdGenerator.getInstance();
+  protected RequestTracker requestTracker;
+  protected final SAMLObjectRegistry registry;
   
   /*
    * The IssuerName is the unique identifier value of your server.
@@ -146,6 +145,53 @@ public abstract class AbstractHttpHandler {
     return bindingUriFormat;
   }
   
+  /*
+   * Set whether the AuthnRequest is written from a precompiled template instead
+   * of being marshalled through the DOM on every call. The output is the same.
+   * A subclass that overrides buildAuthnRequest() always has its request
+   * marshalled, whatever this is set to. Default value is true.
+   * @param newUseRequestTemplate true to use the template.
+   */
+  public void setUseRequestTemplate(boolean newUseRequestTemplate) {
+    useRequestTemplate = newUseRequestTemplate;
+  }
+  /*
+   * Get whether the AuthnRequest is written from a precompiled template.
+   * @return true if the template is used.
+   */
+  public boolean getUseRequestTemplate() {
+    return useRequestTemplate;
+  }
+  
+  /*
+   * Set the tracker the request ID is registered with when the request is
+   * created, so RecvResponse can match the Response to it. Share one tracker,
+   * such as RequestTracker.getInstance(), with the RecvResponse objects.
+   * Default value is null, which does not register requests.
+   * @param newRequestTracker The request tracker, or null.
+   */
+  public void setRequestTracker(RequestTracker newRequestTracker) {
+    requestTracker = newRequestTracker;
+  }
+  public RequestTracker getRequestTracker() {
+    return requestTracker;
+  }
+  
+  /*
+   * Set the generator the request ID is taken from. Default value is the
+   * shared SecureIdGenerator.
+   * @param newIdGenerator The ID generator.
+   */
+  public void setIdGenerator(IdentifierGenerator newIdGenerator) {
+    if (newIdGenerator == null) {
+      throw new IllegalArgumentException("ID generator may not be null");
+    }
+    idGenerator = newIdGenerator;
+  }
+  public IdentifierGenerator getIdGenerator() {
+    return idGenerator;
+  }
+  
   /**
    * Sets the unique identifier of the request. 
    * @param newId the unique identifier of the request
@@ -156,11 +202,15 @@ public abstract class AbstractHttpHandler {
   }
   
   /**
-   * Gets the unique identifier of the request.  
+   * Gets the unique identifier of the request. Unless one was set, it is
+   * taken from the ID generator the first time it is needed.
    * @return the unique identifier of the request
    */
   public String getId()
   {
+      if (id == null) {
+        id = idGenerator.generateIdentifier();
+      }
       return id;
   }
   
@@ -169,49 +219,80 @@ public abstract class AbstractHttpHandler {
    */
   public AbstractHttpHandler() throws org.opensaml.xml.ConfigurationException {
     // do the bootstrap thing and make sure the library is happy
-    if (bootstrap == false) {
-      org.opensaml.DefaultBootstrap.bootstrap();
-      bootstrap = true;
-      if (log.isInfoEnabled()) {
-        bootcount++;
-        log.info("AbstractHttpHandler.java (line 157) bootstrap has been called. [" + bootcount + "]");
-      }
-    }
+    registry = SAMLObjectRegistry.getInstance();
     forceReAuthentication = false;
+    useRequestTemplate = true;
     this.bindingUriFormat = this.POST_BINDING;
+    try {
+      buildsOwnRequest = getClass().getMethod("buildAuthnRequest").getDeclaringClass() != AbstractHttpHandler.class;
+    } catch (NoSuchMethodException e) {
+      // It is declared public here, so it is always found
+      buildsOwnRequest = true;
+    }
+  }
+  
+  /*
+   * Get an immutable copy of the current settings.
+   * @return The settings as an SPConfig.
+   */
+  public SPConfig getConfig() {
+    return getConfigBuilder().build();
+  }
+  
+  /*
+   * Get a builder holding the current settings. A subclass with settings of
+   * its own adds them here.
+   * @return A new SPConfig.Builder.
+   */
+  protected SPConfig.Builder getConfigBuilder() {
+    return new SPConfig.Builder()
+      .setIssuerName(issuerName)
+      .setProviderName(providerName)
+      .setActionURL(actionURL)
+      .setAssertionConsumerServiceURL(assertionConsumerServiceURL)
+      .setBindingUriFormat(bindingUriFormat)
+      .setForceReAuthentication(forceReAuthentication)
+      .setUseRequestTemplate(useRequestTemplate)
+      .setRequestTracker(requestTracker)
+      .setIdGenerator(idGenerator);
+  }
+  
+  /*
+   * Get an SPEngine for the current settings. Changing a setting afterwards
+   * does not affect an engine already returned.
+   * @return The SPEngine.
+   */
+  public SPEngine getEngine() {
+    return new SPEngine(getConfig(), registry);
   }
   
   public AuthnRequestImpl buildAuthnRequest() {
-    // Use the OpenSAML Configuration singleton to get a builder factory object
-    XMLObjectBuilderFactory builderFactory = org.opensaml.Configuration.getBuilderFactory();
-    // First get a builder for AuthnRequest
-    AuthnRequestBuilder arb = (AuthnRequestBuilder) builderFactory.getBuilder(AuthnRequest.DEFAULT_ELEMENT_NAME);
-    // And one for Issuer
-    IssuerBuilder ib = (IssuerBuilder) builderFactory.getBuilder(Issuer.DEFAULT_ELEMENT_NAME);
-    // And one for Subject
-    SubjectBuilder sb = (SubjectBuilder) builderFactory.getBuilder(Subject.DEFAULT_ELEMENT_NAME);
-    // build an AuthnRequest object
-    AuthnRequestImpl auth = (AuthnRequestImpl) arb.buildObject();
-    // Build the Issuer object
-    Issuer newIssuer = ib.buildObject();
-    newIssuer.setValue(issuerName);
-    auth.setIssuer(newIssuer);
-    auth.setProviderName(providerName);
-    auth.setAssertionConsumerServiceURL(assertionConsumerServiceURL);
-    auth.setDestination(actionURL);
-    auth.setProtocolBinding( getBindingUriFormat() );
-    // Only add the parameter if it is true.
-    if (forceReAuthentication == true) {
-      auth.setForceAuthn(forceReAuthentication);
+    return getEngine().buildAuthnRequest(getId());
+  }
+  
+  /*
+   * Write the AuthnRequest as UTF-8, from the template if it is enabled or
+   * from buildAuthnRequest() if not. Once it is written, the ID is
+   * registered with the request tracker if there is one.
+   * @return The SAML Request as UTF-8 bytes.
+   */
+  protected byte [] serializeAuthnRequest() throws org.opensaml.xml.io.MarshallingException {
+    SPEngine engine = getEngine();
+    String requestId = getId();
+    byte [] message;
+    // The template cannot know what an overridden buildAuthnRequest() changes
+    if (useRequestTemplate == true && buildsOwnRequest == false) {
+      message = engine.serializeAuthnRequest(requestId);
+    } else {
+      try {
+        message = engine.marshallRequest(buildAuthnRequest()).getBytes("UTF-8");
+      } catch (java.io.UnsupportedEncodingException e) {
+        throw new org.opensaml.xml.io.MarshallingException(e);
+      }
     }
-    //auth.setAssertionConsumerServiceIndex(0);
-    //auth.setAttributeConsumingServiceIndex(0);
-    auth.setVersion(org.opensaml.common.SAMLVersion.VERSION_20);
-    DateTime dt = new DateTime();
-    auth.setIssueInstant(dt);
-    auth.setID(id);
-    
-    return auth;
+    // A request that could not be written is never tracked
+    engine.track(requestId);
+    return message;
   }
   
 }
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * AsyncResponseProcessor.java
+ *
+ * Processes SAML Responses from the IdP off the servlet request thread.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs {@link SPEngine#processResponse} on an executor of its own so the
+ * servlet request thread does not parse XML or verify signatures.
+ * <p>
+ * {@link #submit} copies the form parameters and the parts of the request
+ * the decoder looks at before it returns, so the request thread can go
+ * back to the container straight away. With a Servlet 3 container, call
+ * <code>request.startAsync()</code>, submit, and write the page and call
+ * <code>AsyncContext.complete()</code> from the {@link Callback}. On older
+ * containers the returned Future can be waited on instead.
+ * <p>
+ * At most <b>maxPending</b> Responses are queued or running at once. A
+ * submit beyond that is refused with a RejectedExecutionException, which
+ * the caller should answer with a 503, rather than tying up another
+ * request thread. Any Executor can be given, such as a container managed
+ * pool or one that starts a thread per task; the default is a pool of one
+ * daemon thread per processor.
+ *
+ * @author Paul Hethmon
+ */
+public class AsyncResponseProcessor {
+
+  /** Class logger. */
+  private static final Logger log = Logger.getLogger(AsyncResponseProcessor.class);
+
+  /** Default number of Responses per thread that may be queued or running. */
+  public static final int DEFAULT_PENDING_PER_THREAD = 64;
+
+  /**
+   * Receives the outcome of a Response processed in the background. It is
+   * called on the executor thread.
+   */
+  public interface Callback {
+    /*
+     * Called when the Response was accepted.
+     * @param result The processed Response.
+     */
+    void completed(SPResult result);
+    /*
+     * Called when the Response was rejected or could not be processed.
+     * @param e The exception processResponse threw.
+     */
+    void failed(Exception e);
+  }
+
+  private final Executor executor;
+  private final ThreadPoolExecutor ownExecutor;
+  private final int maxPending;
+  private final Semaphore permits;
+
+  private final AtomicInteger
+    queued = new AtomicInteger(),
+    running = new AtomicInteger();
+  private final AtomicLong
+    submittedCount = new AtomicLong(),
+    rejectedCount = new AtomicLong(),
+    completedCount = new AtomicLong(),
+    failedCount = new AtomicLong();
+
+  /*
+   * Create a processor with one daemon thread per processor and
+   * DEFAULT_PENDING_PER_THREAD pending Responses per thread.
+   */
+  public AsyncResponseProcessor() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /*
+   * Create a processor with a pool of its own.
+   * @param threads The number of daemon threads.
+   */
+  public AsyncResponseProcessor(int threads) {
+    this(threads, threads * DEFAULT_PENDING_PER_THREAD);
+  }
+
+  /*
+   * Create a processor with a pool of its own.
+   * @param threads The number of daemon threads.
+   * @param newMaxPending The most Responses that may be queued or running.
+   */
+  public AsyncResponseProcessor(int threads, int newMaxPending) {
+    this(newPool(threads), newMaxPending, true);
+  }
+
+  /*
+   * Create a processor that runs on the given executor. The executor is not
+   * shut down by shutdown().
+   * @param newExecutor The executor.
+   * @param newMaxPending The most Responses that may be queued or running.
+   */
+  public AsyncResponseProcessor(Executor newExecutor, int newMaxPending) {
+    this(newExecutor, newMaxPending, false);
+  }
+
+  private AsyncResponseProcessor(Executor newExecutor, int newMaxPending, boolean owned) {
+    if (newExecutor == null) {
+      throw new IllegalArgumentException("Executor may not be null");
+    }
+    if (newMaxPending < 1) {
+      throw new IllegalArgumentException("maxPending must be at least 1");
+    }
+    executor = newExecutor;
+    ownExecutor = owned ? (ThreadPoolExecutor) newExecutor : null;
+    maxPending = newMaxPending;
+    permits = new Semaphore(newMaxPending);
+  }
+
+  private static ThreadPoolExecutor newPool(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1");
+    }
+    final AtomicInteger count = new AtomicInteger();
+    // The queue never holds more than maxPending; the permits bound it
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "AsyncResponseProcessor-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /*
+   * Process a Response in the background.
+   * @param engine The SPEngine to process it with.
+   * @param request The HTTP request carrying the SAMLResponse.
+   * @param callback Told the outcome, or null.
+   * @return The pending result; get() throws an ExecutionException holding
+   * the exception processResponse threw.
+   * @throws RejectedExecutionException If maxPending Responses are already
+   * pending or the executor refused the task.
+   */
+  public Future<SPResult> submit(final SPEngine engine, HttpServletRequest request, Callback callback) {
+    if (engine == null) {
+      throw new IllegalArgumentException("SPEngine may not be null");
+    }
+    if (!permits.tryAcquire()) {
+      rejectedCount.incrementAndGet();
+      throw new RejectedExecutionException(maxPending + " SAML Responses are already pending");
+    }
+    ResponseTask task;
+    try {
+      final HttpServletRequest detached = new DetachedRequest(request);
+      task = new ResponseTask(new Callable<SPResult>() {
+        public SPResult call() throws Exception {
+          return engine.processResponse(detached);
+        }
+      }, callback);
+      queued.incrementAndGet();
+      executor.execute(task);
+    } catch (RuntimeException e) {
+      queued.decrementAndGet();
+      permits.release();
+      if (e instanceof RejectedExecutionException) rejectedCount.incrementAndGet();
+      throw e;
+    }
+    submittedCount.incrementAndGet();
+    return task;
+  }
+
+  /*
+   * Stop the pool this processor created. Responses already submitted are
+   * still processed. A processor given its own executor does nothing.
+   */
+  public void shutdown() {
+    if (ownExecutor != null) ownExecutor.shutdown();
+  }
+
+  /*
+   * Get the most Responses that may be queued or running at once.
+   * @return The limit.
+   */
+  public int getMaxPending() {
+    return maxPending;
+  }
+  /*
+   * Get the number of Responses waiting for a thread.
+   * @return The queue depth.
+   */
+  public int getQueueDepth() {
+    return queued.get();
+  }
+  /*
+   * Get the number of Responses being processed.
+   * @return The running count.
+   */
+  public int getActiveCount() {
+    return running.get();
+  }
+  /*
+   * Get the number of Responses accepted for processing.
+   * @return The submitted count.
+   */
+  public long getSubmittedCount() {
+    return submittedCount.get();
+  }
+  /*
+   * Get the number of Responses refused because too many were pending.
+   * @return The rejected count.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+  /*
+   * Get the number of Responses processed successfully.
+   * @return The completed count.
+   */
+  public long getCompletedCount() {
+    return completedCount.get();
+  }
+  /*
+   * Get the number of Responses that failed or were cancelled.
+   * @return The failed count.
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * Keeps the counters and tells the callback when processing ends.
+   */
+  private final class ResponseTask extends FutureTask<SPResult> {
+    private final Callback callback;
+
+    ResponseTask(Callable<SPResult> work, Callback newCallback) {
+      super(work);
+      callback = newCallback;
+    }
+
+    public void run() {
+      queued.decrementAndGet();
+      running.incrementAndGet();
+      try {
+        super.run();
+      } finally {
+        running.decrementAndGet();
+        permits.release();
+      }
+    }
+
+    protected void done() {
+      SPResult result = null;
+      Exception failure = null;
+      try {
+        result = get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        failure = (cause instanceof Exception) ? (Exception) cause : e;
+      } catch (Exception e) {
+        // Cancelled, or interrupted while cancelling
+        failure = e;
+      }
+      if (failure == null) completedCount.incrementAndGet();
+      else failedCount.incrementAndGet();
+      if (callback == null) return;
+      try {
+        if (failure == null) callback.completed(result);
+        else callback.failed(failure);
+      } catch (RuntimeException e) {
+        log.error("SAML Response callback failed", e);
+      }
+    }
+  }
+
+  /**
+   * The parts of a request the POST decoder reads, copied on the request
+   * thread. Anything else is passed to the original request.
+   */
+  private static final class DetachedRequest extends HttpServletRequestWrapper {
+    private final String method, requestURI, scheme, characterEncoding, remoteAddr, remoteHost;
+    private final StringBuffer requestURL;
+    private final boolean secure;
+    private final Map<String, String []> parameters;
+
+    DetachedRequest(HttpServletRequest request) {
+      super(request);
+      method = request.getMethod();
+      requestURL = request.getRequestURL();
+      requestURI = request.getRequestURI();
+      scheme = request.getScheme();
+      characterEncoding = request.getCharacterEncoding();
+      remoteAddr = request.getRemoteAddr();
+      remoteHost = request.getRemoteHost();
+      secure = request.isSecure();
+      Map<String, String []> copy = new HashMap<String, String []>();
+      Enumeration<?> names = request.getParameterNames();
+      while (names != null && names.hasMoreElements()) {
+        String name = (String) names.nextElement();
+        copy.put(name, request.getParameterValues(name));
+      }
+      parameters = Collections.unmodifiableMap(copy);
+    }
+
+    public String getMethod() {
+      return method;
+    }
+    public StringBuffer getRequestURL() {
+      return (requestURL == null) ? null : new StringBuffer(requestURL.toString());
+    }
+    public String getRequestURI() {
+      return requestURI;
+    }
+    public String getScheme() {
+      return scheme;
+    }
+    public String getCharacterEncoding() {
+      return characterEncoding;
+    }
+    public String getRemoteAddr() {
+      return remoteAddr;
+    }
+    public String getRemoteHost() {
+      return remoteHost;
+    }
+    public boolean isSecure() {
+      return secure;
+    }
+    public String getParameter(String name) {
+      String [] values = parameters.get(name);
+      return (values == null || values.length == 0) ? null : values[0];
+    }
+    public String [] getParameterValues(String name) {
+      return parameters.get(name);
+    }
+    public Map<String, String []> getParameterMap() {
+      return parameters;
+    }
+    public Enumeration<String> getParameterNames() {
+      return Collections.enumeration(parameters.keySet());
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * AuthnRequestTemplate.java
+ *
+ * A precompiled AuthnRequest for one SP configuration. Only the ID and
+ * IssueInstant change between logins, so they are spliced into the
+ * serialized bytes instead of marshalling a new DOM each time.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.Configuration;
+import org.opensaml.xml.io.MarshallingException;
+
+/**
+ * The serialized form of the AuthnRequest an {@link SPEngine} builds for its
+ * configuration, split around the ID and IssueInstant attribute values.
+ * <p>
+ * The template is cut from the output of the normal DOM path, so the bytes
+ * it writes are the bytes the DOM path would produce. As a safety check a
+ * second request is rendered both ways when the template is compiled. If
+ * they differ the template is not used and the engine stays on the DOM path.
+ * <p>
+ * Templates are cached by configuration and shared between threads.
+ *
+ * @author Paul Hethmon
+ */
+final class AuthnRequestTemplate {
+
+  /** Class logger. */
+  private static final Logger log = Logger.getLogger(AuthnRequestTemplate.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Most configurations cached before the cache is cleared. */
+  private static final int MAX_CACHED = 64;
+
+  private static final String ID_MARK = "_authnRequestTemplateId";
+  private static final DateTime INSTANT_MARK = new DateTime(0L, ISOChronology.getInstanceUTC());
+
+  /** Marks a configuration whose template failed its check. */
+  private static final AuthnRequestTemplate NONE = new AuthnRequestTemplate(null, null);
+
+  private static final ConcurrentHashMap<String, AuthnRequestTemplate> cache =
+    new ConcurrentHashMap<String, AuthnRequestTemplate>();
+
+  /** The constant parts of the request, one more than there are slots. */
+  private final byte [][] segments;
+  /** For each slot, true if it takes the ID and false for the IssueInstant. */
+  private final boolean [] idSlot;
+  private final int fixedLength;
+
+  private AuthnRequestTemplate(byte [][] newSegments, boolean [] newIdSlot) {
+    segments = newSegments;
+    idSlot = newIdSlot;
+    int n = 0;
+    if (segments != null) {
+      for (int i = 0; i < segments.length; i++) n += segments[i].length;
+    }
+    fixedLength = n;
+  }
+
+  /*
+   * Get the template for an engine's configuration, compiling it on first use.
+   * @param engine The engine whose AuthnRequest is templated.
+   * @return The template, or null if the DOM path must be used.
+   */
+  static AuthnRequestTemplate getInstance(SPEngine engine) {
+    String key = engine.getConfig().getTemplateKey();
+    AuthnRequestTemplate template = cache.get(key);
+    if (template == null) {
+      try {
+        template = compile(engine);
+      } catch (MarshallingException e) {
+        log.warn("Unable to compile AuthnRequest template, using the DOM path", e);
+        template = null;
+      }
+      if (template == null) template = NONE;
+      if (cache.size() >= MAX_CACHED) cache.clear();
+      cache.put(key, template);
+    }
+    return (template == NONE) ? null : template;
+  }
+
+  /*
+   * Check whether an ID can be copied into the XML as is. Anything the
+   * serializer would escape is left to the DOM path.
+   * @param id The request ID.
+   * @return true if the template can be used for this ID.
+   */
+  static boolean canSplice(String id) {
+    if (id == null || id.length() == 0) return false;
+    for (int i = 0; i < id.length(); i++) {
+      char c = id.charAt(i);
+      if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || c == '_' || c == '-' || c == '.')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static AuthnRequestTemplate compile(SPEngine engine) throws MarshallingException {
+    String xml = engine.marshallRequest(engine.buildAuthnRequest(ID_MARK, INSTANT_MARK));
+    String idAttr = "ID=\"" + ID_MARK + "\"";
+    String instantAttr = "IssueInstant=\"" + formatInstant(INSTANT_MARK) + "\"";
+    int idPos = findOnce(xml, idAttr);
+    int instantPos = findOnce(xml, instantAttr);
+    if (idPos < 0 || instantPos < 0) {
+      log.warn("AuthnRequest template markers not found, using the DOM path");
+      return null;
+    }
+    // value offsets inside the attributes
+    int idStart = idPos + 4, idEnd = idStart + ID_MARK.length();
+    int instantStart = instantPos + 14, instantEnd = instantPos + instantAttr.length() - 1;
+
+    byte [][] segs = new byte[3][];
+    boolean [] slots = new boolean[2];
+    if (idStart < instantStart) {
+      segs[0] = xml.substring(0, idStart).getBytes(UTF8);
+      segs[1] = xml.substring(idEnd, instantStart).getBytes(UTF8);
+      segs[2] = xml.substring(instantEnd).getBytes(UTF8);
+      slots[0] = true;
+      slots[1] = false;
+    } else {
+      segs[0] = xml.substring(0, instantStart).getBytes(UTF8);
+      segs[1] = xml.substring(instantEnd, idStart).getBytes(UTF8);
+      segs[2] = xml.substring(idEnd).getBytes(UTF8);
+      slots[0] = false;
+      slots[1] = true;
+    }
+    AuthnRequestTemplate template = new AuthnRequestTemplate(segs, slots);
+
+    // Render one real request both ways and make sure they agree.
+    String probeId = engine.newId();
+    DateTime probeInstant = new DateTime();
+    byte [] expected = engine.marshallRequest(engine.buildAuthnRequest(probeId, probeInstant)).getBytes(UTF8);
+    if (!Arrays.equals(expected, template.toBytes(probeId, probeInstant))) {
+      log.warn("AuthnRequest template does not match the DOM output, using the DOM path");
+      return null;
+    }
+    if (log.isDebugEnabled()) log.debug("Compiled AuthnRequest template of " + template.fixedLength + " bytes");
+    return template;
+  }
+
+  private static int findOnce(String xml, String s) {
+    int i = xml.indexOf(s);
+    if (i < 0 || xml.indexOf(s, i + 1) >= 0) return -1;
+    return i;
+  }
+
+  private static String formatInstant(DateTime instant) {
+    return Configuration.getSAMLDateFormatter().print(instant);
+  }
+
+  /*
+   * Write the request with the given ID and IssueInstant.
+   * @param out Where to write the UTF-8 bytes.
+   * @param id The request ID. Must pass canSplice.
+   * @param issueInstant The issue instant.
+   */
+  void writeTo(OutputStream out, String id, DateTime issueInstant) throws IOException {
+    byte [] idBytes = id.getBytes(UTF8);
+    byte [] instantBytes = formatInstant(issueInstant).getBytes(UTF8);
+    out.write(segments[0]);
+    for (int i = 0; i < idSlot.length; i++) {
+      out.write(idSlot[i] ? idBytes : instantBytes);
+      out.write(segments[i + 1]);
+    }
+  }
+
+  /*
+   * Render the request with the given ID and IssueInstant.
+   * @param id The request ID. Must pass canSplice.
+   * @param issueInstant The issue instant.
+   * @return The request as UTF-8 bytes.
+   */
+  byte [] toBytes(String id, DateTime issueInstant) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(fixedLength + id.length() + 32);
+    try {
+      writeTo(out, id, issueInstant);
+    } catch (IOException e) {
+      // ByteArrayOutputStream does not throw
+      throw new IllegalStateException(e.toString());
+    }
+    return out.toByteArray();
+  }
+}
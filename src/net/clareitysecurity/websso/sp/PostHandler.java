@@ -24,7 +24,6 @@
 
 package net.clareitysecurity.websso.sp;
 
-import java.io.StringWriter;
 import org.joda.time.DateTime;
 
 import org.opensaml.*;
@@ -35,8 +34,6 @@ import org.opensaml.xml.io.*;
 import org.opensaml.xml.util.*;
 import org.opensaml.common.xml.SAMLConstants;
 
-import org.w3c.dom.Element;
-
 /**
  *
  * @author Paul Hethmon
@@ -55,9 +52,7 @@ public class PostHandler extends AbstractHttpHandler {
    * @return The BASE64 encoded SAMLRequest value.
    */
   public String createSAMLRequest() throws org.opensaml.xml.io.MarshallingException {
-    AuthnRequest auth = buildAuthnRequest();
-    
-    return createSAMLRequest(auth);
+    return SPEngine.base64Encode(serializeAuthnRequest());
   }
   /*
    * Create a fully formed BASE64 representation of the SAML Request. The return value
@@ -66,20 +61,7 @@ public class PostHandler extends AbstractHttpHandler {
    * @return The BASE64 encoded SAMLRequest value.
    */
   public String createSAMLRequest(AuthnRequest auth) throws org.opensaml.xml.io.MarshallingException {
-    String samlRequest;
-    
-    Marshaller marshaller = org.opensaml.Configuration.getMarshallerFactory().getMarshaller(auth);
-    Element authDOM = marshaller.marshall(auth);
-    // We use a StringWriter to produce our XML output. This gets us XML where
-    // the encoding is UTF-8
-    StringWriter rspWrt = new StringWriter();
-    XMLHelper.writeNode(authDOM, rspWrt);
-    String messageXML = rspWrt.toString();
-
-    // Now do a special base64 encoding of our XML. Normal base64 has line length limitations.
-    samlRequest = new String(Base64.encodeBytes(messageXML.getBytes(), Base64.DONT_BREAK_LINES));
-
-    return samlRequest;
+    return getEngine().createPostRequest(auth, null).getSAMLRequest();
   }
   
   /*
@@ -89,6 +71,6 @@ public class PostHandler extends AbstractHttpHandler {
    * @return The BASE64 encoded RelayState value.
    */
   public String createRelayState(String uncodedRelayState) {
-    return ( new String(Base64.encodeBytes(uncodedRelayState.getBytes(), Base64.DONT_BREAK_LINES)) );
+    return SPEngine.base64Encode(uncodedRelayState);
   }
 }
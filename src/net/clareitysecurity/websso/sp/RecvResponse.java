@@ -24,27 +24,17 @@
 
 package net.clareitysecurity.websso.sp;
 
-import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import javax.servlet.http.HttpServletRequest;
 
+import net.clareitysecurity.websso.common.ReplayCache;
+import net.clareitysecurity.websso.common.SAMLObjectRegistry;
+
 import org.apache.log4j.Logger;
-import org.opensaml.common.binding.BasicSAMLMessageContext;
-import org.opensaml.saml2.binding.decoding.HTTPPostDecoder;
-import org.opensaml.saml2.core.Assertion;
-import org.opensaml.saml2.core.NameID;
-import org.opensaml.saml2.core.Response;
-import org.opensaml.saml2.core.Subject;
-import org.opensaml.saml2.core.impl.ResponseBuilder;
-import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
-import org.opensaml.xml.XMLObjectBuilderFactory;
-import org.opensaml.xml.io.Marshaller;
-import org.opensaml.xml.parse.BasicParserPool;
-import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.signature.SignatureValidator;
-import org.opensaml.xml.util.Base64;
-import org.opensaml.xml.util.XMLHelper;
-import org.w3c.dom.Element;
 
 /**
  * This class handles receiving a SAML Response object from an IdP and
@@ -57,9 +47,6 @@ public class RecvResponse {
   /** Class logger. */
   private final Logger log = Logger.getLogger(RecvResponse.class);
   
-  private static boolean bootstrap = false;
-  private static int bootcount = 0;
-  
   /** HTTP request param name for SAML request. */
   public static final String REQUEST_PARAM = "SAMLRequest";
 
@@ -76,6 +63,15 @@ public class RecvResponse {
       inResponseTo;
   protected SignatureValidator
       signatureValidator;
+  protected ReplayCache
+      replayCache;
+  protected RequestTracker
+      requestTracker;
+  private final SAMLObjectRegistry registry;
+  /** The last processed Response, turned into responseXML on first use. */
+  private SPResult processedResponse;
+  /** The assertions of the last processed Response. */
+  private List<ValidatedAssertion> assertions = Collections.emptyList();
   
   /*
    * Set the value of the relay state.
@@ -111,12 +107,18 @@ public class RecvResponse {
    */
   public void setResponseXML(String newResponseXML) {
     responseXML = newResponseXML;
+    processedResponse = null;
   }
   /*
-   * Get the value of the Response XML as returned by the IdP.
+   * Get the value of the Response XML exactly as returned by the IdP. The
+   * String is only built when this is first called after processing.
    * @return The Response as XML.
    */
   public String getResponseXML() {
+    if (processedResponse != null) {
+      responseXML = processedResponse.getResponseXML();
+      processedResponse = null;
+    }
     return responseXML;
   }
   /*
@@ -127,6 +129,31 @@ public class RecvResponse {
   public void setSignatureValidator(SignatureValidator newSignatureValidator) {
     signatureValidator = newSignatureValidator;
   }
+  /*
+   * Set the cache used to reject an assertion that has already been accepted.
+   * Share one cache, such as ReplayCache.getInstance(), between all the
+   * RecvResponse objects of an SP. The default is null, which does not check
+   * for replays.
+   * @param newReplayCache The replay cache, or null.
+   */
+  public void setReplayCache(ReplayCache newReplayCache) {
+    replayCache = newReplayCache;
+  }
+  public ReplayCache getReplayCache() {
+    return replayCache;
+  }
+  /*
+   * Set the tracker the InResponseTo of each Response must match. Use the
+   * tracker given to the PostHandler or RedirectHandler that sent the
+   * requests. The default is null, which accepts any Response.
+   * @param newRequestTracker The request tracker, or null.
+   */
+  public void setRequestTracker(RequestTracker newRequestTracker) {
+    requestTracker = newRequestTracker;
+  }
+  public RequestTracker getRequestTracker() {
+    return requestTracker;
+  }
   
   /**
    * Gets the unique request identifier for which this is a response.  This will
@@ -138,18 +165,20 @@ public class RecvResponse {
   {
       return this.inResponseTo;
   }
+
+  /*
+   * Get every assertion of the last processed Response, each of which had a
+   * valid signature or was carried in a signed Response.
+   * @return An unmodifiable list, empty if nothing has been processed.
+   */
+  public List<ValidatedAssertion> getAssertions() {
+    return assertions;
+  }
   
   /** Creates a new instance of RecvResponse */
   public RecvResponse() throws org.opensaml.xml.ConfigurationException {
     // do the bootstrap thing and make sure the library is happy
-    if (bootstrap == false) {
-      org.opensaml.DefaultBootstrap.bootstrap();
-      bootstrap = true;
-      if (log.isInfoEnabled()) {
-        bootcount++;
-        log.info("RecvResponse.java (line 136) bootstrap has been called. [" + bootcount + "]");
-      }
-    }
+    registry = SAMLObjectRegistry.getInstance();
   }
   
   public void processRequest(HttpServletRequest request) 
@@ -157,54 +186,42 @@ public class RecvResponse {
       org.opensaml.ws.security.SecurityPolicyException, org.opensaml.xml.validation.ValidationException,
       org.opensaml.ws.message.MessageException, org.opensaml.xml.security.SecurityException
   {
-    java.util.List<Assertion> assertionsList;
-    
-    HTTPPostDecoder decode = new HTTPPostDecoder( new BasicParserPool() );
-    HttpServletRequestAdapter adapter = new HttpServletRequestAdapter(request);
-    BasicSAMLMessageContext context = new BasicSAMLMessageContext();
-    context.setInboundMessageTransport(adapter);
-    decode.decode(context);
-    relayState = adapter.getParameterValue(this.RELAY_STATE_PARAM); // decode.getRelayState();
-    // Only decode the relay state if there is one
-    if ((relayState != null) && (relayState.equalsIgnoreCase("") == false)) {
-      relayState = new String(Base64.decode(relayState));
+    SPResult result = getEngine().processResponse(request);
+    relayState = result.getRelayState();
+    inResponseTo = result.getInResponseTo();
+    assertions = result.getAssertions();
+    if (result.getLoginId() != null) {
+      setLoginId( result.getLoginId() );
     }
-    
-    // Use the OpenSAML Configuration singleton to get a builder factory object
-    XMLObjectBuilderFactory builderFactory = org.opensaml.Configuration.getBuilderFactory();
-    // Get a Response object
-    ResponseBuilder rspBldr = (ResponseBuilder) builderFactory.getBuilder(Response.DEFAULT_ELEMENT_NAME);
-    Response rsp = rspBldr.buildObject();
-    rsp = (Response) context.getInboundMessage();    
-    // get the id of the originating request
-    this.inResponseTo = rsp.getInResponseTo();
-    // Look in the SAML Response to pull out the Subject information
-    Assertion assertion;
-    // Get the list of assertions
-    assertionsList = rsp.getAssertions();
-    // Make sure at least one is present
-    if (assertionsList.size() > 0) {
-      // Get the first one only
-      assertion = (Assertion)assertionsList.get(0);
-      // Now we must validate the signature of the assertion
-      Signature signatureToValidate;
-      signatureToValidate = assertion.getSignature();
-      // Now try to validate. Throw exception if not valid.
-      signatureValidator.validate(signatureToValidate);
-      
-      // Pull the Subject data
-      Subject subject = assertion.getSubject();
-      // Now we have the NameID element
-      NameID nameId = subject.getNameID();
-      setLoginId( nameId.getValue() );
-    }
-    
-    Marshaller marshaller = org.opensaml.Configuration.getMarshallerFactory().getMarshaller(rsp);
-    Element authDOM = marshaller.marshall(rsp);
-    StringWriter rspWrt = new StringWriter();
-    XMLHelper.writeNode(authDOM, rspWrt);
-    setResponseXML( rspWrt.toString() );
+    // Keep the received Response; the XML String is built if someone asks for it
+    responseXML = null;
+    processedResponse = result;
     
     return;
   }
+  
+  /*
+   * Process the Response on an AsyncResponseProcessor instead of the
+   * request thread. The result is only passed to the callback and the
+   * returned Future; the login id and other properties of this object are
+   * left as they are.
+   * @param request The HTTP request carrying the SAMLResponse.
+   * @param processor The processor to run on.
+   * @param callback Told the outcome, or null.
+   * @return The pending result.
+   */
+  public Future<SPResult> processRequestAsync(HttpServletRequest request, AsyncResponseProcessor processor,
+    AsyncResponseProcessor.Callback callback) {
+    return processor.submit(getEngine(), request, callback);
+  }
+
+  /*
+   * Get an SPEngine using the current SignatureValidator, ReplayCache and
+   * RequestTracker.
+   * @return The SPEngine.
+   */
+  public SPEngine getEngine() {
+    return new SPEngine(new SPConfig.Builder().setSignatureValidator(signatureValidator)
+        .setReplayCache(replayCache).setRequestTracker(requestTracker).build(), registry);
+  }
 }
@@ -25,16 +25,15 @@
 
 package net.clareitysecurity.websso.sp;
 
-import java.io.StringWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.Signature;
-import java.util.List;
-import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
+import net.clareitysecurity.websso.idp.PrivateKeyCache;
+
 import javax.servlet.http.HttpServletResponse;
 
 import org.joda.time.DateTime;
@@ -47,18 +46,27 @@ import org.opensaml.xml.*;
 import org.opensaml.xml.io.*;
 import org.opensaml.xml.util.*;
 import org.opensaml.common.xml.SAMLConstants;
-import org.opensaml.util.URLBuilder;
-
-import org.w3c.dom.Element;
 
 /**
+ * Sends the AuthnRequest with the HTTP redirect binding. Given a private
+ * key, the request is signed over the query string: the SigAlg and
+ * Signature parameters follow SAMLRequest and RelayState in the URL.
  *
  * @author Paul Hethmon
  */
 public class RedirectHandler extends AbstractHttpHandler {
 
+  public static final String
+    SIG_ALG_PARAM = "SigAlg",
+    SIGNATURE_PARAM = "Signature";
+
   protected String
-    relayState;
+    relayState,
+    signatureAlgorithm;
+  protected PrivateKeyCache
+    privateKeyCache;
+  /** true when a subclass overrides deflateAndBase64Encode(String). */
+  private final boolean encodesOwnString;
   
   public void setRelayState(String newRelayState) {
     relayState = newRelayState;
@@ -67,11 +75,56 @@ public class RedirectHandler extends AbstractHttpHandler {
     return relayState;
   }
   
+  /*
+   * Set the key the redirect URL is signed with. Default value is null,
+   * which sends the request unsigned.
+   * @param newPrivateKeyCache The signing key, or null.
+   */
+  public void setPrivateKeyCache(PrivateKeyCache newPrivateKeyCache) {
+    privateKeyCache = newPrivateKeyCache;
+  }
+  public PrivateKeyCache getPrivateKeyCache() {
+    return privateKeyCache;
+  }
+  
+  /*
+   * Set the signature method URI sent as SigAlg. Default value is null,
+   * which signs with RSA-SHA1 for an RSA key and ECDSA-SHA256 for an EC key.
+   * @param newSignatureAlgorithm The signature method URI, or null.
+   */
+  public void setSignatureAlgorithm(String newSignatureAlgorithm) {
+    signatureAlgorithm = newSignatureAlgorithm;
+  }
+  public String getSignatureAlgorithm() {
+    return signatureAlgorithm;
+  }
+  
   /*
    * Create the RedirectHandler object for SP usage.
    */
   public RedirectHandler() throws org.opensaml.xml.ConfigurationException {
     super();
+    boolean overridden = false;
+    // The method is protected, so getMethod() cannot see it
+    for (Class<?> c = getClass(); c != RedirectHandler.class && !overridden; c = c.getSuperclass()) {
+      try {
+        c.getDeclaredMethod("deflateAndBase64Encode", String.class);
+        overridden = true;
+      } catch (NoSuchMethodException e) {
+        // Not declared at this level
+      }
+    }
+    encodesOwnString = overridden;
+  }
+  
+  /*
+   * Get a builder holding the current settings and the signing key.
+   * @return A new SPConfig.Builder.
+   */
+  protected SPConfig.Builder getConfigBuilder() {
+    return super.getConfigBuilder()
+      .setPrivateKeyCache(privateKeyCache)
+      .setSignatureAlgorithm(signatureAlgorithm);
   }
   
   /*
@@ -80,27 +133,18 @@ public class RedirectHandler extends AbstractHttpHandler {
    *
    */
   public void sendSAMLRedirect(HttpServletResponse response) throws org.opensaml.xml.io.MarshallingException, BindingException, IOException {
-    // build an AuthnRequest object
-    AuthnRequestImpl auth = buildAuthnRequest();
-    
-
-    // Now we must marshall the object for the transfer over the wire.
-    Marshaller marshaller = org.opensaml.Configuration.getMarshallerFactory().getMarshaller(auth);
-    Element authDOM = marshaller.marshall(auth);
-    // We use a StringWriter to produce our XML output. This gets us XML where
-    // the encoding is UTF-8. We must have UTF-8 or bad things happen.
-    StringWriter rspWrt = new StringWriter();
-    XMLHelper.writeNode(authDOM, rspWrt);
-    String messageXML = rspWrt.toString();
+    // Write the AuthnRequest for the transfer over the wire.
+    byte [] message = serializeAuthnRequest();
 
-    String encodedMessage = deflateAndBase64Encode(messageXML);
+    // A subclass that encodes the String itself keeps doing so
+    String encodedMessage = encodesOwnString ? deflateAndBase64Encode(new String(message, "UTF-8"))
+      : deflateAndBase64Encode(message);
 
-    String redirectURL = buildRedirectURL(encodedMessage);
+    SPEngine engine = getEngine();
+    String redirectURL = engine.signRedirectURL(buildRedirectURL(encodedMessage));
 
-    response.setCharacterEncoding("UTF-8");
-    response.addHeader("Cache-control", "no-cache, no-store");
-    response.addHeader("Pragma", "no-cache");
-    response.sendRedirect(redirectURL);
+    engine.sendRedirect(new SPRequest(getId(), message, encodedMessage, getRelayState(),
+        getActionURL(), redirectURL), response);
     
     return;
   }
@@ -111,19 +155,8 @@ public class RedirectHandler extends AbstractHttpHandler {
    * @return The SAML Request as XML.
    */
   public String createSAMLRedirect() throws org.opensaml.xml.io.MarshallingException, BindingException, IOException {
-    // build an AuthnRequest object
-    AuthnRequestImpl auth = buildAuthnRequest();
-
-    // Now we must marshall the object for the transfer over the wire.
-    Marshaller marshaller = org.opensaml.Configuration.getMarshallerFactory().getMarshaller(auth);
-    Element authDOM = marshaller.marshall(auth);
-    // We use a StringWriter to produce our XML output. This gets us XML where
-    // the encoding is UTF-8. We must have UTF-8 or bad things happen.
-    StringWriter rspWrt = new StringWriter();
-    XMLHelper.writeNode(authDOM, rspWrt);
-    String messageXML = rspWrt.toString();
-
-    return messageXML;
+    // Write the AuthnRequest for the transfer over the wire.
+    return new String(serializeAuthnRequest(), "UTF-8");
   }
   
   /**
@@ -136,13 +169,16 @@ public class RedirectHandler extends AbstractHttpHandler {
    * @throws BindingException thrown if there is a problem compressing the message
    */
   protected String deflateAndBase64Encode(String message) {
-    int compressedLength;
-    byte [] data = new byte[message.length()];
-    Deflater deflater = new Deflater(Deflater.DEFLATED, true);
-    deflater.setInput(message.getBytes());
-    deflater.finish();
-    compressedLength = deflater.deflate(data);
-    return ( Base64.encodeBytes(data, 0, compressedLength) );
+    return SPEngine.deflateAndBase64Encode(message);
+  }
+  
+  /*
+   * DEFLATE (RFC1951) compress and BASE64 encode the given SAML message.
+   * @param message SAML message as UTF-8 bytes
+   * @return DEFLATE compressed and BASE64 encoded message
+   */
+  protected String deflateAndBase64Encode(byte [] message) {
+    return SPEngine.deflateAndBase64Encode(message);
   }
   
   /**
@@ -154,18 +190,7 @@ public class RedirectHandler extends AbstractHttpHandler {
    *
    */
   protected String buildRedirectURL(String message) {
-    URLBuilder urlBuilder = new URLBuilder(getActionURL());
-    
-    List<Pair<String, String>> queryParams = urlBuilder.getQueryParams();
-    queryParams.clear();
-    
-    queryParams.add(new Pair<String, String>("SAMLRequest", message));
-    
-    if (!DatatypeHelper.isEmpty(getRelayState())) {
-      queryParams.add(new Pair<String, String>("RelayState", getRelayState()));
-    }
-    
-    return urlBuilder.buildURL();
+    return SPEngine.buildRedirectURL(getActionURL(), message, getRelayState());
   }
   
 }
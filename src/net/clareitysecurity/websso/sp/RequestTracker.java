@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * RequestTracker.java
+ *
+ * The AuthnRequest IDs the SP has sent and is still waiting for a
+ * Response to.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Links each SAML Response to the AuthnRequest it answers. The ID of every
+ * AuthnRequest sent is registered with an expiry time; the InResponseTo of
+ * a Response must match a registered ID that has not expired, and matching
+ * it removes it so the same request cannot be answered twice.
+ * <p>
+ * IDs are held in a ConcurrentHashMap, so registering and consuming from
+ * many threads does not go through one lock. Expired IDs are swept out by
+ * whichever thread registers every 1024th ID, or sooner when the tracker
+ * is full. If it is still full after that, the IDs closest to expiring are
+ * dropped to make room and counted as evictions.
+ *
+ * @author Paul Hethmon
+ */
+public class RequestTracker {
+
+  /** Class logger. */
+  private static final Logger log = Logger.getLogger(RequestTracker.class);
+
+  private static volatile RequestTracker instance;
+
+  /** Default time an AuthnRequest may wait for its Response, in milliseconds. */
+  public static final long DEFAULT_TTL = 5 * 60 * 1000L;
+
+  /** Default for the most outstanding requests held. */
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+  private static final int SWEEP_INTERVAL_MASK = 1023;
+
+  private final ConcurrentHashMap<String, Long> outstanding;
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  private final long ttl;
+  private final int maxEntries;
+
+  private final AtomicLong
+    registeredCount = new AtomicLong(),
+    consumedCount = new AtomicLong(),
+    unknownCount = new AtomicLong(),
+    expiredCount = new AtomicLong(),
+    evictionCount = new AtomicLong();
+
+  /*
+   * Get the process-wide tracker, creating it with the defaults on first use.
+   * @return The shared RequestTracker.
+   */
+  public static RequestTracker getInstance() {
+    RequestTracker t = instance;
+    if (t == null) {
+      synchronized (RequestTracker.class) {
+        t = instance;
+        if (t == null) {
+          t = new RequestTracker(DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+          instance = t;
+        }
+      }
+    }
+    return t;
+  }
+
+  /** Creates a new instance of RequestTracker with the defaults */
+  public RequestTracker() {
+    this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+  }
+
+  /*
+   * Create a tracker.
+   * @param newTtl How long a request may wait for its Response, in milliseconds.
+   * @param newMaxEntries The most outstanding requests held.
+   */
+  public RequestTracker(long newTtl, int newMaxEntries) {
+    if (newTtl <= 0 || newMaxEntries <= 0) {
+      throw new IllegalArgumentException("Time to live and size must be positive");
+    }
+    ttl = newTtl;
+    maxEntries = newMaxEntries;
+    outstanding = new ConcurrentHashMap<String, Long>(Math.min(newMaxEntries, 1024), 0.75f, 64);
+  }
+
+  /*
+   * Get how long a request may wait for its Response.
+   * @return The time to live in milliseconds.
+   */
+  public long getTtl() {
+    return ttl;
+  }
+
+  /*
+   * Register the ID of an AuthnRequest being sent. Registering an ID again
+   * restarts its time to live.
+   * @param id The AuthnRequest ID.
+   */
+  public void register(String id) {
+    register(id, System.currentTimeMillis());
+  }
+
+  /*
+   * Register the ID of an AuthnRequest being sent.
+   * @param id The AuthnRequest ID.
+   * @param now The current time in milliseconds since the epoch.
+   */
+  public void register(String id, long now) {
+    if (id == null) {
+      throw new IllegalArgumentException("Request ID may not be null");
+    }
+    if (outstanding.put(id, Long.valueOf(now + ttl)) == null) {
+      if (size.incrementAndGet() > maxEntries) {
+        sweep(now, true);
+      }
+    }
+    if ((registeredCount.incrementAndGet() & SWEEP_INTERVAL_MASK) == 0) {
+      sweep(now, false);
+    }
+  }
+
+  /*
+   * Match the InResponseTo of a Response against the outstanding requests.
+   * A matched ID is removed, so it can only be matched once.
+   * @param inResponseTo The InResponseTo value.
+   * @return true if the ID was outstanding and had not expired.
+   */
+  public boolean consume(String inResponseTo) {
+    return consume(inResponseTo, System.currentTimeMillis());
+  }
+
+  /*
+   * Match the InResponseTo of a Response against the outstanding requests.
+   * @param inResponseTo The InResponseTo value.
+   * @param now The current time in milliseconds since the epoch.
+   * @return true if the ID was outstanding and had not expired.
+   */
+  public boolean consume(String inResponseTo, long now) {
+    Long expiresAt = (inResponseTo == null) ? null : outstanding.remove(inResponseTo);
+    if (expiresAt == null) {
+      unknownCount.incrementAndGet();
+      return false;
+    }
+    size.decrementAndGet();
+    if (expiresAt.longValue() <= now) {
+      expiredCount.incrementAndGet();
+      return false;
+    }
+    consumedCount.incrementAndGet();
+    return true;
+  }
+
+  /*
+   * Get the number of outstanding requests, including expired ones not yet swept.
+   * @return The size.
+   */
+  public int getSize() {
+    return size.get();
+  }
+  /*
+   * Get the number of IDs registered.
+   * @return The registered count.
+   */
+  public long getRegisteredCount() {
+    return registeredCount.get();
+  }
+  /*
+   * Get the number of Responses matched to an outstanding request.
+   * @return The consumed count.
+   */
+  public long getConsumedCount() {
+    return consumedCount.get();
+  }
+  /*
+   * Get the number of Responses whose InResponseTo was not outstanding.
+   * @return The unknown count.
+   */
+  public long getUnknownCount() {
+    return unknownCount.get();
+  }
+  /*
+   * Get the number of requests that expired, whether swept or answered too late.
+   * @return The expired count.
+   */
+  public long getExpiredCount() {
+    return expiredCount.get();
+  }
+  /*
+   * Get the number of requests dropped before they expired to make room.
+   * Anything above zero means the tracker is too small.
+   * @return The eviction count.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /*
+   * Remove expired IDs, and when full also the IDs closest to expiring.
+   * Only one thread sweeps at a time; the others carry on.
+   */
+  private void sweep(long now, boolean full) {
+    if (!sweeping.compareAndSet(false, true)) return;
+    try {
+      long soonest = Long.MAX_VALUE, latest = now;
+      for (Iterator<Map.Entry<String, Long>> i = outstanding.entrySet().iterator(); i.hasNext(); ) {
+        Map.Entry<String, Long> e = i.next();
+        long expiresAt = e.getValue().longValue();
+        if (expiresAt <= now) {
+          if (outstanding.remove(e.getKey(), e.getValue())) {
+            size.decrementAndGet();
+            expiredCount.incrementAndGet();
+          }
+        } else {
+          if (expiresAt < soonest) soonest = expiresAt;
+          if (expiresAt > latest) latest = expiresAt;
+        }
+      }
+      if (full && size.get() > maxEntries) {
+        // Still full of live requests; drop the oldest eighth of the time range
+        long evictBefore = soonest + (latest - soonest) / 8;
+        for (Iterator<Map.Entry<String, Long>> i = outstanding.entrySet().iterator(); i.hasNext(); ) {
+          Map.Entry<String, Long> e = i.next();
+          if (e.getValue().longValue() <= evictBefore && outstanding.remove(e.getKey(), e.getValue())) {
+            size.decrementAndGet();
+            evictionCount.incrementAndGet();
+          }
+        }
+        log.warn("RequestTracker is full, evicted outstanding requests; total evictions "
+          + evictionCount.get());
+      }
+    } finally {
+      sweeping.set(false);
+    }
+  }
+}
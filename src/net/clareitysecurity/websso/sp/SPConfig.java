@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SPConfig.java
+ *
+ * The settings a Service Provider uses to talk to one Identity Provider.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import java.util.concurrent.Executor;
+
+import net.clareitysecurity.websso.common.ReplayCache;
+import net.clareitysecurity.websso.common.SecureIdGenerator;
+import net.clareitysecurity.websso.common.SignatureAlgorithms;
+import net.clareitysecurity.websso.idp.PrivateKeyCache;
+
+import org.opensaml.common.IdentifierGenerator;
+import org.opensaml.xml.signature.SignatureValidator;
+
+/**
+ * Immutable Service Provider settings used by {@link SPEngine}. Build one
+ * with {@link SPConfig.Builder} and share it between threads.
+ *
+ * @author Paul Hethmon
+ */
+public final class SPConfig {
+
+  private final String
+      issuerName,
+      providerName,
+      actionURL,
+      assertionConsumerServiceURL,
+      bindingUriFormat;
+  private final boolean
+      forceReAuthentication,
+      useRequestTemplate;
+  private final SignatureValidator
+      signatureValidator;
+  private final ReplayCache
+      replayCache;
+  private final RequestTracker
+      requestTracker;
+  private final IdentifierGenerator
+      idGenerator;
+  private final Executor
+      verifyExecutor;
+  private final PrivateKeyCache
+      privateKeyCache;
+  private final String
+      signatureAlgorithm,
+      templateKey;
+
+  private SPConfig(Builder b) {
+    issuerName = b.issuerName;
+    providerName = b.providerName;
+    actionURL = b.actionURL;
+    assertionConsumerServiceURL = b.assertionConsumerServiceURL;
+    bindingUriFormat = b.bindingUriFormat;
+    forceReAuthentication = b.forceReAuthentication;
+    useRequestTemplate = b.useRequestTemplate;
+    signatureValidator = b.signatureValidator;
+    replayCache = b.replayCache;
+    requestTracker = b.requestTracker;
+    idGenerator = b.idGenerator;
+    verifyExecutor = b.verifyExecutor;
+    privateKeyCache = b.privateKeyCache;
+    signatureAlgorithm = b.signatureAlgorithm;
+    StringBuilder key = new StringBuilder();
+    String [] parts = { issuerName, providerName, actionURL, assertionConsumerServiceURL, bindingUriFormat };
+    for (int i = 0; i < parts.length; i++) {
+      // null and "null" must give different keys
+      key.append(parts[i] == null ? "\u0001" : parts[i]).append('\u0000');
+    }
+    templateKey = key.append(forceReAuthentication).toString();
+  }
+
+  /*
+   * Get the unique identifier value of your server.
+   */
+  public String getIssuerName() {
+    return issuerName;
+  }
+  /*
+   * Get the human readable name of your application.
+   */
+  public String getProviderName() {
+    return providerName;
+  }
+  /*
+   * Get the URL of the IdP the SAML Request is sent to.
+   */
+  public String getActionURL() {
+    return actionURL;
+  }
+  /*
+   * Get the URL the IdP returns the Assertion to.
+   */
+  public String getAssertionConsumerServiceURL() {
+    return assertionConsumerServiceURL;
+  }
+  /*
+   * Get the binding the IdP uses to return the SAML Response.
+   */
+  public String getBindingUriFormat() {
+    return bindingUriFormat;
+  }
+  /*
+   * Get whether the IdP is asked to re-authenticate the user.
+   */
+  public boolean getForceReAuthentication() {
+    return forceReAuthentication;
+  }
+  /*
+   * Get whether AuthnRequests built from this configuration are written from
+   * a precompiled template instead of the DOM.
+   */
+  public boolean getUseRequestTemplate() {
+    return useRequestTemplate;
+  }
+  /*
+   * Get the SignatureValidator used to check signed assertions from the IdP.
+   */
+  public SignatureValidator getSignatureValidator() {
+    return signatureValidator;
+  }
+  /*
+   * Get the cache of assertion IDs already accepted, or null if replays are
+   * not checked.
+   */
+  public ReplayCache getReplayCache() {
+    return replayCache;
+  }
+  /*
+   * Get the tracker of AuthnRequests waiting for a Response, or null if
+   * Responses are not matched to requests.
+   */
+  public RequestTracker getRequestTracker() {
+    return requestTracker;
+  }
+  /*
+   * Get the generator of AuthnRequest IDs.
+   */
+  public IdentifierGenerator getIdGenerator() {
+    return idGenerator;
+  }
+  /*
+   * Get the Executor that checks the signatures of a Response in parallel,
+   * or null if they are checked one after another on the request thread.
+   */
+  public Executor getVerifyExecutor() {
+    return verifyExecutor;
+  }
+  /*
+   * Get the key redirect binding requests are signed with, or null if they
+   * are not signed.
+   */
+  public PrivateKeyCache getPrivateKeyCache() {
+    return privateKeyCache;
+  }
+  /*
+   * Get the signature method URI redirect binding requests are signed with,
+   * or null to choose one from the type of the signing key.
+   */
+  public String getSignatureAlgorithm() {
+    return signatureAlgorithm;
+  }
+
+  /*
+   * Get a key that is equal for two configurations exactly when they build
+   * the same AuthnRequest.
+   */
+  String getTemplateKey() {
+    return templateKey;
+  }
+
+  /**
+   * Collects the settings for an SPConfig. A Builder is not thread safe;
+   * the SPConfig it builds is.
+   */
+  public static final class Builder {
+    private String
+        issuerName,
+        providerName,
+        actionURL,
+        assertionConsumerServiceURL,
+        bindingUriFormat = AbstractHttpHandler.POST_BINDING;
+    private boolean
+        forceReAuthentication = false,
+        useRequestTemplate = true;
+    private SignatureValidator
+        signatureValidator;
+    private ReplayCache
+        replayCache;
+    private RequestTracker
+        requestTracker;
+    private IdentifierGenerator
+        idGenerator = SecureIdGenerator.getInstance();
+    private Executor
+        verifyExecutor;
+    private PrivateKeyCache
+        privateKeyCache;
+    private String
+        signatureAlgorithm;
+
+    public Builder setIssuerName(String newIssuerName) {
+      issuerName = newIssuerName;
+      return this;
+    }
+    public Builder setProviderName(String newProviderName) {
+      providerName = newProviderName;
+      return this;
+    }
+    public Builder setActionURL(String newActionURL) {
+      actionURL = newActionURL;
+      return this;
+    }
+    public Builder setAssertionConsumerServiceURL(String newAssertionConsumerServiceURL) {
+      assertionConsumerServiceURL = newAssertionConsumerServiceURL;
+      return this;
+    }
+    /*
+     * Set the protocol binding format. Default value is the POST binding.
+     */
+    public Builder setBindingUriFormat(String newBindingUriFormat) {
+      bindingUriFormat = newBindingUriFormat;
+      return this;
+    }
+    public Builder setForceReAuthentication(boolean newForceReAuthentication) {
+      forceReAuthentication = newForceReAuthentication;
+      return this;
+    }
+    /*
+     * Set whether AuthnRequests are written from a precompiled template. The
+     * output is byte-identical to the DOM path. Default value is true.
+     */
+    public Builder setUseRequestTemplate(boolean newUseRequestTemplate) {
+      useRequestTemplate = newUseRequestTemplate;
+      return this;
+    }
+    public Builder setSignatureValidator(SignatureValidator newSignatureValidator) {
+      signatureValidator = newSignatureValidator;
+      return this;
+    }
+    /*
+     * Set the cache used to reject an assertion that has already been
+     * accepted. Default value is null, which does not check for replays.
+     */
+    public Builder setReplayCache(ReplayCache newReplayCache) {
+      replayCache = newReplayCache;
+      return this;
+    }
+    /*
+     * Set the tracker that AuthnRequest IDs are registered with when sent and
+     * that the InResponseTo of each Response must match. Default value is
+     * null, which accepts any Response, including unsolicited ones.
+     */
+    public Builder setRequestTracker(RequestTracker newRequestTracker) {
+      requestTracker = newRequestTracker;
+      return this;
+    }
+    /*
+     * Set the generator of AuthnRequest IDs. Default value is the shared
+     * SecureIdGenerator.
+     */
+    public Builder setIdGenerator(IdentifierGenerator newIdGenerator) {
+      if (newIdGenerator == null) {
+        throw new IllegalArgumentException("ID generator may not be null");
+      }
+      idGenerator = newIdGenerator;
+      return this;
+    }
+    /*
+     * Set the Executor used when a Response carries more than one signature.
+     * The request thread checks the first; each assertion after it is parsed
+     * again from the received bytes and checked in that copy, so no two
+     * threads share a DOM. It should be bounded; a signature it rejects is
+     * checked on the request thread instead. SPEngine.getSharedVerifyExecutor()
+     * has one thread per processor. Default value is null, which checks the
+     * signatures one after another on the request thread.
+     */
+    public Builder setVerifyExecutor(Executor newVerifyExecutor) {
+      verifyExecutor = newVerifyExecutor;
+      return this;
+    }
+    /*
+     * Set the key that signs redirect binding requests. The signature is
+     * sent in the SigAlg and Signature query parameters. Default value is
+     * null, which sends the requests unsigned.
+     */
+    public Builder setPrivateKeyCache(PrivateKeyCache newPrivateKeyCache) {
+      privateKeyCache = newPrivateKeyCache;
+      return this;
+    }
+    /*
+     * Set the signature method URI redirect binding requests are signed
+     * with. It must suit the signing key. Default value is null, which signs
+     * with RSA-SHA1 for an RSA key and ECDSA-SHA256 for an EC key.
+     */
+    public Builder setSignatureAlgorithm(String newSignatureAlgorithm) {
+      if (newSignatureAlgorithm != null && SignatureAlgorithms.getJCEAlgorithm(newSignatureAlgorithm) == null) {
+        throw new IllegalArgumentException("Unsupported signature method [" + newSignatureAlgorithm + "]");
+      }
+      signatureAlgorithm = newSignatureAlgorithm;
+      return this;
+    }
+    /*
+     * Create the SPConfig.
+     * @return A new immutable SPConfig holding the current settings.
+     */
+    public SPConfig build() {
+      return new SPConfig(this);
+    }
+  }
+}
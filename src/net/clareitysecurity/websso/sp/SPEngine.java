@@ -0,0 +1,699 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SPEngine.java
+ *
+ * Stateless Service Provider logic: create SAML Requests for the POST and
+ * redirect bindings and process the SAML Response from the IdP.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.clareitysecurity.websso.common.DeflateEncoder;
+import net.clareitysecurity.websso.common.QueryStringSigner;
+import net.clareitysecurity.websso.common.ReplayCache;
+import net.clareitysecurity.websso.common.RetainingPostDecoder;
+import net.clareitysecurity.websso.common.SAMLObjectRegistry;
+import net.clareitysecurity.websso.common.SharedParserPool;
+import net.clareitysecurity.websso.common.SignatureAlgorithms;
+import net.clareitysecurity.websso.idp.PrivateKeyCache;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.binding.BasicSAMLMessageContext;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.impl.AuthnRequestImpl;
+import org.opensaml.security.SAMLSignatureProfileValidator;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.validation.ValidationException;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+
+/**
+ * The Service Provider side of Web SSO without any per-request state. One
+ * SPEngine built from an {@link SPConfig} can be shared by every request
+ * thread; each call returns its result as an immutable {@link SPRequest}
+ * or {@link SPResult}.
+ * <p>
+ * Relay state is BASE64 encoded on the way out for both bindings and
+ * decoded again in {@link #processResponse(HttpServletRequest)}.
+ * <p>
+ * Requests the engine builds itself are written from a precompiled
+ * {@link AuthnRequestTemplate} unless the configuration turns it off.
+ * Requests passed in by the caller always go through the DOM.
+ * <p>
+ * With a signing key in the configuration, redirect binding requests are
+ * signed over the query string rather than with an XML signature.
+ * <p>
+ * Every signature on a Response and its assertions is checked. When there
+ * is more than one they are checked in parallel on the executor from the
+ * configuration, and the first invalid signature fails the Response.
+ *
+ * @author Paul Hethmon
+ */
+public class SPEngine {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** How long past NotOnOrAfter an assertion ID is remembered, in milliseconds. */
+  static final long REPLAY_CLOCK_SKEW = 3 * 60 * 1000L;
+  /** How long an assertion without NotOnOrAfter is remembered, in milliseconds. */
+  static final long REPLAY_DEFAULT_LIFETIME = 10 * 60 * 1000L;
+
+  /** Checks that a signature covers exactly the element it is on. */
+  private static final SAMLSignatureProfileValidator PROFILE_VALIDATOR = new SAMLSignatureProfileValidator();
+
+  private final SPConfig config;
+  private final SAMLObjectRegistry registry;
+  private volatile AuthnRequestTemplate template;
+
+  /*
+   * Create an SPEngine for the given settings.
+   * @param newConfig The Service Provider settings.
+   */
+  public SPEngine(SPConfig newConfig) throws org.opensaml.xml.ConfigurationException {
+    if (newConfig == null) {
+      throw new IllegalArgumentException("SPConfig may not be null");
+    }
+    config = newConfig;
+    registry = SAMLObjectRegistry.getInstance();
+  }
+
+  SPEngine(SPConfig newConfig, SAMLObjectRegistry newRegistry) {
+    config = newConfig;
+    registry = newRegistry;
+  }
+
+  /*
+   * Get the settings this engine was created with.
+   * @return The SPConfig.
+   */
+  public SPConfig getConfig() {
+    return config;
+  }
+
+  /*
+   * Create a new AuthnRequest ID.
+   * @return The ID from the configured generator.
+   */
+  public String newId() {
+    return config.getIdGenerator().generateIdentifier();
+  }
+
+  /*
+   * Build an AuthnRequest with a new ID.
+   * @return The AuthnRequest.
+   */
+  public AuthnRequestImpl buildAuthnRequest() {
+    return buildAuthnRequest(newId());
+  }
+
+  /*
+   * Build an AuthnRequest.
+   * @param id The ID to give the request.
+   * @return The AuthnRequest.
+   */
+  public AuthnRequestImpl buildAuthnRequest(String id) {
+    return buildAuthnRequest(id, new DateTime());
+  }
+
+  /*
+   * Build an AuthnRequest.
+   * @param id The ID to give the request.
+   * @param issueInstant The IssueInstant to give the request.
+   * @return The AuthnRequest.
+   */
+  public AuthnRequestImpl buildAuthnRequest(String id, DateTime issueInstant) {
+    // build an AuthnRequest object
+    AuthnRequestImpl auth = (AuthnRequestImpl) registry.getAuthnRequestBuilder().buildObject();
+    // Build the Issuer object
+    Issuer newIssuer = registry.getIssuerBuilder().buildObject();
+    newIssuer.setValue(config.getIssuerName());
+    auth.setIssuer(newIssuer);
+    auth.setProviderName(config.getProviderName());
+    auth.setAssertionConsumerServiceURL(config.getAssertionConsumerServiceURL());
+    auth.setDestination(config.getActionURL());
+    auth.setProtocolBinding(config.getBindingUriFormat());
+    // Only add the parameter if it is true.
+    if (config.getForceReAuthentication() == true) {
+      auth.setForceAuthn(Boolean.TRUE);
+    }
+    auth.setVersion(SAMLVersion.VERSION_20);
+    auth.setIssueInstant(issueInstant);
+    auth.setID(id);
+
+    return auth;
+  }
+
+  /*
+   * Marshall an AuthnRequest to XML.
+   * @param auth The AuthnRequest.
+   * @return The SAML Request as XML.
+   */
+  public String marshallRequest(AuthnRequest auth) throws MarshallingException {
+    Element authDOM = registry.getAuthnRequestMarshaller().marshall(auth);
+    // We use a StringWriter to produce our XML output. This gets us XML where
+    // the encoding is UTF-8
+    StringWriter rspWrt = new StringWriter();
+    XMLHelper.writeNode(authDOM, rspWrt);
+    return rspWrt.toString();
+  }
+
+  /*
+   * Write the AuthnRequest for this configuration as UTF-8. The template is
+   * used when it is enabled and the ID needs no escaping, otherwise the
+   * request is built and marshalled through the DOM.
+   * @param id The ID to give the request.
+   * @return The SAML Request as UTF-8 bytes.
+   */
+  public byte [] serializeAuthnRequest(String id) throws MarshallingException {
+    DateTime now = new DateTime();
+    if (config.getUseRequestTemplate() && AuthnRequestTemplate.canSplice(id)) {
+      AuthnRequestTemplate t = template;
+      if (t == null) {
+        t = AuthnRequestTemplate.getInstance(this);
+        template = t;
+      }
+      if (t != null) {
+        return t.toBytes(id, now);
+      }
+    }
+    return marshallRequest(buildAuthnRequest(id, now)).getBytes(UTF8);
+  }
+
+  /*
+   * Create a new SAML Request for the POST binding.
+   * @param relayState The relay state to send, or null.
+   * @return The values to place into the form submitted to the IdP.
+   */
+  public SPRequest createPostRequest(String relayState) throws MarshallingException {
+    String id = newId();
+    return postRequest(id, serializeAuthnRequest(id), relayState);
+  }
+
+  /*
+   * Create a SAML Request for the POST binding.
+   * @param auth The AuthnRequest to send.
+   * @param relayState The relay state to send, or null.
+   * @return The values to place into the form submitted to the IdP.
+   */
+  public SPRequest createPostRequest(AuthnRequest auth, String relayState) throws MarshallingException {
+    return postRequest(auth.getID(), marshallRequest(auth).getBytes(UTF8), relayState);
+  }
+
+  private SPRequest postRequest(String id, byte [] message, String relayState) {
+    track(id);
+    return new SPRequest(id, message, base64Encode(message),
+        encodeRelayState(relayState), config.getActionURL(), null);
+  }
+
+  /*
+   * Create a new SAML Request for the redirect binding.
+   * @param relayState The relay state to send, or null.
+   * @return The request, including the URL to redirect the browser to.
+   */
+  public SPRequest createRedirectRequest(String relayState) throws MarshallingException {
+    String id = newId();
+    return redirectRequest(id, serializeAuthnRequest(id), relayState);
+  }
+
+  /*
+   * Create a SAML Request for the redirect binding.
+   * @param auth The AuthnRequest to send.
+   * @param relayState The relay state to send, or null.
+   * @return The request, including the URL to redirect the browser to.
+   */
+  public SPRequest createRedirectRequest(AuthnRequest auth, String relayState) throws MarshallingException {
+    return redirectRequest(auth.getID(), marshallRequest(auth).getBytes(UTF8), relayState);
+  }
+
+  private SPRequest redirectRequest(String id, byte [] message, String relayState) throws MarshallingException {
+    String encodedMessage = deflateAndBase64Encode(message);
+    String encodedRelayState = encodeRelayState(relayState);
+    String redirectURL = signRedirectURL(buildRedirectURL(config.getActionURL(), encodedMessage, encodedRelayState));
+    track(id);
+    return new SPRequest(id, message, encodedMessage, encodedRelayState,
+        config.getActionURL(), redirectURL);
+  }
+
+  /*
+   * Add the SigAlg and Signature parameters to a redirect URL if the
+   * configuration has a signing key. The signature covers the query string
+   * as it is, which must start with SAMLRequest and may go on with
+   * RelayState.
+   * @param url The URL from buildRedirectURL.
+   * @return The signed URL, or url itself if requests are not signed.
+   */
+  String signRedirectURL(String url) throws MarshallingException {
+    PrivateKeyCache privateKeyCache = config.getPrivateKeyCache();
+    if (privateKeyCache == null) return url;
+    PrivateKey key = privateKeyCache.getPrivateKey();
+    if (key == null) {
+      throw new MarshallingException("No private key to sign the redirect request with");
+    }
+    String algorithm = config.getSignatureAlgorithm();
+    if (algorithm == null) algorithm = SignatureAlgorithms.getDefault(key);
+
+    int query = url.indexOf('?');
+    int end = url.indexOf('#');
+    if (end < 0) end = url.length();
+    if (query < 0 || query > end) {
+      throw new IllegalArgumentException("Redirect URL has no query string to sign");
+    }
+    StringBuilder signed = new StringBuilder(url.length() + 512);
+    signed.append(url, 0, end);
+    try {
+      signed.append('&').append(RedirectHandler.SIG_ALG_PARAM).append('=').append(URLEncoder.encode(algorithm, "UTF-8"));
+      byte [] value = QueryStringSigner.sign(algorithm, key, signed.subSequence(query + 1, signed.length()));
+      signed.append('&').append(RedirectHandler.SIGNATURE_PARAM).append('=');
+      DeflateEncoder.appendURLEncoded(signed, base64Encode(value));
+    } catch (GeneralSecurityException e) {
+      throw new MarshallingException("Unable to sign the redirect request", e);
+    } catch (UnsupportedEncodingException e) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(e.toString());
+    }
+    signed.append(url, end, url.length());
+    return signed.toString();
+  }
+
+  /*
+   * Register a request ID with the tracker, if requests are tracked.
+   * @param id The AuthnRequest ID being sent.
+   */
+  void track(String id) {
+    RequestTracker tracker = config.getRequestTracker();
+    if (tracker != null) tracker.register(id);
+  }
+
+  /*
+   * Send the browser to the IdP with a redirect binding request.
+   * @param request A request from createRedirectRequest.
+   * @param response The response to the browser.
+   */
+  public void sendRedirect(SPRequest request, HttpServletResponse response) throws IOException {
+    if (request.getRedirectURL() == null) {
+      throw new IllegalArgumentException("Request was not created for the redirect binding");
+    }
+    response.setCharacterEncoding("UTF-8");
+    response.addHeader("Cache-control", "no-cache, no-store");
+    response.addHeader("Pragma", "no-cache");
+    response.sendRedirect(request.getRedirectURL());
+  }
+
+  /*
+   * Reject assertions that have already been accepted, if replays are
+   * checked. Each ID is remembered until the assertion's NotOnOrAfter plus
+   * the allowed clock skew. If any assertion is rejected, the IDs recorded
+   * for the ones before it are forgotten again.
+   * @param assertions The validated assertions of one Response.
+   */
+  void checkReplay(List<Assertion> assertions) throws org.opensaml.ws.security.SecurityPolicyException {
+    ReplayCache cache = config.getReplayCache();
+    if (cache == null) return;
+    for (Assertion assertion : assertions) {
+      if (assertion.getID() == null) {
+        throw new org.opensaml.ws.security.SecurityPolicyException("Assertion has no ID");
+      }
+    }
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < assertions.size(); i++) {
+      Assertion assertion = assertions.get(i);
+      long expiresAt = now + REPLAY_DEFAULT_LIFETIME;
+      if (assertion.getConditions() != null && assertion.getConditions().getNotOnOrAfter() != null) {
+        expiresAt = assertion.getConditions().getNotOnOrAfter().getMillis();
+      }
+      // Keep it at least as long as the skew even if it has already expired
+      expiresAt = Math.max(expiresAt, now) + REPLAY_CLOCK_SKEW;
+      if (!cache.add(issuerOf(assertion), assertion.getID(), expiresAt, now)) {
+        for (int j = 0; j < i; j++) {
+          cache.remove(issuerOf(assertions.get(j)), assertions.get(j).getID());
+        }
+        throw new org.opensaml.ws.security.SecurityPolicyException("Assertion " + assertion.getID()
+          + " has already been used");
+      }
+    }
+  }
+
+  private static String issuerOf(Assertion assertion) {
+    return (assertion.getIssuer() == null) ? null : assertion.getIssuer().getValue();
+  }
+
+  /*
+   * Make sure a Response answers an outstanding AuthnRequest, if requests
+   * are tracked. The request is consumed so it cannot be answered again.
+   * @param rsp The Response.
+   */
+  void checkInResponseTo(Response rsp) throws org.opensaml.ws.security.SecurityPolicyException {
+    RequestTracker tracker = config.getRequestTracker();
+    if (tracker == null) return;
+    if (!tracker.consume(rsp.getInResponseTo())) {
+      throw new org.opensaml.ws.security.SecurityPolicyException("Response InResponseTo "
+        + rsp.getInResponseTo() + " does not match an outstanding request");
+    }
+  }
+
+  /*
+   * Decode the SAML Response posted back by the IdP and validate the signature
+   * of the Response, if it has one, and of every assertion in it. An
+   * assertion that is not signed itself must be carried in a signed Response.
+   * @param request The HTTP request carrying the SAMLResponse.
+   * @return The authenticated user and the rest of the Response details.
+   */
+  public SPResult processResponse(HttpServletRequest request)
+    throws org.opensaml.xml.io.MarshallingException, org.opensaml.common.binding.BindingException,
+      org.opensaml.ws.security.SecurityPolicyException, org.opensaml.xml.validation.ValidationException,
+      org.opensaml.ws.message.MessageException, org.opensaml.xml.security.SecurityException
+  {
+    RetainingPostDecoder decode = new RetainingPostDecoder();
+    HttpServletRequestAdapter adapter = new HttpServletRequestAdapter(request);
+    BasicSAMLMessageContext context = new BasicSAMLMessageContext();
+    context.setInboundMessageTransport(adapter);
+    decode.decode(context);
+    String relayState = adapter.getParameterValue(RecvResponse.RELAY_STATE_PARAM);
+    // Only decode the relay state if there is one
+    if ((relayState != null) && (relayState.equalsIgnoreCase("") == false)) {
+      relayState = new String(Base64.decode(relayState));
+    }
+
+    Response rsp = (Response) context.getInboundMessage();
+    // Throws if any signature is missing or not valid
+    validateSignatures(rsp, decode.getDecodedBytes());
+    // Checked after the signature so a forged Response cannot use up a request
+    checkInResponseTo(rsp);
+    List<Assertion> assertionsList = rsp.getAssertions();
+    // Only assertions of a Response accepted so far go in the replay cache,
+    // or anyone could fill it
+    checkReplay(assertionsList);
+    List<ValidatedAssertion> validated = new ArrayList<ValidatedAssertion>(assertionsList.size());
+    for (Assertion assertion : assertionsList) {
+      validated.add(new ValidatedAssertion(assertion));
+    }
+    // The NameID of the first assertion is the user
+    String loginId = validated.isEmpty() ? null : validated.get(0).getNameId();
+
+    // Keep the Response as received; the XML String is only built if asked for
+    return new SPResult(loginId, relayState, rsp.getInResponseTo(), decode.getDecodedBytes(),
+      rsp.getSignature() != null, Collections.unmodifiableList(validated));
+  }
+
+  /*
+   * Validate every signature in a Response. Each must cover exactly the
+   * element it is on and verify with the IdP key. When a verify executor is
+   * configured, the request thread checks the first signature while the
+   * executor checks the assertions after it; the first failure cancels the
+   * rest.
+   * @param rsp The unmarshalled Response.
+   * @param xml The bytes rsp was parsed from, or null to check sequentially.
+   */
+  void validateSignatures(Response rsp, byte [] xml) throws ValidationException {
+    List<Assertion> assertions = rsp.getAssertions();
+    List<Signature> signatures = new ArrayList<Signature>(assertions.size() + 1);
+    // The position in rsp of the assertion each signature is on, -1 for rsp
+    List<Integer> positions = new ArrayList<Integer>(assertions.size() + 1);
+    if (rsp.getSignature() != null) {
+      signatures.add(rsp.getSignature());
+      positions.add(Integer.valueOf(-1));
+    }
+    for (int i = 0; i < assertions.size(); i++) {
+      Assertion assertion = assertions.get(i);
+      if (assertion.getSignature() != null) {
+        signatures.add(assertion.getSignature());
+        positions.add(Integer.valueOf(i));
+      } else if (rsp.getSignature() == null) {
+        throw new ValidationException("Assertion " + assertion.getID() + " is not signed");
+      }
+    }
+    SignatureValidator validator = config.getSignatureValidator();
+    Executor executor = config.getVerifyExecutor();
+    if (signatures.size() < 2 || executor == null || xml == null) {
+      for (Signature signature : signatures) {
+        validateSignature(validator, signature);
+      }
+      return;
+    }
+
+    // Checking a signature writes to the DOM it reads: xmlsec adds namespace
+    // attributes while it canonicalizes. Only the request thread touches the
+    // DOM of rsp; each other check parses a DOM of its own from xml.
+    CompletionService<Object> completion = new ExecutorCompletionService<Object>(executor);
+    List<Future<Object>> submitted = new ArrayList<Future<Object>>(signatures.size() - 1);
+    try {
+      for (int i = 1; i < signatures.size(); i++) {
+        int position = positions.get(i).intValue();
+        try {
+          submitted.add(completion.submit(new SignatureCheck(validator, xml, position,
+            assertions.get(position).getID())));
+        } catch (RejectedExecutionException e) {
+          validateSignature(validator, signatures.get(i));
+        }
+      }
+      validateSignature(validator, signatures.get(0));
+      for (int i = 0; i < submitted.size(); i++) {
+        try {
+          completion.take().get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof ValidationException) throw (ValidationException) cause;
+          if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+          if (cause instanceof Error) throw (Error) cause;
+          throw new ValidationException((Exception) cause);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ValidationException("Interrupted while validating signatures");
+    } finally {
+      // Nothing is left running after a failure; finished checks ignore this
+      for (Future<Object> f : submitted) {
+        f.cancel(true);
+      }
+    }
+  }
+
+  /*
+   * Validate one signature against the SAML signature profile and the IdP key.
+   * @param validator The SignatureValidator for the IdP key.
+   * @param signature The signature.
+   */
+  static void validateSignature(SignatureValidator validator, Signature signature) throws ValidationException {
+    PROFILE_VALIDATOR.validate(signature);
+    validator.validate(signature);
+  }
+
+  /**
+   * The signature of one assertion checked on the verify executor, in a
+   * copy of the Response parsed for this check alone.
+   */
+  private static final class SignatureCheck implements Callable<Object> {
+    private final SignatureValidator validator;
+    private final byte [] xml;
+    private final int position;
+    private final String id;
+
+    /*
+     * @param newValidator The SignatureValidator for the IdP key.
+     * @param newXml The Response as received.
+     * @param newPosition The position of the assertion in the Response.
+     * @param newId The ID of the assertion at that position.
+     */
+    SignatureCheck(SignatureValidator newValidator, byte [] newXml, int newPosition, String newId) {
+      validator = newValidator;
+      xml = newXml;
+      position = newPosition;
+      id = newId;
+    }
+
+    public Object call() throws ValidationException {
+      Response copy;
+      try {
+        Element root = SharedParserPool.getInstance().parse(new ByteArrayInputStream(xml)).getDocumentElement();
+        copy = (Response) Configuration.getUnmarshallerFactory().getUnmarshaller(root).unmarshall(root);
+      } catch (XMLParserException e) {
+        throw new ValidationException("Unable to parse the Response again", e);
+      } catch (UnmarshallingException e) {
+        throw new ValidationException("Unable to unmarshall the Response again", e);
+      }
+      List<Assertion> assertions = copy.getAssertions();
+      Assertion assertion = (position < assertions.size()) ? assertions.get(position) : null;
+      if (assertion == null || !DatatypeHelper.safeEquals(id, assertion.getID()) || assertion.getSignature() == null) {
+        throw new ValidationException("Assertion " + id + " is not in the Response as received");
+      }
+      validateSignature(validator, assertion.getSignature());
+      return null;
+    }
+  }
+
+  /*
+   * Get an executor for SPConfig.Builder.setVerifyExecutor() that can be
+   * shared by every SPEngine. It has one daemon thread per processor and a
+   * bounded queue; when the queue is full the request thread runs the check
+   * itself.
+   * @return The shared executor.
+   */
+  public static Executor getSharedVerifyExecutor() {
+    return SharedVerifyExecutor.INSTANCE;
+  }
+
+  /**
+   * Creates the shared verify executor on first use.
+   */
+  private static final class SharedVerifyExecutor {
+    static final ThreadPoolExecutor INSTANCE;
+    static {
+      int threads = Runtime.getRuntime().availableProcessors();
+      final AtomicInteger count = new AtomicInteger();
+      INSTANCE = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(64 * threads), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SPEngine-verify-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+      INSTANCE.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  /*
+   * BASE64 encode a relay state value.
+   * @param relayState The relay state, or null.
+   * @return The encoded value, or null if relayState was null or empty.
+   */
+  public static String encodeRelayState(String relayState) {
+    if (DatatypeHelper.isEmpty(relayState)) return null;
+    return base64Encode(relayState);
+  }
+
+  /*
+   * BASE64 encode a message without line breaks.
+   * @param message The message.
+   * @return The encoded message.
+   */
+  static String base64Encode(String message) {
+    return base64Encode(message.getBytes());
+  }
+
+  /*
+   * BASE64 encode a message without line breaks.
+   * @param message The message bytes.
+   * @return The encoded message.
+   */
+  static String base64Encode(byte [] message) {
+    // Normal base64 has line length limitations.
+    return new String(Base64.encodeBytes(message, Base64.DONT_BREAK_LINES));
+  }
+
+  /*
+   * DEFLATE (RFC1951) compress and BASE64 encode a message.
+   * @param message SAML message
+   * @return The encoded message.
+   */
+  static String deflateAndBase64Encode(String message) {
+    return deflateAndBase64Encode(message.getBytes(UTF8));
+  }
+
+  /*
+   * DEFLATE (RFC1951) compress and BASE64 encode a message.
+   * @param message SAML message bytes
+   * @return The encoded message.
+   */
+  static String deflateAndBase64Encode(byte [] message) {
+    return DeflateEncoder.getInstance().encode(message);
+  }
+
+  /*
+   * Build the URL to redirect the client to. Any query string already on the
+   * action URL is replaced, as OpenSAML's URLBuilder does, and the BASE64
+   * message is escaped straight into the URL.
+   * @param actionURL The IdP URL.
+   * @param message base64 encoded SAML message
+   * @param relayState The relay state, or null.
+   * @return URL to redirect client to
+   */
+  static String buildRedirectURL(String actionURL, String message, String relayState) {
+    String fragment = null;
+    int end = actionURL.indexOf('#');
+    if (end >= 0) {
+      fragment = actionURL.substring(end + 1);
+    } else {
+      end = actionURL.length();
+    }
+    int query = actionURL.indexOf('?');
+    if (query >= 0 && query < end) end = query;
+
+    StringBuilder url = new StringBuilder(end + message.length() + 64);
+    url.append(actionURL, 0, end);
+    url.append('?').append(RecvResponse.REQUEST_PARAM).append('=');
+    DeflateEncoder.appendURLEncoded(url, message);
+    if (!DatatypeHelper.isEmpty(relayState)) {
+      url.append('&').append(RecvResponse.RELAY_STATE_PARAM);
+      String value = relayState.trim();
+      if (value.length() > 0) {
+        try {
+          url.append('=').append(URLEncoder.encode(value, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+          // UTF-8 is always supported
+          throw new IllegalStateException(e.toString());
+        }
+      }
+    }
+    if (!DatatypeHelper.isEmpty(fragment)) {
+      url.append('#').append(fragment);
+    }
+    return url.toString();
+  }
+}
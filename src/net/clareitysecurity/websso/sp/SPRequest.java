@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SPRequest.java
+ *
+ * A SAML Request created by SPEngine, ready to send to the IdP.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import java.nio.charset.Charset;
+
+/**
+ * The immutable result of {@link SPEngine#createPostRequest(String)} or
+ * {@link SPEngine#createRedirectRequest(String)}.
+ *
+ * @author Paul Hethmon
+ */
+public final class SPRequest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final String
+      id,
+      samlRequest,
+      relayState,
+      actionURL,
+      redirectURL;
+  private final byte []
+      requestBytes;
+  /** Decoded from requestBytes on first use. */
+  private String
+      requestXML;
+
+  SPRequest(String id, byte [] requestBytes, String samlRequest, String relayState,
+      String actionURL, String redirectURL) {
+    this.id = id;
+    this.requestBytes = requestBytes;
+    this.samlRequest = samlRequest;
+    this.relayState = relayState;
+    this.actionURL = actionURL;
+    this.redirectURL = redirectURL;
+  }
+
+  /*
+   * Get the ID of the AuthnRequest. The IdP echoes it back as InResponseTo.
+   * @return The request ID.
+   */
+  public String getId() {
+    return id;
+  }
+  /*
+   * Get the AuthnRequest as XML.
+   * @return The SAML Request as XML.
+   */
+  public String getRequestXML() {
+    String xml = requestXML;
+    if (xml == null) {
+      xml = new String(requestBytes, UTF8);
+      requestXML = xml;
+    }
+    return xml;
+  }
+  /*
+   * Get the AuthnRequest as UTF-8 bytes.
+   * @return A copy of the SAML Request bytes.
+   */
+  public byte [] getRequestBytes() {
+    return (byte []) requestBytes.clone();
+  }
+  /*
+   * Get the encoded value for the <b>SAMLRequest</b> parameter. For the POST
+   * binding it is BASE64, for the redirect binding DEFLATE and BASE64.
+   * @return The encoded SAMLRequest value.
+   */
+  public String getSAMLRequest() {
+    return samlRequest;
+  }
+  /*
+   * Get the value for the <b>RelayState</b> parameter, or null if there is none.
+   * @return The RelayState value.
+   */
+  public String getRelayState() {
+    return relayState;
+  }
+  /*
+   * Get the IdP URL the request is sent to.
+   * @return The action URL.
+   */
+  public String getActionURL() {
+    return actionURL;
+  }
+  /*
+   * Get the full URL to redirect the browser to. Only set for the redirect binding.
+   * @return The redirect URL, or null for the POST binding.
+   */
+  public String getRedirectURL() {
+    return redirectURL;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SPResult.java
+ *
+ * The outcome of processing a SAML Response received from the IdP.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * The immutable result of {@link SPEngine#processResponse}.
+ *
+ * @author Paul Hethmon
+ */
+public final class SPResult {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final String
+      loginId,
+      relayState,
+      inResponseTo;
+  private final byte []
+      responseBytes;
+  private final boolean
+      responseSigned;
+  private final List<ValidatedAssertion>
+      assertions;
+  /** Decoded from responseBytes on first use. */
+  private String
+      responseXML;
+
+  SPResult(String loginId, String relayState, String inResponseTo, byte [] responseBytes,
+    boolean responseSigned, List<ValidatedAssertion> assertions) {
+    this.loginId = loginId;
+    this.relayState = relayState;
+    this.inResponseTo = inResponseTo;
+    this.responseBytes = responseBytes;
+    this.responseSigned = responseSigned;
+    this.assertions = assertions;
+  }
+
+  /*
+   * Get the authenticated user as returned by the IdP.
+   * @return The login id, or null if the Response carried no assertion.
+   */
+  public String getLoginId() {
+    return loginId;
+  }
+  /*
+   * Get the decoded relay state returned by the IdP.
+   * @return The relay state, or null if there was none.
+   */
+  public String getRelayState() {
+    return relayState;
+  }
+  /*
+   * Get the ID of the AuthnRequest this Response answers.
+   * @return The InResponseTo value.
+   */
+  public String getInResponseTo() {
+    return inResponseTo;
+  }
+  /*
+   * Get whether the Response itself was signed, as well as or instead of
+   * its assertions.
+   * @return true if the Response carried a valid signature.
+   */
+  public boolean isResponseSigned() {
+    return responseSigned;
+  }
+  /*
+   * Get every assertion in the Response, in document order. The login id is
+   * taken from the first.
+   * @return An unmodifiable list, empty if the Response carried no assertion.
+   */
+  public List<ValidatedAssertion> getAssertions() {
+    return assertions;
+  }
+  /*
+   * Get the Response as XML, exactly as the IdP sent it.
+   * @return The Response as XML.
+   */
+  public String getResponseXML() {
+    String xml = responseXML;
+    if (xml == null) {
+      xml = new String(responseBytes, UTF8);
+      responseXML = xml;
+    }
+    return xml;
+  }
+  /*
+   * Get the Response as the IdP sent it, after BASE64 decoding.
+   * @return A copy of the Response bytes.
+   */
+  public byte [] getResponseBytes() {
+    return (byte []) responseBytes.clone();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * ValidatedAssertion.java
+ *
+ * One assertion of a SAML Response whose signature has been checked.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import org.opensaml.saml2.core.Assertion;
+
+/**
+ * The details of one assertion from a Response accepted by
+ * {@link SPEngine#processResponse}. The assertion was either signed itself
+ * or carried inside a signed Response, and that signature was valid.
+ *
+ * @author Paul Hethmon
+ */
+public final class ValidatedAssertion {
+
+  private final String
+      id,
+      issuer,
+      nameId;
+  private final boolean
+      signed;
+  private final Assertion
+      assertion;
+
+  ValidatedAssertion(Assertion newAssertion) {
+    assertion = newAssertion;
+    id = newAssertion.getID();
+    issuer = (newAssertion.getIssuer() == null) ? null : newAssertion.getIssuer().getValue();
+    nameId = (newAssertion.getSubject() == null || newAssertion.getSubject().getNameID() == null)
+      ? null : newAssertion.getSubject().getNameID().getValue();
+    signed = (newAssertion.getSignature() != null);
+  }
+
+  /*
+   * Get the ID of the assertion.
+   * @return The ID.
+   */
+  public String getId() {
+    return id;
+  }
+  /*
+   * Get the Issuer of the assertion.
+   * @return The issuer, or null if the assertion named none.
+   */
+  public String getIssuer() {
+    return issuer;
+  }
+  /*
+   * Get the NameID of the Subject.
+   * @return The NameID value, or null if the assertion has no Subject NameID.
+   */
+  public String getNameId() {
+    return nameId;
+  }
+  /*
+   * Get whether the assertion carried its own signature rather than relying
+   * on the signature of the Response.
+   * @return true if the assertion was signed.
+   */
+  public boolean isSigned() {
+    return signed;
+  }
+  /*
+   * Get the assertion as unmarshalled from the Response.
+   * @return The Assertion.
+   */
+  public Assertion getAssertion() {
+    return assertion;
+  }
+}
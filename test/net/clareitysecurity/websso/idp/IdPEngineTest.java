@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * IdPEngineTest.java
+ *
+ * Sends Responses from IdPEngine, written both through the DOM and with
+ * the streaming writer, to an SPEngine and checks what it accepts.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.StringWriter;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.clareitysecurity.websso.common.DeflateEncoder;
+import net.clareitysecurity.websso.common.QueryStringSigner;
+import net.clareitysecurity.websso.common.SignatureAlgorithms;
+import net.clareitysecurity.websso.metadata.MetaDataIndex;
+import net.clareitysecurity.websso.sp.SPConfig;
+import net.clareitysecurity.websso.sp.SPEngine;
+import net.clareitysecurity.websso.sp.SPRequest;
+import net.clareitysecurity.websso.sp.SPResult;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.validation.ValidationException;
+
+/**
+ * Tests for IdPEngine against SPEngine, with the bundled key pair and the
+ * IdP metadata in idp-meta.xml. Each check is made with both writers.
+ *
+ * @author Paul Hethmon
+ */
+public class IdPEngineTest {
+
+  private static final String IDP_ISSUER = "http://dev.acmeidp.com";
+  private static final String IDP_SSO_URL = "http://dev.acmeidp.com/sso";
+  private static final String SP_ISSUER = "http://sp.example.com";
+  private static final String SP_ACS_URL = "http://sp.example.com/acs";
+
+  private static final boolean [] WRITERS = { false, true };
+
+  private File resources;
+  private PrivateKeyCache privateKeyCache;
+  private PublicKeyCache publicKeyCache;
+  private SPEngine sp;
+
+  @Before
+  public void setUp() throws Exception {
+    resources = new File(System.getProperty("test.resources", "src"));
+    privateKeyCache = new PrivateKeyCache();
+    privateKeyCache.readPrivateKey(new File(resources, "private-key.pem").getPath());
+    publicKeyCache = new PublicKeyCache();
+    publicKeyCache.readPublicKey(new FileInputStream(new File(resources, "public-key.pem")));
+    sp = new SPEngine(new SPConfig.Builder()
+      .setIssuerName(SP_ISSUER)
+      .setActionURL(IDP_SSO_URL)
+      .setAssertionConsumerServiceURL(SP_ACS_URL)
+      .setSignatureValidator(MetaDataIndex.read(new File(resources, "idp-meta.xml")).getSignatureValidator(IDP_ISSUER))
+      .build());
+  }
+
+  @Test
+  public void responsesRoundTrip() throws Exception {
+    for (boolean streaming : WRITERS) {
+      IdPEngine idp = newIdP(streaming);
+      for (boolean redirect : new boolean [] { false, true }) {
+        String id = "_request" + redirect + streaming;
+        assertEquals(id, roundTrip(idp, id, redirect, "kim & <co>", "state").getInResponseTo());
+      }
+    }
+  }
+
+  @Test
+  public void responsesRoundTripOnManyThreads() throws Exception {
+    final IdPEngine dom = newIdP(false), streaming = newIdP(true);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (int n = 0; n < 200; n++) {
+        final int k = n;
+        results.add(executor.submit(new Callable<Object>() {
+          public Object call() throws Exception {
+            SPResult result = roundTrip((k % 4 < 2) ? dom : streaming, "_id" + k, k % 2 == 0, "user" + k, "rs" + k);
+            assertEquals("_id" + k, result.getInResponseTo());
+            return null;
+          }
+        }));
+      }
+      for (Future<Object> f : results) {
+        f.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void writtenResponseIsTheEncodedOne() throws Exception {
+    for (boolean streaming : WRITERS) {
+      IdPEngine idp = newIdP(streaming);
+      StringWriter out = new StringWriter();
+      idp.writeSuccessResponse(sp.buildAuthnRequest("_written"), "kim", "_response", out);
+      assertEquals("kim", post(out.toString()).getLoginId());
+    }
+  }
+
+  @Test
+  public void tamperedResponseIsRejected() throws Exception {
+    for (boolean streaming : WRITERS) {
+      IdPResult result = newIdP(streaming).createSuccessResponse(sp.buildAuthnRequest("_tampered"), "kim");
+      String xml = result.getResponseXML();
+      assertTrue(xml.indexOf(">kim<") > 0);
+      try {
+        post(Base64.encodeBytes(xml.replace(">kim<", ">admin<").getBytes("UTF-8"), Base64.DONT_BREAK_LINES));
+        fail("Tampered Response accepted, streaming " + streaming);
+      } catch (ValidationException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void charactersOutsideTheBMPAreRefused() throws Exception {
+    for (boolean streaming : WRITERS) {
+      try {
+        newIdP(streaming).createSuccessResponse(sp.buildAuthnRequest("_bmp"), "x\uD83D\uDE00y");
+        fail("Signed a login id outside the BMP, streaming " + streaming);
+      } catch (MarshallingException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void unusableKeyringIsNotSkipped() throws Exception {
+    SigningKeyring notYetActive = new SigningKeyring();
+    notYetActive.addKey(privateKeyCache.getPrivateKey(), publicKeyCache.getX509Certificate(),
+      System.currentTimeMillis() + 60 * 60 * 1000L);
+    SigningKeyring wrongMethod = new SigningKeyring();
+    wrongMethod.addKey(privateKeyCache.getPrivateKey(), publicKeyCache.getX509Certificate(), 0);
+    for (boolean streaming : WRITERS) {
+      assertSigningFails(new IdPConfig.Builder().setSigningKeyring(notYetActive), streaming);
+      assertSigningFails(new IdPConfig.Builder().setSigningKeyring(wrongMethod)
+        .setSignatureAlgorithm(SignatureAlgorithms.ECDSA_SHA256), streaming);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void mismatchedSignatureMethodIsRejected() throws Exception {
+    new IdPConfig.Builder().setPrivateKeyCache(privateKeyCache)
+      .setSignatureAlgorithm(SignatureAlgorithms.ECDSA_SHA256).build();
+  }
+
+  @Test
+  public void signedRedirectRequestIsAccepted() throws Exception {
+    SPEngine signing = signingSP();
+    SPRequest request = signing.createRedirectRequest(signing.buildAuthnRequest("_signed"), "state");
+    IdPRequest idpRequest = checkingIdP(publicKeyCache.getPublicKey()).decodeRequest(redirect(request.getRedirectURL()));
+    assertEquals("_signed", idpRequest.getAuthnRequest().getID());
+    assertEquals(request.getRelayState(), idpRequest.getRelayState());
+  }
+
+  @Test
+  public void forgedRedirectRequestIsRejected() throws Exception {
+    // The SP signs with the bundled key; the IdP knows it by another one
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    IdPEngine idp = checkingIdP(generator.generateKeyPair().getPublic());
+    SPEngine signing = signingSP();
+    assertRejected(idp, signing.createRedirectRequest(signing.buildAuthnRequest("_forged"), "state").getRedirectURL());
+
+    // The right key, with the RelayState changed after signing
+    idp = checkingIdP(publicKeyCache.getPublicKey());
+    String url = signing.createRedirectRequest(signing.buildAuthnRequest("_changed"), "state").getRedirectURL();
+    String relayState = "&RelayState=";
+    int start = url.indexOf(relayState) + relayState.length();
+    assertRejected(idp, url.substring(0, start) + "x" + url.substring(start));
+  }
+
+  @Test
+  public void unsignedRedirectRequestFromIndexedSPIsRejected() throws Exception {
+    assertRejected(checkingIdP(publicKeyCache.getPublicKey()),
+      sp.createRedirectRequest(sp.buildAuthnRequest("_unsigned"), "state").getRedirectURL());
+  }
+
+  @Test
+  public void issuerTheScanMissesIsRejected() throws Exception {
+    // The scan finds the Issuer in the comment, the parser the real one
+    String xml = new String(Base64.decode(sp.createPostRequest(sp.buildAuthnRequest("_issuer"), null).getSAMLRequest()),
+      "UTF-8");
+    assertTrue(xml.indexOf(">" + SP_ISSUER + "<") > 0);
+    xml = xml.replace(">" + SP_ISSUER + "<", ">http://other.example.com<");
+    int root = xml.indexOf("<samlp:AuthnRequest");
+    xml = xml.substring(0, root) + "<!-- <saml:Issuer>" + SP_ISSUER + "</saml:Issuer> -->" + xml.substring(root);
+    assertRejected(checkingIdP(publicKeyCache.getPublicKey()), signedURL(xml.getBytes("UTF-8"), "state"));
+  }
+
+  @Test
+  public void repeatedParameterUnderAnEncodedNameIsRejected() throws Exception {
+    SPEngine signing = signingSP();
+    IdPEngine idp = checkingIdP(publicKeyCache.getPublicKey());
+    String url = signing.createRedirectRequest(signing.buildAuthnRequest("_repeated"), "state").getRedirectURL();
+    int query = url.indexOf('?') + 1;
+    String [] urls = {
+      // The container would give the unsigned RelayState first
+      url.substring(0, query) + "%52elayState=evil&" + url.substring(query),
+      url + "&%52elayState=evil"
+    };
+    for (int i = 0; i < urls.length; i++) {
+      try {
+        idp.decodeRequest(redirect(urls[i]));
+        fail("Accepted a second RelayState: " + urls[i]);
+      } catch (MessageDecodingException e) {
+        // expected
+      }
+    }
+  }
+
+  private SPEngine signingSP() throws Exception {
+    return new SPEngine(new SPConfig.Builder()
+      .setIssuerName(SP_ISSUER)
+      .setActionURL(IDP_SSO_URL)
+      .setAssertionConsumerServiceURL(SP_ACS_URL)
+      .setPrivateKeyCache(privateKeyCache)
+      .build());
+  }
+
+  /*
+   * An IdP that checks redirect signatures from SP_ISSUER with the key.
+   */
+  private IdPEngine checkingIdP(java.security.PublicKey key) throws Exception {
+    SPKeyIndex index = new SPKeyIndex();
+    index.addKey(SP_ISSUER, key);
+    return new IdPEngine(new IdPConfig.Builder()
+      .setIssuerName(IDP_ISSUER)
+      .setPrivateKeyCache(privateKeyCache)
+      .setSPKeyIndex(index)
+      .build());
+  }
+
+  private static void assertRejected(IdPEngine idp, String url) throws Exception {
+    try {
+      idp.decodeRequest(redirect(url));
+      fail("Accepted " + url);
+    } catch (SecurityPolicyException e) {
+      // expected
+    }
+  }
+
+  /*
+   * Sign a redirect request for a message the SP did not build.
+   */
+  private String signedURL(byte [] message, String relayState) throws Exception {
+    String query = "SAMLRequest=" + URLEncoder.encode(DeflateEncoder.getInstance().encode(message), "UTF-8")
+      + "&RelayState=" + URLEncoder.encode(relayState, "UTF-8")
+      + "&SigAlg=" + URLEncoder.encode(SignatureAlgorithms.RSA_SHA1, "UTF-8");
+    byte [] signature = QueryStringSigner.sign(SignatureAlgorithms.RSA_SHA1, privateKeyCache.getPrivateKey(), query);
+    return IDP_SSO_URL + "?" + query + "&Signature="
+      + URLEncoder.encode(Base64.encodeBytes(signature, Base64.DONT_BREAK_LINES), "UTF-8");
+  }
+
+  private void assertSigningFails(IdPConfig.Builder builder, boolean streaming) throws Exception {
+    IdPEngine idp = new IdPEngine(builder.setIssuerName(IDP_ISSUER).setStreamingWriter(streaming).build());
+    try {
+      idp.createSuccessResponse(sp.buildAuthnRequest("_unsigned"), "kim");
+      fail("Response sent without its signature, streaming " + streaming);
+    } catch (SignatureException e) {
+      // expected
+    }
+  }
+
+  private IdPEngine newIdP(boolean streaming) throws Exception {
+    return new IdPEngine(new IdPConfig.Builder()
+      .setIssuerName(IDP_ISSUER)
+      .setPrivateKeyCache(privateKeyCache)
+      .setPublicKeyCache(publicKeyCache)
+      .setStreamingWriter(streaming)
+      .build());
+  }
+
+  /*
+   * Send an AuthnRequest from the SP to the IdP and its Response back.
+   */
+  private SPResult roundTrip(IdPEngine idp, String id, boolean redirect, String loginId, String relayState)
+    throws Exception {
+    SPRequest request = redirect ? sp.createRedirectRequest(sp.buildAuthnRequest(id), relayState)
+      : sp.createPostRequest(sp.buildAuthnRequest(id), relayState);
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("SAMLRequest", request.getSAMLRequest());
+    params.put("RelayState", request.getRelayState());
+    IdPRequest idpRequest = idp.decodeRequest(request(redirect ? "GET" : "POST", IDP_SSO_URL, params));
+    IdPResult response = idp.createSuccessResponse(idpRequest.getAuthnRequest(), loginId);
+
+    params.clear();
+    params.put("SAMLResponse", response.getSAMLResponse());
+    params.put("RelayState", idpRequest.getRelayState());
+    SPResult result = sp.processResponse(request("POST", SP_ACS_URL, params));
+    assertEquals(response.getResponseXML(), result.getResponseXML());
+    assertEquals(loginId, result.getLoginId());
+    assertEquals(relayState, result.getRelayState());
+    return result;
+  }
+
+  /*
+   * Build the GET request a browser sends for a redirect URL. Parameters
+   * are decoded the way a container decodes them; the first of two with the
+   * same name wins.
+   */
+  private static HttpServletRequest redirect(String url) throws Exception {
+    int q = url.indexOf('?');
+    final String queryString = url.substring(q + 1);
+    Map<String, String> params = new HashMap<String, String>();
+    String [] pairs = queryString.split("&");
+    for (int i = 0; i < pairs.length; i++) {
+      int eq = pairs[i].indexOf('=');
+      String name = URLDecoder.decode(pairs[i].substring(0, eq), "UTF-8");
+      if (!params.containsKey(name)) params.put(name, URLDecoder.decode(pairs[i].substring(eq + 1), "UTF-8"));
+    }
+    final HttpServletRequest request = request("GET", url.substring(0, q), params);
+    InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(Object proxy, Method m, Object [] args) throws Throwable {
+        if (m.getName().equals("getQueryString")) return queryString;
+        if (m.getName().equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+        if (m.getName().equals("equals")) return Boolean.valueOf(proxy == args[0]);
+        return m.invoke(request, args);
+      }
+    };
+    return (HttpServletRequest) Proxy.newProxyInstance(IdPEngineTest.class.getClassLoader(),
+      new Class [] { HttpServletRequest.class }, handler);
+  }
+
+  private SPResult post(String samlResponse) throws Exception {
+    return sp.processResponse(request("POST", SP_ACS_URL, Collections.singletonMap("SAMLResponse", samlResponse)));
+  }
+
+  /*
+   * Build a request that answers only what the OpenSAML decoders ask.
+   */
+  private static HttpServletRequest request(final String method, final String requestURL,
+    Map<String, String> params) {
+    final Map<String, String> p = new HashMap<String, String>(params);
+    InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(Object proxy, Method m, Object [] args) {
+        String name = m.getName();
+        if (name.equals("getMethod")) return method;
+        if (name.equals("getParameter")) return p.get(args[0]);
+        if (name.equals("getParameterValues")) {
+          String v = p.get(args[0]);
+          return (v == null) ? null : new String [] { v };
+        }
+        if (name.equals("getParameterNames")) return Collections.enumeration(p.keySet());
+        if (name.equals("getRequestURL")) return new StringBuffer(requestURL);
+        if (name.equals("getRequestURI")) return requestURL;
+        if (name.equals("getScheme")) return requestURL.substring(0, requestURL.indexOf(':'));
+        if (name.equals("getCharacterEncoding")) return "UTF-8";
+        if (name.equals("isSecure")) return Boolean.FALSE;
+        if (name.equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+        if (name.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+        return null;
+      }
+    };
+    return (HttpServletRequest) Proxy.newProxyInstance(IdPEngineTest.class.getClassLoader(),
+      new Class [] { HttpServletRequest.class }, handler);
+  }
+}
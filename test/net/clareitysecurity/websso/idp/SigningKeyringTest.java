@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SigningKeyringTest.java
+ *
+ * Checks the activation delay SigningKeyring starts with and that reload()
+ * leaves a key alone when its files change but the certificate does not.
+ */
+
+package net.clareitysecurity.websso.idp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for SigningKeyring with copies of the bundled key pair.
+ *
+ * @author Paul Hethmon
+ */
+public class SigningKeyringTest {
+
+  private File keyFile, certificateFile;
+
+  @Before
+  public void setUp() throws Exception {
+    File resources = new File(System.getProperty("test.resources", "src"));
+    keyFile = File.createTempFile("private-key", ".pem");
+    certificateFile = File.createTempFile("public-key", ".pem");
+    copy(new File(resources, "private-key.pem"), keyFile, false);
+    copy(new File(resources, "public-key.pem"), certificateFile, false);
+  }
+
+  @After
+  public void tearDown() {
+    keyFile.delete();
+    certificateFile.delete();
+  }
+
+  @Test
+  public void newKeysWaitForTheOverlap() {
+    assertEquals(SigningKeyring.DEFAULT_OVERLAP, new SigningKeyring().getActivationDelay());
+    assertEquals(5000L, new SigningKeyring(5000).getActivationDelay());
+  }
+
+  @Test
+  public void touchedFilesAreNotAddedAgain() throws Exception {
+    SigningKeyring keyring = new SigningKeyring();
+    SigningKeyring.KeyEntry entry = keyring.addKeyFiles(keyFile.getPath(), certificateFile.getPath(), 0);
+    keyFile.setLastModified(keyFile.lastModified() + 2000);
+    certificateFile.setLastModified(certificateFile.lastModified() + 2000);
+    assertFalse(keyring.reload());
+    assertEquals(1, keyring.getKeys().size());
+    assertSame(entry, keyring.getActiveKey());
+  }
+
+  @Test
+  public void copiedInAgainIsNotAddedAgain() throws Exception {
+    SigningKeyring keyring = new SigningKeyring();
+    SigningKeyring.KeyEntry entry = keyring.addKeyFiles(keyFile.getPath(), certificateFile.getPath(), 0);
+    // The same certificate with different bytes
+    copy(new File(System.getProperty("test.resources", "src"), "public-key.pem"), certificateFile, true);
+    assertFalse(keyring.reload());
+    assertEquals(1, keyring.getKeys().size());
+    assertSame(entry, keyring.getActiveKey());
+  }
+
+  private static void copy(File from, File to, boolean extraLine) throws IOException {
+    InputStream in = new FileInputStream(from);
+    try {
+      OutputStream out = new FileOutputStream(to);
+      try {
+        byte [] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+        if (extraLine) out.write('\n');
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
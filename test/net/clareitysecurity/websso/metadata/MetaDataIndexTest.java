@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * MetaDataIndexTest.java
+ *
+ * Checks that MetaDataIndex keeps certificates per role and never builds an
+ * EntityDescriptor from a file that has changed since it was indexed.
+ */
+
+package net.clareitysecurity.websso.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import net.clareitysecurity.websso.idp.IdPConfig;
+import net.clareitysecurity.websso.idp.IdPEngine;
+import net.clareitysecurity.websso.idp.PrivateKeyCache;
+import net.clareitysecurity.websso.idp.PublicKeyCache;
+import net.clareitysecurity.websso.idp.SPKeyIndex;
+import net.clareitysecurity.websso.sp.SPConfig;
+import net.clareitysecurity.websso.sp.SPEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.validation.ValidationException;
+
+/**
+ * Tests for MetaDataIndex. The RSA certificate is the bundled
+ * public-key.pem; the EC certificate is one the bundled key did not sign
+ * with.
+ *
+ * @author Paul Hethmon
+ */
+public class MetaDataIndexTest {
+
+  private static final String ENTITY = "http://idp.example.com";
+
+  private static final String EC_CERTIFICATE =
+    "MIIBeDCCAR2gAwIBAgIUUGF/WbTin5345x2Ran5NBkPN0CgwCgYIKoZIzj0EAwIw"
+    + "ETEPMA0GA1UEAwwGaWRwLWVjMB4XDTI2MTAxNzAxNDg0MloXDTM2MTAxNDAxNDg0"
+    + "MlowETEPMA0GA1UEAwwGaWRwLWVjMFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAE"
+    + "5XL60ce9y6lPi/BVO8wq8z+7XFivw/QlXlBhfCsE9GzoAVOYww9vSLoU3XubW3uD"
+    + "qp3+zlHYsmAuAc9Dn8GUwaNTMFEwHQYDVR0OBBYEFApuD6UljPAUf1e7pUjar1hG"
+    + "jY67MB8GA1UdIwQYMBaAFApuD6UljPAUf1e7pUjar1hGjY67MA8GA1UdEwEB/wQF"
+    + "MAMBAf8wCgYIKoZIzj0EAwIDSQAwRgIhAMGtGVUCLlOplL3qIRbYId0UAa5Bvfkh"
+    + "0b5uppnef2b/AiEArSr7h0u/V/Ow4XiyJQ25ehb/eWRpzZIMQ3aEtM1pS/s=";
+
+  private File resources;
+  private String rsaCertificate;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    resources = new File(System.getProperty("test.resources", "src"));
+    PublicKeyCache pkc = new PublicKeyCache();
+    pkc.readPublicKey(new FileInputStream(new File(resources, "public-key.pem")));
+    rsaCertificate = Base64.encodeBytes(pkc.getX509Certificate().getEncoded(), Base64.DONT_BREAK_LINES);
+    file = File.createTempFile("metadata", ".xml");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    MetaDataIndex.getSnapshotFile(file).delete();
+  }
+
+  @Test
+  public void certificatesAreKeptPerRole() throws Exception {
+    MetaDataIndex index = MetaDataIndex.read(bytes(entity(ENTITY,
+      idp(rsaCertificate) + sp(EC_CERTIFICATE))));
+    MetaDataIndex.Entity entity = index.getEntity(ENTITY);
+    assertEquals(1, entity.getIdPSigningCertificateCount());
+    assertEquals(1, entity.getSPSigningCertificateCount());
+    assertEquals(certificate(rsaCertificate), entity.getIdPSigningCertificates().get(0));
+    assertEquals(certificate(EC_CERTIFICATE), entity.getSPSigningCertificates().get(0));
+
+    SPKeyIndex keys = SPKeyIndex.fromMetaData(index);
+    assertEquals(1, keys.getKeys(ENTITY).size());
+    assertEquals(certificate(EC_CERTIFICATE).getPublicKey(), keys.getKeys(ENTITY).get(0));
+  }
+
+  @Test
+  public void idpCertificatesAreNotSPKeys() throws Exception {
+    MetaDataIndex index = MetaDataIndex.read(bytes(entity(ENTITY, idp(rsaCertificate) + sp(null))));
+    assertEquals(0, index.getEntity(ENTITY).getSPSigningCertificateCount());
+    assertEquals(0, SPKeyIndex.fromMetaData(index).size());
+  }
+
+  @Test
+  public void spCertificatesDoNotValidateIdPSignatures() throws Exception {
+    MetaDataIndex index = MetaDataIndex.read(bytes(entity(ENTITY, idp(null) + sp(rsaCertificate))));
+    assertEquals(null, index.getSignatureValidator(ENTITY));
+  }
+
+  @Test
+  public void anyIdPCertificateValidates() throws Exception {
+    // The key that signs is the second one published
+    MetaDataIndex index = MetaDataIndex.read(bytes(entity(ENTITY,
+      idp(EC_CERTIFICATE) + idp(rsaCertificate))));
+    assertEquals(2, index.getEntity(ENTITY).getIdPSigningCertificateCount());
+    SignatureValidator validator = index.getSignatureValidator(ENTITY);
+    assertNotNull(validator);
+    validator.validate(signedResponse().getAssertions().get(0).getSignature());
+  }
+
+  @Test(expected = ValidationException.class)
+  public void otherIdPCertificateDoesNotValidate() throws Exception {
+    MetaDataIndex index = MetaDataIndex.read(bytes(entity(ENTITY, idp(EC_CERTIFICATE))));
+    index.getSignatureValidator(ENTITY).validate(signedResponse().getAssertions().get(0).getSignature());
+  }
+
+  @Test
+  public void changedFileIsNotRead() throws Exception {
+    write(aggregate("http://a.example.com", "http://b.example.com"));
+    MetaDataIndex index = MetaDataIndex.read(file);
+    write(aggregate("http://b.example.com", "http://c.example.com", "http://a.example.com"));
+    file.setLastModified(file.lastModified() + 2000);
+    assertFails(index, "http://b.example.com");
+  }
+
+  @Test
+  public void movedEntityIsNotReturned() throws Exception {
+    // Same length and time, so only the entityID shows the change
+    write(aggregate("http://a.example.com", "http://b.example.com"));
+    long modified = file.lastModified();
+    MetaDataIndex index = MetaDataIndex.read(file);
+    write(aggregate("http://b.example.com", "http://a.example.com"));
+    file.setLastModified(modified);
+    assertFails(index, "http://a.example.com");
+  }
+
+  @Test
+  public void snapshotIndexIsCheckedToo() throws Exception {
+    write(aggregate("http://a.example.com", "http://b.example.com"));
+    MetaDataIndex.load(file);
+    MetaDataIndex index = MetaDataIndex.load(file);
+    assertEquals("http://b.example.com", index.getEntityDescriptor("http://b.example.com").getEntityID());
+    write(aggregate("http://b.example.com", "http://c.example.com", "http://a.example.com"));
+    file.setLastModified(file.lastModified() + 2000);
+    assertFails(index, "http://a.example.com");
+  }
+
+  @Test
+  public void snapshotOfTheSameBytesIsUsed() throws Exception {
+    write(aggregate("http://a.example.com", "http://b.example.com"));
+    MetaDataIndex.load(file);
+    File snapshot = MetaDataIndex.getSnapshotFile(file);
+    long written = snapshot.lastModified() - 10000;
+    snapshot.setLastModified(written);
+    MetaDataIndex.load(file);
+    // Not written again
+    assertEquals(written, snapshot.lastModified());
+  }
+
+  @Test
+  public void snapshotOfOtherBytesIsNotUsed() throws Exception {
+    // Same length and time, so only the digest shows the change
+    write(aggregate("http://a.example.com", "http://b.example.com"));
+    long modified = file.lastModified();
+    MetaDataIndex.load(file);
+    write(aggregate("http://b.example.com", "http://a.example.com"));
+    file.setLastModified(modified);
+    MetaDataIndex index = MetaDataIndex.load(file);
+    assertEquals("http://a.example.com", index.getEntityDescriptor("http://a.example.com").getEntityID());
+  }
+
+  private static void assertFails(MetaDataIndex index, String entityId) {
+    try {
+      index.getEntityDescriptor(entityId);
+      fail("Built " + entityId + " from a changed file");
+    } catch (MetadataProviderException e) {
+      assertTrue(e.getMessage(), e.getMessage().indexOf("changed") >= 0);
+    }
+  }
+
+  /*
+   * Build a Response with its assertion signed by the bundled key.
+   */
+  private Response signedResponse() throws Exception {
+    AuthnRequest authnRequest = new SPEngine(new SPConfig.Builder()
+      .setIssuerName("http://sp.example.com")
+      .setActionURL("http://idp.example.com/sso")
+      .setAssertionConsumerServiceURL("http://sp.example.com/acs")
+      .build()).buildAuthnRequest("_request");
+    PrivateKeyCache pkc = new PrivateKeyCache();
+    pkc.readPrivateKey(new File(resources, "private-key.pem").getPath());
+    IdPEngine idp = new IdPEngine(new IdPConfig.Builder()
+      .setIssuerName(ENTITY)
+      .setPrivateKeyCache(pkc)
+      .build());
+    return idp.buildSuccessResponse(authnRequest, "kim");
+  }
+
+  private static String aggregate(String ... entityIds) {
+    StringBuilder s = new StringBuilder("<md:EntitiesDescriptor xmlns:md=\"" + MetaDataIndex.MD_NS + "\">");
+    for (int i = 0; i < entityIds.length; i++) {
+      s.append("<md:EntityDescriptor entityID=\"").append(entityIds[i]).append("\">")
+        .append(sp(null)).append("</md:EntityDescriptor>");
+    }
+    return s.append("</md:EntitiesDescriptor>").toString();
+  }
+
+  private static String entity(String entityId, String roles) {
+    return "<md:EntityDescriptor xmlns:md=\"" + MetaDataIndex.MD_NS + "\" entityID=\"" + entityId + "\">"
+      + roles + "</md:EntityDescriptor>";
+  }
+
+  private static String idp(String certificate) {
+    return "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+      + keyDescriptor(certificate)
+      + "<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\""
+      + " Location=\"http://idp.example.com/sso\"/></md:IDPSSODescriptor>";
+  }
+
+  private static String sp(String certificate) {
+    return "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+      + keyDescriptor(certificate)
+      + "<md:AssertionConsumerService index=\"0\" Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+      + " Location=\"http://sp.example.com/acs\"/></md:SPSSODescriptor>";
+  }
+
+  private static String keyDescriptor(String certificate) {
+    if (certificate == null) return "";
+    return "<md:KeyDescriptor use=\"signing\"><ds:KeyInfo xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">"
+      + "<ds:X509Data><ds:X509Certificate>" + certificate + "</ds:X509Certificate></ds:X509Data>"
+      + "</ds:KeyInfo></md:KeyDescriptor>";
+  }
+
+  private static X509Certificate certificate(String base64) throws Exception {
+    return (X509Certificate) CertificateFactory.getInstance("X.509")
+      .generateCertificate(new ByteArrayInputStream(Base64.decode(base64)));
+  }
+
+  private static byte [] bytes(String s) throws IOException {
+    return s.getBytes("UTF-8");
+  }
+
+  private void write(String s) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes(s));
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * MetaDataRefresherTest.java
+ *
+ * Checks the conditional requests MetaDataRefresher makes against a local
+ * HTTP server.
+ */
+
+package net.clareitysecurity.websso.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for MetaDataRefresher. A local HTTP server plays the metadata
+ * server, records the validators each request sends, and answers 304 when
+ * they match what it would send.
+ *
+ * @author Paul Hethmon
+ */
+public class MetaDataRefresherTest {
+
+  private static final String ETAG = "\"v1\"";
+  private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 08:12:31 GMT";
+
+  private HttpServer server;
+  private File dir;
+  private String metaUrl, metaFile;
+  private byte [] metadata;
+
+  // What the server sends and what it last received
+  private volatile byte [] body;
+  private volatile String etag, lastModified;
+  private volatile String ifNoneMatch, ifModifiedSince;
+  private volatile int requests;
+
+  @Before
+  public void setUp() throws Exception {
+    metadata = read(new File(System.getProperty("test.resources", "src"), "idp-meta.xml"));
+    body = metadata;
+    etag = ETAG;
+    lastModified = LAST_MODIFIED;
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/metadata.xml", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        requests++;
+        ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (etag != null) exchange.getResponseHeaders().set("ETag", etag);
+        if (lastModified != null) exchange.getResponseHeaders().set("Last-Modified", lastModified);
+        boolean matches = (ifNoneMatch != null && ifNoneMatch.equals(etag))
+          || (ifNoneMatch == null && ifModifiedSince != null && ifModifiedSince.equals(lastModified));
+        if (matches) {
+          exchange.sendResponseHeaders(304, -1);
+        } else {
+          exchange.sendResponseHeaders(200, body.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(body);
+          out.close();
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+    metaUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/metadata.xml";
+
+    dir = File.createTempFile("metadata", "");
+    dir.delete();
+    dir.mkdir();
+    metaFile = new File(dir, "idp-meta.xml").getPath();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    File [] files = dir.listFiles();
+    for (int i = 0; i < files.length; i++) {
+      files[i].delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void firstFetchSendsNoValidators() throws Exception {
+    MetaDataRefresher refresher = new MetaDataRefresher(metaUrl, metaFile);
+    assertTrue(refresher.refresh());
+    assertNull(ifNoneMatch);
+    assertNull(ifModifiedSince);
+    assertNotNull(refresher.getSnapshot());
+    assertTrue(new File(metaFile).exists());
+    assertTrue(new File(metaFile + MetaDataRefresher.VALIDATORS_SUFFIX).exists());
+  }
+
+  @Test
+  public void refreshSendsTheServerValidators() throws Exception {
+    MetaDataRefresher refresher = new MetaDataRefresher(metaUrl, metaFile);
+    refresher.refresh();
+    assertFalse(refresher.refresh());
+    assertEquals(ETAG, ifNoneMatch);
+    assertEquals(LAST_MODIFIED, ifModifiedSince);
+    assertEquals(1L, refresher.getNotModifiedCount());
+  }
+
+  @Test
+  public void restartSendsTheSavedValidators() throws Exception {
+    new MetaDataRefresher(metaUrl, metaFile).refresh();
+
+    MetaDataRefresher restarted = new MetaDataRefresher(metaUrl, metaFile);
+    assertTrue(restarted.loadBackingFile());
+    assertFalse(restarted.refresh());
+    assertEquals(ETAG, ifNoneMatch);
+    assertEquals(LAST_MODIFIED, ifModifiedSince);
+    assertEquals(1L, restarted.getNotModifiedCount());
+  }
+
+  @Test
+  public void backingFileTimeIsNotSent() throws Exception {
+    // A backing file written by hand, newer than the server's copy
+    write(new File(metaFile), metadata);
+    MetaDataRefresher refresher = new MetaDataRefresher(metaUrl, metaFile);
+    refresher.loadBackingFile();
+    refresher.refresh();
+    assertNull(ifNoneMatch);
+    assertNull(ifModifiedSince);
+    assertEquals(0L, refresher.getNotModifiedCount());
+    assertEquals(1L, refresher.getUnchangedCount());
+  }
+
+  @Test
+  public void validatorsForReplacedBackingFileAreNotSent() throws Exception {
+    new MetaDataRefresher(metaUrl, metaFile).refresh();
+    write(new File(metaFile), changed(metadata));
+
+    MetaDataRefresher restarted = new MetaDataRefresher(metaUrl, metaFile);
+    restarted.loadBackingFile();
+    assertTrue(restarted.refresh());
+    assertNull(ifNoneMatch);
+    assertNull(ifModifiedSince);
+  }
+
+  @Test
+  public void changedMetadataReplacesTheValidators() throws Exception {
+    MetaDataRefresher refresher = new MetaDataRefresher(metaUrl, metaFile);
+    refresher.refresh();
+    body = changed(metadata);
+    etag = "\"v2\"";
+    assertTrue(refresher.refresh());
+    assertEquals(ETAG, ifNoneMatch);
+
+    MetaDataRefresher restarted = new MetaDataRefresher(metaUrl, metaFile);
+    restarted.loadBackingFile();
+    assertFalse(restarted.refresh());
+    assertEquals("\"v2\"", ifNoneMatch);
+    assertEquals(1L, restarted.getNotModifiedCount());
+  }
+
+  @Test
+  public void serverWithoutValidatorsGetsNone() throws Exception {
+    etag = null;
+    lastModified = null;
+    MetaDataRefresher refresher = new MetaDataRefresher(metaUrl, metaFile);
+    refresher.refresh();
+    assertFalse(new File(metaFile + MetaDataRefresher.VALIDATORS_SUFFIX).exists());
+    assertFalse(refresher.refresh());
+    assertNull(ifNoneMatch);
+    assertNull(ifModifiedSince);
+    assertEquals(2, requests);
+    assertEquals(1L, refresher.getUnchangedCount());
+  }
+
+  /*
+   * The same metadata with different bytes.
+   */
+  private static byte [] changed(byte [] content) {
+    byte [] b = new byte[content.length + 1];
+    System.arraycopy(content, 0, b, 0, content.length);
+    b[content.length] = '\n';
+    return b;
+  }
+
+  private static byte [] read(File f) throws IOException {
+    InputStream in = new FileInputStream(f);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte [] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void write(File f, byte [] content) throws IOException {
+    OutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+  }
+}
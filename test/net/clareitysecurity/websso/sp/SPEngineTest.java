@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2007 National Association of REALTORS(R)
+ *
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, and/or sell copies of the
+ * Software, and to permit persons to whom the Software is furnished
+ * to do so, provided that the above copyright notice(s) and this
+ * permission notice appear in all copies of the Software and that
+ * both the above copyright notice(s) and this permission notice
+ * appear in supporting documentation.
+ */
+
+/*
+ * SPEngineTest.java
+ *
+ * Posts Responses carrying more than one signed assertion to SPEngine and
+ * checks what it accepts, with and without a verify executor.
+ */
+
+package net.clareitysecurity.websso.sp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.clareitysecurity.websso.common.ReplayCache;
+import net.clareitysecurity.websso.common.SharedParserPool;
+import net.clareitysecurity.websso.idp.IdPConfig;
+import net.clareitysecurity.websso.idp.IdPEngine;
+import net.clareitysecurity.websso.idp.PrivateKeyCache;
+import net.clareitysecurity.websso.idp.PublicKeyCache;
+import net.clareitysecurity.websso.metadata.MetaDataIndex;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
+import org.opensaml.xml.validation.ValidationException;
+import org.w3c.dom.Element;
+
+/**
+ * Tests for SPEngine with Responses built from what IdPEngine sends, each
+ * assertion signed on its own with the bundled key.
+ *
+ * @author Paul Hethmon
+ */
+public class SPEngineTest {
+
+  private static final String IDP_ISSUER = "http://dev.acmeidp.com";
+  private static final String SP_ISSUER = "http://sp.example.com";
+  private static final String SP_ACS_URL = "http://sp.example.com/acs";
+
+  private File resources;
+  private Credential credential;
+  private IdPEngine idp;
+  private SPConfig.Builder builder;
+
+  @Before
+  public void setUp() throws Exception {
+    resources = new File(System.getProperty("test.resources", "src"));
+    PrivateKeyCache privateKeyCache = new PrivateKeyCache();
+    privateKeyCache.readPrivateKey(new File(resources, "private-key.pem").getPath());
+    PublicKeyCache publicKeyCache = new PublicKeyCache();
+    publicKeyCache.readPublicKey(new FileInputStream(new File(resources, "public-key.pem")));
+    credential = SecurityHelper.getSimpleCredential(publicKeyCache.getPublicKey(), privateKeyCache.getPrivateKey());
+    idp = new IdPEngine(new IdPConfig.Builder()
+      .setIssuerName(IDP_ISSUER)
+      .setPrivateKeyCache(privateKeyCache)
+      .build());
+    builder = new SPConfig.Builder()
+      .setIssuerName(SP_ISSUER)
+      .setActionURL(IDP_ISSUER + "/sso")
+      .setAssertionConsumerServiceURL(SP_ACS_URL)
+      .setSignatureValidator(MetaDataIndex.read(new File(resources, "idp-meta.xml")).getSignatureValidator(IDP_ISSUER));
+  }
+
+  @Test
+  public void everyAssertionIsChecked() throws Exception {
+    for (SPEngine sp : engines()) {
+      String xml = response("kim", "lee");
+      SPResult result = post(sp, xml);
+      assertEquals(2, result.getAssertions().size());
+      assertEquals("kim", result.getLoginId());
+      assertEquals("lee", result.getAssertions().get(1).getNameId());
+      assertTrue(result.getAssertions().get(1).isSigned());
+
+      assertRejected(sp, response("kim", "lee").replace(">lee<", ">admin<"));
+    }
+  }
+
+  @Test
+  public void signatureMovedFromAnotherAssertionIsRejected() throws Exception {
+    for (SPEngine sp : engines()) {
+      String xml = response("kim", "lee");
+      // Both assertions carry the first one's signature
+      int first = xml.indexOf("<ds:Signature");
+      int firstEnd = xml.indexOf("</ds:Signature>", first) + "</ds:Signature>".length();
+      int second = xml.indexOf("<ds:Signature", firstEnd);
+      int secondEnd = xml.indexOf("</ds:Signature>", second) + "</ds:Signature>".length();
+      assertTrue(first > 0 && second > 0);
+      assertRejected(sp, xml.substring(0, second) + xml.substring(first, firstEnd) + xml.substring(secondEnd));
+    }
+  }
+
+  @Test
+  public void checksRunInParallelAgainAndAgain() throws Exception {
+    SPEngine sp = new SPEngine(builder.setVerifyExecutor(SPEngine.getSharedVerifyExecutor()).build());
+    String xml = response("kim", "lee", "pat", "sam");
+    for (int n = 0; n < 50; n++) {
+      assertEquals(4, post(sp, xml).getAssertions().size());
+    }
+  }
+
+  @Test
+  public void unansweredResponseIsNotRecorded() throws Exception {
+    ReplayCache cache = new ReplayCache();
+    String xml = response("kim", "lee");
+    try {
+      post(new SPEngine(builder.setReplayCache(cache).setRequestTracker(new RequestTracker()).build()), xml);
+      fail("Accepted a Response to a request never sent");
+    } catch (SecurityPolicyException e) {
+      // expected
+    }
+    RequestTracker tracker = new RequestTracker();
+    tracker.register("_request");
+    assertEquals(2, post(new SPEngine(builder.setRequestTracker(tracker).build()), xml).getAssertions().size());
+  }
+
+  @Test
+  public void replayedSecondAssertionRecordsNothing() throws Exception {
+    SPEngine sp = new SPEngine(builder.setReplayCache(new ReplayCache()).build());
+    post(sp, response("kim"));
+    try {
+      post(sp, response("lee", "kim"));
+      fail("Accepted a replayed assertion");
+    } catch (SecurityPolicyException e) {
+      // expected
+    }
+    assertEquals("lee", post(sp, response("lee")).getLoginId());
+  }
+
+  /*
+   * An engine that checks signatures one after another and one that checks
+   * them on the shared executor.
+   */
+  private SPEngine [] engines() throws Exception {
+    return new SPEngine [] {
+      new SPEngine(builder.setVerifyExecutor(null).build()),
+      new SPEngine(builder.setVerifyExecutor(SPEngine.getSharedVerifyExecutor()).build())
+    };
+  }
+
+  /*
+   * Build a Response with one assertion for each login id, each signed on
+   * its own. The ID of each assertion follows from its login id, and the
+   * Response answers the request _request. The Response itself is not
+   * signed.
+   */
+  private String response(String ... loginIds) throws Exception {
+    Response rsp = (Response) unmarshall(idp.createSuccessResponse(new SPEngine(builder.build())
+      .buildAuthnRequest("_request"), loginIds[0]).getResponseXML());
+    String assertionXML = XMLHelper.nodeToString(rsp.getAssertions().get(0).getDOM());
+    rsp.getAssertions().clear();
+    List<Signature> signatures = new ArrayList<Signature>();
+    for (int i = 0; i < loginIds.length; i++) {
+      Assertion assertion = (Assertion) unmarshall(assertionXML);
+      assertion.releaseDOM();
+      assertion.releaseChildrenDOM(true);
+      assertion.setID("_assertion-" + loginIds[i]);
+      assertion.getSubject().getNameID().setValue(loginIds[i]);
+      Signature signature = (Signature) Configuration.getBuilderFactory().getBuilder(Signature.DEFAULT_ELEMENT_NAME)
+        .buildObject(Signature.DEFAULT_ELEMENT_NAME);
+      signature.setSigningCredential(credential);
+      signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
+      signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+      assertion.setSignature(signature);
+      signatures.add(signature);
+      rsp.getAssertions().add(assertion);
+    }
+    rsp.releaseDOM();
+    rsp.releaseChildrenDOM(true);
+    Element dom = Configuration.getMarshallerFactory().getMarshaller(rsp).marshall(rsp);
+    Signer.signObjects(signatures);
+    return XMLHelper.nodeToString(dom);
+  }
+
+  private static XMLObject unmarshall(String xml) throws Exception {
+    Element root = SharedParserPool.getInstance().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")))
+      .getDocumentElement();
+    return Configuration.getUnmarshallerFactory().getUnmarshaller(root).unmarshall(root);
+  }
+
+  private static void assertRejected(SPEngine sp, String xml) throws Exception {
+    try {
+      post(sp, xml);
+      fail("Accepted " + xml);
+    } catch (ValidationException e) {
+      // expected
+    }
+  }
+
+  private static SPResult post(SPEngine sp, String xml) throws Exception {
+    return sp.processResponse(request(Collections.singletonMap("SAMLResponse",
+      Base64.encodeBytes(xml.getBytes("UTF-8"), Base64.DONT_BREAK_LINES))));
+  }
+
+  /*
+   * Build a POST to the ACS URL that answers only what the OpenSAML decoder
+   * asks.
+   */
+  private static HttpServletRequest request(final Map<String, String> params) {
+    InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(Object proxy, Method m, Object [] args) {
+        String name = m.getName();
+        if (name.equals("getMethod")) return "POST";
+        if (name.equals("getParameter")) return params.get(args[0]);
+        if (name.equals("getParameterValues")) {
+          String v = params.get(args[0]);
+          return (v == null) ? null : new String [] { v };
+        }
+        if (name.equals("getParameterNames")) return Collections.enumeration(params.keySet());
+        if (name.equals("getRequestURL")) return new StringBuffer(SP_ACS_URL);
+        if (name.equals("getRequestURI")) return SP_ACS_URL;
+        if (name.equals("getScheme")) return "http";
+        if (name.equals("getCharacterEncoding")) return "UTF-8";
+        if (name.equals("isSecure")) return Boolean.FALSE;
+        if (name.equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+        if (name.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+        return null;
+      }
+    };
+    return (HttpServletRequest) Proxy.newProxyInstance(SPEngineTest.class.getClassLoader(),
+      new Class [] { HttpServletRequest.class }, handler);
+  }
+}